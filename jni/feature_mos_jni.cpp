@@ -369,22 +369,20 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromG
 
     if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
     {
+        // Copy LR and HR of the same readback together, alignment runs on
+        // another thread than the GL readback and may be overtaken by it.
+        // The HR slot is only kept if the frame is accepted below.
         sem_wait(&gPreviewImage_semaphore);
         ConvertYVUAiToPlanarYVU(tImage[LR][frame_number_LR], gPreviewImage[LR],
                 tWidth[LR], tHeight[LR]);
-
+        ConvertYVUAiToPlanarYVU(tImage[HR][frame_number_HR], gPreviewImage[HR],
+                tWidth[HR], tHeight[HR]);
         sem_post(&gPreviewImage_semaphore);
 
         ret_code = AddFrame(LR, frame_number_LR, gTRS);
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
-            // Copy into HR buffer only if this is a valid frame
-            sem_wait(&gPreviewImage_semaphore);
-            ConvertYVUAiToPlanarYVU(tImage[HR][frame_number_HR], gPreviewImage[HR],
-                    tWidth[HR], tHeight[HR]);
-            sem_post(&gPreviewImage_semaphore);
-
             frame_number_LR++;
             frame_number_HR++;
         }
@@ -313,10 +313,13 @@ bool continuePanningFBO(double panOffset) {
 // pasted in by gWarper2 after translating it by g_dTranslationToFBOCenter.
 // The computed g_dAffinetransPan is such that it offsets the computed preview
 // mosaic horizontally to make the viewfinder pan within the UI layout.
+// Called from the alignment thread as well as the GL thread, the matrices
+// are handed to the GL thread in updateMatrix under gPreviewImage_semaphore.
 void UpdateWarpTransformation(float *trs)
 {
     double H[9], Hp[9], Htemp1[9], Htemp2[9], T[9];
 
+    sem_wait(&gPreviewImage_semaphore);
     for(int i = 0; i < 9; i++)
     {
         gThisH1t[i] = trs[i];
@@ -390,6 +393,7 @@ void UpdateWarpTransformation(float *trs)
         db_Multiply3x3_3x3(Htemp1, gRotation90, Hp);
         ConvertAffine3x3toGL4x4(g_dAffinetransPan, Htemp1);
     }
+    sem_post(&gPreviewImage_semaphore);
 }
 
 void AllocateTextureMemory(int widthHR, int heightHR, int widthLR, int heightLR)
@@ -856,12 +860,14 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_setWarping(
             gPreview.Clear(0.0, 0.0, 0.0, 1.0);
         }
         gPreviewBackground.Clear(0.0, 0.0, 0.0, 1.0);
+        sem_wait(&gPreviewImage_semaphore);
         gLastTx = 0.0f;
         gPanOffset = 0.0f;
         gPanViewfinder = true;
 
         db_Identity3x3(gThisH1t);
         db_Identity3x3(gLastH1t);
+        sem_post(&gPreviewImage_semaphore);
         // Make sure g_dAffinetransGL and g_dAffinetransPanGL are updated.
         // Otherwise, the first frame after setting the flag to true will be
         // incorrectly drawn.
@@ -878,12 +884,14 @@ JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_updateMatrix(
 {
     (void)env;
     (void)obj;
+    sem_wait(&gPreviewImage_semaphore);
     for(int i=0; i<16; i++)
     {
         g_dAffinetransGL[i] = g_dAffinetrans[i];
         g_dAffinetransPanGL[i] = g_dAffinetransPan[i];
         g_dTranslationToFBOCenterGL[i] = g_dTranslationToFBOCenter[i];
     }
+    sem_post(&gPreviewImage_semaphore);
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_MosaicRenderer_setPreviewBackground(
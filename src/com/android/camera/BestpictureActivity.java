@@ -97,7 +97,7 @@ public class BestpictureActivity extends FragmentActivity {
     private DotsView mDotsView;
     private ImageItems mImageItems;
     private ImageLoadingThread mLoadingThread;
-    private PhotoModule.NamedImages mNamedImages;
+    private CaptureNames mNamedImages;
     private Uri mPlaceHolderUri;
     private Dialog mDialog;
     private AlertDialog.Builder mBuilder;
@@ -188,7 +188,7 @@ public class BestpictureActivity extends FragmentActivity {
         display.getSize(size);
         mWidth = size.x/4;
         mHeight = size.y/4;
-        mNamedImages = new PhotoModule.NamedImages();
+        mNamedImages = new CaptureNames();
 
         mImageItems = new ImageItems(mActivity);
         mDotsView = (DotsView) findViewById(R.id.dots_view);
@@ -612,8 +612,7 @@ public class BestpictureActivity extends FragmentActivity {
 
     private void saveForground(String path) {
         long captureStartTime = System.currentTimeMillis();
-        mNamedImages.nameNewImage(captureStartTime);
-        PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
+        CaptureNames.NamedEntity name = mNamedImages.allocate(captureStartTime);
         String title = (name == null) ? null : name.title;
         String outPath = mPlaceHolderUri.getPath();
         try {
@@ -633,8 +632,7 @@ public class BestpictureActivity extends FragmentActivity {
     private class SaveImageTask extends AsyncTask<String, Void, Void> {
         protected Void doInBackground(String... path) {
             long captureStartTime = System.currentTimeMillis();
-            mNamedImages.nameNewImage(captureStartTime);
-            PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
+            CaptureNames.NamedEntity name = mNamedImages.allocate(captureStartTime);
             String title = (name == null) ? null : name.title;
             String outPath = Storage.generateFilepath(title, "jpeg");
             try {
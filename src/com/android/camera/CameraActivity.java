@@ -40,8 +40,6 @@ import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapRegionDecoder;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
@@ -79,6 +77,7 @@ import android.view.MotionEvent;
 import android.view.OrientationEventListener;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewStub;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.FrameLayout;
@@ -101,7 +100,6 @@ import com.android.camera.data.LocalDataAdapter;
 import com.android.camera.data.LocalMediaObserver;
 import com.android.camera.data.MediaDetails;
 import com.android.camera.data.SimpleViewData;
-import com.android.camera.exif.ExifInterface;
 import com.android.camera.tinyplanet.TinyPlanetFragment;
 import com.android.camera.ui.ModuleSwitcher;
 import com.android.camera.ui.DetailsDialog;
@@ -113,6 +111,7 @@ import com.android.camera.util.ApiHelper;
 import com.android.camera.util.CameraUtil;
 import com.android.camera.util.GcamHelper;
 import com.android.camera.util.IntentHelper;
+import com.android.camera.util.MemoryGovernor;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.PhotoSphereHelper;
 import com.android.camera.util.PhotoSphereHelper.PanoramaViewHelper;
@@ -120,9 +119,11 @@ import com.android.camera.util.UsageStatistics;
 import org.codeaurora.snapcam.R;
 
 import java.io.File;
-import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 
 import static com.android.camera.CameraManager.CameraOpenErrorCallback;
 
@@ -211,6 +212,9 @@ public class CameraActivity extends Activity
     private WideAnglePanoramaModule mPanoModule;
     private CaptureModule mCaptureModule;
     private PanoCaptureModule mPano2Module;
+    /* Modules whose UI is kept inflated, most recently used first */
+    private final LinkedList<CameraModule> mWarmModules = new LinkedList<CameraModule>();
+    private static final int MAX_WARM_MODULES = 2;
     private FrameLayout mAboveFilmstripControlLayout;
     private FrameLayout mCameraRootFrame;
     private View mCameraPhotoModuleRootView;
@@ -264,10 +268,13 @@ public class CameraActivity extends Activity
     private UpdateThumbnailTask mUpdateThumbnailTask;
     private CircularDrawable mThumbnailDrawable;
     private Bitmap mThumbnailBitmap;
+    /* Set when a recording's thumbnail came from its last preview frame */
+    private boolean mVideoThumbnailFromPreview;
     // FilmStripView.setDataAdapter fires 2 onDataLoaded calls before any data is actually loaded
     // Keep track of data request here to avoid creating useless UpdateThumbnailTask.
     private boolean mDataRequested;
-    private Cursor mCursor;
+    private boolean mMediaObserversRegistered;
+    private StartupScheduler mStartupScheduler;
 
     private boolean mAutoTestEnabled = false;
 
@@ -347,6 +354,7 @@ public class CameraActivity extends Activity
         @Override
         public void onReceive(Context context, Intent intent) {
             Log.d(TAG, "SDcard status changed, update storage space");
+            StorageSpaceTracker.invalidate();
             updateStorageSpaceAndHint();
         }
     };
@@ -422,7 +430,7 @@ public class CameraActivity extends Activity
             SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
             SharedPreferences.Editor editor = preferences.edit();
             editor.putBoolean(CAMERA_API_1_SUPPORT,support);
-            editor.commit();
+            editor.apply();
             return support;
         }
     }
@@ -762,6 +770,12 @@ public class CameraActivity extends Activity
         mUpdateThumbnailTask.execute();
     }
 
+    public void updateThumbnail(final CaptureThumbnail thumbnail) {
+        if (mUpdateThumbnailTask != null) mUpdateThumbnailTask.cancel(true);
+        mUpdateThumbnailTask = new UpdateThumbnailTask(thumbnail);
+        mUpdateThumbnailTask.execute();
+    }
+
     public void updateThumbnail(final Bitmap bitmap) {
         if (bitmap == null) return;
         if (mThumbnailBitmap != null)
@@ -811,7 +825,27 @@ public class CameraActivity extends Activity
         }
     }
 
+    /**
+     * Shows the last preview frame of a recording. The insert of that video
+     * then skips decoding a frame from the file.
+     */
+    public void updateVideoThumbnail(Bitmap bitmap) {
+        if (bitmap == null) return;
+        if (mUpdateThumbnailTask != null) mUpdateThumbnailTask.cancel(true);
+        mVideoThumbnailFromPreview = true;
+        updateThumbnail(bitmap);
+    }
+
+    /* The recording whose preview frame was shown won't be inserted */
+    public void cancelVideoThumbnailFromPreview() {
+        mVideoThumbnailFromPreview = false;
+    }
+
     public void updateThumbnail(boolean videoOnly) {
+        if (videoOnly && mVideoThumbnailFromPreview) {
+            mVideoThumbnailFromPreview = false;
+            return;
+        }
         // Only handle OnDataInserted if it's video.
         // Photo and Panorama have their own way of updating thumbnail.
         if (!videoOnly || (mCurrentModule instanceof VideoModule) ||
@@ -822,6 +856,7 @@ public class CameraActivity extends Activity
 
     private class UpdateThumbnailTask extends AsyncTask<Void, Void, Bitmap> {
         private byte[] mJpegData;
+        private CaptureThumbnail mCaptureThumbnail;
         private boolean mCheckOrientation;
 
         public UpdateThumbnailTask(final byte[] jpegData, boolean checkOrientation) {
@@ -829,10 +864,20 @@ public class CameraActivity extends Activity
             mCheckOrientation = checkOrientation;
         }
 
+        public UpdateThumbnailTask(final CaptureThumbnail thumbnail) {
+            mCaptureThumbnail = thumbnail;
+            mCheckOrientation = true;
+        }
+
         @Override
         protected Bitmap doInBackground(Void... params) {
-            if (mJpegData != null)
-                return decodeImageCenter(null);
+            final int target = getResources().getDimensionPixelSize(R.dimen.capture_size);
+            if (mJpegData != null) {
+                mCaptureThumbnail = CaptureThumbnail.fromJpeg(mJpegData, null);
+                mJpegData = null;
+            }
+            if (mCaptureThumbnail != null)
+                return mCaptureThumbnail.decode(target);
 
             LocalDataAdapter adapter = getDataAdapter();
             ImageData img = adapter.getImageData(1);
@@ -846,7 +891,10 @@ public class CameraActivity extends Activity
             }
             else {
                 if (img.isPhoto()) {
-                    return decodeImageCenter(path);
+                    // Check photo orientation for Panorama. This is necessary during app
+                    // launch because Panorama module generates thumbnail bitmap with
+                    // orientation adjustment but only saves jpeg with orientation tag set.
+                    return CaptureThumbnail.decodeFile(path, target, mCheckOrientation);
                 } else {
                     return ThumbnailUtils
                             .createVideoThumbnail(path, MediaStore.Video.Thumbnails.MINI_KIND);
@@ -867,6 +915,7 @@ public class CameraActivity extends Activity
             }
 
             mJpegData = null;
+            mCaptureThumbnail = null;
         }
 
         @Override
@@ -876,71 +925,7 @@ public class CameraActivity extends Activity
 
             bitmap = null;
             mJpegData = null;
-        }
-
-        private Bitmap decodeImageCenter(final String path) {
-            // Check photo orientation for Panorama. This is necessary during app launch because
-            // Panorama module generates thumbnail bitmap with orientation adjustment but only
-            // saves jpeg with orientation tag set.
-            int orientation = 0;
-            if (mCheckOrientation) {
-                ExifInterface exif = new ExifInterface();
-                try {
-                    if (mJpegData != null) {
-                        exif.readExif(mJpegData);
-                    } else {
-                        exif.readExif(path);
-                    }
-                    orientation = Exif.getOrientation(exif);
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
-
-            final BitmapFactory.Options opt = new BitmapFactory.Options();
-            opt.inJustDecodeBounds = true;
-            if (mJpegData != null) {
-                BitmapFactory.decodeByteArray(mJpegData, 0, mJpegData.length, opt);
-            } else {
-                BitmapFactory.decodeFile(path, opt);
-            }
-
-            int w = opt.outWidth;
-            int h = opt.outHeight;
-            int d = w > h ? h : w;
-
-            final int target = getResources().getDimensionPixelSize(R.dimen.capture_size);
-            int sample = 1;
-            if (d > target) {
-                while (d / sample / 2 > target) {
-                    sample *= 2;
-                }
-            }
-            int st = sample * target;
-            final Rect rect = new Rect((w - st) / 2, (h - st) / 2, (w + st) / 2, (h + st) / 2);
-
-            opt.inJustDecodeBounds = false;
-            opt.inSampleSize = sample;
-            final BitmapRegionDecoder decoder;
-            try {
-                if (mJpegData == null) {
-                    decoder = BitmapRegionDecoder.newInstance(path, true);
-                } else {
-                    decoder = BitmapRegionDecoder.newInstance(mJpegData, 0, mJpegData.length, true);
-                }
-            } catch (IOException e) {
-                return null;
-            }
-            Bitmap bitmap = decoder.decodeRegion(rect, opt);
-            if (orientation != 0) {
-                Matrix matrix = new Matrix();
-                matrix.setRotate(orientation);
-                bitmap =  Bitmap.createBitmap(bitmap, 0, 0,
-                        bitmap.getWidth(), bitmap.getHeight(), matrix, false);
-            }
-            if (decoder != null)
-                decoder.recycle();
-            return bitmap;
+            mCaptureThumbnail = null;
         }
     }
 
@@ -1493,6 +1478,7 @@ public class CameraActivity extends Activity
     @Override
     public void onCreate(Bundle state) {
         super.onCreate(state);
+        MemoryGovernor.get().init(this);
         // Check if this is in the secure camera mode.
         Intent intent = getIntent();
         String action = intent.getAction();
@@ -1529,28 +1515,28 @@ public class CameraActivity extends Activity
             return;
         }
 
-        boolean camera_api_1_support = true;
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        if (!sharedPreferences.contains(CAMERA_API_1_SUPPORT)) {
-            camera_api_1_support = cameraAPICheck();
-        } else {
-            camera_api_1_support = sharedPreferences.getBoolean(CAMERA_API_1_SUPPORT,true);
+        mStartupScheduler = new StartupScheduler();
+
+        boolean cam2on = PersistUtil.getCamera2Mode();
+        // The API1 probe opens the camera, so only pay for it when its
+        // answer decides which module to start.
+        if (!cam2on) {
+            SharedPreferences sharedPreferences =
+                    PreferenceManager.getDefaultSharedPreferences(this);
+            boolean camera_api_1_support;
+            if (!sharedPreferences.contains(CAMERA_API_1_SUPPORT)) {
+                camera_api_1_support = cameraAPICheck();
+            } else {
+                camera_api_1_support = sharedPreferences.getBoolean(CAMERA_API_1_SUPPORT,true);
+            }
+            if (!camera_api_1_support)
+                cam2on = true;
         }
 
-        mCursor = getContentResolver().query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                null, null, null, null);
         GcamHelper.init(getContentResolver());
 
         getWindow().requestFeature(Window.FEATURE_ACTION_BAR);
 
-        LayoutInflater inflater = getLayoutInflater();
-        View rootLayout = inflater.inflate(R.layout.camera, null, false);
-        mCameraRootFrame = (FrameLayout)rootLayout.findViewById(R.id.camera_root_frame);
-        mCameraPhotoModuleRootView = rootLayout.findViewById(R.id.camera_photo_root);
-        mCameraVideoModuleRootView = rootLayout.findViewById(R.id.camera_video_root);
-        mCameraPanoModuleRootView = rootLayout.findViewById(R.id.camera_pano_root);
-        mCameraCaptureModuleRootView = rootLayout.findViewById(R.id.camera_capture_root);
-
         int moduleIndex = -1;
         if (MediaStore.INTENT_ACTION_VIDEO_CAMERA.equals(getIntent().getAction())
                 || MediaStore.ACTION_VIDEO_CAPTURE.equals(getIntent().getAction())) {
@@ -1577,18 +1563,33 @@ public class CameraActivity extends Activity
                 moduleIndex = ModuleSwitcher.PHOTO_MODULE_INDEX;
             }
         }
-        boolean cam2on = PersistUtil.getCamera2Mode();
-        if (!cam2on && !camera_api_1_support)
-            cam2on = true;
         CameraHolder.setCamera2Mode(this, cam2on);
         if (cam2on && (moduleIndex == ModuleSwitcher.PHOTO_MODULE_INDEX ||
                 moduleIndex == ModuleSwitcher.VIDEO_MODULE_INDEX))
             moduleIndex = ModuleSwitcher.CAPTURE_MODULE_INDEX;
+        if (moduleIndex == ModuleSwitcher.CAPTURE_MODULE_INDEX) {
+            // Open the camera while the views below are inflated.
+            SettingsManager settingsManager = SettingsManager.getInstance();
+            if (settingsManager != null) {
+                CameraPrewarmer.start(this, settingsManager.getInitialCameraId(
+                        PreferenceManager.getDefaultSharedPreferences(this)));
+            }
+        }
+
+        LayoutInflater inflater = getLayoutInflater();
+        View rootLayout = inflater.inflate(R.layout.camera, null, false);
+        mCameraRootFrame = (FrameLayout)rootLayout.findViewById(R.id.camera_root_frame);
+        // Module roots stay stubs until setModuleFromIndex needs them.
+        mStartupScheduler.mark(StartupScheduler.PHASE_LAYOUT_INFLATED);
 
         mOrientationListener = new MyOrientationEventListener(this);
         setContentView(R.layout.camera_filmstrip);
         mFilmStripView = (FilmStripView) findViewById(R.id.filmstrip_view);
         setModuleFromIndex(moduleIndex);
+        if (mCurrentModule != mCaptureModule) {
+            CameraPrewarmer.release();
+        }
+        mStartupScheduler.mark(StartupScheduler.PHASE_MODULE_SET);
 
         mActionBar = getActionBar();
         mActionBar.addOnMenuVisibilityListener(this);
@@ -1631,8 +1632,15 @@ public class CameraActivity extends Activity
             mDataAdapter = mWrappedDataAdapter;
             mFilmStripView.setDataAdapter(mDataAdapter);
             if (!isCaptureIntent()) {
-                mDataAdapter.requestLoad(getContentResolver());
-                mDataRequested = true;
+                // The filmstrip is not visible until the user swipes, load it
+                // once preview is up.
+                mStartupScheduler.defer(new Runnable() {
+                    @Override
+                    public void run() {
+                        mDataAdapter.requestLoad(getContentResolver());
+                        mDataRequested = true;
+                    }
+                }, false);
             }
         } else {
             // Put a lock placeholder as the last image by setting its date to
@@ -1664,17 +1672,23 @@ public class CameraActivity extends Activity
             mFilmStripView.setDataAdapter(mDataAdapter);
         }
 
-        setupNfcBeamPush();
-
         mLocalImagesObserver = new LocalMediaObserver();
         mLocalVideosObserver = new LocalMediaObserver();
 
-        getContentResolver().registerContentObserver(
-                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true,
-                mLocalImagesObserver);
-        getContentResolver().registerContentObserver(
-                MediaStore.Video.Media.EXTERNAL_CONTENT_URI, true,
-                mLocalVideosObserver);
+        mStartupScheduler.defer(new Runnable() {
+            @Override
+            public void run() {
+                setupNfcBeamPush();
+                getContentResolver().registerContentObserver(
+                        MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true,
+                        mLocalImagesObserver);
+                getContentResolver().registerContentObserver(
+                        MediaStore.Video.Media.EXTERNAL_CONTENT_URI, true,
+                        mLocalVideosObserver);
+                registerSDcardMountedReceiver();
+                mMediaObserversRegistered = true;
+            }
+        }, false);
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         mDeveloperMenuEnabled = prefs.getBoolean(CameraSettings.KEY_DEVELOPER_MENU, false);
@@ -1690,13 +1704,40 @@ public class CameraActivity extends Activity
         int offset = lower * 7 / 100;
         SETTING_LIST_WIDTH_1 = lower / 2 + offset;
         SETTING_LIST_WIDTH_2 = lower / 2 - offset;
-        registerSDcardMountedReceiver();
 
         mAutoTestEnabled = PersistUtil.isAutoTestEnabled();
 
         if (mAutoTestEnabled) {
             registerAutoTestReceiver();
         }
+        mStartupScheduler.mark(StartupScheduler.PHASE_CREATE_DONE);
+    }
+
+    /**
+     * Called by the current module once its preview is on screen. Releases the
+     * startup work that was kept off the critical path.
+     */
+    public void onFirstPreviewFrame() {
+        if (Looper.myLooper() != getMainLooper()) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    onFirstPreviewFrame();
+                }
+            });
+            return;
+        }
+        if (mStartupScheduler != null) {
+            mStartupScheduler.onFirstPreviewFrame();
+        }
+    }
+
+    /* Startup phase timestamps in ms from the start of onCreate, used by tests */
+    public Map<String, Long> getStartupTimeline() {
+        if (mStartupScheduler == null) {
+            return new HashMap<String, Long>();
+        }
+        return mStartupScheduler.getTimeline();
     }
 
     private void setRotationAnimation() {
@@ -1844,6 +1885,8 @@ public class CameraActivity extends Activity
             finish();
             return;
         }
+        // Other apps may have used storage while we were in the background.
+        StorageSpaceTracker.invalidate();
         SettingsManager settingsManager = SettingsManager.getInstance();
         if (settingsManager == null) {
             SettingsManager.createInstance(this);
@@ -1921,13 +1964,15 @@ public class CameraActivity extends Activity
             mWakeLock.release();
             Log.d(TAG, "wake lock release");
         }
-        if (mCursor != null) {
+        if (mStartupScheduler != null) {
+            mStartupScheduler.release();
+        }
+        CameraPrewarmer.release();
+        if (mMediaObserversRegistered) {
             getContentResolver().unregisterContentObserver(mLocalImagesObserver);
             getContentResolver().unregisterContentObserver(mLocalVideosObserver);
             unregisterReceiver(mSDcardMountedReceiver);
-
-            mCursor.close();
-            mCursor=null;
+            mMediaObserversRegistered = false;
         }
         if (mAutoTestEnabled) {
             unregisterReceiver(mAutoTestReceiver);
@@ -1938,6 +1983,18 @@ public class CameraActivity extends Activity
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryGovernor.get().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryGovernor.get().onLowMemory();
+    }
+
     @Override
     public void onConfigurationChanged(Configuration config) {
         super.onConfigurationChanged(config);
@@ -1984,9 +2041,11 @@ public class CameraActivity extends Activity
 
     protected long updateStorageSpace() {
         synchronized (mStorageSpaceLock) {
-            mStorageSpaceBytes = Storage.getAvailableSpace();
-            if (Storage.switchSavePath()) {
-                mStorageSpaceBytes = Storage.getAvailableSpace();
+            mStorageSpaceBytes = StorageSpaceTracker.getAvailableSpace();
+            // Only probe the SD card once the internal storage actually runs low.
+            if (mStorageSpaceBytes <= Storage.LOW_STORAGE_THRESHOLD_BYTES
+                    && Storage.switchSavePath()) {
+                mStorageSpaceBytes = StorageSpaceTracker.getAvailableSpace();
                 mMainHandler.sendEmptyMessage(SWITCH_SAVE_PATH);
             }
             return mStorageSpaceBytes;
@@ -2149,13 +2208,15 @@ public class CameraActivity extends Activity
      * index an sets it as mCurrentModule.
      */
     private void setModuleFromIndex(int moduleIndex) {
-        mCameraPhotoModuleRootView.setVisibility(View.GONE);
-        mCameraVideoModuleRootView.setVisibility(View.GONE);
-        mCameraPanoModuleRootView.setVisibility(View.GONE);
-        mCameraCaptureModuleRootView.setVisibility(View.GONE);
+        hideModuleRoot(mCameraPhotoModuleRootView);
+        hideModuleRoot(mCameraVideoModuleRootView);
+        hideModuleRoot(mCameraPanoModuleRootView);
+        hideModuleRoot(mCameraCaptureModuleRootView);
         mCurrentModuleIndex = moduleIndex;
         switch (moduleIndex) {
             case ModuleSwitcher.VIDEO_MODULE_INDEX:
+                mCameraVideoModuleRootView = inflateModuleRoot(mCameraVideoModuleRootView,
+                        R.id.camera_video_root_stub);
                 if(mVideoModule == null) {
                     mVideoModule = new VideoModule();
                     mVideoModule.init(this, mCameraVideoModuleRootView);
@@ -2167,6 +2228,8 @@ public class CameraActivity extends Activity
                 break;
 
             case ModuleSwitcher.PHOTO_MODULE_INDEX:
+                mCameraPhotoModuleRootView = inflateModuleRoot(mCameraPhotoModuleRootView,
+                        R.id.camera_photo_root_stub);
                 if(mPhotoModule == null) {
                     mPhotoModule = new PhotoModule();
                     mPhotoModule.init(this, mCameraPhotoModuleRootView);
@@ -2178,6 +2241,8 @@ public class CameraActivity extends Activity
                 break;
 
             case ModuleSwitcher.WIDE_ANGLE_PANO_MODULE_INDEX:
+                mCameraPanoModuleRootView = inflateModuleRoot(mCameraPanoModuleRootView,
+                        R.id.camera_pano_root_stub);
                 if(mPanoModule == null) {
                     mPanoModule = new WideAnglePanoramaModule();
                     mPanoModule.init(this, mCameraPanoModuleRootView);
@@ -2187,6 +2252,8 @@ public class CameraActivity extends Activity
                 break;
 
             case ModuleSwitcher.CAPTURE_MODULE_INDEX:
+                mCameraCaptureModuleRootView = inflateModuleRoot(mCameraCaptureModuleRootView,
+                        R.id.camera_capture_root_stub);
                 if(mCaptureModule == null) {
                     mCaptureModule = new CaptureModule();
                     mCaptureModule.init(this, mCameraCaptureModuleRootView);
@@ -2208,6 +2275,8 @@ public class CameraActivity extends Activity
                     mCurrentModuleIndex = ModuleSwitcher.PHOTO_MODULE_INDEX;
                     //Let it fall through to photo module
                 } else {
+                    mCameraPanoModuleRootView = inflateModuleRoot(mCameraPanoModuleRootView,
+                            R.id.camera_pano_root_stub);
                     if (mPano2Module == null) {
                         mPano2Module = new PanoCaptureModule();
                         mPano2Module.init(this, mCameraPanoModuleRootView);
@@ -2220,6 +2289,8 @@ public class CameraActivity extends Activity
             case ModuleSwitcher.GCAM_MODULE_INDEX:  //Unused module for now
             default:
                 // Fall back to photo mode.
+                mCameraPhotoModuleRootView = inflateModuleRoot(mCameraPhotoModuleRootView,
+                        R.id.camera_photo_root_stub);
                 if(mPhotoModule == null) {
                     mPhotoModule = new PhotoModule();
                     mPhotoModule.init(this, mCameraPhotoModuleRootView);
@@ -2230,6 +2301,61 @@ public class CameraActivity extends Activity
                 mCameraPhotoModuleRootView.setVisibility(View.VISIBLE);
                 break;
         }
+        keepModuleWarm(mCurrentModule);
+    }
+
+    private View inflateModuleRoot(View root, int stubId) {
+        if (root == null) {
+            root = ((ViewStub) mCameraRootFrame.findViewById(stubId)).inflate();
+        }
+        return root;
+    }
+
+    private void hideModuleRoot(View root) {
+        if (root != null) {
+            root.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Moves the module to the front of the warm list and drops the UI of the
+     * least recently used one once more than MAX_WARM_MODULES are kept, so
+     * switching back and forth between two modules does not rebuild either.
+     */
+    private void keepModuleWarm(CameraModule module) {
+        mWarmModules.remove(module);
+        mWarmModules.addFirst(module);
+        while (mWarmModules.size() > MAX_WARM_MODULES) {
+            releaseModule(mWarmModules.removeLast());
+        }
+    }
+
+    private void releaseModule(CameraModule module) {
+        View root = null;
+        module.onDestroy();
+        if (module == mPhotoModule) {
+            mPhotoModule = null;
+            root = mCameraPhotoModuleRootView;
+        } else if (module == mVideoModule) {
+            mVideoModule = null;
+            root = mCameraVideoModuleRootView;
+        } else if (module == mCaptureModule) {
+            mCaptureModule = null;
+            root = mCameraCaptureModuleRootView;
+        } else if (module == mPanoModule) {
+            mPanoModule = null;
+            if (!mWarmModules.contains(mPano2Module)) {
+                root = mCameraPanoModuleRootView;
+            }
+        } else if (module == mPano2Module) {
+            mPano2Module = null;
+            if (!mWarmModules.contains(mPanoModule)) {
+                root = mCameraPanoModuleRootView;
+            }
+        }
+        if (root != null) {
+            ((ViewGroup) root).removeAllViews();
+        }
     }
 
     /**
@@ -0,0 +1,248 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of camera capability tables derived from CameraCharacteristics,
+ * such as supported picture sizes or white balance modes. The cache is only
+ * trusted for the build fingerprint, app version and camera count it was
+ * written for, so a system or app update or a new camera invalidates it.
+ * Values are stored as string lists keyed per camera id.
+ */
+public class CameraCapabilityCache {
+    private static final String TAG = "SnapCam_CapabilityCache";
+    private static final String FILE_NAME = "camera_capabilities.cache";
+    private static final int VERSION = 1;
+    /* Writers share one temp file, so only one of them may run at a time */
+    private static final Object sWriteLock = new Object();
+
+    private final File mFile;
+    private final String mBuildKey;
+    private final HashMap<Integer, HashMap<String, List<String>>> mEntries =
+            new HashMap<Integer, HashMap<String, List<String>>>();
+    private int mCameraCount = -1;
+    private boolean mDirty;
+
+    private CameraCapabilityCache(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        int versionCode = 0;
+        try {
+            PackageInfo info = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0);
+            versionCode = info.versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+        }
+        mBuildKey = Build.FINGERPRINT + "/" + versionCode;
+    }
+
+    /* Loads the cache, returning an empty one if the file is missing or stale */
+    public static CameraCapabilityCache load(Context context) {
+        CameraCapabilityCache cache = new CameraCapabilityCache(context);
+        cache.read();
+        return cache;
+    }
+
+    /* Returns true if the cached tables were written for this many cameras */
+    public synchronized boolean isValidFor(int cameraCount) {
+        return mCameraCount == cameraCount;
+    }
+
+    /* Drops everything and starts a new cache for the given camera count */
+    public synchronized void reset(int cameraCount) {
+        mEntries.clear();
+        mCameraCount = cameraCount;
+        mDirty = true;
+    }
+
+    /* True if the key was stored, even with a null value */
+    public synchronized boolean contains(int cameraId, String key) {
+        HashMap<String, List<String>> entries = mEntries.get(cameraId);
+        return entries != null && entries.containsKey(key);
+    }
+
+    public synchronized List<String> getList(int cameraId, String key) {
+        HashMap<String, List<String>> entries = mEntries.get(cameraId);
+        return entries == null ? null : entries.get(key);
+    }
+
+    public synchronized void putList(int cameraId, String key, List<String> values) {
+        HashMap<String, List<String>> entries = mEntries.get(cameraId);
+        if (entries == null) {
+            entries = new HashMap<String, List<String>>();
+            mEntries.put(cameraId, entries);
+        }
+        entries.put(key, values == null ? null : new ArrayList<String>(values));
+        mDirty = true;
+    }
+
+    public Integer getInt(int cameraId, String key) {
+        List<String> values = getList(cameraId, key);
+        if (values == null || values.size() != 1) return null;
+        try {
+            return Integer.valueOf(values.get(0));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public void putInt(int cameraId, String key, int value) {
+        putList(cameraId, key, Arrays.asList(String.valueOf(value)));
+    }
+
+    /* Writes the cache on a background thread if anything changed */
+    public void saveAsync() {
+        synchronized (this) {
+            if (!mDirty) return;
+            mDirty = false;
+        }
+        new Thread("CapabilityCacheWriter") {
+            @Override
+            public void run() {
+                write();
+            }
+        }.start();
+    }
+
+    private void read() {
+        if (!mFile.exists()) return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != VERSION || !mBuildKey.equals(in.readUTF())) {
+                Log.d(TAG, "cache is stale, ignoring");
+                return;
+            }
+            int cameraCount = in.readInt();
+            int cameras = in.readInt();
+            HashMap<Integer, HashMap<String, List<String>>> entries =
+                    new HashMap<Integer, HashMap<String, List<String>>>();
+            for (int i = 0; i < cameras; i++) {
+                int cameraId = in.readInt();
+                int keys = in.readInt();
+                HashMap<String, List<String>> map = new HashMap<String, List<String>>();
+                for (int k = 0; k < keys; k++) {
+                    String key = in.readUTF();
+                    int size = in.readInt();
+                    List<String> values = null;
+                    if (size >= 0) {
+                        values = new ArrayList<String>(size);
+                        for (int v = 0; v < size; v++) {
+                            values.add(in.readUTF());
+                        }
+                    }
+                    map.put(key, values);
+                }
+                entries.put(cameraId, map);
+            }
+            synchronized (this) {
+                mEntries.putAll(entries);
+                mCameraCount = cameraCount;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to read capability cache", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void write() {
+        synchronized (sWriteLock) {
+            writeLocked();
+        }
+    }
+
+    private void writeLocked() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            synchronized (this) {
+                out.writeInt(VERSION);
+                out.writeUTF(mBuildKey);
+                out.writeInt(mCameraCount);
+                out.writeInt(mEntries.size());
+                for (Map.Entry<Integer, HashMap<String, List<String>>> camera
+                        : mEntries.entrySet()) {
+                    out.writeInt(camera.getKey());
+                    out.writeInt(camera.getValue().size());
+                    for (Map.Entry<String, List<String>> entry : camera.getValue().entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        List<String> values = entry.getValue();
+                        out.writeInt(values == null ? -1 : values.size());
+                        if (values != null) {
+                            for (String value : values) {
+                                out.writeUTF(value);
+                            }
+                        }
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "failed to replace capability cache");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write capability cache", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
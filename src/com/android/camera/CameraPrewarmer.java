@@ -0,0 +1,356 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.android.camera.util.MemoryGovernor;
+
+/**
+ * Opens the camera the activity is expected to start with while the views
+ * are still being inflated, together with the JPEG reader for the last
+ * picture size used on it. CaptureModule takes both over when it opens the
+ * camera; a device opened for another id than the module asks for is closed.
+ */
+public class CameraPrewarmer {
+    private static final String TAG = "SnapCam_CameraPrewarmer";
+
+    private static CameraPrewarmer sInstance;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final String mCameraId;
+    private CameraDevice mDevice;
+    private ImageReader mImageReader;
+    private boolean mFailed;
+    private boolean mClosed;
+    /* Set once the reader was dropped, readers built after that are closed right away */
+    private boolean mHandedOver;
+    private CameraDevice.StateCallback mCallback;
+    private Handler mCallbackHandler;
+
+    private CameraPrewarmer(String cameraId) {
+        mCameraId = cameraId;
+        mThread = new HandlerThread("CameraPrewarm");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /** Starts opening cameraId, does nothing if a device is already being warmed. */
+    public static synchronized void start(final Context context, int cameraId) {
+        if (sInstance != null) {
+            return;
+        }
+        final CameraManager manager = (CameraManager) context.getSystemService(
+                Context.CAMERA_SERVICE);
+        String[] ids;
+        try {
+            ids = manager.getCameraIdList();
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "camera list not available: " + e);
+            return;
+        }
+        if (cameraId < 0 || cameraId >= ids.length) {
+            return;
+        }
+        final CameraPrewarmer prewarmer = new CameraPrewarmer(ids[cameraId]);
+        final SharedPreferences prefs = context.getSharedPreferences(
+                ComboPreferences.getLocalSharedPreferencesName(context, cameraId),
+                Context.MODE_PRIVATE);
+        sInstance = prewarmer;
+        prewarmer.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                prewarmer.open(manager);
+                prewarmer.prepareImageReader(prefs.getString(
+                        SettingsManager.KEY_PICTURE_SIZE, null));
+            }
+        });
+    }
+
+    /**
+     * Hands the warmed device to callback if it was opened for cameraId, in
+     * which case onOpened and every later state change of the device is
+     * delivered on handler and true is returned. Otherwise the warmed device
+     * is closed and the caller opens the camera itself. Either way the
+     * prewarm is used up.
+     */
+    public static boolean attach(String cameraId, CameraDevice.StateCallback callback,
+            Handler handler) {
+        CameraPrewarmer prewarmer;
+        synchronized (CameraPrewarmer.class) {
+            prewarmer = sInstance;
+            sInstance = null;
+        }
+        if (prewarmer == null) {
+            return false;
+        }
+        prewarmer.closeReader();
+        if (prewarmer.handOver(cameraId, callback, handler)) {
+            Log.d(TAG, "camera " + cameraId + " taken over from prewarm");
+            return true;
+        }
+        prewarmer.closeDevice();
+        return false;
+    }
+
+    /* Returns the warmed reader if it matches, the caller owns it from then on */
+    public static ImageReader takeImageReader(int width, int height, int format,
+            int maxImages) {
+        CameraPrewarmer prewarmer;
+        synchronized (CameraPrewarmer.class) {
+            prewarmer = sInstance;
+        }
+        return prewarmer == null ? null
+                : prewarmer.takeReader(width, height, format, maxImages);
+    }
+
+    /** Closes whatever has not been taken over. */
+    public static void release() {
+        CameraPrewarmer prewarmer;
+        synchronized (CameraPrewarmer.class) {
+            prewarmer = sInstance;
+            sInstance = null;
+        }
+        if (prewarmer != null) {
+            prewarmer.closeReader();
+            prewarmer.closeDevice();
+        }
+    }
+
+    /* Readers are only useful until the module has built its outputs */
+    public static void releaseImageReader() {
+        CameraPrewarmer prewarmer;
+        synchronized (CameraPrewarmer.class) {
+            prewarmer = sInstance;
+        }
+        if (prewarmer != null) {
+            prewarmer.closeReader();
+        }
+    }
+
+    private void open(CameraManager manager) {
+        try {
+            manager.openCamera(mCameraId, mStateCallback, mHandler);
+        } catch (CameraAccessException | IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "prewarm open failed: " + e);
+            final CameraDevice.StateCallback callback;
+            synchronized (this) {
+                mFailed = true;
+                callback = mCallback;
+            }
+            if (callback != null) {
+                // Already handed over, the module waits for a device that never comes.
+                mCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onError(null, CameraDevice.StateCallback.ERROR_CAMERA_DEVICE);
+                    }
+                });
+                mThread.quitSafely();
+            }
+        }
+    }
+
+    private void prepareImageReader(String pictureSize) {
+        if (pictureSize == null) {
+            return;
+        }
+        int indexX = pictureSize.indexOf('x');
+        if (indexX <= 0) {
+            return;
+        }
+        int width;
+        int height;
+        try {
+            width = Integer.parseInt(pictureSize.substring(0, indexX));
+            height = Integer.parseInt(pictureSize.substring(indexX + 1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        int maxImages = MemoryGovernor.get().getMaxImages(CaptureModule.MAX_IMAGE_BUFFER_SIZE,
+                width, height, ImageFormat.JPEG);
+        ImageReader reader = ImageReader.newInstance(width, height, ImageFormat.JPEG,
+                maxImages);
+        synchronized (this) {
+            if (mClosed || mHandedOver) {
+                reader.close();
+                return;
+            }
+            mImageReader = reader;
+        }
+    }
+
+    private synchronized boolean handOver(String cameraId, CameraDevice.StateCallback callback,
+            Handler handler) {
+        if (mClosed || mFailed || mCallback != null || !mCameraId.equals(cameraId)) {
+            return false;
+        }
+        mCallback = callback;
+        mCallbackHandler = handler;
+        if (mDevice != null) {
+            deliverOpened(mDevice);
+        }
+        return true;
+    }
+
+    private synchronized ImageReader takeReader(int width, int height, int format,
+            int maxImages) {
+        ImageReader reader = mImageReader;
+        if (reader == null || reader.getWidth() != width || reader.getHeight() != height
+                || reader.getImageFormat() != format || reader.getMaxImages() != maxImages) {
+            return null;
+        }
+        mImageReader = null;
+        return reader;
+    }
+
+    private void closeReader() {
+        ImageReader reader;
+        synchronized (this) {
+            mHandedOver = true;
+            reader = mImageReader;
+            mImageReader = null;
+        }
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    private void closeDevice() {
+        CameraDevice device;
+        synchronized (this) {
+            if (mCallback != null || mClosed) {
+                return;
+            }
+            mClosed = true;
+            device = mDevice;
+            mDevice = null;
+        }
+        if (device != null) {
+            Log.d(TAG, "closing unused prewarmed camera " + mCameraId);
+            device.close();
+        } else if (mFailed) {
+            mThread.quitSafely();
+        }
+    }
+
+    private void deliverOpened(final CameraDevice device) {
+        final CameraDevice.StateCallback callback = mCallback;
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onOpened(device);
+            }
+        });
+    }
+
+    private synchronized CameraDevice.StateCallback getCallback() {
+        return mCallback;
+    }
+
+    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice device) {
+            synchronized (CameraPrewarmer.this) {
+                if (!mClosed) {
+                    mDevice = device;
+                    if (mCallback != null) {
+                        deliverOpened(device);
+                    }
+                    return;
+                }
+            }
+            device.close();
+        }
+
+        @Override
+        public void onDisconnected(final CameraDevice device) {
+            final CameraDevice.StateCallback callback = getCallback();
+            if (callback == null) {
+                synchronized (CameraPrewarmer.this) {
+                    mFailed = true;
+                    mDevice = null;
+                }
+                device.close();
+                return;
+            }
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onDisconnected(device);
+                }
+            });
+        }
+
+        @Override
+        public void onError(final CameraDevice device, final int error) {
+            final CameraDevice.StateCallback callback = getCallback();
+            if (callback == null) {
+                Log.w(TAG, "prewarmed camera error " + error);
+                synchronized (CameraPrewarmer.this) {
+                    mFailed = true;
+                    mDevice = null;
+                }
+                device.close();
+                return;
+            }
+            mCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onError(device, error);
+                }
+            });
+        }
+
+        @Override
+        public void onClosed(final CameraDevice device) {
+            final CameraDevice.StateCallback callback = getCallback();
+            if (callback != null) {
+                mCallbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onClosed(device);
+                    }
+                });
+            }
+            mThread.quitSafely();
+        }
+    };
+}
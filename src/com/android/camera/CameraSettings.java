@@ -29,10 +29,6 @@ import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.Size;
 import android.media.CamcorderProfile;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecInfo.CodecCapabilities;
-import android.media.MediaCodecInfo.VideoCapabilities;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import java.util.HashMap;
@@ -734,18 +730,18 @@ public class CameraSettings {
         return split(str);
     }
 
-    private static List<String> getSupportedVideoEncoders() { ArrayList<String> supported = new ArrayList<String>();
+    private List<String> getSupportedVideoEncoders() { ArrayList<String> supported = new ArrayList<String>();
         String str = null;
-        MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
-        for (MediaCodecInfo info :list.getCodecInfos()) {
-            Log.d(TAG, "info getName is " + info.getName());
-            if (info.isEncoder() && info.getName().contains("h263")) {
+        for (EncoderCapabilityIndex.Encoder info
+                : EncoderCapabilityIndex.get(mContext).getEncoders()) {
+            Log.d(TAG, "info getName is " + info.name);
+            if (info.name.contains("h263")) {
                 supported.add("h263");
-            } else if (info.isEncoder() && info.getName().contains("h264")) {
+            } else if (info.name.contains("h264")) {
                 supported.add("h264");
-            } else if (info.isEncoder() && info.getName().contains("h265")) {
+            } else if (info.name.contains("h265")) {
                 supported.add("h265");
-            } else if (info.isEncoder() && info.getName().contains("mpeg4")) {
+            } else if (info.name.contains("mpeg4")) {
                 supported.add("m4v");
             }
         }
@@ -62,9 +62,6 @@ import android.media.MediaActionSound;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecInfo.CodecCapabilities;
 import android.media.MediaCodecInfo.VideoCapabilities;
-import android.media.MediaCodecList;
-import android.media.MediaFormat;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Bundle;
@@ -94,16 +91,17 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.util.AttributeSet;
 
+import com.android.camera.exif.DngWriter;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.imageprocessor.filter.BlurbusterFilter;
 import com.android.camera.imageprocessor.filter.ChromaflashFilter;
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.imageprocessor.FrameProcessor;
-import com.android.camera.PhotoModule.NamedImages;
-import com.android.camera.PhotoModule.NamedImages.NamedEntity;
+import com.android.camera.CaptureNames.NamedEntity;
 import com.android.camera.imageprocessor.filter.SharpshooterFilter;
 import com.android.camera.imageprocessor.filter.StillmoreFilter;
+import com.android.camera.imageprocessor.filter.TrackingFocusFrameListener;
 import com.android.camera.imageprocessor.filter.UbifocusFilter;
 import com.android.camera.mpo.MpoInterface;
 import com.android.camera.ui.CountDownView;
@@ -113,6 +111,7 @@ import com.android.camera.ui.RotateTextToast;
 import com.android.camera.ui.TrackingFocusRenderer;
 import com.android.camera.util.ApiHelper;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.MemoryGovernor;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.SettingTranslation;
 import com.android.camera.util.AccessibilityUtils;
@@ -131,9 +130,15 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -221,7 +226,7 @@ public class CaptureModule implements CameraModule, PhotoController,
 
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
-    private static final int MAX_IMAGE_BUFFER_SIZE = 10;
+    static final int MAX_IMAGE_BUFFER_SIZE = 10;
 
     private static final int mLongShotLimitNums = PersistUtil.getLongshotShotLimit();
     private AtomicInteger mFrameSendNums = new AtomicInteger(0);
@@ -339,6 +344,25 @@ public class CaptureModule implements CameraModule, PhotoController,
     /*HDR Test*/
     private boolean mCaptureHDRTestEnable = false;
     boolean mHiston = false;
+    // Settings snapshot last applied to each request builder.
+    private final WeakHashMap<CaptureRequest.Builder, SettingsSnapshot> mAppliedSettings =
+            new WeakHashMap<>();
+    // Pre-built still capture builders, refreshed on settings changes.
+    private final CaptureRequestTemplates mStillTemplates = new CaptureRequestTemplates(
+            MAX_NUM_CAM, new CaptureRequestTemplates.Initializer() {
+                @Override
+                public void applyTemplateSettings(CaptureRequest.Builder builder, int id) {
+                    applyStillTemplateSettings(builder, id);
+                }
+
+                @Override
+                public int getSettingsGeneration() {
+                    return mSettingsManager.getSettingsGeneration();
+                }
+            });
+    // Vendor tags the HAL rejected, so they aren't set again.
+    private final Set<String> mUnsupportedVendorTags =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     private boolean mFirstTimeInitialized;
     private boolean mCamerasOpened = false;
     private boolean mIsLinked = false;
@@ -412,6 +436,10 @@ public class CaptureModule implements CameraModule, PhotoController,
     private CaptureResult mPreviewCaptureResult;
     private Face[] mPreviewFaces = null;
     private Face[] mStickyFaces = null;
+    // Tracking focus results in preview frame coordinates, most confident first.
+    private TrackingFocusFrameListener.Result[] mTrackedObjects = null;
+    private int mTrackedFrameWidth;
+    private int mTrackedFrameHeight;
     private ExtendedFace[] mExFaces = null;
     private ExtendedFace[] mStickyExFaces = null;
     private Rect mBayerCameraRegion;
@@ -431,9 +459,26 @@ public class CaptureModule implements CameraModule, PhotoController,
     private HeifWriter mLiveShotInitHeifWriter;
     private OutputConfiguration mLiveShotOutput;
     private HeifImage mLiveShotImage;
-    private NamedImages mNamedImages;
+    /* Pre-warmed HEIF writers for video snapshots, null when live shots use JPEG */
+    private LiveShotEncoder mLiveShotEncoder;
+    private boolean mLiveShotHeif;
+    private CaptureNames mNamedImages;
+    /* Still capture results by sensor timestamp, matched to RAW frames for DNG.
+     * Also the lock for mParkedRawImages. */
+    private static final int MAX_RAW_RESULTS = 16;
+    private final Map<Long, TotalCaptureResult> mRawResults = Collections.synchronizedMap(
+            new LinkedHashMap<Long, TotalCaptureResult>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, TotalCaptureResult> eldest) {
+                    return size() > MAX_RAW_RESULTS;
+                }
+            });
+    /* RAW frames that arrived before their capture result, by sensor timestamp */
+    private static final int MAX_PARKED_RAW_IMAGES = 2;
+    private final LinkedHashMap<Long, ParkedRawImage> mParkedRawImages =
+            new LinkedHashMap<Long, ParkedRawImage>();
     private ContentResolver mContentResolver;
-    private byte[] mLastJpegData;
+    private CaptureThumbnail mLastThumbnail;
     private int mJpegFileSizeEstimation;
     private boolean mFirstPreviewLoaded;
     private int[] mPrecaptureRequestHashCode = new int[MAX_NUM_CAM];
@@ -452,6 +497,8 @@ public class CaptureModule implements CameraModule, PhotoController,
     private boolean mIsRecordingVideo;
     // The video duration limit. 0 means no limit.
     private int mMaxVideoDurationInMs;
+    // Recorded time predicted to fill the storage, 0 if unknown.
+    private long mStorageLimitMs;
     private boolean mIsMute = false;
     private int mVideoEncoder;
     // Default 0. If it is larger than 0, the camcorder is in time lapse mode.
@@ -466,6 +513,7 @@ public class CaptureModule implements CameraModule, PhotoController,
     private boolean mMediaRecorderPausing = false;
     private long mRecordingStartTime;
     private long mRecordingTotalTime;
+    private long mRecordedDuration;
     private boolean mRecordingTimeCountsDown = false;
     private ImageReader mVideoSnapshotImageReader;
     private Range mHighSpeedFPSRange;
@@ -478,7 +526,8 @@ public class CaptureModule implements CameraModule, PhotoController,
     private CaptureRequest.Builder mVideoRequestBuilder;
     private CaptureRequest.Builder mVideoPreviewRequestBuilder;
 
-    public static int statsdata[] = new int[1024];
+    /* Four consecutive 256-bin channels: R, Gr, Gb, B */
+    static final HistogramStats sHistogramStats = new HistogramStats(1024, 0, 4, 256, -1);
 
     private static final int SELFIE_FLASH_DURATION = 680;
 
@@ -521,7 +570,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                 mActivity.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        if (mLastJpegData != null) mActivity.updateThumbnail(mLastJpegData);
+                        if (mLastThumbnail != null) mActivity.updateThumbnail(mLastThumbnail);
                     }
                 });
             } else {
@@ -530,7 +579,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                         if (uri != null)
                             mActivity.notifyNewMedia(uri);
                         mActivity.updateStorageSpaceAndHint();
-                        if (mLastJpegData != null) mActivity.updateThumbnail(mLastJpegData);
+                        if (mLastThumbnail != null) mActivity.updateThumbnail(mLastThumbnail);
                     }
                 });
             }
@@ -538,8 +587,9 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
     }
 
-    public void updateThumbnailJpegData(byte[] jpegData) {
-        mLastJpegData = jpegData;
+    /* exif is the already parsed header of jpegData, or null */
+    public void updateThumbnailJpegData(byte[] jpegData, ExifInterface exif) {
+        mLastThumbnail = CaptureThumbnail.fromJpeg(jpegData, exif);
     }
 
     private MediaSaveNotifyThread mediaSaveNotifyThread;
@@ -556,7 +606,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             };
 
     private MediaSaveService.OnMediaSavedListener mOnMediaSavedListener =
-            new MediaSaveService.OnMediaSavedListener() {
+            new MediaSaveService.OnMediaBatchSavedListener() {
                 @Override
                 public void onMediaSaved(Uri uri) {
                     if (mLongshotActive) {
@@ -571,6 +621,23 @@ public class CaptureModule implements CameraModule, PhotoController,
                         }
                     }
                 }
+
+                @Override
+                public void onMediaBatchSaved(List<Uri> uris) {
+                    if (!mLongshotActive) {
+                        for (Uri uri : uris) {
+                            onMediaSaved(uri);
+                        }
+                        return;
+                    }
+                    /* During longshot only the newest image refreshes the filmstrip */
+                    for (int i = uris.size() - 1; i >= 0; i--) {
+                        if (uris.get(i) != null) {
+                            onMediaSaved(uris.get(i));
+                            return;
+                        }
+                    }
+                }
             };
 
     public MediaSaveService.OnMediaSavedListener getMediaSavedListener() {
@@ -618,6 +685,53 @@ public class CaptureModule implements CameraModule, PhotoController,
         return mStickyFaces;
     }
 
+    public void onTrackedObjects(TrackingFocusFrameListener.Result[] results,
+                                 int width, int height) {
+        synchronized (this) {
+            mTrackedObjects = results;
+            mTrackedFrameWidth = width;
+            mTrackedFrameHeight = height;
+        }
+    }
+
+    /**
+     * Converts the tracked objects into 3A regions for the given camera, limited to
+     * maxRegions. The most confident object gets the highest weight. Returns null if
+     * nothing is tracked.
+     */
+    private MeteringRectangle[] getTrackedObjectRegions(int id, int maxRegions) {
+        TrackingFocusFrameListener.Result[] results;
+        int width, height;
+        synchronized (this) {
+            results = mTrackedObjects;
+            width = mTrackedFrameWidth;
+            height = mTrackedFrameHeight;
+        }
+        Rect region = mCropRegion[id];
+        if (results == null || results.length == 0 || region == null
+                || width == 0 || height == 0) {
+            return null;
+        }
+        int count = Math.min(results.length, maxRegions);
+        if (count == 0) {
+            return null;
+        }
+        float widthRatio = (float) region.width() / width;
+        float heightRatio = (float) region.height() / height;
+        MeteringRectangle[] regions = new MeteringRectangle[count];
+        for (int i = 0; i < count; i++) {
+            Rect pos = results[i].pos;
+            Rect rect = new Rect(region.left + (int) (pos.left * widthRatio),
+                    region.top + (int) (pos.top * heightRatio),
+                    region.left + (int) (pos.right * widthRatio),
+                    region.top + (int) (pos.bottom * heightRatio));
+            rect.intersect(region);
+            regions[i] = new MeteringRectangle(rect,
+                    MeteringRectangle.METERING_WEIGHT_MAX / (i + 1));
+        }
+        return regions;
+    }
+
     public CaptureResult getPreviewCaptureResult() {
         return mPreviewCaptureResult;
     }
@@ -626,6 +740,32 @@ public class CaptureModule implements CameraModule, PhotoController,
         return mBayerCameraRegion;
     }
 
+    private CaptureResultDispatcher mResultDispatcher;
+    private final CaptureResultDispatcher.Listener mResultListener =
+            new CaptureResultDispatcher.Listener() {
+        @Override
+        public void onFacesUpdate(Face[] faces, ExtendedFace[] extendedFaces) {
+            mUI.onFaceDetection(faces, extendedFaces);
+        }
+
+        @Override
+        public void onHistogramUpdate() {
+            refreshGraghViews();
+        }
+
+        @Override
+        public void onBokehStatusUpdate(int status) {
+            showBokehTip(status);
+        }
+
+        @Override
+        public void onFocusStateUpdate(int afState) {
+            if (mFocusStateListener != null) {
+                mFocusStateListener.onFocusStatusUpdate(afState);
+            }
+        }
+    };
+
     /**
      * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
      */
@@ -640,6 +780,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                     @Override
                     public void run() {
                         mUI.hidePreviewCover();
+                        mActivity.onFirstPreviewFrame();
                     }
                 });
                 mFirstPreviewLoaded = true;
@@ -655,12 +796,13 @@ public class CaptureModule implements CameraModule, PhotoController,
                                         CaptureRequest request,
                                         CaptureResult partialResult) {
             int id = (int) partialResult.getRequest().getTag();
-            if (id == getMainCameraId()) {
+            long frameNumber = partialResult.getFrameNumber();
+            if (id == getMainCameraId() && mResultDispatcher.needsFaces(frameNumber)) {
                 Face[] faces = partialResult.get(CaptureResult.STATISTICS_FACES);
                 if (faces != null && isBsgcDetecionOn()) {
-                    updateFaceView(faces, getBsgcInfo(partialResult, faces.length));
+                    updateFaceView(frameNumber, faces, getBsgcInfo(partialResult, faces.length));
                 } else {
-                    updateFaceView(faces, null);
+                    updateFaceView(frameNumber, faces, null);
                 }
             }
             updateCaptureStateMachine(id, partialResult);
@@ -671,24 +813,24 @@ public class CaptureModule implements CameraModule, PhotoController,
                                        CaptureRequest request,
                                        TotalCaptureResult result) {
             int id = (int) result.getRequest().getTag();
+            long frameNumber = result.getFrameNumber();
             if (id == getMainCameraId()) {
                 updateFocusStateChange(result);
-                Face[] faces = result.get(CaptureResult.STATISTICS_FACES);
-                if (faces != null && isBsgcDetecionOn()) {
-                    updateFaceView(faces, getBsgcInfo(result, faces.length));
-                } else {
-                    updateFaceView(faces, null);
+                // Skipped when a partial result of this frame already had the faces.
+                if (mResultDispatcher.needsFaces(frameNumber)) {
+                    Face[] faces = result.get(CaptureResult.STATISTICS_FACES);
+                    if (faces != null && isBsgcDetecionOn()) {
+                        updateFaceView(frameNumber, faces, getBsgcInfo(result, faces.length));
+                    } else {
+                        updateFaceView(frameNumber, faces, null);
+                    }
                 }
             }
-            if (SettingsManager.getInstance().isHistogramSupport()) {
+            if (mHiston && SettingsManager.getInstance().isHistogramSupport()) {
                 int[] histogramStats = result.get(CaptureModule.histogramStats);
-                if (histogramStats != null && mHiston) {
-                    /*The first element in the array stores max hist value . Stats data begin
-                    from second value*/
-                    synchronized (statsdata) {
-                        System.arraycopy(histogramStats, 0, statsdata, 0, 1024);
-                    }
-                    updateGraghView();
+                if (histogramStats != null) {
+                    sHistogramStats.publish(histogramStats);
+                    mResultDispatcher.postHistogram();
                 }
             }
             showBokehStatusMessage(id, result);
@@ -758,6 +900,10 @@ public class CaptureModule implements CameraModule, PhotoController,
         } catch (IllegalArgumentException e) {
             Log.d(TAG, "cannot find vendor tag: " + bokeh_status);
         }
+        mResultDispatcher.postBokehStatus(status);
+    }
+
+    private void showBokehTip(int status) {
         final String tip;
         switch (status) {
             case TOO_FAR:
@@ -783,21 +929,16 @@ public class CaptureModule implements CameraModule, PhotoController,
                 break;
         }
         boolean mDepthSuccess = status == DEPTH_EFFECT_SUCCESS;
-        mActivity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mUI.getBokehTipView() != null) {
-                    if (!mDepthSuccess && mBokehEnabled) {
-                        mUI.getBokehTipRct().setVisibility(View.VISIBLE);
-                        mUI.getBokehTipView().setVisibility(View.VISIBLE);
-                        mUI.getBokehTipView().setText(tip);
-                    } else {
-                        mUI.getBokehTipView().setVisibility(View.GONE);
-                        mUI.getBokehTipRct().setVisibility(View.GONE);
-                    }
-                }
+        if (mUI.getBokehTipView() != null) {
+            if (!mDepthSuccess && mBokehEnabled) {
+                mUI.getBokehTipRct().setVisibility(View.VISIBLE);
+                mUI.getBokehTipView().setVisibility(View.VISIBLE);
+                mUI.getBokehTipView().setText(tip);
+            } else {
+                mUI.getBokehTipView().setVisibility(View.GONE);
+                mUI.getBokehTipRct().setVisibility(View.GONE);
             }
-        });
+        }
     }
 
     private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
@@ -847,9 +988,10 @@ public class CaptureModule implements CameraModule, PhotoController,
 
         @Override
         public void onError(CameraDevice cameraDevice, int error) {
-            int id = Integer.parseInt(cameraDevice.getId());
+            // A prewarmed open that failed after the hand over reports no device.
+            int id = (cameraDevice == null) ? -1 : Integer.parseInt(cameraDevice.getId());
             Log.e(TAG, "onError " + id + " " + error);
-            if (mCamerasOpened) {
+            if (mCamerasOpened && id >= 0) {
                 mCameraDevice[id].close();
                 mCameraDevice[id] = null;
             }
@@ -1123,15 +1265,15 @@ public class CaptureModule implements CameraModule, PhotoController,
             }
         }
 
-        mNamedImages = new NamedImages();
+        mNamedImages = new CaptureNames();
         mGraphViewR = (Camera2GraphView) mRootView.findViewById(R.id.graph_view_r);
         mGraphViewGR = (Camera2GraphView) mRootView.findViewById(R.id.graph_view_gr);
         mGraphViewGB = (Camera2GraphView) mRootView.findViewById(R.id.graph_view_gb);
         mGraphViewB = (Camera2GraphView) mRootView.findViewById(R.id.graph_view_b);
-        mGraphViewR.setDataSection(0,256);
-        mGraphViewGR.setDataSection(256,512);
-        mGraphViewGB.setDataSection(512,768);
-        mGraphViewB.setDataSection(768,1024);
+        mGraphViewR.setDataSection(0);
+        mGraphViewGR.setDataSection(1);
+        mGraphViewGB.setDataSection(2);
+        mGraphViewB.setDataSection(3);
         if (mGraphViewR != null){
             mGraphViewR.setCaptureModuleObject(this);
         }
@@ -1158,7 +1300,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                 ClearSightImageProcessor.getInstance().setMediaSaveService(s);
             }
         }
-        mNamedImages = new NamedImages();
+        mNamedImages = new CaptureNames();
     }
 
     public ArrayList<ImageFilter> getFrameFilters() {
@@ -1311,6 +1453,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                                 } else if (mChosenImageFormat == ImageFormat.PRIVATE && id == getMainCameraId()) {
                                     mPostProcessor.onSessionConfigured(mCameraDevice[id], mCaptureSession[id]);
                                 }
+                                mStillTemplates.prepare(id, mCameraDevice[id]);
 
                             } catch (CameraAccessException e) {
                                 e.printStackTrace();
@@ -1532,6 +1675,7 @@ public class CaptureModule implements CameraModule, PhotoController,
         Trace.beginSection("CaptureModule init");
         mActivity = activity;
         mRootView = parent;
+        mResultDispatcher = new CaptureResultDispatcher(mResultListener);
         mSettingsManager = SettingsManager.getInstance();
         mSettingsManager.registerListener(this);
         mSettingsManager.init();
@@ -1858,14 +2002,16 @@ public class CaptureModule implements CameraModule, PhotoController,
                 return;
             }
 
-            CaptureRequest.Builder captureBuilder =
-                    mCameraDevice[id].createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-
-            if(mSettingsManager.isZSLInHALEnabled()) {
-                captureBuilder.set(CaptureRequest.CONTROL_ENABLE_ZSL, true);
-            }else{
-                captureBuilder.set(CaptureRequest.CONTROL_ENABLE_ZSL, false);
+            CaptureRequest.Builder captureBuilder = mStillTemplates.take(id, mCameraDevice[id]);
+            if (captureBuilder == null) {
+                captureBuilder =
+                        mCameraDevice[id].createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                applyStillTemplateSettings(captureBuilder, id);
+            } else {
+                applySettingsForShot(captureBuilder, id);
             }
+            // The next shot gets its template built while this one is captured.
+            mStillTemplates.prepare(id, mCameraDevice[id]);
 
             applySettingsForJpegInformation(captureBuilder, id);
             if (!mIsSupportedQcfa) {
@@ -1874,7 +2020,6 @@ public class CaptureModule implements CameraModule, PhotoController,
             //VendorTagUtil.setCdsMode(captureBuilder, 0);// CDS 0-OFF, 1-ON, 2-AUTO
             applyAFRegions(captureBuilder, id);
             applyAERegions(captureBuilder, id);
-            applySettingsForCapture(captureBuilder, id);
             if (!isLongShotSettingEnabled()) {
                 applyCaptureSWMFNR(captureBuilder);
             }
@@ -1893,8 +2038,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                 }
                 if (mSettingsManager.getSavePictureFormat() == SettingsManager.HEIF_FORMAT) {
                     long captureTime = System.currentTimeMillis();
-                    mNamedImages.nameNewImage(captureTime);
-                    NamedEntity name = mNamedImages.getNextNameEntity();
+                    NamedEntity name = mNamedImages.allocate(captureTime);
                     String title = (name == null) ? null : name.title;
                     long date = (name == null) ? -1 : name.date;
                     String pictureFormat = mLongshotActive? "heifs":"heif";
@@ -1946,6 +2090,27 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
     }
 
+    /* Fields of a still request that only change through settings */
+    private void applyStillTemplateSettings(CaptureRequest.Builder builder, int id) {
+        if(mSettingsManager.isZSLInHALEnabled()) {
+            builder.set(CaptureRequest.CONTROL_ENABLE_ZSL, true);
+        }else{
+            builder.set(CaptureRequest.CONTROL_ENABLE_ZSL, false);
+        }
+        applySettingsForCapture(builder, id);
+    }
+
+    /* Fields of a pre-built still request that depend on state at shutter time */
+    private void applySettingsForShot(CaptureRequest.Builder builder, int id) {
+        builder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+        builder.set(CaptureRequest.CONTROL_AF_MODE, mControlAFMode);
+        applyAfModes(builder);
+        applyFlash(builder, id);
+        applyIso(builder);
+        applyZoom(builder, id);
+        applyWbColorTemperature(builder);
+    }
+
     private void captureStillPictureForClearSight(int id) throws CameraAccessException{
         CaptureRequest.Builder captureBuilder =
                 ClearSightImageProcessor.getInstance().createCaptureRequest(mCameraDevice[id]);
@@ -1999,6 +2164,13 @@ public class CaptureModule implements CameraModule, PhotoController,
         @Override
         public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
         long timestamp, long frameNumber) {
+            // Preview frames spacing the shots produce no image, only captures count.
+            if (!"capture".equals(request.getTag())) {
+                return;
+            }
+            if (mSettingsManager.getSavePictureFormat() != SettingsManager.HEIF_FORMAT) {
+                mNamedImages.bind(timestamp, frameNumber, System.currentTimeMillis());
+            }
             if (mLongshotActive) {
                 mFrameSendNums.incrementAndGet();
                 Log.d(TAG, "captureStillPictureForLongshot onCaptureStarted");
@@ -2014,6 +2186,8 @@ public class CaptureModule implements CameraModule, PhotoController,
                 TotalCaptureResult result) {
             int id = getMainCameraId();
             Log.d(TAG, "captureStillPictureForLongshot onCaptureCompleted: " + id);
+            mNamedImages.onFrameCompleted(result.getFrameNumber());
+            saveRawResult(result);
             if (DEBUG) {
                 Log.d(TAG, "captureStillPictureForLongshot onCaptureCompleted mFrameSendNums : "
                         + mFrameSendNums.get() + ", mLongShotLimitNums :" + mLongShotLimitNums);
@@ -2034,6 +2208,9 @@ public class CaptureModule implements CameraModule, PhotoController,
                 CaptureRequest request,
                 CaptureFailure result) {
             Log.d(TAG, "captureStillPictureForLongshot onCaptureFailed: ");
+            if (!result.wasImageCaptured()) {
+                mNamedImages.discardFrame(result.getFrameNumber());
+            }
             if (mLongshotActive) {
                 mActivity.runOnUiThread(new Runnable() {
                     @Override
@@ -2079,19 +2256,31 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
     };
 
+    private LongshotEngine.Host mLongshotHost = new LongshotEngine.Host() {
+        @Override
+        public boolean isLongshotActive() {
+            return mLongshotActive;
+        }
+
+        @Override
+        public int getPendingImages() {
+            return mFrameSendNums.get() - mImageArrivedNums.get();
+        }
+
+        @Override
+        public float getSaveQueueLoad() {
+            MediaSaveService service = mActivity.getMediaSaveService();
+            return service == null ? 0 : service.getQueueLoad();
+        }
+    };
+
     private void captureStillPictureForLongshot(CaptureRequest.Builder captureBuilder, int id) throws CameraAccessException{
         Log.d(TAG, "captureStillPictureForLongshot " + id);
-        List<CaptureRequest> burstList = new ArrayList<>();
-        int burstShotFpsNums = PersistUtil.isBurstShotFpsNums();
-        for (int i = 0; i < mLongShotLimitNums; i++) {
-            for (int j = 0; j < burstShotFpsNums; j++) {
-                mPreviewRequestBuilder[id].setTag("preview");
-                burstList.add(mPreviewRequestBuilder[id].build());
-            }
-            captureBuilder.setTag("capture");
-            burstList.add(captureBuilder.build());
-        }
-        mCaptureSession[id].captureBurst(burstList, mLongshotCallBack, mCaptureCallbackHandler);
+        /* Shots go out in short windows paced by how fast the save queue drains */
+        LongshotEngine engine = new LongshotEngine(mCaptureSession[id], captureBuilder,
+                mPreviewRequestBuilder[id], mLongShotLimitNums, mLongshotCallBack,
+                mCaptureCallbackHandler, mLongshotHost);
+        engine.start();
         mActivity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -2113,11 +2302,25 @@ public class CaptureModule implements CameraModule, PhotoController,
         } else {
             mCaptureSession[id].capture(captureBuilder.build(), new CameraCaptureSession.CaptureCallback() {
 
+                @Override
+                public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                                             long timestamp, long frameNumber) {
+                    /* Name the shot when it is exposed, the image listener picks it up */
+                    if (id == getMainCameraId() && mSettingsManager.getSavePictureFormat()
+                            != SettingsManager.HEIF_FORMAT) {
+                        mNamedImages.bind(timestamp, frameNumber, System.currentTimeMillis());
+                    }
+                }
+
                 @Override
                 public void onCaptureCompleted(CameraCaptureSession session,
                                                CaptureRequest request,
                                                TotalCaptureResult result) {
                     Log.d(TAG, "captureStillPictureForCommon onCaptureCompleted: " + id);
+                    if (id == getMainCameraId()) {
+                        mNamedImages.onFrameCompleted(result.getFrameNumber());
+                        saveRawResult(result);
+                    }
                 }
 
                 @Override
@@ -2125,6 +2328,9 @@ public class CaptureModule implements CameraModule, PhotoController,
                                             CaptureRequest request,
                                             CaptureFailure result) {
                     Log.d(TAG, "captureStillPictureForCommon onCaptureFailed: " + id);
+                    if (id == getMainCameraId() && !result.wasImageCaptured()) {
+                        mNamedImages.discardFrame(result.getFrameNumber());
+                    }
                 }
 
                 @Override
@@ -2166,44 +2372,89 @@ public class CaptureModule implements CameraModule, PhotoController,
 
     private void captureVideoSnapshot(final int id) {
         Log.d(TAG, "captureVideoSnapshot " + id);
+        Handler handler = mCameraHandler;
+        if (null == mActivity || null == mCameraDevice[id] || mCurrentSession == null
+                || handler == null) {
+            warningToast("Camera is not ready yet to take a video snapshot.");
+            return;
+        }
+        mUI.enableShutter(false);
+        checkAndPlayShutterSound(id);
+        final int orientation = CameraUtil.getJpegRotation(id, mOrientation);
+        // Live shot writers share an output with the recording, every change to it
+        // is made on the camera handler.
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!submitVideoSnapshot(id, orientation)) {
+                    mActivity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mUI.enableShutter(true);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private boolean submitVideoSnapshot(final int id, int orientation) {
         try {
-            if (null == mActivity || null == mCameraDevice[id] || mCurrentSession == null) {
-                warningToast("Camera is not ready yet to take a video snapshot.");
-                return;
+            if (null == mCameraDevice[id] || mCurrentSession == null) {
+                return false;
             }
-            mUI.enableShutter(false);
-            checkAndPlayShutterSound(id);
             CaptureRequest.Builder captureBuilder =
                     mCameraDevice[id].createCaptureRequest(CameraDevice.TEMPLATE_VIDEO_SNAPSHOT);
 
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, CameraUtil.getJpegRotation(id, mOrientation));
+            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, orientation);
             captureBuilder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, mVideoSnapshotThumbSize);
             captureBuilder.set(CaptureRequest.JPEG_THUMBNAIL_QUALITY, (byte)80);
             applyVideoSnapshot(captureBuilder, id);
             applyZoom(captureBuilder, id);
 
-            if (mSettingsManager.getSavePictureFormat() == SettingsManager.HEIF_FORMAT) {
+            if (mLiveShotHeif) {
                 long captureTime = System.currentTimeMillis();
-                mNamedImages.nameNewImage(captureTime);
-                NamedEntity name = mNamedImages.getNextNameEntity();
+                NamedEntity name = mNamedImages.allocate(captureTime);
                 String title = (name == null) ? null : name.title;
                 long date = (name == null) ? -1 : name.date;
                 String path = Storage.generateFilepath(title, "heif");
                 String value = mSettingsManager.getValue(SettingsManager.KEY_JPEG_QUALITY);
                 int quality = getQualityNumber(value);
-                int orientation = CameraUtil.getJpegRotation(id,mOrientation);
-                HeifWriter writer = createHEIFEncoder(path,mVideoSize.getWidth(),
-                        mVideoSize.getHeight(),orientation,1,quality);
-                if (writer != null) {
-                    mLiveShotImage = new HeifImage(writer,path,title,date,orientation,quality);
-                    Surface input = writer.getInputSurface();
-                    mLiveShotOutput.addSurface(input);
-                    try{
-                        mCurrentSession.updateOutputConfiguration(mLiveShotOutput);
-                        captureBuilder.addTarget(input);
-                        writer.start();
+                mLiveShotImage = null;
+                LiveShotEncoder.Slot slot = (mLiveShotEncoder == null) ? null
+                        : mLiveShotEncoder.take(quality);
+                if (slot != null) {
+                    // Already attached to the session, only the encoder needs starting.
+                    captureBuilder.addTarget(slot.getInputSurface());
+                    try {
+                        slot.start(orientation);
+                        mLiveShotImage = new HeifImage(slot.writer,slot.path,title,date,
+                                orientation,quality);
                     } catch (IllegalStateException | IllegalArgumentException e) {
-                        e.printStackTrace();
+                        Log.w(TAG, "pre-warmed live shot writer failed to start", e);
+                        captureBuilder.removeTarget(slot.getInputSurface());
+                        mLiveShotEncoder.discard(slot);
+                    }
+                }
+                if (mLiveShotImage == null) {
+                    HeifWriter writer = createHEIFEncoder(path,mVideoSize.getWidth(),
+                            mVideoSize.getHeight(),orientation,1,quality);
+                    if (writer != null) {
+                        Surface input = writer.getInputSurface();
+                        try{
+                            mLiveShotOutput.addSurface(input);
+                            mCurrentSession.updateOutputConfiguration(mLiveShotOutput);
+                            captureBuilder.addTarget(input);
+                            writer.start();
+                            mLiveShotImage = new HeifImage(writer,path,title,date,
+                                    orientation,quality);
+                        } catch (CameraAccessException | IllegalStateException
+                                | IllegalArgumentException e) {
+                            e.printStackTrace();
+                            captureBuilder.removeTarget(input);
+                            detachLiveShotSurface(input);
+                            writer.close();
+                        }
                     }
                 }
             } else {
@@ -2221,6 +2472,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             List<Surface> surfaces = new ArrayList<>();
             addPreviewSurface(captureBuilder, surfaces, id);
 
+            final HeifImage liveShotImage = mLiveShotImage;
             mCurrentSession.capture(captureBuilder.build(),
                     new CameraCaptureSession.CaptureCallback() {
 
@@ -2242,33 +2494,47 @@ public class CaptureModule implements CameraModule, PhotoController,
                         public void onCaptureSequenceCompleted(CameraCaptureSession session, int
                                 sequenceId, long frameNumber) {
                             Log.d(TAG, "captureVideoSnapshot onCaptureSequenceCompleted: " + id);
-                            if (mSettingsManager.getSavePictureFormat() == SettingsManager.HEIF_FORMAT) {
-                                if (mLiveShotImage != null) {
+                            if (mLiveShotHeif) {
+                                if (liveShotImage != null) {
                                     try {
-                                        mLiveShotImage.getWriter().stop(3000);
-                                        mLiveShotImage.getWriter().close();
-                                        mActivity.getMediaSaveService().addHEIFImage(mLiveShotImage.getPath(),
-                                                mLiveShotImage.getTitle(),mLiveShotImage.getDate(),
+                                        liveShotImage.getWriter().stop(3000);
+                                        liveShotImage.getWriter().close();
+                                        // Pre-warmed writers write to a hidden file first.
+                                        String path = liveShotImage.getPath();
+                                        String finalPath = Storage.generateFilepath(
+                                                liveShotImage.getTitle(), "heif");
+                                        if (!path.equals(finalPath)
+                                                && new File(path).renameTo(new File(finalPath))) {
+                                            path = finalPath;
+                                        }
+                                        mActivity.getMediaSaveService().addHEIFImage(path,
+                                                liveShotImage.getTitle(),liveShotImage.getDate(),
                                                 null,mVideoSize.getWidth(),mVideoSize.getHeight(),
-                                                mLiveShotImage.getOrientation(),null,
+                                                liveShotImage.getOrientation(),null,
                                                 mContentResolver,mOnMediaSavedListener,
-                                                mLiveShotImage.getQuality(),"heif");
+                                                liveShotImage.getQuality(),"heif");
                                     } catch (TimeoutException | IllegalStateException e) {
                                         e.printStackTrace();
                                     } catch (Exception e) {
                                         e.printStackTrace();
-                                    } finally {
-                                        try{
-                                            mLiveShotOutput.removeSurface(mLiveShotImage.getInputSurface());
-                                            mCurrentSession.updateOutputConfiguration(mLiveShotOutput);
-                                            mLiveShotImage = null;
-                                        } catch (CameraAccessException e) {
-                                            e.printStackTrace();
-                                        } catch (Exception e) {
-                                            e.printStackTrace();
-                                        }
                                     }
                                 }
+                                Handler handler = mCameraHandler;
+                                if (handler != null) {
+                                    handler.post(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (liveShotImage != null) {
+                                                detachLiveShotSurface(
+                                                        liveShotImage.getInputSurface());
+                                            }
+                                            if (mLiveShotImage == liveShotImage) {
+                                                mLiveShotImage = null;
+                                            }
+                                            prewarmLiveShot(id);
+                                        }
+                                    });
+                                }
                                 mActivity.runOnUiThread(new Runnable() {
                                     @Override
                                     public void run() {
@@ -2282,7 +2548,9 @@ public class CaptureModule implements CameraModule, PhotoController,
         } catch (CameraAccessException|IllegalStateException e) {
             Log.d(TAG, "captureVideoSnapshot failed");
             e.printStackTrace();
+            return false;
         }
+        return true;
     }
 
     /**
@@ -2371,17 +2639,27 @@ public class CaptureModule implements CameraModule, PhotoController,
                         }
                         mImageReader[i] = ImageReader.newInstance(pictureSize.getWidth(),
                                 pictureSize.getHeight(), imageFormat, mPostProcessor.getMaxRequiredImageNum());
+                        MemoryGovernor.get().trackImageReader(mImageReader[i]);
                         if (mSaveRaw) {
                             mRawImageReader[i] = ImageReader.newInstance(mSupportedRawPictureSize.getWidth(),
                                     mSupportedRawPictureSize.getHeight(), ImageFormat.RAW10, mPostProcessor.getMaxRequiredImageNum()+1);
+                            MemoryGovernor.get().trackImageReader(mRawImageReader[i]);
                             mPostProcessor.setRawImageReader(mRawImageReader[i]);
                         }
                         mImageReader[i].setOnImageAvailableListener(mPostProcessor.getImageHandler(), mImageAvailableHandler);
                         mPostProcessor.onImageReaderReady(mImageReader[i], mSupportedMaxPictureSize, mPictureSize);
                     } else if (i == getMainCameraId()) {
                         Log.v(TAG, " mPictureSize :" + mPictureSize.getWidth() + " X " + mPictureSize.getHeight());
-                        mImageReader[i] = ImageReader.newInstance(mPictureSize.getWidth(),
-                                mPictureSize.getHeight(), imageFormat, MAX_IMAGE_BUFFER_SIZE);
+                        /* Hold fewer buffers when the device is already short of memory */
+                        int maxImages = MemoryGovernor.get().getMaxImages(MAX_IMAGE_BUFFER_SIZE,
+                                mPictureSize.getWidth(), mPictureSize.getHeight(), imageFormat);
+                        mImageReader[i] = CameraPrewarmer.takeImageReader(mPictureSize.getWidth(),
+                                mPictureSize.getHeight(), imageFormat, maxImages);
+                        if (mImageReader[i] == null) {
+                            mImageReader[i] = ImageReader.newInstance(mPictureSize.getWidth(),
+                                    mPictureSize.getHeight(), imageFormat, maxImages);
+                        }
+                        MemoryGovernor.get().trackImageReader(mImageReader[i]);
 
                         ImageAvailableListener listener = new ImageAvailableListener(i) {
                             @Override
@@ -2404,20 +2682,28 @@ public class CaptureModule implements CameraModule, PhotoController,
                                 Log.d(TAG, "image available for cam: " + mCamId);
                                 if (!mLongshotActive && !mSingleshotActive && mFrameSendNums.get()
                                         == mImageArrivedNums.get()) {
+                                    mNamedImages.discard(image.getTimestamp());
                                     image.close();
                                     return;
                                 }
                                 mImageArrivedNums.incrementAndGet();
                                 if (isMpoOn()) {
+                                    // The MPO writer names the combined file itself.
+                                    mNamedImages.discard(image.getTimestamp());
                                     mMpoSaveHandler.obtainMessage(
                                             MpoSaveHandler.MSG_NEW_IMG, mCamId, 0, image).sendToTarget();
                                 } else {
                                     mCaptureStartTime = System.currentTimeMillis();
-                                    mNamedImages.nameNewImage(mCaptureStartTime);
-                                    NamedEntity name = mNamedImages.getNextNameEntity();
+                                    NamedEntity name = mNamedImages.take(image.getTimestamp(),
+                                            mCaptureStartTime);
                                     String title = (name == null) ? null : name.title;
                                     long date = (name == null) ? -1 : name.date;
 
+                                    if (image.getFormat() == ImageFormat.RAW10
+                                            && saveDngImage(image, title, date, mCamId)) {
+                                        return;
+                                    }
+
                                     byte[] bytes;
                                     int width = 0,height = 0,format = -1;
                                     try{
@@ -2469,10 +2755,14 @@ public class CaptureModule implements CameraModule, PhotoController,
                                                         mOnMediaSavedListener, mContentResolver, "jpeg");
                                             }
 
+                                            /* Only the EXIF thumbnail is kept, longshot never
+                                            holds on to a full frame */
+                                            CaptureThumbnail thumbnail =
+                                                    CaptureThumbnail.fromJpeg(bytes, exif);
                                             if (mLongshotActive) {
-                                                mLastJpegData = bytes;
+                                                mLastThumbnail = thumbnail;
                                             } else {
-                                                mActivity.updateThumbnail(bytes);
+                                                mActivity.updateThumbnail(thumbnail);
                                             }
                                         }
                                     }
@@ -2486,12 +2776,14 @@ public class CaptureModule implements CameraModule, PhotoController,
                                     mSupportedRawPictureSize.getWidth(),
                                     mSupportedRawPictureSize.getHeight(), ImageFormat.RAW10,
                                     MAX_IMAGE_BUFFER_SIZE);
+                            MemoryGovernor.get().trackImageReader(mRawImageReader[i]);
                             mRawImageReader[i].setOnImageAvailableListener(listener,
                                     mImageAvailableHandler);
                         }
                     }
                 }
             }
+            CameraPrewarmer.releaseImageReader();
             mMediaRecorder = new MediaRecorder();
             mAutoFocusRegionSupported = mSettingsManager.isAutoFocusRegionSupported(mCameraIdList);
             mAutoExposureRegionSupported = mSettingsManager.isAutoExposureRegionSupported(mCameraIdList);
@@ -2500,6 +2792,89 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
     }
 
+    private final LiveShotEncoder.Listener mLiveShotListener = new LiveShotEncoder.Listener() {
+        @Override
+        public boolean onWriterReady(LiveShotEncoder.Slot slot) {
+            CameraCaptureSession session = mCurrentSession;
+            OutputConfiguration output = mLiveShotOutput;
+            if (!mIsRecordingVideo || session == null || output == null) return false;
+            try {
+                output.addSurface(slot.getInputSurface());
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Log.w(TAG, "cannot share live shot surface", e);
+                return false;
+            }
+            try {
+                session.updateOutputConfiguration(output);
+                return true;
+            } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+                Log.w(TAG, "cannot attach live shot writer", e);
+                output.removeSurface(slot.getInputSurface());
+                return false;
+            }
+        }
+
+        @Override
+        public void onWriterDiscarded(LiveShotEncoder.Slot slot) {
+            detachLiveShotSurface(slot.getInputSurface());
+        }
+    };
+
+    /* Removes a live shot writer from the shared output, on the camera handler */
+    private void detachLiveShotSurface(Surface surface) {
+        CameraCaptureSession session = mCurrentSession;
+        OutputConfiguration output = mLiveShotOutput;
+        if (session == null || output == null) return;
+        try {
+            output.removeSurface(surface);
+            session.updateOutputConfiguration(output);
+        } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+            Log.w(TAG, "cannot detach live shot writer", e);
+        }
+    }
+
+    private void prewarmLiveShot(int id) {
+        if (mLiveShotEncoder == null || !mIsRecordingVideo) return;
+        String value = mSettingsManager.getValue(SettingsManager.KEY_JPEG_QUALITY);
+        mLiveShotEncoder.prewarm(getQualityNumber(value));
+    }
+
+    private void releaseLiveShotEncoder() {
+        if (mLiveShotEncoder != null) {
+            mLiveShotEncoder.release();
+            mLiveShotEncoder = null;
+        }
+    }
+
+    /* Share of the video encoder's macroblock rate taken by the recording */
+    private float getVideoEncodeLoad() {
+        String mime = SettingTranslation.getVideoEncoderType(mVideoEncoder);
+        if (mime == null || mProfile == null) return 0f;
+        int fps = (mHighSpeedCapture && mHighSpeedCaptureRate > 0)
+                ? mHighSpeedCaptureRate : mProfile.videoFrameRate;
+        return LiveShotEncoder.getEncodeLoad(
+                EncoderCapabilityIndex.get(mActivity).getHardwareCapabilities(mime),
+                mVideoSize.getWidth(), mVideoSize.getHeight(), fps);
+    }
+
+    /* Keeps JPEG live shots at or below the video size, and below 4K */
+    private void limitVideoSnapshotSize() {
+        Size size = mVideoSnapshotSize;
+        if (size.getWidth() * size.getHeight() > mVideoSize.getWidth() * mVideoSize.getHeight()) {
+            size = mVideoSize;
+        }
+        if (is4kSize(size)) {
+            Size smaller = getMaxPictureSizeLessThan4k();
+            if (smaller != null) size = smaller;
+        }
+        if (!size.equals(mVideoSnapshotSize)) {
+            mVideoSnapshotSize = size;
+            Size[] thumbSizes = mSettingsManager.getSupportedThumbnailSizes(getMainCameraId());
+            mVideoSnapshotThumbSize = getOptimalPreviewSize(mVideoSnapshotSize, thumbSizes);
+            Log.d(TAG, "video snapshot limited to " + size);
+        }
+    }
+
     public static HeifWriter createHEIFEncoder(String path, int width, int height,
                                         int orientation, int imageCount, int quality) {
         HeifWriter heifWriter = null;
@@ -2522,24 +2897,41 @@ public class CaptureModule implements CameraModule, PhotoController,
 
     private void createVideoSnapshotImageReader() {
         if (mVideoSnapshotImageReader != null) {
+            MemoryGovernor.get().untrack(mVideoSnapshotImageReader);
             mVideoSnapshotImageReader.close();
         }
-        if (mSettingsManager.getSavePictureFormat() == SettingsManager.HEIF_FORMAT) {
+        mLiveShotInitHeifWriter = null;
+        // HEIF live shots need a second encoder session next to the video one,
+        // only use them while the video encoder has headroom.
+        float load = getVideoEncodeLoad();
+        mLiveShotHeif = mSettingsManager.getSavePictureFormat() == SettingsManager.HEIF_FORMAT
+                && load <= LiveShotEncoder.HEIF_LOAD_LIMIT;
+        Log.d(TAG, "video encode load " + load + ", heif live shot " + mLiveShotHeif);
+        if (mLiveShotHeif) {
             String tmpPath = mActivity.getCacheDir().getPath() + "/" + "liveshot_heif.tmp";
             mLiveShotInitHeifWriter = createHEIFEncoder(tmpPath,mVideoSize.getWidth(),
                     mVideoSize.getHeight(),0, 1,85);
+            mLiveShotHeif = mLiveShotInitHeifWriter != null;
+        }
+        if (mLiveShotHeif) {
+            mLiveShotEncoder = new LiveShotEncoder(mVideoSize.getWidth(),
+                    mVideoSize.getHeight(), mLiveShotListener, mCameraHandler);
             return;
         }
+        updateVideoSnapshotSize();
+        if (load > LiveShotEncoder.FULL_SIZE_LOAD_LIMIT) {
+            limitVideoSnapshotSize();
+        }
         mVideoSnapshotImageReader = ImageReader.newInstance(mVideoSnapshotSize.getWidth(),
                 mVideoSnapshotSize.getHeight(), ImageFormat.JPEG, 2);
+        MemoryGovernor.get().trackImageReader(mVideoSnapshotImageReader);
         mVideoSnapshotImageReader.setOnImageAvailableListener(
                 new ImageReader.OnImageAvailableListener() {
                     @Override
                     public void onImageAvailable(ImageReader reader) {
                         Image image = reader.acquireNextImage();
                         mCaptureStartTime = System.currentTimeMillis();
-                        mNamedImages.nameNewImage(mCaptureStartTime);
-                        NamedEntity name = mNamedImages.getNextNameEntity();
+                        NamedEntity name = mNamedImages.allocate(mCaptureStartTime);
                         String title = (name == null) ? null : name.title;
                         long date = (name == null) ? -1 : name.date;
 
@@ -2554,7 +2946,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                                 null, image.getWidth(), image.getHeight(), orientation, exif,
                                 mOnMediaSavedListener, mContentResolver, "jpeg");
 
-                        mActivity.updateThumbnail(bytes);
+                        mActivity.updateThumbnail(CaptureThumbnail.fromJpeg(bytes, exif));
                         image.close();
                         mActivity.runOnUiThread(new Runnable() {
                             @Override
@@ -2680,9 +3072,13 @@ public class CaptureModule implements CameraModule, PhotoController,
             }
 
             if (null != mImageReader[i]) {
+                MemoryGovernor.get().untrack(mImageReader[i]);
                 mImageReader[i].close();
                 mImageReader[i] = null;
             }
+            if (null != mRawImageReader[i]) {
+                MemoryGovernor.get().untrack(mRawImageReader[i]);
+            }
         }
     }
 
@@ -2692,11 +3088,117 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
     }
 
+    private static class ParkedRawImage {
+        final Image image;
+        final String title;
+        final long date;
+        final int cameraId;
+        final int rotation;
+
+        ParkedRawImage(Image image, String title, long date, int cameraId, int rotation) {
+            this.image = image;
+            this.title = title;
+            this.date = date;
+            this.cameraId = cameraId;
+            this.rotation = rotation;
+        }
+    }
+
+    /* Runs on the capture callback handler, saves a RAW frame parked for this result */
+    private void saveRawResult(TotalCaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (!mSaveRaw || timestamp == null) {
+            return;
+        }
+        ParkedRawImage parked;
+        synchronized (mRawResults) {
+            parked = mParkedRawImages.remove(timestamp);
+            if (parked == null) {
+                mRawResults.put(timestamp, result);
+                return;
+            }
+        }
+        writeDngImage(parked.image, result, parked.title, parked.date, parked.cameraId,
+                parked.rotation);
+    }
+
+    /**
+     * Hands a RAW frame to the save service as DNG. The capture result arrives on
+     * another handler, so a frame that comes first is parked until saveRawResult()
+     * pairs it by timestamp. Returns false, leaving the image open, when the frame
+     * has no title.
+     */
+    private boolean saveDngImage(Image image, String title, long date, int cameraId) {
+        if (title == null) {
+            return false;
+        }
+        long timestamp = image.getTimestamp();
+        int rotation = CameraUtil.getJpegRotation(cameraId, mOrientation);
+        TotalCaptureResult result;
+        ParkedRawImage evicted = null;
+        synchronized (mRawResults) {
+            result = mRawResults.remove(timestamp);
+            if (result == null) {
+                mParkedRawImages.put(timestamp,
+                        new ParkedRawImage(image, title, date, cameraId, rotation));
+                if (mParkedRawImages.size() > MAX_PARKED_RAW_IMAGES) {
+                    Iterator<ParkedRawImage> it = mParkedRawImages.values().iterator();
+                    evicted = it.next();
+                    it.remove();
+                }
+            }
+        }
+        if (result != null) {
+            writeDngImage(image, result, title, date, cameraId, rotation);
+        } else if (evicted != null) {
+            // Its result never came, most likely a failed capture. Keep the pixels.
+            Log.w(TAG, "No capture result for RAW frame " + evicted.title);
+            saveRawDump(evicted.image, evicted.title);
+        }
+        return true;
+    }
+
+    private void writeDngImage(Image image, TotalCaptureResult result, String title, long date,
+                               int cameraId, int rotation) {
+        DngWriter writer = new DngWriter(mSettingsManager.getCharacteristics(cameraId), result,
+                image.getWidth(), image.getHeight(), rotation, date);
+        mActivity.getMediaSaveService().addDngImage(image, writer, title);
+    }
+
+    /* Saves the RAW plane without DNG metadata and closes the image */
+    private void saveRawDump(Image image, String title) {
+        byte[] bytes;
+        try {
+            bytes = getJpegData(image);
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            image.close();
+        }
+        mActivity.getMediaSaveService().addRawImage(bytes, title, "raw");
+    }
+
+    private void closeParkedRawImages() {
+        synchronized (mRawResults) {
+            for (ParkedRawImage parked : mParkedRawImages.values()) {
+                parked.image.close();
+            }
+            mParkedRawImages.clear();
+            mRawResults.clear();
+        }
+    }
+
     /**
      * Closes the current {@link CameraDevice}.
      */
     private void closeCamera() {
         Log.d(TAG, "closeCamera");
+        mStillTemplates.clear();
+        if (mNamedImages != null) {
+            mNamedImages.clear();
+        }
+        closeParkedRawImages();
 
         closeProcessors();
 
@@ -2735,9 +3237,13 @@ public class CaptureModule implements CameraModule, PhotoController,
                 }
 
                 if (null != mImageReader[i]) {
+                    MemoryGovernor.get().untrack(mImageReader[i]);
                     mImageReader[i].close();
                     mImageReader[i] = null;
                 }
+                if (null != mRawImageReader[i]) {
+                    MemoryGovernor.get().untrack(mRawImageReader[i]);
+                }
             }
 
             mIsLinked = false;
@@ -2748,6 +3254,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             }
 
             if (null != mVideoSnapshotImageReader) {
+                MemoryGovernor.get().untrack(mVideoSnapshotImageReader);
                 mVideoSnapshotImageReader.close();
                 mVideoSnapshotImageReader = null;
             }
@@ -2856,25 +3363,40 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyCommonSettings(CaptureRequest.Builder builder, int id) {
+        SettingsSnapshot settings = mSettingsManager.getSettingsSnapshot();
+        SettingsSnapshot applied;
+        synchronized (mAppliedSettings) {
+            applied = mAppliedSettings.put(builder, settings);
+        }
+        // Keys nothing else in here touches are only set again when they changed.
+        boolean full = applied == null;
         builder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
         builder.set(CaptureRequest.CONTROL_AF_MODE, mControlAFMode);
         applyAfModes(builder);
         applyFaceDetection(builder);
         applyWhiteBalance(builder);
-        applyExposure(builder);
+        if (full || applied.exposure != settings.exposure) applyExposure(builder);
         applyIso(builder);
-        applyColorEffect(builder);
+        if (full || applied.colorEffect != settings.colorEffect) applyColorEffect(builder);
         applySceneMode(builder);
         applyZoom(builder, id);
-        applyInstantAEC(builder);
-        applySaturationLevel(builder);
-        applyAntiBandingLevel(builder);
+        if (full || applied.instantAec != settings.instantAec) applyInstantAEC(builder);
+        if (full || applied.saturationLevel != settings.saturationLevel) {
+            applySaturationLevel(builder);
+        }
+        if (full || applied.antiBandingLevel != settings.antiBandingLevel) {
+            applyAntiBandingLevel(builder);
+        }
         applyDenoise(builder);
         applyHistogram(builder);
-        applySharpnessControlModes(builder);
-        applyExposureMeteringModes(builder);
+        if (full || applied.sharpnessControl != settings.sharpnessControl) {
+            applySharpnessControlModes(builder);
+        }
+        if (full || applied.exposureMetering != settings.exposureMetering) {
+            applyExposureMeteringModes(builder);
+        }
         applyEarlyPCR(builder);
-        enableBokeh(builder);
+        enableBokeh(builder, id);
         enableSat(builder,id);
         applyWbColorTemperature(builder);
     }
@@ -2882,11 +3404,24 @@ public class CaptureModule implements CameraModule, PhotoController,
     private void enableSat(CaptureRequest.Builder request, int id) {
         boolean isLogicalId = mSettingsManager.isLogicalCamera(id);
         if (!mBokehEnabled && isLogicalId) {
-            try {
-                request.set(CaptureModule.sat_enable, true);
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "can not find vendor tag : org.codeaurora.qcamera3.sat");
-            }
+            setVendorTag(request, CaptureModule.sat_enable, true);
+        }
+    }
+
+    /**
+     * Sets a vendor tag, remembering tags the HAL rejected so later requests
+     * skip them instead of throwing again.
+     */
+    private <T> boolean setVendorTag(CaptureRequest.Builder request,
+                                     CaptureRequest.Key<T> key, T value) {
+        if (mUnsupportedVendorTags.contains(key.getName())) return false;
+        try {
+            request.set(key, value);
+            return true;
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "can not find vendor tag : " + key.getName());
+            mUnsupportedVendorTags.add(key.getName());
+            return false;
         }
     }
 
@@ -2907,12 +3442,14 @@ public class CaptureModule implements CameraModule, PhotoController,
         mImageAvailableHandler = new Handler(mImageAvailableThread.getLooper());
         mCaptureCallbackHandler = new Handler(mCaptureCallbackThread.getLooper());
         mMpoSaveHandler = new MpoSaveHandler(mMpoSaveThread.getLooper());
+        mStillTemplates.setHandler(mCameraHandler);
     }
 
     /**
      * Stops the background thread and its {@link Handler}.
      */
     private void stopBackgroundThread() {
+        mStillTemplates.setHandler(null);
         mCameraThread.quitSafely();
         mImageAvailableThread.quitSafely();
         mCaptureCallbackThread.quitSafely();
@@ -2962,7 +3499,10 @@ public class CaptureModule implements CameraModule, PhotoController,
                 Log.d(TAG, "Time out waiting to lock camera opening.");
                 throw new RuntimeException("Time out waiting to lock camera opening");
             }
-            manager.openCamera(mCameraId[id], mStateCallback, mCameraHandler);
+            // The activity may have started opening this camera already.
+            if (!CameraPrewarmer.attach(mCameraId[id], mStateCallback, mCameraHandler)) {
+                manager.openCamera(mCameraId[id], mStateCallback, mCameraHandler);
+            }
         } catch (CameraAccessException e) {
             e.printStackTrace();
         } catch (InterruptedException e) {
@@ -2980,6 +3520,7 @@ public class CaptureModule implements CameraModule, PhotoController,
     public void onPauseBeforeSuper() {
         cancelTouchFocus();
         mPaused = true;
+        mResultDispatcher.reset();
         mToast = null;
         mUI.onPause();
         if (mIsRecordingVideo) {
@@ -3013,7 +3554,7 @@ public class CaptureModule implements CameraModule, PhotoController,
         mUI.showPreviewCover();
         mFirstPreviewLoaded = false;
         stopBackgroundThread();
-        mLastJpegData = null;
+        mLastThumbnail = null;
         setProModeVisible();
         setBokehModeVisible();
         if (mIntentMode != CaptureModule.INTENT_MODE_NORMAL && mJpegImageData != null) {
@@ -3075,15 +3616,7 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     public boolean isTrackingFocusSettingOn() {
-        String scene = mSettingsManager.getValue(SettingsManager.KEY_SCENE_MODE);
-        try {
-            int mode = Integer.parseInt(scene);
-            if (mode == SettingsManager.SCENE_MODE_TRACKINGFOCUS_INT) {
-                return true;
-            }
-        } catch (Exception e) {
-        }
-        return false;
+        return mSettingsManager.getSettingsSnapshot().isTrackingFocus();
     }
 
     public void setRefocusLastTaken(final boolean value) {
@@ -3655,7 +4188,7 @@ public class CaptureModule implements CameraModule, PhotoController,
         return extendedFaces;
     }
 
-    private void updateFaceView(final Face[] faces, final ExtendedFace[] extendedFaces) {
+    private void updateFaceView(long frameNumber, Face[] faces, ExtendedFace[] extendedFaces) {
         mPreviewFaces = faces;
         mExFaces = extendedFaces;
         if (faces != null) {
@@ -3663,12 +4196,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                 mStickyFaces = faces;
                 mStickyExFaces = extendedFaces;
             }
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mUI.onFaceDetection(faces, extendedFaces);
-                }
-            });
+            mResultDispatcher.postFaces(frameNumber, faces, extendedFaces);
         }
     }
 
@@ -3794,10 +4322,10 @@ public class CaptureModule implements CameraModule, PhotoController,
         mGraphViewGR = (Camera2GraphView) mRootView.findViewById(R.id.graph_view_gr);
         mGraphViewGB = (Camera2GraphView) mRootView.findViewById(R.id.graph_view_gb);
         mGraphViewB = (Camera2GraphView) mRootView.findViewById(R.id.graph_view_b);
-        mGraphViewR.setDataSection(0,256);
-        mGraphViewGR.setDataSection(256,512);
-        mGraphViewGB.setDataSection(512,768);
-        mGraphViewB.setDataSection(768,1024);
+        mGraphViewR.setDataSection(0);
+        mGraphViewGR.setDataSection(1);
+        mGraphViewGB.setDataSection(2);
+        mGraphViewB.setDataSection(3);
         if(mGraphViewR != null){
             mGraphViewR.setAlpha(0.75f);
             mGraphViewR.setCaptureModuleObject(this);
@@ -3972,6 +4500,12 @@ public class CaptureModule implements CameraModule, PhotoController,
             mIsRecordingVideo = false;
             return false;
         }
+        if (!updateStorageLimit()) {
+            Log.w(TAG, "Storage issue, less than a second of video fits");
+            mStartRecPending = false;
+            mIsRecordingVideo = false;
+            return false;
+        }
         updateHFRSetting();
         updateVideoEncoder();
         try {
@@ -4113,6 +4647,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                         mUI.showRecordingUI(true, false);
                         updateRecordingTime();
                         keepScreenOn();
+                        prewarmLiveShot(cameraId);
                     }
 
                     @Override
@@ -4121,8 +4656,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                         Toast.makeText(mActivity, "Video Failed", Toast.LENGTH_SHORT).show();
                     }
                 };
-                if (mSettingsManager.getSavePictureFormat() == SettingsManager.HEIF_FORMAT &&
-                mLiveShotInitHeifWriter != null) {
+                if (mLiveShotHeif && mLiveShotInitHeifWriter != null) {
                     List<OutputConfiguration> outputConfigurations =
                             new ArrayList<OutputConfiguration>();
                     for(Surface s: surfaces){
@@ -4325,6 +4859,37 @@ public class CaptureModule implements CameraModule, PhotoController,
         return (long) (numberOfFrames / mProfile.videoFrameRate * 1000);
     }
 
+    /* Length of the recording from the recorder start, pause and resume times */
+    private long getRecordedDuration() {
+        long delta = mRecordingTotalTime;
+        if (!mMediaRecorderPausing) {
+            delta += SystemClock.uptimeMillis() - mRecordingStartTime;
+        }
+        return mCaptureTimeLapse ? getTimeLapseVideoLength(delta) : delta;
+    }
+
+    /* Predicts the recording time left on the volume, false if not even a second fits */
+    private boolean updateStorageLimit() {
+        long seconds = StorageSpaceTracker.getRemainingVideoSeconds();
+        if (seconds == 0) {
+            return false;
+        }
+        // Time lapse files grow slower than the clock, only the size limit applies there.
+        mStorageLimitMs = (seconds < 0 || mCaptureTimeLapse) ? 0 : seconds * 1000;
+        return true;
+    }
+
+    /* The max duration, or the storage limit when that is reached first; 0 if neither */
+    private long getRecordingLimitMs() {
+        if (mStorageLimitMs == 0) {
+            return mMaxVideoDurationInMs;
+        }
+        if (mMaxVideoDurationInMs == 0) {
+            return mStorageLimitMs;
+        }
+        return Math.min(mMaxVideoDurationInMs, mStorageLimitMs);
+    }
+
     private void updateRecordingTime() {
         if (!mIsRecordingVideo) {
             return;
@@ -4336,14 +4901,14 @@ public class CaptureModule implements CameraModule, PhotoController,
         long now = SystemClock.uptimeMillis();
         long delta = now - mRecordingStartTime + mRecordingTotalTime;
 
-        // Starting a minute before reaching the max duration
-        // limit, we'll countdown the remaining time instead.
-        boolean countdownRemainingTime = (mMaxVideoDurationInMs != 0
-                && delta >= mMaxVideoDurationInMs - 60000);
+        // Starting a minute before reaching the max duration or the
+        // storage limit, we'll countdown the remaining time instead.
+        long limit = getRecordingLimitMs();
+        boolean countdownRemainingTime = (limit != 0 && delta >= limit - 60000);
 
         long deltaAdjusted = delta;
         if (countdownRemainingTime) {
-            deltaAdjusted = Math.max(0, mMaxVideoDurationInMs - deltaAdjusted) + 999;
+            deltaAdjusted = Math.max(0, limit - deltaAdjusted) + 999;
         }
         String text;
 
@@ -4498,6 +5063,20 @@ public class CaptureModule implements CameraModule, PhotoController,
         mStopRecordingTime = System.currentTimeMillis();
         mStopRecPending = true;
         boolean shouldAddToMediaStoreNow = false;
+        mRecordedDuration = getRecordedDuration();
+        // Requested before the preview session closes, shown once stop() succeeded.
+        PreviewSnapshot.Deferred thumbnail = null;
+        if (mIntentMode != INTENT_MODE_VIDEO) {
+            thumbnail = new PreviewSnapshot.Deferred() {
+                @Override
+                protected void onReady(Bitmap bitmap) {
+                    mActivity.updateVideoThumbnail(bitmap);
+                }
+            };
+            PreviewSnapshot.request(mUI.getSurfaceView(),
+                    mActivity.getResources().getDimensionPixelSize(R.dimen.capture_size),
+                    thumbnail);
+        }
         // Stop recording
         checkAndPlayRecordSound(cameraId, false);
         setEndOfStream(false, true);
@@ -4505,7 +5084,9 @@ public class CaptureModule implements CameraModule, PhotoController,
         mFrameProcessor.onClose();
         if (mLiveShotInitHeifWriter != null) {
             mLiveShotInitHeifWriter.close();
+            mLiveShotInitHeifWriter = null;
         }
+        releaseLiveShotEncoder();
         if (!mPaused) {
             closePreviewSession();
         }
@@ -4522,6 +5103,14 @@ public class CaptureModule implements CameraModule, PhotoController,
             Log.w(TAG, "MediaRecoder stop fail",  e);
             if (mVideoFilename != null) deleteVideoFile(mVideoFilename);
         }
+        if (thumbnail != null) {
+            if (shouldAddToMediaStoreNow) {
+                thumbnail.onRecordingSaved();
+            } else {
+                thumbnail.onRecordingFailed();
+                mActivity.cancelVideoThumbnailFromPreview();
+            }
+        }
         if (shouldAddToMediaStoreNow) {
             saveVideo();
         }
@@ -4627,20 +5216,8 @@ public class CaptureModule implements CameraModule, PhotoController,
                 return;
             }
 
-            long duration = 0L;
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-
-            try {
-                retriever.setDataSource(mVideoFilename);
-                duration = Long.valueOf(retriever.extractMetadata(
-                        MediaMetadataRetriever.METADATA_KEY_DURATION));
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "cannot access the file");
-            }
-            retriever.release();
-
             mActivity.getMediaSaveService().addVideo(mVideoFilename,
-                    duration, mCurrentVideoValues,
+                    mRecordedDuration, mCurrentVideoValues,
                     mOnVideoSavedListener, mContentResolver);
         }
         mCurrentVideoValues = null;
@@ -4765,21 +5342,12 @@ public class CaptureModule implements CameraModule, PhotoController,
         if (DEBUG) Log.d(TAG,"mProfile.videoCodec="+mProfile.videoCodec);
         String type = SettingTranslation.getVideoEncoderType(mProfile.videoCodec);
         if (DEBUG) Log.d(TAG,"codec type="+type);
-        MediaCodecList allCodecs = new MediaCodecList(MediaCodecList.ALL_CODECS);
-        MediaFormat format = MediaFormat.createVideoFormat(type,videoWidth,videoHeight);
-        try{
-            String encodeName = allCodecs.findEncoderForFormat(format);
-            if (DEBUG) Log.d(TAG,"encodeName="+encodeName);
-        } catch (IllegalArgumentException| NullPointerException e){
-            e.printStackTrace();
-            if (DEBUG) Log.d(TAG,"error="+e.getLocalizedMessage());
+        if (type == null || !EncoderCapabilityIndex.get(mActivity)
+                .hasEncoderForSize(type, videoWidth, videoHeight)) {
             mUnsupportedResolution = true;
-        } finally {
-            if (mUnsupportedResolution) {
-                RotateTextToast.makeText(mActivity, R.string.error_app_unsupported_profile,
-                        Toast.LENGTH_LONG).show();
-                return;
-            }
+            RotateTextToast.makeText(mActivity, R.string.error_app_unsupported_profile,
+                    Toast.LENGTH_LONG).show();
+            return;
         }
 
         // Set maximum file size.
@@ -4974,7 +5542,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             return false;
         }
 
-        if (Storage.getAvailableSpace() <= Storage.LOW_STORAGE_THRESHOLD_BYTES) {
+        if (StorageSpaceTracker.getAvailableSpace() <= Storage.LOW_STORAGE_THRESHOLD_BYTES) {
             Log.w(TAG, "current storage is full");
             return true;
         }
@@ -5049,62 +5617,50 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyInstantAEC(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_INSTANT_AEC);
-        if (value == null || value.equals("0"))
+        int value = mSettingsManager.getSettingsSnapshot().instantAec;
+        if (value == SettingsSnapshot.UNSET || value == 0)
             return;
-        int intValue = Integer.parseInt(value);
-        request.set(CaptureModule.INSTANT_AEC_MODE, intValue);
+        setVendorTag(request, CaptureModule.INSTANT_AEC_MODE, value);
     }
 
     private void applySaturationLevel(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_SATURATION_LEVEL);
-        if (value != null) {
-            int intValue = Integer.parseInt(value);
-            request.set(CaptureModule.SATURATION, intValue);
+        int value = mSettingsManager.getSettingsSnapshot().saturationLevel;
+        if (value != SettingsSnapshot.UNSET) {
+            setVendorTag(request, CaptureModule.SATURATION, value);
         }
     }
 
     private void applyAntiBandingLevel(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_ANTI_BANDING_LEVEL);
-        if (value != null) {
-            int intValue = Integer.parseInt(value);
-            request.set(CaptureRequest.CONTROL_AE_ANTIBANDING_MODE, intValue);
+        int value = mSettingsManager.getSettingsSnapshot().antiBandingLevel;
+        if (value != SettingsSnapshot.UNSET) {
+            request.set(CaptureRequest.CONTROL_AE_ANTIBANDING_MODE, value);
         }
     }
 
     private void applyDenoise(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_DENOISE);
-        if (value != null && value.equals("denoise-off")) {
+        if (mSettingsManager.getSettingsSnapshot().denoiseOff) {
             request.set(CaptureRequest.NOISE_REDUCTION_MODE,
                     CameraMetadata.NOISE_REDUCTION_MODE_OFF);
         }
     }
 
     private void applyHistogram(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_HISTOGRAM);
-        if (value != null ) {
-            if (value.equals("enable")){
-                final byte enable = 1;
-                request.set(CaptureModule.histMode, enable);
-                mHiston = true;
-                updateGraghViewVisibility(View.VISIBLE);
-                updateGraghView();
-                return;
-            }
+        if (mSettingsManager.getSettingsSnapshot().histogram) {
+            final byte enable = 1;
+            setVendorTag(request, CaptureModule.histMode, enable);
+            mHiston = true;
+            updateGraghViewVisibility(View.VISIBLE);
+            updateGraghView();
+            return;
         }
         mHiston = false;
         updateGraghViewVisibility(View.GONE);
     }
 
     private void applySharpnessControlModes(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_SHARPNESS_CONTROL_MODE);
-        if (value != null) {
-            int intValue = Integer.parseInt(value);
-            try {
-                request.set(CaptureModule.sharpness_control, intValue);
-            } catch (IllegalArgumentException e) {
-                e.printStackTrace();
-            }
+        int value = mSettingsManager.getSettingsSnapshot().sharpnessControl;
+        if (value != SettingsSnapshot.UNSET) {
+            setVendorTag(request, CaptureModule.sharpness_control, value);
         }
     }
 
@@ -5115,41 +5671,32 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private int getDevAfMode() {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_AF_MODE);
-        int intValue = -1;
-        if (value != null) {
-            intValue = Integer.parseInt(value);
-        }
-        return intValue;
+        int value = mSettingsManager.getSettingsSnapshot().afMode;
+        return value == SettingsSnapshot.UNSET ? -1 : value;
     }
 
     private void applyExposureMeteringModes(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_EXPOSURE_METERING_MODE);
-        if (value != null) {
-            int intValue = Integer.parseInt(value);
-            request.set(CaptureModule.exposure_metering, intValue);
+        int value = mSettingsManager.getSettingsSnapshot().exposureMetering;
+        if (value != SettingsSnapshot.UNSET) {
+            setVendorTag(request, CaptureModule.exposure_metering, value);
         }
     }
 
     private void applyEarlyPCR(CaptureRequest.Builder request) {
-        try {
-            request.set(CaptureModule.earlyPCR, (byte) (mHighSpeedCapture ? 0x00 : 0x01));
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-        }
+        setVendorTag(request, CaptureModule.earlyPCR, (byte) (mHighSpeedCapture ? 0x00 : 0x01));
     }
 
-    private void enableBokeh(CaptureRequest.Builder request) {
+    private void enableBokeh(CaptureRequest.Builder request, int id) {
         if (mBokehEnabled) {
-            mBokehRequestBuilder = request;
-            try {
-                request.set(CaptureModule.bokeh_enable, true);
+            // The blur slider re-sends this builder, so only the preview builder may be kept.
+            if (request == mPreviewRequestBuilder[id]) {
+                mBokehRequestBuilder = request;
+            }
+            if (setVendorTag(request, CaptureModule.bokeh_enable, true)) {
                 final SharedPreferences prefs =
                         PreferenceManager.getDefaultSharedPreferences(mActivity);
                 int progress = prefs.getInt(SettingsManager.KEY_BOKEH_BLUR_DEGREE, 50);
-                request.set(CaptureModule.bokeh_blur_level, progress);
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "can not find vendor tag : org.codeaurora.qcamera3.bokeh");
+                setVendorTag(request, CaptureModule.bokeh_blur_level, progress);
             }
         }
     }
@@ -5191,22 +5738,26 @@ public class CaptureModule implements CameraModule, PhotoController,
     private void updateGraghView(){
         mActivity.runOnUiThread(new Runnable() {
             public void run() {
-                if(mGraphViewR != null) {
-                    mGraphViewR.PreviewChanged();
-                }
-                if(mGraphViewGR != null) {
-                    mGraphViewGR.PreviewChanged();
-                }
-                if(mGraphViewGB != null) {
-                    mGraphViewGB.PreviewChanged();
-                }
-                if(mGraphViewB != null) {
-                    mGraphViewB.PreviewChanged();
-                }
+                refreshGraghViews();
             }
         });
     }
 
+    private void refreshGraghViews() {
+        if(mGraphViewR != null) {
+            mGraphViewR.PreviewChanged();
+        }
+        if(mGraphViewGR != null) {
+            mGraphViewGR.PreviewChanged();
+        }
+        if(mGraphViewGB != null) {
+            mGraphViewGB.PreviewChanged();
+        }
+        if(mGraphViewB != null) {
+            mGraphViewB.PreviewChanged();
+        }
+    }
+
     private boolean applyPreferenceToPreview(int cameraId, String key, String value) {
         if (!checkSessionAndBuilder(mCaptureSession[cameraId], mPreviewRequestBuilder[cameraId])) {
             return false;
@@ -5290,7 +5841,11 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyAFRegions(CaptureRequest.Builder request, int id) {
-        if (mControlAFMode == CaptureRequest.CONTROL_AF_MODE_AUTO) {
+        MeteringRectangle[] tracked = isTrackingFocusSettingOn() ? getTrackedObjectRegions(id,
+                mSettingsManager.getMaxAutoFocusRegions(id)) : null;
+        if (tracked != null) {
+            request.set(CaptureRequest.CONTROL_AF_REGIONS, tracked);
+        } else if (mControlAFMode == CaptureRequest.CONTROL_AF_MODE_AUTO) {
             request.set(CaptureRequest.CONTROL_AF_REGIONS, mAFRegions[id]);
         } else {
             request.set(CaptureRequest.CONTROL_AF_REGIONS, ZERO_WEIGHT_3A_REGION);
@@ -5298,7 +5853,11 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyAERegions(CaptureRequest.Builder request, int id) {
-        if (mControlAFMode == CaptureRequest.CONTROL_AF_MODE_AUTO) {
+        MeteringRectangle[] tracked = isTrackingFocusSettingOn() ? getTrackedObjectRegions(id,
+                mSettingsManager.getMaxAutoExposureRegions(id)) : null;
+        if (tracked != null) {
+            request.set(CaptureRequest.CONTROL_AE_REGIONS, tracked);
+        } else if (mControlAFMode == CaptureRequest.CONTROL_AF_MODE_AUTO) {
             request.set(CaptureRequest.CONTROL_AE_REGIONS, mAERegions[id]);
         } else {
             request.set(CaptureRequest.CONTROL_AE_REGIONS, ZERO_WEIGHT_3A_REGION);
@@ -5306,12 +5865,10 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applySceneMode(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_SCENE_MODE);
-        String autoHdr = mSettingsManager.getValue(SettingsManager.KEY_AUTO_HDR);
-        String fdValue = mSettingsManager.getValue(SettingsManager.KEY_FACE_DETECTION);
-        if (value == null) return;
-        int mode = Integer.parseInt(value);
-        if (autoHdr != null && "enable".equals(autoHdr) && "0".equals(value)) {
+        SettingsSnapshot settings = mSettingsManager.getSettingsSnapshot();
+        if (settings.sceneMode == SettingsSnapshot.UNSET) return;
+        int mode = settings.sceneMode;
+        if (settings.autoHdr && mode == 0) {
             if (mSettingsManager.isHdrScene(getMainCameraId())) {
                 request.set(CaptureRequest.CONTROL_SCENE_MODE, CaptureRequest.CONTROL_SCENE_MODE_HDR);
                 request.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_USE_SCENE_MODE);
@@ -5330,14 +5887,13 @@ public class CaptureModule implements CameraModule, PhotoController,
             request.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_USE_SCENE_MODE);
         } else if (mode == SettingsManager.SCENE_MODE_BOKEH_INT){
             setSceneModeForBokeh(request);
-        } else if (!(fdValue != null && fdValue.equals("on"))){
+        } else if (!settings.faceDetection){
             request.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
         }
     }
 
     private void setSceneModeForBokeh(CaptureRequest.Builder request) {
-        String fdValue = mSettingsManager.getValue(SettingsManager.KEY_FACE_DETECTION);
-        if (fdValue != null && fdValue.equals("on")) {
+        if (mSettingsManager.getSettingsSnapshot().faceDetection) {
             request.set(CaptureRequest.CONTROL_SCENE_MODE,
                     CaptureRequest.CONTROL_SCENE_MODE_FACE_PRIORITY);
             request.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_USE_SCENE_MODE);
@@ -5347,25 +5903,18 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyExposure(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_EXPOSURE);
-        if (value == null) return;
-        int intValue = Integer.parseInt(value);
-        request.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, intValue);
+        int value = mSettingsManager.getSettingsSnapshot().exposure;
+        if (value == SettingsSnapshot.UNSET) return;
+        request.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, value);
     }
 
     private void applyIso(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_ISO);
+        SettingsSnapshot settings = mSettingsManager.getSettingsSnapshot();
+        String value = settings.iso;
         if (applyManualIsoExposure(request)) return;
         if (value == null) return;
-        String scene = mSettingsManager.getValue(SettingsManager.KEY_SCENE_MODE);
-        boolean promode = false;
-        if (scene != null) {
-            int mode = Integer.parseInt(scene);
-            if (mode == SettingsManager.SCENE_MODE_PROMODE_INT) {
-                promode = true;
-            }
-        }
-        if (!promode || value.equals("auto")) {
+        if (!settings.isPromode() || value.equals("auto")
+                || settings.isoIndex == SettingsSnapshot.UNSET) {
             if (request.get(CaptureRequest.SENSOR_EXPOSURE_TIME) == null) {
                 request.set(CaptureRequest.SENSOR_EXPOSURE_TIME, mIsoExposureTime);
             }
@@ -5373,7 +5922,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                 request.set(CaptureRequest.SENSOR_SENSITIVITY, mIsoSensitivity);
             }
         } else {
-            long intValue = SettingsManager.KEY_ISO_INDEX.get(value);
+            long intValue = settings.isoIndex;
             VendorTagUtil.setIsoExpPrioritySelectPriority(request, 0);
             VendorTagUtil.setIsoExpPriority(request, intValue);
             if (request.get(CaptureRequest.SENSOR_EXPOSURE_TIME) != null) {
@@ -5488,16 +6037,14 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyColorEffect(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_COLOR_EFFECT);
-        if (value == null) return;
-        int mode = Integer.parseInt(value);
+        int mode = mSettingsManager.getSettingsSnapshot().colorEffect;
+        if (mode == SettingsSnapshot.UNSET) return;
         request.set(CaptureRequest.CONTROL_EFFECT_MODE, mode);
     }
 
     private void applyWhiteBalance(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_WHITE_BALANCE);
-        if (value == null) return;
-        int mode = Integer.parseInt(value);
+        int mode = mSettingsManager.getSettingsSnapshot().whiteBalance;
+        if (mode == SettingsSnapshot.UNSET) return;
         request.set(CaptureRequest.CONTROL_AWB_MODE, mode);
     }
 
@@ -5537,8 +6084,7 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyFaceDetection(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_FACE_DETECTION);
-        if (value != null && value.equals("on")) {
+        if (mSettingsManager.getSettingsSnapshot().faceDetection) {
             request.set(CaptureRequest.STATISTICS_FACE_DETECT_MODE,
                     CaptureRequest.STATISTICS_FACE_DETECT_MODE_SIMPLE);
         }
@@ -5695,12 +6241,7 @@ public class CaptureModule implements CameraModule, PhotoController,
 
         // Report state change when AF state has changed.
         if (resultAFState != mLastResultAFState && mFocusStateListener != null) {
-            mActivity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mFocusStateListener.onFocusStatusUpdate(resultAFState);
-                }
-            });
+            mResultDispatcher.postFocusState(resultAFState);
         }
         mLastResultAFState = resultAFState;
     }
@@ -5713,6 +6254,7 @@ public class CaptureModule implements CameraModule, PhotoController,
     @Override
     public void onSettingsChanged(List<SettingsManager.SettingState> settings) {
         if (mPaused) return;
+        mStillTemplates.refresh();
         boolean updatePreviewBayer = false;
         boolean updatePreviewMono = false;
         boolean updatePreviewFront = false;
@@ -6076,8 +6618,7 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
 
         private void saveMpoImage() {
-            mNamedImages.nameNewImage(captureStartTime);
-            NamedEntity namedEntity = mNamedImages.getNextNameEntity();
+            NamedEntity namedEntity = mNamedImages.allocate(captureStartTime);
             String title = (namedEntity == null) ? null : namedEntity.title;
             long date = (namedEntity == null) ? -1 : namedEntity.date;
             int width = bayerImage.getWidth();
@@ -6092,7 +6633,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                     null, bayerBytes, monoBytes, width, height, title,
                     date, null, orientation, mOnMediaSavedListener, mContentResolver, "jpeg");
 
-            mActivity.updateThumbnail(bayerBytes);
+            mActivity.updateThumbnail(CaptureThumbnail.fromJpeg(bayerBytes, exif));
 
             bayerImage.close();
             bayerImage = null;
@@ -6423,6 +6964,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             mBokehEnabled = mode == SettingsManager.SCENE_MODE_BOKEH_INT;
         }
         mUI.initializeBokehMode(!mPaused && mBokehEnabled);
+        mResultDispatcher.resetBokehStatus();
         if (mPaused || !mBokehEnabled) {//disable bokeh mode
             mBokehRequestBuilder = null;
         }
@@ -6480,93 +7022,38 @@ public class CaptureModule implements CameraModule, PhotoController,
 }
 
 class Camera2GraphView extends View {
-    private Bitmap  mBitmap;
-    private Paint   mPaint = new Paint();
-    private Paint   mPaintRect = new Paint();
-    private Canvas  mCanvas = new Canvas();
-    private float   mScale = (float)3;
-    private float   mWidth;
-    private float   mHeight;
-    private int mStart, mEnd;
+    private final HistogramRenderer mRenderer = new HistogramRenderer();
+    private int mSection;
     private CaptureModule mCaptureModule;
-    private float scaled;
-    private static final int STATS_SIZE = 256;
     private static final String TAG = "GraphView";
 
 
     public Camera2GraphView(Context context, AttributeSet attrs) {
         super(context,attrs);
-
-        mPaint.setFlags(Paint.ANTI_ALIAS_FLAG);
-        mPaintRect.setColor(0xFFFFFFFF);
-        mPaintRect.setStyle(Paint.Style.FILL);
     }
 
-    void setDataSection(int start, int end){
-        mStart =  start;
-        mEnd = end;
+    /* Selects which of the four 256-bin channels this view shows */
+    void setDataSection(int section){
+        mSection = section;
+        CaptureModule.sHistogramStats.setColumns(mSection, mRenderer.getColumns());
     }
 
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-        mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
-        mCanvas.setBitmap(mBitmap);
-        mWidth = w;
-        mHeight = h;
+        mRenderer.setSize(w, h);
+        CaptureModule.sHistogramStats.setColumns(mSection, mRenderer.getColumns());
         super.onSizeChanged(w, h, oldw, oldh);
     }
     @Override
     protected void onDraw(Canvas canvas) {
-        if(mCaptureModule == null && !mCaptureModule.mHiston) {
-            Log.e(TAG, "returning as histogram is off ");
+        if(mCaptureModule == null || !mCaptureModule.mHiston) {
             return;
         }
-
-        if (mBitmap != null) {
-            final Paint paint = mPaint;
-            final Canvas cavas = mCanvas;
-            final float border = 5;
-            float graphheight = mHeight - (2 * border);
-            float graphwidth = mWidth - (2 * border);
-            float left, top, right, bottom;
-            float bargap = 0.0f;
-            float barwidth = graphwidth / STATS_SIZE;
-
-            cavas.drawColor(0xFFAAAAAA);
-            paint.setColor(Color.BLACK);
-
-            for (int k = 0; k <= (graphheight / 32); k++) {
-                float y = (float) (32 * k) + border;
-                cavas.drawLine(border, y, graphwidth + border, y, paint);
-            }
-            for (int j = 0; j <= (graphwidth / 32); j++) {
-                float x = (float) (32 * j) + border;
-                cavas.drawLine(x, border, x, graphheight + border, paint);
-            }
-            synchronized(CaptureModule.statsdata) {
-                int maxValue = Integer.MIN_VALUE;
-                for ( int i = mStart ; i < mEnd ; i++ ) {
-                    if ( maxValue < CaptureModule.statsdata[i] ) {
-                        maxValue = CaptureModule.statsdata[i];
-                    }
-                }
-                mScale = ( float ) maxValue;
-                for(int i=mStart ; i < mEnd ; i++)  {
-                    scaled = (CaptureModule.statsdata[i]/mScale)*STATS_SIZE;
-                    if(scaled >= (float)STATS_SIZE)
-                        scaled = (float)STATS_SIZE;
-                    left = (bargap * (i - mStart + 1)) + (barwidth * (i - mStart)) + border;
-                    top = graphheight + border;
-                    right = left + barwidth;
-                    bottom = top - scaled;
-                    cavas.drawRect(left, top, right, bottom, mPaintRect);
-                }
-            }
-            canvas.drawBitmap(mBitmap, 0, 0, null);
-        }
+        CaptureModule.sHistogramStats.update();
+        mRenderer.draw(canvas, CaptureModule.sHistogramStats.getHeights(mSection));
     }
     public void PreviewChanged() {
-        invalidate();
+        postInvalidateOnAnimation();
     }
 
     public void setCaptureModuleObject(CaptureModule captureModule) {
@@ -0,0 +1,127 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import com.android.camera.util.CameraUtil;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hands out file titles for captured images. Names are generated without a
+ * lock and come back as a value, so two captures on different threads can
+ * never swap names. A name can also be bound to a capture up front, keyed
+ * by its sensor timestamp or request tag, and looked up again when the
+ * image arrives. Camera1 callbacks arrive in shot order and use the queue.
+ */
+public class CaptureNames {
+    private final ConcurrentHashMap<Long, NamedEntity> mBound =
+            new ConcurrentHashMap<Long, NamedEntity>();
+    private final ConcurrentLinkedQueue<NamedEntity> mQueue =
+            new ConcurrentLinkedQueue<NamedEntity>();
+    // Keys of bound captures whose result hasn't arrived, by frame number.
+    private final ConcurrentHashMap<Long, Long> mFrameKeys =
+            new ConcurrentHashMap<Long, Long>();
+
+    public NamedEntity allocate(long date) {
+        return new NamedEntity(CameraUtil.createJpegName(date), date);
+    }
+
+    public NamedEntity allocate(long date, boolean refocus) {
+        return new NamedEntity(CameraUtil.createJpegName(date, refocus), date);
+    }
+
+    /* Names the capture identified by key when it is issued or starts exposing */
+    public NamedEntity bind(long key, long date) {
+        NamedEntity entity = allocate(date);
+        NamedEntity previous = mBound.putIfAbsent(key, entity);
+        return previous != null ? previous : entity;
+    }
+
+    /* Like bind(), and remembers the key so a failed frame can be discarded */
+    public NamedEntity bind(long key, long frameNumber, long date) {
+        mFrameKeys.put(frameNumber, key);
+        return bind(key, date);
+    }
+
+    /* The frame completed, its image takes the name as usual */
+    public void onFrameCompleted(long frameNumber) {
+        mFrameKeys.remove(frameNumber);
+    }
+
+    /* The frame failed without an image, so nothing will take its name */
+    public void discardFrame(long frameNumber) {
+        Long key = mFrameKeys.remove(frameNumber);
+        if (key != null) {
+            discard(key);
+        }
+    }
+
+    /**
+     * Returns the name bound to key and forgets it. Images whose capture was
+     * never bound are named now with fallbackDate.
+     */
+    public NamedEntity take(long key, long fallbackDate) {
+        NamedEntity entity = mBound.remove(key);
+        return entity != null ? entity : allocate(fallbackDate);
+    }
+
+    /* Drops the name of a capture whose image won't be saved */
+    public void discard(long key) {
+        mBound.remove(key);
+    }
+
+    /* Names the next image of a source that delivers in shot order */
+    public NamedEntity enqueue(long date, boolean refocus) {
+        NamedEntity entity = allocate(date, refocus);
+        mQueue.offer(entity);
+        return entity;
+    }
+
+    public NamedEntity poll() {
+        return mQueue.poll();
+    }
+
+    public void clear() {
+        mBound.clear();
+        mQueue.clear();
+        mFrameKeys.clear();
+    }
+
+    public static class NamedEntity {
+        public final String title;
+        public final long date;
+
+        public NamedEntity(String title, long date) {
+            this.title = title;
+            this.date = date;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Keeps one pre-built still capture request builder per camera, so pressing
+ * the shutter doesn't wait for createCaptureRequest() and the settings that
+ * only change through SettingsManager are already applied. The builder
+ * handed out by take() must only get the per-shot fields patched.
+ * Templates remember the settings generation they were built with, and
+ * take() re-applies the settings if a change hasn't been refreshed yet.
+ */
+public class CaptureRequestTemplates {
+    private static final String TAG = "SnapCam_CaptureRequestTemplates";
+
+    public interface Initializer {
+        /* Applies the settings-derived fields to a template, on the handler thread */
+        void applyTemplateSettings(CaptureRequest.Builder builder, int id);
+
+        /* Current settings generation, compared with the one a template was built with */
+        int getSettingsGeneration();
+    }
+
+    private final CaptureRequest.Builder[] mBuilders;
+    private final CameraDevice[] mDevices;
+    private final int[] mGenerations;
+    private final Initializer mInitializer;
+    private Handler mHandler;
+
+    public CaptureRequestTemplates(int numCameras, Initializer initializer) {
+        mBuilders = new CaptureRequest.Builder[numCameras];
+        mDevices = new CameraDevice[numCameras];
+        mGenerations = new int[numCameras];
+        mInitializer = initializer;
+    }
+
+    public synchronized void setHandler(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Creates the template for the camera on the handler thread, unless one
+     * for the same device is already waiting.
+     */
+    public void prepare(final int id, final CameraDevice device) {
+        Handler handler;
+        synchronized (this) {
+            if (device == null || (mBuilders[id] != null && mDevices[id] == device)) return;
+            handler = mHandler;
+        }
+        if (handler == null) return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                CaptureRequest.Builder builder;
+                try {
+                    builder = device.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                } catch (CameraAccessException | IllegalStateException e) {
+                    Log.w(TAG, "failed to create template for camera " + id);
+                    return;
+                }
+                synchronized (CaptureRequestTemplates.this) {
+                    if (mBuilders[id] != null && mDevices[id] == device) return;
+                    apply(builder, id);
+                    mBuilders[id] = builder;
+                    mDevices[id] = device;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the waiting template for the device and forgets it, or null if
+     * the caller has to build the request itself. Settings that changed after
+     * the template was last applied are applied before it is returned.
+     */
+    public synchronized CaptureRequest.Builder take(int id, CameraDevice device) {
+        CaptureRequest.Builder builder = mBuilders[id];
+        boolean valid = builder != null && mDevices[id] == device;
+        mBuilders[id] = null;
+        mDevices[id] = null;
+        if (!valid) return null;
+        if (mGenerations[id] != mInitializer.getSettingsGeneration()) {
+            apply(builder, id);
+        }
+        return builder;
+    }
+
+    private void apply(CaptureRequest.Builder builder, int id) {
+        // Read first, so a change made while applying leaves the template stale.
+        mGenerations[id] = mInitializer.getSettingsGeneration();
+        mInitializer.applyTemplateSettings(builder, id);
+    }
+
+    /* Re-applies settings to the waiting templates after the settings changed */
+    public void refresh() {
+        Handler handler;
+        synchronized (this) {
+            handler = mHandler;
+        }
+        if (handler == null) return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CaptureRequestTemplates.this) {
+                    for (int id = 0; id < mBuilders.length; id++) {
+                        if (mBuilders[id] != null
+                                && mGenerations[id] != mInitializer.getSettingsGeneration()) {
+                            apply(mBuilders[id], id);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized void clear(int id) {
+        mBuilders[id] = null;
+        mDevices[id] = null;
+    }
+
+    public synchronized void clear() {
+        for (int id = 0; id < mBuilders.length; id++) {
+            clear(id);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.hardware.camera2.params.Face;
+import android.view.Choreographer;
+
+/**
+ * Collects UI-bound state from preview capture results on the callback
+ * thread and hands it to the UI at most once per display frame. Only the
+ * newest value of each kind is kept, so several results arriving within one
+ * vsync cost a single UI update. AE/AF state machine work isn't routed
+ * through here; it stays on the callback thread.
+ */
+public class CaptureResultDispatcher implements Choreographer.FrameCallback {
+    private static final int UPDATE_FACES = 1;
+    private static final int UPDATE_HISTOGRAM = 1 << 1;
+    private static final int UPDATE_BOKEH_STATUS = 1 << 2;
+    private static final int UPDATE_FOCUS_STATE = 1 << 3;
+
+    public interface Listener {
+        void onFacesUpdate(Face[] faces, ExtendedFace[] extendedFaces);
+        void onHistogramUpdate();
+        void onBokehStatusUpdate(int status);
+        void onFocusStateUpdate(int afState);
+    }
+
+    private final Choreographer mChoreographer;
+    private final Listener mListener;
+    private final Object mLock = new Object();
+    private int mPending;
+    private boolean mFramePosted;
+    private Face[] mFaces;
+    private ExtendedFace[] mExtendedFaces;
+    private int mBokehStatus;
+    private int mLastBokehStatus = Integer.MIN_VALUE;
+    private int mFocusState;
+    private long mFacesFrameNumber = -1;
+
+    /* Must be created on the UI thread */
+    public CaptureResultDispatcher(Listener listener) {
+        mChoreographer = Choreographer.getInstance();
+        mListener = listener;
+    }
+
+    /**
+     * Returns whether faces of this frame still need to be extracted. Faces
+     * come in a partial result on most HALs, the total result repeats them.
+     */
+    public boolean needsFaces(long frameNumber) {
+        synchronized (mLock) {
+            return frameNumber != mFacesFrameNumber;
+        }
+    }
+
+    public void postFaces(long frameNumber, Face[] faces, ExtendedFace[] extendedFaces) {
+        synchronized (mLock) {
+            mFacesFrameNumber = frameNumber;
+            mFaces = faces;
+            mExtendedFaces = extendedFaces;
+            schedule(UPDATE_FACES);
+        }
+    }
+
+    public void postHistogram() {
+        synchronized (mLock) {
+            schedule(UPDATE_HISTOGRAM);
+        }
+    }
+
+    public void postBokehStatus(int status) {
+        synchronized (mLock) {
+            if (status == mLastBokehStatus && (mPending & UPDATE_BOKEH_STATUS) == 0) return;
+            mLastBokehStatus = status;
+            mBokehStatus = status;
+            schedule(UPDATE_BOKEH_STATUS);
+        }
+    }
+
+    /* The bokeh tip was shown or hidden, deliver the next status even if unchanged */
+    public void resetBokehStatus() {
+        synchronized (mLock) {
+            mLastBokehStatus = Integer.MIN_VALUE;
+        }
+    }
+
+    public void postFocusState(int afState) {
+        synchronized (mLock) {
+            mFocusState = afState;
+            schedule(UPDATE_FOCUS_STATE);
+        }
+    }
+
+    /* Drops pending updates; later posts are delivered again */
+    public void reset() {
+        synchronized (mLock) {
+            mPending = 0;
+            mFaces = null;
+            mExtendedFaces = null;
+            mFacesFrameNumber = -1;
+            mLastBokehStatus = Integer.MIN_VALUE;
+        }
+    }
+
+    private void schedule(int update) {
+        mPending |= update;
+        if (!mFramePosted) {
+            mFramePosted = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        int pending;
+        Face[] faces;
+        ExtendedFace[] extendedFaces;
+        int bokehStatus;
+        int focusState;
+        synchronized (mLock) {
+            mFramePosted = false;
+            pending = mPending;
+            mPending = 0;
+            faces = mFaces;
+            extendedFaces = mExtendedFaces;
+            bokehStatus = mBokehStatus;
+            focusState = mFocusState;
+        }
+        if ((pending & UPDATE_FOCUS_STATE) != 0) {
+            mListener.onFocusStateUpdate(focusState);
+        }
+        if ((pending & UPDATE_FACES) != 0) {
+            mListener.onFacesUpdate(faces, extendedFaces);
+        }
+        if ((pending & UPDATE_HISTOGRAM) != 0) {
+            mListener.onHistogramUpdate();
+        }
+        if ((pending & UPDATE_BOKEH_STATUS) != 0) {
+            mListener.onBokehStatusUpdate(bokehStatus);
+        }
+    }
+}
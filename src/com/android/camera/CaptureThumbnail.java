@@ -0,0 +1,155 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+
+import com.android.camera.exif.ExifInterface;
+
+import java.io.IOException;
+
+/**
+ * Thumbnail source for a capture. The HAL embeds a small JPEG thumbnail in
+ * the EXIF header of every still (JPEG_THUMBNAIL_SIZE), so that is what gets
+ * decoded; the full frame is only sampled down when the capture carries no
+ * thumbnail. Holding one of these instead of the capture lets callers drop
+ * the full-size JPEG as soon as it has been handed to the saver.
+ */
+public class CaptureThumbnail {
+    private final byte[] mJpegData;
+    private final boolean mEmbedded;
+    private final int mOrientation;
+
+    private CaptureThumbnail(byte[] jpegData, boolean embedded, int orientation) {
+        mJpegData = jpegData;
+        mEmbedded = embedded;
+        mOrientation = orientation;
+    }
+
+    /**
+     * Keeps only the EXIF thumbnail of jpegData if it has one. exif may be
+     * null, in which case the header is parsed here.
+     */
+    public static CaptureThumbnail fromJpeg(byte[] jpegData, ExifInterface exif) {
+        if (exif == null) {
+            exif = Exif.getExif(jpegData);
+        }
+        int orientation = Exif.getOrientation(exif);
+        byte[] thumbnail = exif.isThumbnailCompressed() ? exif.getThumbnail() : null;
+        if (thumbnail != null) {
+            return new CaptureThumbnail(thumbnail, true, orientation);
+        }
+        return new CaptureThumbnail(jpegData, false, orientation);
+    }
+
+    public Bitmap decode(int targetSize) {
+        if (mEmbedded) {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(mJpegData, 0, mJpegData.length);
+            if (bitmap != null) {
+                return rotate(bitmap, mOrientation);
+            }
+        }
+        return decodeCenter(mJpegData, null, targetSize, mOrientation);
+    }
+
+    /* Same as decode() for an image that has already been saved */
+    public static Bitmap decodeFile(String path, int targetSize, boolean checkOrientation) {
+        ExifInterface exif = new ExifInterface();
+        try {
+            exif.readExif(path);
+        } catch (IOException e) {
+            // ignore
+        }
+        int orientation = checkOrientation ? Exif.getOrientation(exif) : 0;
+        byte[] thumbnail = exif.isThumbnailCompressed() ? exif.getThumbnail() : null;
+        if (thumbnail != null) {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+            if (bitmap != null) {
+                return rotate(bitmap, orientation);
+            }
+        }
+        return decodeCenter(null, path, targetSize, orientation);
+    }
+
+    /* Decodes the centre square of the full image, sampled down to about targetSize */
+    private static Bitmap decodeCenter(byte[] jpegData, String path, int targetSize,
+            int orientation) {
+        final BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inJustDecodeBounds = true;
+        if (jpegData != null) {
+            BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, opt);
+        } else {
+            BitmapFactory.decodeFile(path, opt);
+        }
+
+        int w = opt.outWidth;
+        int h = opt.outHeight;
+        int d = w > h ? h : w;
+
+        int sample = 1;
+        if (d > targetSize) {
+            while (d / sample / 2 > targetSize) {
+                sample *= 2;
+            }
+        }
+        int st = sample * targetSize;
+        final Rect rect = new Rect((w - st) / 2, (h - st) / 2, (w + st) / 2, (h + st) / 2);
+
+        opt.inJustDecodeBounds = false;
+        opt.inSampleSize = sample;
+        final BitmapRegionDecoder decoder;
+        try {
+            if (jpegData == null) {
+                decoder = BitmapRegionDecoder.newInstance(path, true);
+            } else {
+                decoder = BitmapRegionDecoder.newInstance(jpegData, 0, jpegData.length, true);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        Bitmap bitmap = decoder.decodeRegion(rect, opt);
+        decoder.recycle();
+        return bitmap == null ? null : rotate(bitmap, orientation);
+    }
+
+    private static Bitmap rotate(Bitmap bitmap, int orientation) {
+        if (orientation == 0) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.setRotate(orientation);
+        return Bitmap.createBitmap(bitmap, 0, 0,
+                bitmap.getWidth(), bitmap.getHeight(), matrix, false);
+    }
+}
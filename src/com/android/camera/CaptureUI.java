@@ -52,6 +52,7 @@ import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewPropertyAnimator;
@@ -1318,6 +1319,10 @@ public class CaptureUI implements FocusOverlayManager.FocusUI,
         return mSurfaceHolder;
     }
 
+    public SurfaceView getSurfaceView() {
+        return mSurfaceView;
+    }
+
     private class MonoDummyListener implements Allocation.OnBufferAvailableListener {
         ScriptIntrinsicYuvToRGB yuvToRgbIntrinsic;
         public MonoDummyListener(ScriptIntrinsicYuvToRGB yuvToRgbIntrinsic) {
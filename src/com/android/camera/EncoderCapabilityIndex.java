@@ -0,0 +1,424 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.VideoCapabilities;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the video encoders on the device and what they can do, built from
+ * MediaCodecList once and kept on disk for the build fingerprint and app
+ * version. Frame rate limits are precomputed for every size in
+ * {@link CameraSettings#VIDEO_QUALITY_TABLE}, so session and menu checks are
+ * map lookups instead of codec enumeration.
+ */
+public class EncoderCapabilityIndex {
+    private static final String TAG = "SnapCam_EncoderIndex";
+    private static final String FILE_NAME = "encoder_capabilities.cache";
+    private static final int VERSION = 1;
+
+    private static EncoderCapabilityIndex sInstance;
+
+    private final File mFile;
+    private final String mBuildKey;
+    private final List<Encoder> mEncoders = new ArrayList<Encoder>();
+    private final HashMap<String, Encoder> mHardwareEncoders = new HashMap<String, Encoder>();
+    private MediaCodecInfo[] mCodecInfos;
+    private boolean mDirty;
+
+    /** Video capabilities of one encoder for one mime type. */
+    public static class VideoCaps {
+        public final int minWidth;
+        public final int maxWidth;
+        public final int minHeight;
+        public final int maxHeight;
+        public final int maxFrameRate;
+        public final int maxBitrate;
+
+        private final EncoderCapabilityIndex mIndex;
+        private final String mEncoderName;
+        private final String mMime;
+        // Highest frame rate per size, 0 if the size is not supported.
+        private final HashMap<Long, Float> mFrameRates;
+
+        private VideoCaps(EncoderCapabilityIndex index, String encoderName, String mime,
+                int minWidth, int maxWidth, int minHeight, int maxHeight, int maxFrameRate,
+                int maxBitrate, HashMap<Long, Float> frameRates) {
+            mIndex = index;
+            mEncoderName = encoderName;
+            mMime = mime;
+            this.minWidth = minWidth;
+            this.maxWidth = maxWidth;
+            this.minHeight = minHeight;
+            this.maxHeight = maxHeight;
+            this.maxFrameRate = maxFrameRate;
+            this.maxBitrate = maxBitrate;
+            mFrameRates = frameRates;
+        }
+
+        public boolean isWidthSupported(int width) {
+            return width >= minWidth && width <= maxWidth;
+        }
+
+        public boolean isHeightSupported(int height) {
+            return height >= minHeight && height <= maxHeight;
+        }
+
+        /* Matches VideoCapabilities.areSizeAndRateSupported for the frame rate limit */
+        public boolean areSizeAndRateSupported(int width, int height, double frameRate) {
+            float max = getMaxFrameRate(width, height);
+            return max > 0 && frameRate <= max;
+        }
+
+        public boolean isSizeSupported(int width, int height) {
+            return getMaxFrameRate(width, height) > 0;
+        }
+
+        /* Largest macroblock rate over the indexed sizes */
+        public long getMaxMacroblockRate() {
+            long max = 0;
+            synchronized (mFrameRates) {
+                for (Map.Entry<Long, Float> entry : mFrameRates.entrySet()) {
+                    long key = entry.getKey();
+                    long blocks = (((key >> 32) + 15) / 16) * (((key & 0xffffffffL) + 15) / 16);
+                    max = Math.max(max, (long) (blocks * entry.getValue()));
+                }
+            }
+            return max;
+        }
+
+        private float getMaxFrameRate(int width, int height) {
+            Long key = sizeKey(width, height);
+            Float rate;
+            synchronized (mFrameRates) {
+                rate = mFrameRates.get(key);
+            }
+            if (rate == null) {
+                // Not an indexed size, ask the codec once and remember it.
+                VideoCapabilities caps = mIndex.getLiveCapabilities(mEncoderName, mMime);
+                rate = (caps == null) ? 0f : maxFrameRateFor(caps, width, height);
+                synchronized (mFrameRates) {
+                    mFrameRates.put(key, rate);
+                }
+                mIndex.markDirty();
+            }
+            return rate;
+        }
+    }
+
+    /** One encoder and the video mime types it supports. */
+    public static class Encoder {
+        public final String name;
+        // Google software codecs are skipped by most callers.
+        public final boolean software;
+        private final LinkedHashMap<String, VideoCaps> mCaps;
+
+        private Encoder(String name, boolean software, LinkedHashMap<String, VideoCaps> caps) {
+            this.name = name;
+            this.software = software;
+            mCaps = caps;
+        }
+
+        public String[] getSupportedTypes() {
+            return mCaps.keySet().toArray(new String[mCaps.size()]);
+        }
+
+        public VideoCaps getCapabilities(String mime) {
+            return mCaps.get(mime);
+        }
+    }
+
+    private EncoderCapabilityIndex(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        int versionCode = 0;
+        try {
+            PackageInfo info = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0);
+            versionCode = info.versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+        }
+        mBuildKey = Build.FINGERPRINT + "/" + versionCode;
+    }
+
+    /* Returns the index, reading it from disk or building it on first use */
+    public static synchronized EncoderCapabilityIndex get(Context context) {
+        if (sInstance == null) {
+            EncoderCapabilityIndex index =
+                    new EncoderCapabilityIndex(context.getApplicationContext());
+            if (!index.read()) {
+                index.build();
+            }
+            index.saveAsync();
+            sInstance = index;
+        }
+        return sInstance;
+    }
+
+    /* All video encoders, in MediaCodecList order */
+    public List<Encoder> getEncoders() {
+        return Collections.unmodifiableList(mEncoders);
+    }
+
+    /* Capabilities of the first non-software encoder for mime, or null */
+    public VideoCaps getHardwareCapabilities(String mime) {
+        Encoder encoder = mHardwareEncoders.get(mime);
+        return encoder == null ? null : encoder.getCapabilities(mime);
+    }
+
+    /* Same answer as MediaCodecList.findEncoderForFormat for a plain size */
+    public boolean hasEncoderForSize(String mime, int width, int height) {
+        for (Encoder encoder : mEncoders) {
+            VideoCaps caps = encoder.getCapabilities(mime);
+            if (caps != null && caps.isSizeSupported(width, height)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Writes the index on a background thread if anything changed */
+    public void saveAsync() {
+        synchronized (this) {
+            if (!mDirty) return;
+            mDirty = false;
+        }
+        new Thread("EncoderIndexWriter") {
+            @Override
+            public void run() {
+                write();
+            }
+        }.start();
+    }
+
+    private synchronized void markDirty() {
+        mDirty = true;
+    }
+
+    private synchronized VideoCapabilities getLiveCapabilities(String encoderName, String mime) {
+        if (mCodecInfos == null) {
+            mCodecInfos = new MediaCodecList(MediaCodecList.ALL_CODECS).getCodecInfos();
+        }
+        for (MediaCodecInfo info : mCodecInfos) {
+            if (info.getName().equals(encoderName)) {
+                try {
+                    return info.getCapabilitiesForType(mime).getVideoCapabilities();
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void build() {
+        long start = System.currentTimeMillis();
+        mCodecInfos = new MediaCodecList(MediaCodecList.ALL_CODECS).getCodecInfos();
+        for (MediaCodecInfo info : mCodecInfos) {
+            if (!info.isEncoder()) continue;
+            LinkedHashMap<String, VideoCaps> caps = new LinkedHashMap<String, VideoCaps>();
+            for (String type : info.getSupportedTypes()) {
+                VideoCapabilities video;
+                try {
+                    video = info.getCapabilitiesForType(type).getVideoCapabilities();
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                if (video == null) continue;
+                HashMap<Long, Float> frameRates = new HashMap<Long, Float>();
+                for (String size : CameraSettings.VIDEO_QUALITY_TABLE.keySet()) {
+                    int x = size.indexOf('x');
+                    if (x <= 0) continue;
+                    int width = Integer.parseInt(size.substring(0, x));
+                    int height = Integer.parseInt(size.substring(x + 1));
+                    frameRates.put(sizeKey(width, height), maxFrameRateFor(video, width, height));
+                }
+                caps.put(type, new VideoCaps(this, info.getName(), type,
+                        video.getSupportedWidths().getLower(),
+                        video.getSupportedWidths().getUpper(),
+                        video.getSupportedHeights().getLower(),
+                        video.getSupportedHeights().getUpper(),
+                        video.getSupportedFrameRates().getUpper(),
+                        video.getBitrateRange().getUpper(), frameRates));
+            }
+            if (!caps.isEmpty()) {
+                addEncoder(new Encoder(info.getName(), info.getName().contains("google"), caps));
+            }
+        }
+        mDirty = true;
+        Log.d(TAG, "indexed " + mEncoders.size() + " encoders in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void addEncoder(Encoder encoder) {
+        mEncoders.add(encoder);
+        if (encoder.software) return;
+        for (String type : encoder.mCaps.keySet()) {
+            if (!mHardwareEncoders.containsKey(type)) {
+                mHardwareEncoders.put(type, encoder);
+            }
+        }
+    }
+
+    private static float maxFrameRateFor(VideoCapabilities caps, int width, int height) {
+        if (!caps.isSizeSupported(width, height)) return 0f;
+        try {
+            Range<Double> rates = caps.getSupportedFrameRatesFor(width, height);
+            return rates.getUpper().floatValue();
+        } catch (IllegalArgumentException e) {
+            return 0f;
+        }
+    }
+
+    private static long sizeKey(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+
+    private boolean read() {
+        if (!mFile.exists()) return false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != VERSION || !mBuildKey.equals(in.readUTF())) {
+                Log.d(TAG, "index is stale, rebuilding");
+                return false;
+            }
+            List<Encoder> encoders = new ArrayList<Encoder>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                boolean software = in.readBoolean();
+                int types = in.readInt();
+                LinkedHashMap<String, VideoCaps> caps = new LinkedHashMap<String, VideoCaps>();
+                for (int t = 0; t < types; t++) {
+                    String mime = in.readUTF();
+                    int minWidth = in.readInt();
+                    int maxWidth = in.readInt();
+                    int minHeight = in.readInt();
+                    int maxHeight = in.readInt();
+                    int maxFrameRate = in.readInt();
+                    int maxBitrate = in.readInt();
+                    int sizes = in.readInt();
+                    HashMap<Long, Float> frameRates = new HashMap<Long, Float>();
+                    for (int s = 0; s < sizes; s++) {
+                        long key = in.readLong();
+                        frameRates.put(key, in.readFloat());
+                    }
+                    caps.put(mime, new VideoCaps(this, name, mime, minWidth, maxWidth,
+                            minHeight, maxHeight, maxFrameRate, maxBitrate, frameRates));
+                }
+                encoders.add(new Encoder(name, software, caps));
+            }
+            for (Encoder encoder : encoders) {
+                addEncoder(encoder);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "failed to read encoder index", e);
+            mEncoders.clear();
+            mHardwareEncoders.clear();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void write() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeUTF(mBuildKey);
+            out.writeInt(mEncoders.size());
+            for (Encoder encoder : mEncoders) {
+                out.writeUTF(encoder.name);
+                out.writeBoolean(encoder.software);
+                out.writeInt(encoder.mCaps.size());
+                for (VideoCaps caps : encoder.mCaps.values()) {
+                    out.writeUTF(caps.mMime);
+                    out.writeInt(caps.minWidth);
+                    out.writeInt(caps.maxWidth);
+                    out.writeInt(caps.minHeight);
+                    out.writeInt(caps.maxHeight);
+                    out.writeInt(caps.maxFrameRate);
+                    out.writeInt(caps.maxBitrate);
+                    synchronized (caps.mFrameRates) {
+                        out.writeInt(caps.mFrameRates.size());
+                        for (Map.Entry<Long, Float> entry : caps.mFrameRates.entrySet()) {
+                            out.writeLong(entry.getKey());
+                            out.writeFloat(entry.getValue());
+                        }
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "failed to replace encoder index");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write encoder index", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
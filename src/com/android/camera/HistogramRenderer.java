@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+/**
+ * Draws one histogram section for the graph views. The grid only changes
+ * with the view size, so it is drawn once into a bitmap; the bars are a
+ * single outline path that is rebuilt in place on each frame.
+ */
+class HistogramRenderer {
+    private static final float BORDER = 5;
+    private static final float GRID_STEP = 32;
+    private static final float STATS_SIZE = 256;
+
+    private final Paint mBarPaint = new Paint();
+    private final Path mPath = new Path();
+    private Bitmap mBackground;
+    private float mGraphWidth;
+    private float mGraphHeight;
+
+    HistogramRenderer() {
+        mBarPaint.setColor(0xFFFFFFFF);
+        mBarPaint.setStyle(Paint.Style.FILL);
+    }
+
+    void setSize(int w, int h) {
+        mGraphWidth = w - (2 * BORDER);
+        mGraphHeight = h - (2 * BORDER);
+        if (w <= 0 || h <= 0) {
+            mBackground = null;
+            return;
+        }
+        mBackground = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(mBackground);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.BLACK);
+        canvas.drawColor(0xFFAAAAAA);
+        for (int k = 0; k <= (mGraphHeight / GRID_STEP); k++) {
+            float y = (GRID_STEP * k) + BORDER;
+            canvas.drawLine(BORDER, y, mGraphWidth + BORDER, y, paint);
+        }
+        for (int j = 0; j <= (mGraphWidth / GRID_STEP); j++) {
+            float x = (GRID_STEP * j) + BORDER;
+            canvas.drawLine(x, BORDER, x, mGraphHeight + BORDER, paint);
+        }
+    }
+
+    /* Number of columns worth downsampling to at the current size */
+    int getColumns() {
+        return Math.max(1, (int) mGraphWidth);
+    }
+
+    void draw(Canvas canvas, float[] heights) {
+        if (mBackground == null) {
+            return;
+        }
+        canvas.drawBitmap(mBackground, 0, 0, null);
+        if (heights == null || heights.length == 0) {
+            return;
+        }
+        final float bottom = mGraphHeight + BORDER;
+        final float barWidth = mGraphWidth / heights.length;
+        mPath.rewind();
+        mPath.moveTo(BORDER, bottom);
+        for (int i = 0; i < heights.length; i++) {
+            float top = bottom - heights[i] * STATS_SIZE;
+            float left = BORDER + barWidth * i;
+            mPath.lineTo(left, top);
+            mPath.lineTo(left + barWidth, top);
+        }
+        mPath.lineTo(BORDER + mGraphWidth, bottom);
+        mPath.close();
+        canvas.drawPath(mPath, mBarPaint);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Histogram stats handed from the stats callback thread to the graph views
+ * without a shared lock. The producer copies each stats array into its own
+ * frame and scales every section down to the width its view was last laid
+ * out with, then swaps the frame in with a single atomic exchange. The UI
+ * only ever reads a frame the producer has let go of, so neither side waits
+ * on the other. Three frames are kept, so a slow draw never holds up the
+ * producer.
+ */
+public class HistogramStats {
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;
+
+    private static class Frame {
+        final int[] bins;
+        final float[][] heights;
+
+        Frame(int size, int sections) {
+            bins = new int[size];
+            heights = new float[sections][];
+        }
+    }
+
+    private final int mSize;
+    private final int mFirstBin;
+    private final int mSectionLength;
+    private final int mMaxIndex;
+    private final AtomicIntegerArray mColumns;
+    private final Frame[] mFrames = new Frame[3];
+    /* Index of the frame between producer and consumer, plus FRESH once published */
+    private final AtomicInteger mMiddle = new AtomicInteger(0);
+    private int mWriteIndex = 1;
+    private int mReadIndex = 2;
+
+    /**
+     * @param size number of ints in each stats array
+     * @param firstBin index of the first bin of the first section
+     * @param sections number of consecutive sections, one per view
+     * @param sectionLength bins per section
+     * @param maxIndex index that holds the max bin value, or -1 to compute it
+     */
+    public HistogramStats(int size, int firstBin, int sections, int sectionLength,
+            int maxIndex) {
+        mSize = size;
+        mFirstBin = firstBin;
+        mSectionLength = sectionLength;
+        mMaxIndex = maxIndex;
+        mColumns = new AtomicIntegerArray(sections);
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = new Frame(size, sections);
+        }
+    }
+
+    /* Called by a view whenever its drawable width changes */
+    public void setColumns(int section, int columns) {
+        mColumns.set(section, Math.max(1, Math.min(columns, mSectionLength)));
+    }
+
+    /* Producer side, always called from the same thread */
+    public void publish(int[] stats) {
+        Frame frame = mFrames[mWriteIndex];
+        System.arraycopy(stats, 0, frame.bins, 0, Math.min(stats.length, mSize));
+        for (int s = 0; s < frame.heights.length; s++) {
+            downsample(frame, s);
+        }
+        mWriteIndex = mMiddle.getAndSet(mWriteIndex | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Consumer side, UI thread only. Picks up the newest published frame if
+     * there is one; returns false when nothing new arrived since last time.
+     */
+    public boolean update() {
+        if ((mMiddle.get() & FRESH) == 0) {
+            return false;
+        }
+        mReadIndex = mMiddle.getAndSet(mReadIndex) & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * Heights of the current frame for a section, one per column and scaled
+     * to 0..1. Null until the first frame for the section has arrived.
+     */
+    public float[] getHeights(int section) {
+        return mFrames[mReadIndex].heights[section];
+    }
+
+    private void downsample(Frame frame, int section) {
+        int columns = mColumns.get(section);
+        if (columns == 0) {
+            columns = mSectionLength;
+        }
+        float[] heights = frame.heights[section];
+        if (heights == null || heights.length != columns) {
+            heights = new float[columns];
+            frame.heights[section] = heights;
+        }
+        final int[] bins = frame.bins;
+        final int start = mFirstBin + section * mSectionLength;
+        final int end = start + mSectionLength;
+        int max = mMaxIndex >= 0 ? bins[mMaxIndex] : 0;
+        if (max <= 0) {
+            for (int i = start; i < end; i++) {
+                if (max < bins[i]) {
+                    max = bins[i];
+                }
+            }
+        }
+        if (max <= 0) {
+            Arrays.fill(heights, 0f);
+            return;
+        }
+        /* Each column shows the tallest bin it covers so narrow peaks stay visible */
+        for (int c = 0; c < columns; c++) {
+            int from = start + c * mSectionLength / columns;
+            int to = Math.max(from + 1, start + (c + 1) * mSectionLength / columns);
+            int peak = 0;
+            for (int i = from; i < to; i++) {
+                if (peak < bins[i]) {
+                    peak = bins[i];
+                }
+            }
+            heights[c] = Math.min(1f, (float) peak / max);
+        }
+    }
+}
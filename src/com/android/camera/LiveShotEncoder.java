@@ -0,0 +1,271 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.heifwriter.HeifWriter;
+
+import java.io.File;
+
+/**
+ * Keeps one HEIF writer for video snapshots configured ahead of the shutter,
+ * so taking a live shot only starts an encoder that is already attached to
+ * the recording session. Writers are built on a private thread into a hidden
+ * file next to where the picture will be saved, and renamed on completion.
+ * Attaching and detaching writers runs on the session handler, the one that
+ * makes every other change to the shared output configuration.
+ */
+public class LiveShotEncoder {
+    private static final String TAG = "SnapCam_LiveShotEncoder";
+    private static final String FILE_PREFIX = ".liveshot";
+
+    /* Share of the video encoder's macroblock rate above which HEIF is not used */
+    public static final float HEIF_LOAD_LIMIT = 0.5f;
+    /* Share above which JPEG live shots are not taken larger than the video */
+    public static final float FULL_SIZE_LOAD_LIMIT = 0.75f;
+
+    public interface Listener {
+        /* Called on the session handler, returns false if the surface could not be attached */
+        boolean onWriterReady(Slot slot);
+        /* Called on the session handler for an attached writer that will not be used */
+        void onWriterDiscarded(Slot slot);
+    }
+
+    /**
+     * A configured writer and the hidden file it writes to. Writers are built
+     * without rotation, the shot's orientation goes into EXIF once started.
+     */
+    public static class Slot {
+        public final HeifWriter writer;
+        public final String path;
+        public final int quality;
+
+        private Slot(HeifWriter writer, String path, int quality) {
+            this.writer = writer;
+            this.path = path;
+            this.quality = quality;
+        }
+
+        public Surface getInputSurface() {
+            return writer.getInputSurface();
+        }
+
+        /* Starts the encoder and records the orientation of the shot */
+        public void start(int orientation) {
+            writer.start();
+            if (orientation != 0) {
+                byte[] exif = getOrientationExif(orientation);
+                writer.addExifData(0, exif, 0, exif.length);
+            }
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final Listener mListener;
+    private final Handler mSessionHandler;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private Slot mReady;
+    private boolean mPending;
+    private boolean mReleased;
+    private int mSequence;
+
+    public LiveShotEncoder(int width, int height, Listener listener, Handler sessionHandler) {
+        mWidth = width;
+        mHeight = height;
+        mListener = listener;
+        mSessionHandler = sessionHandler;
+        mThread = new HandlerThread("LiveShotEncoder");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deleteStaleFiles();
+            }
+        });
+    }
+
+    /**
+     * Share of the encoder's macroblock rate used by a recording, 0 if the
+     * encoder limits are unknown.
+     */
+    public static float getEncodeLoad(EncoderCapabilityIndex.VideoCaps caps,
+            int width, int height, int fps) {
+        if (caps == null) return 0f;
+        long max = caps.getMaxMacroblockRate();
+        if (max <= 0) return 0f;
+        long blocks = (long) ((width + 15) / 16) * ((height + 15) / 16) * fps;
+        return (float) blocks / max;
+    }
+
+    /* Builds the next writer in the background unless one is ready or on its way */
+    public void prewarm(final int quality) {
+        synchronized (this) {
+            if (mReady != null || mPending || mReleased) return;
+            mPending = true;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                String path = Storage.generateFilepath(FILE_PREFIX + (mSequence++), "heif");
+                HeifWriter writer = CaptureModule.createHEIFEncoder(path, mWidth, mHeight,
+                        0, 1, quality);
+                if (writer == null) {
+                    synchronized (LiveShotEncoder.this) {
+                        mPending = false;
+                    }
+                    return;
+                }
+                attach(new Slot(writer, path, quality));
+            }
+        });
+    }
+
+    private void attach(final Slot slot) {
+        boolean posted = mSessionHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (LiveShotEncoder.this) {
+                    if (mReleased) {
+                        mPending = false;
+                        close(slot);
+                        return;
+                    }
+                }
+                boolean attached = mListener.onWriterReady(slot);
+                synchronized (LiveShotEncoder.this) {
+                    mPending = false;
+                    if (attached) {
+                        mReady = slot;
+                    }
+                }
+                if (!attached) {
+                    close(slot);
+                }
+            }
+        });
+        if (!posted) {
+            synchronized (this) {
+                mPending = false;
+            }
+            close(slot);
+        }
+    }
+
+    /**
+     * Hands out the ready writer if it was built with this quality. A
+     * mismatching writer is discarded and null is returned. Called on the
+     * session handler.
+     */
+    public Slot take(int quality) {
+        final Slot slot;
+        synchronized (this) {
+            slot = mReady;
+            mReady = null;
+        }
+        if (slot == null) return null;
+        if (slot.quality == quality) {
+            return slot;
+        }
+        discard(slot);
+        return null;
+    }
+
+    /* Detaches and closes a slot that was taken but could not be used, on the session handler */
+    public void discard(Slot slot) {
+        mListener.onWriterDiscarded(slot);
+        close(slot);
+    }
+
+    /* Drops the ready writer and stops the encoder thread */
+    public void release() {
+        synchronized (this) {
+            mReleased = true;
+        }
+        Runnable drop = new Runnable() {
+            @Override
+            public void run() {
+                Slot slot;
+                synchronized (LiveShotEncoder.this) {
+                    slot = mReady;
+                    mReady = null;
+                }
+                if (slot != null) {
+                    discard(slot);
+                }
+            }
+        };
+        if (!mSessionHandler.post(drop)) {
+            drop.run();
+        }
+        mThread.quitSafely();
+    }
+
+    private static void close(Slot slot) {
+        try {
+            slot.writer.close();
+        } catch (Exception e) {
+            Log.w(TAG, "failed to close writer", e);
+        }
+        new File(slot.path).delete();
+    }
+
+    /* Hidden files left behind when the app died with a writer attached */
+    private static void deleteStaleFiles() {
+        File dir = new File(Storage.generateFilepath(FILE_PREFIX, "heif")).getParentFile();
+        File[] files = dir == null ? null : dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().startsWith(FILE_PREFIX) && !file.delete()) {
+                Log.w(TAG, "failed to delete " + file);
+            }
+        }
+    }
+
+    /* Minimal EXIF block, "Exif\0\0" and a little endian TIFF with only the orientation */
+    static byte[] getOrientationExif(int degrees) {
+        short value = com.android.camera.exif.ExifInterface
+                .getOrientationValueForRotation(degrees);
+        return new byte[] {
+                'E', 'x', 'i', 'f', 0, 0,
+                'I', 'I', 42, 0, 8, 0, 0, 0,
+                // One IFD0 entry: Orientation (0x0112), SHORT, count 1.
+                1, 0,
+                0x12, 0x01, 3, 0, 1, 0, 0, 0, (byte) value, (byte) (value >> 8), 0, 0,
+                0, 0, 0, 0
+        };
+    }
+}
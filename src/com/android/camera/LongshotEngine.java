@@ -0,0 +1,280 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import com.android.camera.util.MemoryGovernor;
+import com.android.camera.util.PersistUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Submits a longshot as a series of short bursts instead of one burst of
+ * every shot up front. Before each window the engine looks at the save
+ * queue, the images still in flight and the memory pressure, and widens or
+ * narrows the number of preview requests placed between captures, or holds
+ * the next window back until the pressure drops. The delegate callback sees
+ * the captures as one sequence that completes once the last window is done.
+ */
+public class LongshotEngine {
+    private static final String TAG = "SnapCam_LongshotEngine";
+
+    private static final int WINDOW_CAPTURES = 2;
+    private static final int MAX_WINDOWS_IN_FLIGHT = 2;
+    /* Preview requests that may be added between captures on top of the configured spacing */
+    private static final int MAX_EXTRA_SPACING = 6;
+    private static final int HOLD_DELAY_MS = 50;
+
+    private static final float LOW_LOAD = 0.25f;
+    private static final float HIGH_LOAD = 0.5f;
+    private static final float HOLD_LOAD = 0.9f;
+    private static final int MAX_PENDING_IMAGES = WINDOW_CAPTURES * MAX_WINDOWS_IN_FLIGHT;
+
+    private static final String TAG_PREVIEW = "preview";
+    private static final String TAG_CAPTURE = "capture";
+
+    public interface Host {
+        /* False once the shutter is released or the shot limit is reached */
+        boolean isLongshotActive();
+        /* Captures started whose image has not reached the reader yet */
+        int getPendingImages();
+        /* Share of the save queue memory in use, 1 when the queue is full */
+        float getSaveQueueLoad();
+    }
+
+    private final CameraCaptureSession mSession;
+    private final CaptureRequest.Builder mCaptureBuilder;
+    private final CaptureRequest.Builder mPreviewBuilder;
+    private final CameraCaptureSession.CaptureCallback mDelegate;
+    private final Handler mHandler;
+    private final Host mHost;
+    private final int mLimit;
+    private final int mBaseSpacing;
+
+    private int mSpacing;
+    private int mSubmitted;
+    private int mWindowsInFlight;
+    private boolean mHolding;
+    private boolean mFinished;
+    private boolean mAborted;
+    private int mLastSequenceId;
+    private long mLastFrameNumber;
+
+    private int mFrames;
+    private int mDropped;
+    private long mFirstTimestamp;
+    private long mLastTimestamp;
+
+    public LongshotEngine(CameraCaptureSession session, CaptureRequest.Builder captureBuilder,
+            CaptureRequest.Builder previewBuilder, int limit,
+            CameraCaptureSession.CaptureCallback delegate, Handler handler, Host host) {
+        mSession = session;
+        mCaptureBuilder = captureBuilder;
+        mPreviewBuilder = previewBuilder;
+        mDelegate = delegate;
+        mHandler = handler;
+        mHost = host;
+        mLimit = limit;
+        mBaseSpacing = PersistUtil.isBurstShotFpsNums();
+        mSpacing = mBaseSpacing;
+    }
+
+    public synchronized void start() throws CameraAccessException {
+        mCaptureBuilder.setTag(TAG_CAPTURE);
+        mPreviewBuilder.setTag(TAG_PREVIEW);
+        submitWindow();
+        if (mSubmitted < mLimit) {
+            mHandler.post(mPump);
+        }
+    }
+
+    private final Runnable mPump = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LongshotEngine.this) {
+                mHolding = false;
+                pump();
+            }
+        }
+    };
+
+    private void pump() {
+        if (mFinished || mHolding) {
+            return;
+        }
+        if (mHost.isLongshotActive() && mSubmitted < mLimit) {
+            if (mWindowsInFlight >= MAX_WINDOWS_IN_FLIGHT) {
+                return;
+            }
+            if (!adjustSpacing()) {
+                mHolding = true;
+                mHandler.postDelayed(mPump, HOLD_DELAY_MS);
+                return;
+            }
+            try {
+                submitWindow();
+                return;
+            } catch (CameraAccessException | IllegalStateException e) {
+                Log.w(TAG, "longshot window not submitted: " + e);
+                mSubmitted = mLimit;
+            }
+        }
+        if (mWindowsInFlight == 0) {
+            finish();
+        }
+    }
+
+    /* Returns false if the next window should be held back */
+    private boolean adjustSpacing() {
+        float load = mHost.getSaveQueueLoad();
+        int pending = mHost.getPendingImages();
+        int pressure = MemoryGovernor.get().getPressure();
+        if (load >= HOLD_LOAD || pressure == MemoryGovernor.PRESSURE_CRITICAL) {
+            mSpacing = mBaseSpacing + MAX_EXTRA_SPACING;
+            return false;
+        }
+        if (load >= HIGH_LOAD || pending >= MAX_PENDING_IMAGES
+                || pressure == MemoryGovernor.PRESSURE_MODERATE) {
+            mSpacing = Math.min(mSpacing + 1, mBaseSpacing + MAX_EXTRA_SPACING);
+        } else if (load < LOW_LOAD && pending < WINDOW_CAPTURES) {
+            mSpacing = Math.max(mSpacing - 1, mBaseSpacing);
+        }
+        return true;
+    }
+
+    private void submitWindow() throws CameraAccessException {
+        int captures = Math.min(WINDOW_CAPTURES, mLimit - mSubmitted);
+        List<CaptureRequest> burstList = new ArrayList<>();
+        for (int i = 0; i < captures; i++) {
+            for (int j = 0; j < mSpacing; j++) {
+                burstList.add(mPreviewBuilder.build());
+            }
+            burstList.add(mCaptureBuilder.build());
+        }
+        mSession.captureBurst(burstList, mCallback, mHandler);
+        mSubmitted += captures;
+        mWindowsInFlight++;
+    }
+
+    private void finish() {
+        mFinished = true;
+        mHandler.removeCallbacks(mPump);
+        float fps = 0;
+        if (mFrames > 1 && mLastTimestamp > mFirstTimestamp) {
+            fps = (mFrames - 1) * 1000000000f / (mLastTimestamp - mFirstTimestamp);
+        }
+        Log.d(TAG, "longshot done: " + mFrames + " frames at " + fps + " fps, "
+                + mDropped + " dropped, spacing " + mSpacing);
+        if (mAborted) {
+            mDelegate.onCaptureSequenceAborted(mSession, mLastSequenceId);
+        } else {
+            mDelegate.onCaptureSequenceCompleted(mSession, mLastSequenceId, mLastFrameNumber);
+        }
+    }
+
+    private final CameraCaptureSession.CaptureCallback mCallback =
+            new CameraCaptureSession.CaptureCallback() {
+
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                long timestamp, long frameNumber) {
+            if (TAG_CAPTURE.equals(request.getTag()) && mHost.isLongshotActive()) {
+                synchronized (LongshotEngine.this) {
+                    if (mFrames == 0) {
+                        mFirstTimestamp = timestamp;
+                    }
+                    mLastTimestamp = timestamp;
+                    mFrames++;
+                }
+            }
+            mDelegate.onCaptureStarted(session, request, timestamp, frameNumber);
+        }
+
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                TotalCaptureResult result) {
+            mDelegate.onCaptureCompleted(session, request, result);
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                CaptureFailure failure) {
+            if (TAG_CAPTURE.equals(request.getTag())) {
+                synchronized (LongshotEngine.this) {
+                    mDropped++;
+                }
+            }
+            mDelegate.onCaptureFailed(session, request, failure);
+        }
+
+        @Override
+        public void onCaptureBufferLost(CameraCaptureSession session, CaptureRequest request,
+                Surface target, long frameNumber) {
+            if (TAG_CAPTURE.equals(request.getTag())) {
+                synchronized (LongshotEngine.this) {
+                    mDropped++;
+                }
+            }
+            mDelegate.onCaptureBufferLost(session, request, target, frameNumber);
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(CameraCaptureSession session, int sequenceId,
+                long frameNumber) {
+            synchronized (LongshotEngine.this) {
+                mWindowsInFlight--;
+                mLastSequenceId = sequenceId;
+                mLastFrameNumber = frameNumber;
+                mAborted = false;
+                pump();
+            }
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(CameraCaptureSession session, int sequenceId) {
+            synchronized (LongshotEngine.this) {
+                mWindowsInFlight--;
+                mLastSequenceId = sequenceId;
+                mAborted = true;
+                mSubmitted = mLimit;
+                pump();
+            }
+        }
+    };
+}
@@ -19,7 +19,11 @@ package com.android.camera;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Service;
 import android.content.ContentResolver;
@@ -30,18 +34,23 @@ import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.location.Location;
+import android.media.Image;
+import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.provider.MediaStore.Video;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.android.camera.exif.DngWriter;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.mpo.MpoData;
 import com.android.camera.mpo.MpoImageData;
 import com.android.camera.mpo.MpoInterface;
+import com.android.camera.util.MemoryGovernor;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.XmpUtil;
 
@@ -67,10 +76,33 @@ public class MediaSaveService extends Service {
     private static final int SAVE_TASK_MEMORY_LIMIT = SAVE_TASK_MEMORY_LIMIT_IN_MB * 1024 * 1024;
     private static final String TAG = "CAM_" + MediaSaveService.class.getSimpleName();
 
+    // MediaStore rows of saved images are inserted together once no other image
+    // is being written, or at the latest after this many rows or milliseconds.
+    private static final int INSERT_BATCH_MAX = 16;
+    private static final long INSERT_BATCH_WINDOW_MS = 300;
+
     private final IBinder mBinder = new LocalBinder();
     private Listener mListener;
     // Memory used by the total queued save request, in bytes.
-    private long mMemoryUse;
+    private volatile long mMemoryUse;
+
+    // Images whose file is still being written.
+    private final AtomicInteger mPendingImageWrites = new AtomicInteger();
+    // RAW Images queued for DNG while still open. Each holds an ImageReader buffer.
+    private static final int MAX_OPEN_DNG_IMAGES = 2;
+    private final AtomicInteger mOpenDngImages = new AtomicInteger();
+    // Rows waiting for insertion, only touched on the main thread.
+    private Handler mHandler;
+    private ContentResolver mInsertResolver;
+    private ArrayList<ContentValues> mInsertValues = new ArrayList<ContentValues>();
+    private ArrayList<OnMediaSavedListener> mInsertListeners =
+            new ArrayList<OnMediaSavedListener>();
+    private final Runnable mFlushInsertBatch = new Runnable() {
+        @Override
+        public void run() {
+            flushInsertBatch();
+        }
+    };
 
     public interface Listener {
         public void onQueueStatus(boolean full);
@@ -80,6 +112,14 @@ public class MediaSaveService extends Service {
         public void onMediaSaved(Uri uri);
     }
 
+    /**
+     * Listener that takes all images of one MediaStore batch at once, e.g. to
+     * refresh the filmstrip a single time during a burst.
+     */
+    public interface OnMediaBatchSavedListener extends OnMediaSavedListener {
+        public void onMediaBatchSaved(List<Uri> uris);
+    }
+
     class LocalBinder extends Binder {
         public MediaSaveService getService() {
             return MediaSaveService.this;
@@ -98,17 +138,29 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onDestroy() {
+        flushInsertBatch();
     }
 
     @Override
     public void onCreate() {
         mMemoryUse = 0;
+        mHandler = new Handler();
     }
 
     public boolean isQueueFull() {
         return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
     }
 
+    private void updateMemoryUse(long delta) {
+        mMemoryUse += delta;
+        MemoryGovernor.get().adjust(MemoryGovernor.KIND_HEAP, delta);
+    }
+
+    /* Share of the queue memory in use, may be read from any thread */
+    public float getQueueLoad() {
+        return (float) mMemoryUse / SAVE_TASK_MEMORY_LIMIT;
+    }
+
     public void addMpoImage(final byte[] csImage,
             final byte[] bayerImg, final byte[] monoImg,
             int width, int height,
@@ -127,7 +179,7 @@ public class MediaSaveService extends Service {
         long size = (csImage == null ? 0
                 : csImage.length)
                 + bayerImg.length + monoImg.length;
-        mMemoryUse += size;
+        updateMemoryUse(size);
         if (isQueueFull()) {
             onQueueFull();
         }
@@ -145,7 +197,8 @@ public class MediaSaveService extends Service {
                 (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
 
-        mMemoryUse += data.length;
+        mPendingImageWrites.incrementAndGet();
+        updateMemoryUse(data.length);
         if (isQueueFull()) {
             onQueueFull();
         }
@@ -159,7 +212,57 @@ public class MediaSaveService extends Service {
         }
         RawImageSaveTask t = new RawImageSaveTask(data, title, pictureFormat);
 
-        mMemoryUse += data.length;
+        updateMemoryUse(data.length);
+        if (isQueueFull()) {
+            onQueueFull();
+        }
+        t.execute();
+    }
+
+    // Writes the raw image as DNG and closes it once done. Beyond
+    // MAX_OPEN_DNG_IMAGES the plane is copied and the image closed right away,
+    // so queued saves can't starve the ImageReader of buffers.
+    public void addDngImage(final Image image, DngWriter writer, String title) {
+        int size = image.getPlanes()[0].getBuffer().capacity();
+        if (isQueueFull()) {
+            Log.e(TAG, "Cannot add image when the queue is full");
+            image.close();
+            return;
+        }
+        DngImageSaveTask t;
+        if (mOpenDngImages.incrementAndGet() <= MAX_OPEN_DNG_IMAGES) {
+            t = new DngImageSaveTask(image, writer, title, size);
+        } else {
+            mOpenDngImages.decrementAndGet();
+            Image.Plane plane = image.getPlanes()[0];
+            ByteBuffer src = plane.getBuffer();
+            ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+            copy.put(src);
+            copy.flip();
+            t = new DngImageSaveTask(copy, image.getWidth(), image.getHeight(),
+                    plane.getRowStride(), image.getFormat(), writer, title, size);
+            image.close();
+        }
+
+        updateMemoryUse(size);
+        if (isQueueFull()) {
+            onQueueFull();
+        }
+        t.execute();
+    }
+
+    // Writes a RAW plane already copied out of its Image as DNG.
+    public void addDngImage(ByteBuffer data, int width, int height, int rowStride, int format,
+                            DngWriter writer, String title) {
+        int size = data.remaining();
+        if (isQueueFull()) {
+            Log.e(TAG, "Cannot add image when the queue is full");
+            return;
+        }
+        DngImageSaveTask t = new DngImageSaveTask(data, width, height, rowStride, format,
+                writer, title, size);
+
+        updateMemoryUse(size);
         if (isQueueFull()) {
             onQueueFull();
         }
@@ -191,7 +294,7 @@ public class MediaSaveService extends Service {
                 title, date,  (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
 
-        mMemoryUse += mainImage.length;
+        updateMemoryUse(mainImage.length);
         if (isQueueFull()) {
             onQueueFull();
         }
@@ -213,6 +316,10 @@ public class MediaSaveService extends Service {
                 orientation, exif, l, resolver,PhotoModule.PIXEL_FORMAT_JPEG);
     }
 
+    /**
+     * Inserts a finished recording. duration is the recorder-derived length,
+     * it is checked against the file after the listener has been notified.
+     */
     public void addVideo(String path, long duration, ContentValues values,
             OnMediaSavedListener l, ContentResolver resolver) {
         // We don't set a queue limit for video saving because the file
@@ -234,6 +341,73 @@ public class MediaSaveService extends Service {
         if (mListener != null) mListener.onQueueStatus(false);
     }
 
+    private void queueInsert(ContentResolver resolver, ContentValues values,
+            OnMediaSavedListener listener) {
+        if (mInsertResolver != null && mInsertResolver != resolver) {
+            flushInsertBatch();
+        }
+        if (mInsertValues.isEmpty()) {
+            mHandler.postDelayed(mFlushInsertBatch, INSERT_BATCH_WINDOW_MS);
+        }
+        mInsertResolver = resolver;
+        mInsertValues.add(values);
+        mInsertListeners.add(listener);
+        if (mPendingImageWrites.get() == 0 || mInsertValues.size() >= INSERT_BATCH_MAX) {
+            flushInsertBatch();
+        }
+    }
+
+    private void flushInsertBatch() {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mFlushInsertBatch);
+        }
+        if (mInsertValues.isEmpty()) {
+            return;
+        }
+        new InsertBatchTask(mInsertResolver, mInsertValues, mInsertListeners).execute();
+        mInsertResolver = null;
+        mInsertValues = new ArrayList<ContentValues>();
+        mInsertListeners = new ArrayList<OnMediaSavedListener>();
+    }
+
+    private class InsertBatchTask extends AsyncTask<Void, Void, Uri[]> {
+        private final ContentResolver resolver;
+        private final List<ContentValues> values;
+        private final List<OnMediaSavedListener> listeners;
+
+        public InsertBatchTask(ContentResolver resolver, List<ContentValues> values,
+                List<OnMediaSavedListener> listeners) {
+            this.resolver = resolver;
+            this.values = values;
+            this.listeners = listeners;
+        }
+
+        @Override
+        protected Uri[] doInBackground(Void... v) {
+            return Storage.insertImages(resolver, values);
+        }
+
+        @Override
+        protected void onPostExecute(Uri[] uris) {
+            // Hand each listener its own uris, in save order.
+            for (int i = 0; i < uris.length; i++) {
+                OnMediaSavedListener listener = listeners.get(i);
+                if (listener == null || listeners.indexOf(listener) != i) continue;
+                if (listener instanceof OnMediaBatchSavedListener) {
+                    List<Uri> saved = new ArrayList<Uri>();
+                    for (int j = i; j < uris.length; j++) {
+                        if (listeners.get(j) == listener) saved.add(uris[j]);
+                    }
+                    ((OnMediaBatchSavedListener) listener).onMediaBatchSaved(saved);
+                } else {
+                    for (int j = i; j < uris.length; j++) {
+                        if (listeners.get(j) == listener) listener.onMediaSaved(uris[j]);
+                    }
+                }
+            }
+        }
+    }
+
     private class MpoSaveTask extends AsyncTask<Void, Void, Uri> {
         private byte[] csImage;
         private byte[] bayerImage;
@@ -295,6 +469,7 @@ public class MediaSaveService extends Service {
             if (f.exists() && f.isFile()) {
                 size = (int) f.length();
             }
+            StorageSpaceTracker.onImageWritten(size);
             return Storage.addImage(resolver, title, date, loc, orientation, null,
                     size, path, width, height, pictureFormat);
         }
@@ -308,7 +483,7 @@ public class MediaSaveService extends Service {
                     : csImage.length)
                     + bayerImage.length
                     + monoImage.length;
-            mMemoryUse -= size;
+            updateMemoryUse(-size);
             if (isQueueFull() != previouslyFull)
                 onQueueAvailable();
         }
@@ -339,7 +514,60 @@ public class MediaSaveService extends Service {
         @Override
         protected void onPostExecute(Long l) {
             boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
+            updateMemoryUse(-data.length);
+            if (isQueueFull() != previouslyFull) onQueueAvailable();
+        }
+    }
+
+    private class DngImageSaveTask extends AsyncTask<Void, Void, Long> {
+        // Either the open image or a copy of its plane.
+        private final Image image;
+        private final ByteBuffer data;
+        private final int width, height, rowStride, format;
+        private final DngWriter writer;
+        private final String title;
+        private final int size;
+
+        public DngImageSaveTask(Image image, DngWriter writer, String title, int size) {
+            this.image = image;
+            this.data = null;
+            this.width = this.height = this.rowStride = this.format = 0;
+            this.writer = writer;
+            this.title = title;
+            this.size = size;
+        }
+
+        public DngImageSaveTask(ByteBuffer data, int width, int height, int rowStride,
+                                int format, DngWriter writer, String title, int size) {
+            this.image = null;
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.rowStride = rowStride;
+            this.format = format;
+            this.writer = writer;
+            this.title = title;
+            this.size = size;
+        }
+
+        @Override
+        protected Long doInBackground(Void... params) {
+            if (image == null) {
+                return Storage.addDngImage(title, data, width, height, rowStride, format,
+                        writer);
+            }
+            try {
+                return Storage.addDngImage(title, image, writer);
+            } finally {
+                image.close();
+                mOpenDngImages.decrementAndGet();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Long l) {
+            boolean previouslyFull = isQueueFull();
+            updateMemoryUse(-size);
             if (isQueueFull() != previouslyFull) onQueueAvailable();
         }
     }
@@ -393,7 +621,7 @@ public class MediaSaveService extends Service {
         }
     }
 
-    private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class ImageSaveTask extends AsyncTask <Void, Void, ContentValues> {
         private byte[] data;
         private String title;
         private long date;
@@ -427,7 +655,7 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        protected ContentValues doInBackground(Void... v) {
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
@@ -436,15 +664,16 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+            return Storage.writeImage(
+                    title, date, loc, orientation, exif, data, width, height, pictureFormat);
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
+        protected void onPostExecute(ContentValues values) {
+            mPendingImageWrites.decrementAndGet();
+            queueInsert(resolver, values, listener);
             boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
+            updateMemoryUse(-data.length);
             if (isQueueFull() != previouslyFull) onQueueAvailable();
         }
     }
@@ -513,7 +742,7 @@ public class MediaSaveService extends Service {
         protected void onPostExecute(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
             boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
+            updateMemoryUse(-data.length);
             if (isQueueFull() != previouslyFull) onQueueAvailable();
         }
 
@@ -594,8 +823,10 @@ public class MediaSaveService extends Service {
 
         @Override
         protected Uri doInBackground(Void... v) {
-            values.put(Video.Media.SIZE, new File(path).length());
+            long size = new File(path).length();
+            values.put(Video.Media.SIZE, size);
             values.put(Video.Media.DURATION, duration);
+            StorageSpaceTracker.onVideoWritten(size, duration);
             Uri uri = null;
             try {
                 Uri videoTable = Uri.parse(VIDEO_BASE_URI);
@@ -625,6 +856,52 @@ public class MediaSaveService extends Service {
         @Override
         protected void onPostExecute(Uri uri) {
             if (listener != null) listener.onMediaSaved(uri);
+            if (uri != null) {
+                new VideoVerifyTask(uri, path, duration, resolver).execute();
+            }
+        }
+    }
+
+    /* Corrects the stored duration if the container disagrees with the estimate */
+    private class VideoVerifyTask extends AsyncTask <Void, Void, Void> {
+        private static final long DURATION_TOLERANCE_MS = 500;
+
+        private final Uri uri;
+        private final String path;
+        private final long duration;
+        private final ContentResolver resolver;
+
+        public VideoVerifyTask(Uri uri, String path, long duration, ContentResolver r) {
+            this.uri = uri;
+            this.path = path;
+            this.duration = duration;
+            this.resolver = r;
+        }
+
+        @Override
+        protected Void doInBackground(Void... v) {
+            long actual = 0L;
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            try {
+                retriever.setDataSource(path);
+                actual = Long.valueOf(retriever.extractMetadata(
+                        MediaMetadataRetriever.METADATA_KEY_DURATION));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "cannot access the file");
+            } finally {
+                retriever.release();
+            }
+            if (actual > 0 && Math.abs(actual - duration) > DURATION_TOLERANCE_MS) {
+                Log.v(TAG, "Video duration " + duration + "ms corrected to " + actual + "ms");
+                ContentValues values = new ContentValues(1);
+                values.put(Video.Media.DURATION, actual);
+                try {
+                    resolver.update(uri, values, null, null);
+                } catch (Exception e) {
+                    Log.e(TAG, "failed to update video duration", e);
+                }
+            }
+            return null;
         }
     }
 }
@@ -16,14 +16,25 @@
 
 package com.android.camera;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A singleton to handle the processing of each frame by {@link Mosaic}.
+ *
+ * Frame alignment runs on a dedicated worker thread. The GL thread reads
+ * frame N+1 back into the native staging buffer while the worker is still
+ * aligning frame N, and at most one frame waits for the worker; older
+ * waiting frames are dropped and accounted for in the panning rate.
  */
 public class MosaicFrameProcessor {
     private static final String TAG = "MosaicFrameProcessor";
-    private static final int NUM_FRAMES_IN_BUFFER = 2;
     private static final int MAX_NUMBER_OF_FRAMES = 100;
     private static final int MOSAIC_RET_CODE_INDEX = 10;
     private static final int FRAME_COUNT_INDEX = 9;
@@ -33,14 +44,11 @@ public class MosaicFrameProcessor {
     private static final int WINDOW_SIZE = 3;
 
     private Mosaic mMosaicer;
-    private boolean mIsMosaicMemoryAllocated = false;
+    private volatile boolean mIsMosaicMemoryAllocated = false;
     private float mTranslationLastX;
     private float mTranslationLastY;
 
-    private int mFillIn = 0;
     private int mTotalFrameCount = 0;
-    private int mLastProcessFrameIdx = -1;
-    private int mCurrProcessFrameIdx = -1;
     private boolean mFirstRun;
 
     // Panning rate is in unit of percentage of image content translation per
@@ -54,7 +62,21 @@ public class MosaicFrameProcessor {
     private float mTotalTranslationX = 0f;
     private float mTotalTranslationY = 0f;
 
-    private ProgressListener mProgressListener;
+    private volatile ProgressListener mProgressListener;
+
+    // Alignment pipeline. mAlignLock serializes native mosaic calls between
+    // the worker and the callers of clear(), reset() and createMosaic().
+    private final Object mAlignLock = new Object();
+    private final AtomicBoolean mFrameQueued = new AtomicBoolean(false);
+    private final AtomicInteger mFramesSinceAlign = new AtomicInteger(0);
+    private final AtomicInteger mDroppedFrames = new AtomicInteger(0);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mAlignThread;
+    private volatile Handler mAlignHandler;
+    private volatile long mQueuedTime;
+    private int mAlignedFrames;
+    private long mTotalAlignLatencyMs;
+    private long mMaxAlignLatencyMs;
 
     private int mPreviewWidth;
     private int mPreviewHeight;
@@ -97,10 +119,17 @@ public class MosaicFrameProcessor {
     }
 
     public void clear() {
-        if (mIsMosaicMemoryAllocated) {
-            mMosaicer.freeMosaicMemory();
-            mIsMosaicMemoryAllocated = false;
+        synchronized (mAlignLock) {
+            if (mIsMosaicMemoryAllocated) {
+                Log.v(TAG, "clear: aligned=" + mAlignedFrames
+                        + " dropped=" + mDroppedFrames.get()
+                        + " avgLatencyMs=" + getAverageAlignmentLatencyMs()
+                        + " maxLatencyMs=" + mMaxAlignLatencyMs);
+                mMosaicer.freeMosaicMemory();
+                mIsMosaicMemoryAllocated = false;
+            }
         }
+        stopAlignThread();
         synchronized (this) {
             notify();
         }
@@ -120,22 +149,78 @@ public class MosaicFrameProcessor {
         if (mIsMosaicMemoryAllocated) throw new RuntimeException("MosaicFrameProcessor in use!");
         mIsMosaicMemoryAllocated = true;
         mMosaicer.allocateMosaicMemory(previewWidth, previewHeight);
+        startAlignThread();
+    }
+
+    private void startAlignThread() {
+        if (mAlignThread != null) return;
+        mAlignThread = new HandlerThread("MosaicAlignThread");
+        mAlignThread.start();
+        mAlignHandler = new Handler(mAlignThread.getLooper());
+    }
+
+    private void stopAlignThread() {
+        if (mAlignThread == null) return;
+        mAlignHandler.removeCallbacksAndMessages(null);
+        mAlignThread.quitSafely();
+        mAlignThread = null;
+        mAlignHandler = null;
+        mFrameQueued.set(false);
+    }
+
+    /**
+     * @return the number of frames read back from the GPU that were skipped
+     *         because the alignment worker was still busy.
+     */
+    public int getDroppedFrameCount() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * @return the average time in milliseconds between a frame being read
+     *         back and its alignment result being available.
+     */
+    public long getAverageAlignmentLatencyMs() {
+        synchronized (mAlignLock) {
+            return mAlignedFrames == 0 ? 0 : mTotalAlignLatencyMs / mAlignedFrames;
+        }
+    }
+
+    /**
+     * @return the worst alignment latency in milliseconds since the last reset.
+     */
+    public long getMaxAlignmentLatencyMs() {
+        synchronized (mAlignLock) {
+            return mMaxAlignLatencyMs;
+        }
     }
 
     public void reset() {
         // reset() can be called even if MosaicFrameProcessor is not initialized.
         // Only counters will be changed.
+        if (mAlignHandler != null) {
+            mAlignHandler.removeCallbacksAndMessages(null);
+        }
+        synchronized (mAlignLock) {
+            resetLocked();
+        }
+    }
+
+    private void resetLocked() {
+        mFrameQueued.set(false);
+        mFramesSinceAlign.set(0);
+        mDroppedFrames.set(0);
+        mAlignedFrames = 0;
+        mTotalAlignLatencyMs = 0;
+        mMaxAlignLatencyMs = 0;
         mFirstRun = true;
         mTotalFrameCount = 0;
-        mFillIn = 0;
         mTotalTranslationX = 0;
         mTranslationLastX = 0;
         mTotalTranslationY = 0;
         mTranslationLastY = 0;
         mPanningRateX = 0;
         mPanningRateY = 0;
-        mLastProcessFrameIdx = -1;
-        mCurrProcessFrameIdx = -1;
         for (int i = 0; i < WINDOW_SIZE; ++i) {
             mDeltaX[i] = 0f;
             mDeltaY[i] = 0f;
@@ -144,16 +229,18 @@ public class MosaicFrameProcessor {
     }
 
     public int createMosaic(boolean highRes) {
-        return mMosaicer.createMosaic(highRes);
+        synchronized (mAlignLock) {
+            return mMosaicer.createMosaic(highRes);
+        }
     }
 
     public byte[] getFinalMosaicNV21() {
         return mMosaicer.getFinalMosaicNV21();
     }
 
-    // Processes the last filled image frame through the mosaicer and
-    // updates the UI to show progress.
-    // When done, processes and displays the final mosaic.
+    // Hands the frame that was just read back from the GPU to the alignment
+    // worker and returns immediately. Progress is published on the main
+    // thread once the worker has aligned the frame.
     public void processFrame() {
         if (!mIsMosaicMemoryAllocated) {
             // clear() is called and buffers are cleared, stop computation.
@@ -162,34 +249,64 @@ public class MosaicFrameProcessor {
             return;
         }
 
-        mCurrProcessFrameIdx = mFillIn;
-        mFillIn = ((mFillIn + 1) % NUM_FRAMES_IN_BUFFER);
+        Handler alignHandler = mAlignHandler;
+        if (alignHandler == null) return;
 
-        // Check that we are trying to process a frame different from the
-        // last one processed (useful if this class was running asynchronously)
-        if (mCurrProcessFrameIdx != mLastProcessFrameIdx) {
-            mLastProcessFrameIdx = mCurrProcessFrameIdx;
+        mFramesSinceAlign.incrementAndGet();
+        mQueuedTime = SystemClock.uptimeMillis();
+        if (!mFrameQueued.compareAndSet(false, true)) {
+            // A frame is already waiting for the worker. It will pick up the
+            // newest readback from the staging buffer, so the older one is lost.
+            mDroppedFrames.incrementAndGet();
+            return;
+        }
+        alignHandler.post(mAlignRunnable);
+    }
 
+    private final Runnable mAlignRunnable = new Runnable() {
+        @Override
+        public void run() {
+            alignFrame();
+        }
+    };
+
+    private void alignFrame() {
+        synchronized (mAlignLock) {
+            mFrameQueued.set(false);
+            final ProgressListener listener = mProgressListener;
+            if (!mIsMosaicMemoryAllocated || listener == null) return;
+
+            final long queuedTime = mQueuedTime;
+            final boolean isFinished = mTotalFrameCount >= MAX_NUMBER_OF_FRAMES;
             // TODO: make the termination condition regarding reaching
             // MAX_NUMBER_OF_FRAMES solely determined in the library.
-            if (mTotalFrameCount < MAX_NUMBER_OF_FRAMES) {
+            if (!isFinished) {
                 // If we are still collecting new frames for the current mosaic,
                 // process the new frame.
                 calculateTranslationRate();
+            }
 
-                // Publish progress of the ongoing processing
-                if (mProgressListener != null) {
-                    mProgressListener.onProgress(false, mPanningRateX, mPanningRateY,
-                            mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth,
-                            mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight);
-                }
-            } else {
-                if (mProgressListener != null) {
-                    mProgressListener.onProgress(true, mPanningRateX, mPanningRateY,
-                            mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth,
-                            mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight);
-                }
+            long latency = SystemClock.uptimeMillis() - queuedTime;
+            mAlignedFrames++;
+            mTotalAlignLatencyMs += latency;
+            if (latency > mMaxAlignLatencyMs) {
+                mMaxAlignLatencyMs = latency;
             }
+
+            final float panningRateX = mPanningRateX;
+            final float panningRateY = mPanningRateY;
+            final float progressX = mTranslationLastX * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewWidth;
+            final float progressY = mTranslationLastY * HR_TO_LR_DOWNSAMPLE_FACTOR / mPreviewHeight;
+            // Publish progress of the ongoing processing
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The capture may have been stopped while the frame was aligned.
+                    if (listener != mProgressListener) return;
+                    listener.onProgress(isFinished, panningRateX, panningRateY,
+                            progressX, progressY);
+                }
+            });
         }
     }
 
@@ -199,6 +316,9 @@ public class MosaicFrameProcessor {
         mTotalFrameCount  = (int) frameData[FRAME_COUNT_INDEX];
         float translationCurrX = frameData[X_COORD_INDEX];
         float translationCurrY = frameData[Y_COORD_INDEX];
+        // Number of preview frames covered by this alignment, including
+        // the ones dropped while the worker was busy.
+        int frameSpan = Math.max(1, mFramesSinceAlign.getAndSet(0));
 
         if (mFirstRun) {
             // First time: no need to update delta values.
@@ -213,8 +333,8 @@ public class MosaicFrameProcessor {
         int idx = mOldestIdx;
         mTotalTranslationX -= mDeltaX[idx];
         mTotalTranslationY -= mDeltaY[idx];
-        mDeltaX[idx] = Math.abs(translationCurrX - mTranslationLastX);
-        mDeltaY[idx] = Math.abs(translationCurrY - mTranslationLastY);
+        mDeltaX[idx] = Math.abs(translationCurrX - mTranslationLastX) / frameSpan;
+        mDeltaY[idx] = Math.abs(translationCurrY - mTranslationLastY) / frameSpan;
         mTotalTranslationX += mDeltaX[idx];
         mTotalTranslationY += mDeltaY[idx];
 
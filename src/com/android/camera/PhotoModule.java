@@ -75,7 +75,7 @@ import com.android.camera.CameraManager.CameraAFMoveCallback;
 import com.android.camera.CameraManager.CameraPictureCallback;
 import com.android.camera.CameraManager.CameraProxy;
 import com.android.camera.CameraManager.CameraShutterCallback;
-import com.android.camera.PhotoModule.NamedImages.NamedEntity;
+import com.android.camera.CaptureNames.NamedEntity;
 import com.android.camera.TsMakeupManager.MakeupLevelListener;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.exif.ExifTag;
@@ -110,7 +110,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.NumberFormatException;
 import java.util.List;
-import java.util.Vector;
 import java.util.HashMap;
 import android.util.AttributeSet;
 import android.graphics.Canvas;
@@ -144,7 +143,9 @@ public class PhotoModule
    /*Histogram variables*/
     private GraphView mGraphView;
     private static final int STATS_DATA = 257;
-    public static int statsdata[] = new int[STATS_DATA];
+    /* The first element holds the max bin value, 256 bins follow */
+    static final HistogramStats sHistogramStats =
+            new HistogramStats(STATS_DATA, 1, 1, STATS_DATA - 1, 0);
     public boolean mHiston = false;
     // We number the request code from 1000 to avoid collision with Gallery.
     private static final int REQUEST_CROP = 1000;
@@ -272,7 +273,7 @@ public class PhotoModule
 
     // We use a queue to generated names of the images to be used later
     // when the image is ready to be saved.
-    private NamedImages mNamedImages;
+    private CaptureNames mNamedImages;
 
     private SoundPool mSoundPool;
     private int mRefocusSound;
@@ -647,6 +648,7 @@ public class PhotoModule
         startFaceDetection();
         locationFirstRun();
         mUI.enableShutter(true);
+        mActivity.onFirstPreviewFrame();
     }
 
     // Prompt the user to pick to record location for the very first run of
@@ -954,7 +956,7 @@ public class PhotoModule
             s.setListener(this);
         }
 
-        mNamedImages = new NamedImages();
+        mNamedImages = new CaptureNames();
         mGraphView = (GraphView)mRootView.findViewById(R.id.graph_view);
         mDrawAutoHDR = (DrawAutoHDR )mRootView.findViewById(R.id.autohdr_view);
         if (mGraphView == null || mDrawAutoHDR == null){
@@ -981,7 +983,7 @@ public class PhotoModule
         if (s != null) {
             s.setListener(this);
         }
-        mNamedImages = new NamedImages();
+        mNamedImages = new CaptureNames();
         if (!mIsImageCaptureIntent) {
             mUI.showSwitcher();
         }
@@ -1055,7 +1057,7 @@ public class PhotoModule
             return false;
         }
 
-        if (Storage.getAvailableSpace() <= Storage.LOW_STORAGE_THRESHOLD_BYTES) {
+        if (StorageSpaceTracker.getAvailableSpace() <= Storage.LOW_STORAGE_THRESHOLD_BYTES) {
             Log.w(TAG, "current storage is full");
             return true;
         }
@@ -1190,8 +1192,7 @@ public class PhotoModule
             mFocusManager.updateFocusUI(); // Ensure focus indicator is hidden.
 
             String jpegFilePath = new String(jpegData);
-            mNamedImages.nameNewImage(mCaptureStartTime);
-            NamedEntity name = mNamedImages.getNextNameEntity();
+            NamedEntity name = mNamedImages.allocate(mCaptureStartTime);
             String title = (name == null) ? null : name.title;
             long date = (name == null) ? -1 : name.date;
 
@@ -1397,7 +1398,7 @@ public class PhotoModule
                 if (!mIsImageCaptureIntent) {
                     // Burst snapshot. Generate new image name.
                     if (mReceivedSnapNum > 1) {
-                        mNamedImages.nameNewImage(mCaptureStartTime, mRefocus);
+                        mNamedImages.enqueue(mCaptureStartTime, mRefocus);
                     }
                     // Calculate the width and the height of the jpeg.
                     Size s = mParameters.getPictureSize();
@@ -1421,7 +1422,7 @@ public class PhotoModule
                             }
                         }
                     }
-                    NamedEntity name = mNamedImages.getNextNameEntity();
+                    NamedEntity name = mNamedImages.poll();
                     String title = (name == null) ? null : name.title;
                     long date = (name == null) ? -1 : name.date;
                     // Handle debug mode outputs
@@ -1617,45 +1618,6 @@ public class PhotoModule
         }
     }
 
-    /**
-     * This class is just a thread-safe queue for name,date holder objects.
-     */
-    public static class NamedImages {
-        private Vector<NamedEntity> mQueue;
-
-        public NamedImages() {
-            mQueue = new Vector<NamedEntity>();
-        }
-
-        public void nameNewImage(long date) {
-            NamedEntity r = new NamedEntity();
-            r.title = CameraUtil.createJpegName(date);
-            r.date = date;
-            mQueue.add(r);
-        }
-
-        public void nameNewImage(long date, boolean refocus) {
-            NamedEntity r = new NamedEntity();
-            r.title = CameraUtil.createJpegName(date, refocus);
-            r.date = date;
-            mQueue.add(r);
-        }
-
-        public NamedEntity getNextNameEntity() {
-            synchronized(mQueue) {
-                if (!mQueue.isEmpty()) {
-                    return mQueue.remove(0);
-                }
-            }
-            return null;
-        }
-
-        public static class NamedEntity {
-            public String title;
-            public long date;
-        }
-    }
-
     private void setCameraState(int state) {
         mCameraState = state;
         switch (state) {
@@ -1797,14 +1759,14 @@ public class PhotoModule
             setCameraState(SNAPSHOT_IN_PROGRESS);
         }
 
-        mNamedImages.nameNewImage(mCaptureStartTime, mRefocus);
+        NamedEntity name = mNamedImages.enqueue(mCaptureStartTime, mRefocus);
 
         if (mSnapshotMode != CameraInfoWrapper.CAMERA_SUPPORT_MODE_ZSL) {
             mFaceDetectionStarted = false;
         }
         UsageStatistics.onEvent(UsageStatistics.COMPONENT_CAMERA,
                 UsageStatistics.ACTION_CAPTURE_DONE, "Photo", 0,
-                UsageStatistics.hashFileName(mNamedImages.mQueue.lastElement().title + ".jpg"));
+                UsageStatistics.hashFileName(name.title + ".jpg"));
         return true;
     }
 
@@ -2591,7 +2553,7 @@ public class PhotoModule
                     ((mActivity.getStorageSpaceBytes() - Storage.LOW_STORAGE_THRESHOLD_BYTES)
                     / mJpegFileSizeEstimation);
         } else {
-            mRemainingPhotos = -1;
+            mRemainingPhotos = StorageSpaceTracker.getRemainingShots();
         }
         mUI.updateRemainingPhotos(mRemainingPhotos);
     }
@@ -5187,100 +5149,36 @@ class JpegEncodingQualityMappings {
 }
 
 class GraphView extends View {
-    private Bitmap  mBitmap;
-    private Paint   mPaint = new Paint();
-    private Paint   mPaintRect = new Paint();
-    private Canvas  mCanvas = new Canvas();
-    private float   mScale = (float)3;
-    private float   mWidth;
-    private float   mHeight;
+    private final HistogramRenderer mRenderer = new HistogramRenderer();
     private PhotoModule mPhotoModule;
     private CameraManager.CameraProxy mGraphCameraDevice;
-    private float scaled;
-    private static final int STATS_SIZE = 256;
     private static final String TAG = "GraphView";
 
 
     public GraphView(Context context, AttributeSet attrs) {
         super(context,attrs);
-
-        mPaint.setFlags(Paint.ANTI_ALIAS_FLAG);
-        mPaintRect.setColor(0xFFFFFFFF);
-        mPaintRect.setStyle(Paint.Style.FILL);
     }
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-        mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
-        mCanvas.setBitmap(mBitmap);
-        mWidth = w;
-        mHeight = h;
+        mRenderer.setSize(w, h);
+        PhotoModule.sHistogramStats.setColumns(0, mRenderer.getColumns());
         super.onSizeChanged(w, h, oldw, oldh);
     }
     @Override
     protected void onDraw(Canvas canvas) {
-        Log.v(TAG, "in Camera.java ondraw");
         if(mPhotoModule == null || !mPhotoModule.mHiston ) {
-            Log.e(TAG, "returning as histogram is off ");
             return;
         }
 
-        if (mBitmap != null) {
-            final Paint paint = mPaint;
-            final Canvas cavas = mCanvas;
-            final float border = 5;
-            float graphheight = mHeight - (2 * border);
-            float graphwidth = mWidth - (2 * border);
-            float left,top,right,bottom;
-            float bargap = 0.0f;
-            float barwidth = graphwidth/STATS_SIZE;
-
-            cavas.drawColor(0xFFAAAAAA);
-            paint.setColor(Color.BLACK);
-
-            for (int k = 0; k <= (graphheight /32) ; k++) {
-                float y = (float)(32 * k)+ border;
-                cavas.drawLine(border, y, graphwidth + border , y, paint);
-            }
-            for (int j = 0; j <= (graphwidth /32); j++) {
-                float x = (float)(32 * j)+ border;
-                cavas.drawLine(x, border, x, graphheight + border, paint);
-            }
-            synchronized(PhotoModule.statsdata) {
-                 //Assumption: The first element contains
-                //            the maximum value.
-                int maxValue = Integer.MIN_VALUE;
-                if ( 0 == PhotoModule.statsdata[0] ) {
-                    for ( int i = 1 ; i <= STATS_SIZE ; i++ ) {
-                         if ( maxValue < PhotoModule.statsdata[i] ) {
-                             maxValue = PhotoModule.statsdata[i];
-                         }
-                    }
-                } else {
-                    maxValue = PhotoModule.statsdata[0];
-                }
-                mScale = ( float ) maxValue;
-                for(int i=1 ; i<=STATS_SIZE ; i++)  {
-                    scaled = (PhotoModule.statsdata[i]/mScale)*STATS_SIZE;
-                    if(scaled >= (float)STATS_SIZE)
-                        scaled = (float)STATS_SIZE;
-                    left = (bargap * (i+1)) + (barwidth * i) + border;
-                    top = graphheight + border;
-                    right = left + barwidth;
-                    bottom = top - scaled;
-                    cavas.drawRect(left, top, right, bottom, mPaintRect);
-                }
-            }
-            canvas.drawBitmap(mBitmap, 0, 0, null);
-        }
-        if (mPhotoModule.mHiston && mPhotoModule!= null) {
-            mGraphCameraDevice = mPhotoModule.getCamera();
-            if (mGraphCameraDevice != null){
-                mGraphCameraDevice.sendHistogramData();
-            }
+        PhotoModule.sHistogramStats.update();
+        mRenderer.draw(canvas, PhotoModule.sHistogramStats.getHeights(0));
+        mGraphCameraDevice = mPhotoModule.getCamera();
+        if (mGraphCameraDevice != null){
+            mGraphCameraDevice.sendHistogramData();
         }
     }
     public void PreviewChanged() {
-        invalidate();
+        postInvalidateOnAnimation();
     }
     public void setPhotoModuleObject(PhotoModule photoModule) {
         mPhotoModule = photoModule;
@@ -0,0 +1,131 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.PixelCopy;
+import android.view.SurfaceView;
+
+/**
+ * Copies the frame currently shown by a preview SurfaceView into a small
+ * bitmap, so a thumbnail for a just-stopped recording does not need the
+ * finished file to be opened and decoded.
+ */
+public class PreviewSnapshot {
+    private static final String TAG = "PreviewSnapshot";
+
+    public interface Callback {
+        /** Called on the main thread, bitmap is null if the copy failed. */
+        void onPreviewSnapshot(Bitmap bitmap);
+    }
+
+    /**
+     * Holds the snapshot of a recording until the recording is known to be
+     * saved, and drops it if stopping the recorder fails. The copy has to be
+     * requested before the preview stops, so it may finish either way round.
+     * Main thread only.
+     */
+    public static abstract class Deferred implements Callback {
+        private Bitmap mBitmap;
+        private boolean mSaved;
+        private boolean mFailed;
+
+        /** Called once the recording is saved and its snapshot is available. */
+        protected abstract void onReady(Bitmap bitmap);
+
+        @Override
+        public void onPreviewSnapshot(Bitmap bitmap) {
+            if (bitmap == null) return;
+            if (mFailed) {
+                bitmap.recycle();
+            } else if (mSaved) {
+                onReady(bitmap);
+            } else {
+                mBitmap = bitmap;
+            }
+        }
+
+        public void onRecordingSaved() {
+            mSaved = true;
+            if (mBitmap != null) {
+                onReady(mBitmap);
+                mBitmap = null;
+            }
+        }
+
+        public void onRecordingFailed() {
+            mFailed = true;
+            if (mBitmap != null) {
+                mBitmap.recycle();
+                mBitmap = null;
+            }
+        }
+    }
+
+    private PreviewSnapshot() {
+    }
+
+    public static void request(SurfaceView view, int maxSize, final Callback callback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N || view == null
+                || view.getWidth() <= 0 || view.getHeight() <= 0
+                || !view.getHolder().getSurface().isValid()) {
+            callback.onPreviewSnapshot(null);
+            return;
+        }
+        float scale = Math.min(1f, (float) maxSize
+                / Math.max(view.getWidth(), view.getHeight()));
+        final Bitmap bitmap = Bitmap.createBitmap(
+                Math.max(1, Math.round(view.getWidth() * scale)),
+                Math.max(1, Math.round(view.getHeight() * scale)),
+                Bitmap.Config.ARGB_8888);
+        try {
+            PixelCopy.request(view, bitmap, new PixelCopy.OnPixelCopyFinishedListener() {
+                @Override
+                public void onPixelCopyFinished(int result) {
+                    if (result == PixelCopy.SUCCESS) {
+                        callback.onPreviewSnapshot(bitmap);
+                    } else {
+                        Log.w(TAG, "Preview copy failed: " + result);
+                        bitmap.recycle();
+                        callback.onPreviewSnapshot(null);
+                    }
+                }
+            }, new Handler(Looper.getMainLooper()));
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Preview surface not available", e);
+            bitmap.recycle();
+            callback.onPreviewSnapshot(null);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Settings dependency rules from dependency.json compiled into int-indexed
+ * tables. Each base key has a list of rules, one per listed value plus
+ * "default", and each rule holds the indices of the keys it overrides and
+ * the override values, so propagating a change is a walk over arrays.
+ */
+public class SettingsDependencyGraph {
+    private static final String TAG = "SnapCam_SettingsDependencyGraph";
+    private static final String DEFAULT_RULE = "default";
+
+    private final HashMap<String, Integer> mKeyIndex = new HashMap<>();
+    private final ArrayList<String> mKeys = new ArrayList<>();
+    // Indexed by key index, null if the key doesn't drive any rule.
+    private String[][] mRuleValues;
+    private int[] mDefaultRule;
+    private int[][][] mRuleTargets;
+    private String[][][] mRuleOverrides;
+
+    private SettingsDependencyGraph() {
+    }
+
+    public static SettingsDependencyGraph compile(JSONObject dependency) {
+        SettingsDependencyGraph graph = new SettingsDependencyGraph();
+        if (dependency == null) {
+            graph.allocate(0);
+            return graph;
+        }
+        // First pass assigns indices to every key that appears in the file.
+        Iterator<String> baseKeys = dependency.keys();
+        while (baseKeys.hasNext()) {
+            String baseKey = baseKeys.next();
+            graph.addKey(baseKey);
+            JSONObject map = dependency.optJSONObject(baseKey);
+            if (map == null) continue;
+            Iterator<String> values = map.keys();
+            while (values.hasNext()) {
+                JSONObject rule = map.optJSONObject(values.next());
+                if (rule == null) continue;
+                Iterator<String> targets = rule.keys();
+                while (targets.hasNext()) {
+                    graph.addKey(targets.next());
+                }
+            }
+        }
+        graph.allocate(graph.mKeys.size());
+
+        baseKeys = dependency.keys();
+        while (baseKeys.hasNext()) {
+            String baseKey = baseKeys.next();
+            JSONObject map = dependency.optJSONObject(baseKey);
+            if (map == null) continue;
+            int base = graph.mKeyIndex.get(baseKey);
+            List<String> ruleValues = new ArrayList<>();
+            List<int[]> ruleTargets = new ArrayList<>();
+            List<String[]> ruleOverrides = new ArrayList<>();
+            Iterator<String> values = map.keys();
+            while (values.hasNext()) {
+                String value = values.next();
+                // Skips non-rule entries such as "_license".
+                JSONObject rule = map.optJSONObject(value);
+                if (rule == null) continue;
+                int[] targets = new int[rule.length()];
+                String[] overrides = new String[rule.length()];
+                int n = 0;
+                Iterator<String> keys = rule.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    targets[n] = graph.mKeyIndex.get(key);
+                    overrides[n] = rule.optString(key, null);
+                    n++;
+                }
+                if (DEFAULT_RULE.equals(value)) {
+                    graph.mDefaultRule[base] = ruleValues.size();
+                }
+                ruleValues.add(value);
+                ruleTargets.add(targets);
+                ruleOverrides.add(overrides);
+            }
+            graph.mRuleValues[base] = ruleValues.toArray(new String[ruleValues.size()]);
+            graph.mRuleTargets[base] = ruleTargets.toArray(new int[ruleTargets.size()][]);
+            graph.mRuleOverrides[base] =
+                    ruleOverrides.toArray(new String[ruleOverrides.size()][]);
+        }
+        Log.d(TAG, "compiled " + graph.mKeys.size() + " keys");
+        return graph;
+    }
+
+    private void addKey(String key) {
+        if (!mKeyIndex.containsKey(key)) {
+            mKeyIndex.put(key, mKeys.size());
+            mKeys.add(key);
+        }
+    }
+
+    private void allocate(int size) {
+        mRuleValues = new String[size][];
+        mDefaultRule = new int[size];
+        mRuleTargets = new int[size][][];
+        mRuleOverrides = new String[size][][];
+        for (int i = 0; i < size; i++) {
+            mDefaultRule[i] = -1;
+        }
+    }
+
+    public int size() {
+        return mKeys.size();
+    }
+
+    /* Returns the index of the key, or -1 if no rule mentions it */
+    public int indexOf(String key) {
+        Integer index = mKeyIndex.get(key);
+        return index == null ? -1 : index;
+    }
+
+    public String getKey(int index) {
+        return mKeys.get(index);
+    }
+
+    public boolean hasRules(int key) {
+        return key >= 0 && mRuleValues[key] != null;
+    }
+
+    /**
+     * Returns the rule applied when the key has the given value, falling
+     * back to the "default" rule, or -1 if there is none.
+     */
+    public int getRule(int key, String value) {
+        if (!hasRules(key)) return -1;
+        String[] values = mRuleValues[key];
+        if (value != null) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i].equals(value)) return i;
+            }
+        }
+        return mDefaultRule[key];
+    }
+
+    public int getTargetCount(int key, int rule) {
+        return rule < 0 ? 0 : mRuleTargets[key][rule].length;
+    }
+
+    public int getTarget(int key, int rule, int i) {
+        return mRuleTargets[key][rule][i];
+    }
+
+    public String getOverride(int key, int rule, int i) {
+        return mRuleOverrides[key][rule][i];
+    }
+
+    /* Returns the position of target within the rule, or -1 */
+    public int findTarget(int key, int rule, int target) {
+        if (rule < 0) return -1;
+        int[] targets = mRuleTargets[key][rule];
+        for (int i = 0; i < targets.length; i++) {
+            if (targets[i] == target) return i;
+        }
+        return -1;
+    }
+}
@@ -38,23 +38,16 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecInfo.CodecCapabilities;
-import android.media.MediaCodecInfo.VideoCapabilities;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.media.CamcorderProfile;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecInfo.CodecCapabilities;
-import android.media.MediaCodecInfo.VideoCapabilities;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.util.Range;
 import android.util.Rational;
 import android.util.Size;
+import android.util.SparseArray;
 
 import com.android.camera.imageprocessor.filter.BeautificationFilter;
 import com.android.camera.imageprocessor.filter.BestpictureFilter;
@@ -79,9 +72,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -199,13 +192,47 @@ public class SettingsManager implements ListMenu.SettingsListener {
     private Context mContext;
     private PreferenceGroup mPreferenceGroup;
     private ComboPreferences mPreferences;
-    private Map<String, Set<String>> mDependendsOnMap;
+    // Base keys currently overriding each key, indexed by mDependency key index.
+    private BitSet[] mDependsOn;
     private boolean mIsMonoCameraPresent = false;
     private boolean mIsFrontCameraPresent = false;
-    private JSONObject mDependency;
+    private SettingsDependencyGraph mDependency;
+    // Rebuilt on the next read after any value changes.
+    private SettingsSnapshot mSnapshot;
+    private int mSnapshotGeneration;
+    private final Object mSnapshotLock = new Object();
+    // Filtered preference groups of cameras visited since the last settings change.
+    private SparseArray<PreferenceGroup> mPreferenceGroupCache = new SparseArray<>();
+    private SparseArray<Set<String>> mFilteredKeysCache = new SparseArray<>();
     private int mCameraId;
     private Set<String> mFilteredKeys;
     private int[] mExtendedHFRSize;//An array of pairs (fps, maxW, maxH)
+    private String[] mCameraIdList;
+    private CameraCapabilityCache mCapabilityCache;
+
+    // Keys of the capability tables kept in mCapabilityCache.
+    private static final String CAP_FACING = "facing";
+    private static final String CAP_MONO_ONLY = "monoOnly";
+    private static final String CAP_FLASH = "flash";
+    private static final String CAP_BSGC = "bsgc";
+    private static final String CAP_FACE_DETECTION = "faceDetection";
+    private static final String CAP_EXPOSURE_COMPENSATION = "exposureCompensation";
+    private static final String CAP_EXTENDED_HFR_SIZE = "extendedHfrSize";
+    private static final String CAP_WHITE_BALANCE = "whiteBalance";
+    private static final String CAP_COLOR_EFFECT = "colorEffect";
+    private static final String CAP_INSTANT_AEC = "instantAec";
+    private static final String CAP_SATURATION_LEVEL = "saturationLevel";
+    private static final String CAP_ANTI_BANDING_LEVEL = "antiBandingLevel";
+    private static final String CAP_HISTOGRAM = "histogram";
+    private static final String CAP_HDR = "hdr";
+    private static final String CAP_PICTURE_SIZE = "pictureSize";
+    private static final String CAP_SCENE_MODE = "sceneMode";
+    private static final String CAP_ISO = "iso";
+    private static final String CAP_VIDEO_SIZE = "videoSize";
+    private static final String CAP_REDEYE_REDUCTION = "redeyeReduction";
+    private static final String CAP_NOISE_REDUCTION = "noiseReduction";
+    private static final String CAP_ZOOM = "zoom";
+    private static final String CAP_HFR = "hfr";
 
     public Map<String, Values> getValuesMap() {
         return mValuesMap;
@@ -238,25 +265,40 @@ public class SettingsManager implements ListMenu.SettingsListener {
         }
         upgradeGlobalPreferences(mPreferences.getGlobal(), mContext);
 
+        mCapabilityCache = CameraCapabilityCache.load(mContext);
         CameraManager manager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
         try {
             String[] cameraIdList = manager.getCameraIdList();
+            mCameraIdList = cameraIdList;
+            if (!mCapabilityCache.isValidFor(cameraIdList.length)) {
+                mCapabilityCache.reset(cameraIdList.length);
+            }
             boolean isFirstBackCameraId = true;
             for (int i = 0; i < cameraIdList.length; i++) {
                 String cameraId = cameraIdList[i];
-                CameraCharacteristics characteristics
-                        = manager.getCameraCharacteristics(cameraId);
                 Log.d(TAG,"cameraIdList size ="+cameraIdList.length);
-                byte monoOnly = 0;
-                try {
-                    monoOnly = characteristics.get(CaptureModule.MetaDataMonoOnlyKey);
-                }catch(Exception e) {
+                // Characteristics are fetched on first use unless the cache misses.
+                CameraCharacteristics characteristics = null;
+                Integer cachedFacing = mCapabilityCache.getInt(i, CAP_FACING);
+                Integer cachedMonoOnly = mCapabilityCache.getInt(i, CAP_MONO_ONLY);
+                if (cachedFacing == null || cachedMonoOnly == null) {
+                    characteristics = manager.getCameraCharacteristics(cameraId);
+                    byte mono = 0;
+                    try {
+                        mono = characteristics.get(CaptureModule.MetaDataMonoOnlyKey);
+                    }catch(Exception e) {
+                    }
+                    cachedMonoOnly = (int) mono;
+                    cachedFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                    mCapabilityCache.putInt(i, CAP_MONO_ONLY, cachedMonoOnly);
+                    mCapabilityCache.putInt(i, CAP_FACING, cachedFacing);
                 }
+                byte monoOnly = cachedMonoOnly.byteValue();
                 if (monoOnly == 1) {
                     CaptureModule.MONO_ID = i;
                     mIsMonoCameraPresent = true;
                 }
-                int facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                int facing = cachedFacing;
                 if (facing == CameraCharacteristics.LENS_FACING_FRONT) {
                     CaptureModule.FRONT_ID = i;
                     mIsFrontCameraPresent = true;
@@ -271,7 +313,129 @@ public class SettingsManager implements ListMenu.SettingsListener {
             e.printStackTrace();
         }
 
-        mDependency = parseJson("dependency.json");
+        mDependency = SettingsDependencyGraph.compile(parseJson("dependency.json"));
+        mDependsOn = new BitSet[mDependency.size()];
+        for (int i = 0; i < mDependsOn.length; i++) {
+            mDependsOn[i] = new BitSet(mDependsOn.length);
+        }
+    }
+
+    public synchronized CameraCharacteristics getCharacteristics(int cameraId) {
+        CameraCharacteristics characteristics = mCharacteristics.get(cameraId);
+        if (characteristics == null) {
+            CameraManager manager =
+                    (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+            try {
+                characteristics = manager.getCameraCharacteristics(mCameraIdList[cameraId]);
+                mCharacteristics.set(cameraId, characteristics);
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+            }
+        }
+        return characteristics;
+    }
+
+    /**
+     * Returns a capability table for the camera, deriving it from the
+     * characteristics only when the persistent cache doesn't have it.
+     */
+    private List<String> getCapabilityList(int cameraId, String key) {
+        String cacheKey = key;
+        if (CAP_VIDEO_SIZE.equals(key)) {
+            // Size tables also depend on the picture format, and picture
+            // sizes on the QCFA preference.
+            cacheKey = key + ":" + getSavePictureFormat();
+        } else if (CAP_PICTURE_SIZE.equals(key)) {
+            boolean qcfa = mPreferenceGroup.findPreference(KEY_QCFA) != null
+                    && getQcfaPrefEnabled();
+            cacheKey = key + ":" + getSavePictureFormat() + ":" + qcfa;
+        }
+        if (mCapabilityCache.contains(cameraId, cacheKey)) {
+            return mCapabilityCache.getList(cameraId, cacheKey);
+        }
+        List<String> list = null;
+        switch (key) {
+            case CAP_WHITE_BALANCE:
+                list = getSupportedWhiteBalanceModes(cameraId);
+                break;
+            case CAP_COLOR_EFFECT:
+                list = getSupportedColorEffects(cameraId);
+                break;
+            case CAP_INSTANT_AEC:
+                list = getSupportedInstantAecAvailableModes(cameraId);
+                break;
+            case CAP_SATURATION_LEVEL:
+                list = getSupportedSaturationLevelAvailableModes(cameraId);
+                break;
+            case CAP_ANTI_BANDING_LEVEL:
+                list = getSupportedAntiBandingLevelAvailableModes(cameraId);
+                break;
+            case CAP_HISTOGRAM:
+                list = getSupportedHistogramAvailableModes(cameraId);
+                break;
+            case CAP_HDR:
+                list = getSupportedHdrAvailableModes(cameraId);
+                break;
+            case CAP_PICTURE_SIZE:
+                list = getSupportedPictureSize(cameraId);
+                break;
+            case CAP_SCENE_MODE:
+                list = getSupportedSceneModes(cameraId);
+                break;
+            case CAP_ISO:
+                list = getSupportedIso(cameraId);
+                break;
+            case CAP_VIDEO_SIZE:
+                list = getSupportedVideoSize(cameraId);
+                break;
+            case CAP_REDEYE_REDUCTION:
+                list = getSupportedRedeyeReduction(cameraId);
+                break;
+            case CAP_NOISE_REDUCTION:
+                list = getSupportedNoiseReductionModes(cameraId);
+                break;
+            case CAP_ZOOM:
+                list = getSupportedZoomLevel(cameraId);
+                break;
+            default:
+                Log.w(TAG, "unknown capability " + key);
+                return null;
+        }
+        mCapabilityCache.putList(cameraId, cacheKey, list);
+        return list;
+    }
+
+    private boolean getCapabilityFlag(int cameraId, String key) {
+        Integer cached = mCapabilityCache.getInt(cameraId, key);
+        if (cached != null) {
+            return cached != 0;
+        }
+        boolean value;
+        switch (key) {
+            case CAP_FLASH:
+                value = isFlashAvailable(cameraId);
+                break;
+            case CAP_BSGC:
+                value = isBsgcAvailable(cameraId);
+                break;
+            case CAP_FACE_DETECTION:
+                value = isFaceDetectionSupported(cameraId);
+                break;
+            default:
+                Log.w(TAG, "unknown capability " + key);
+                return false;
+        }
+        mCapabilityCache.putInt(cameraId, key, value ? 1 : 0);
+        return value;
+    }
+
+    private int getFacing(int cameraId) {
+        Integer facing = mCapabilityCache.getInt(cameraId, CAP_FACING);
+        if (facing == null) {
+            facing = getCharacteristics(cameraId).get(CameraCharacteristics.LENS_FACING);
+            mCapabilityCache.putInt(cameraId, CAP_FACING, facing);
+        }
+        return facing;
     }
 
     public static SettingsManager createInstance(Context context) {
@@ -313,6 +477,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
 
     @Override
     public void onSettingChanged(ListPreference pref) {
+        invalidatePreferenceGroupCache();
         String key = pref.getKey();
         List changed = checkDependencyAndUpdate(key);
         if (changed == null) return;
@@ -321,6 +486,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
     }
 
     public void updatePictureAndVideoSize() {
+        invalidatePreferenceGroupCache();
         ListPreference picturePref = mPreferenceGroup.findPreference(KEY_PICTURE_SIZE);
         ListPreference videoQualityPref = mPreferenceGroup.findPreference(KEY_VIDEO_QUALITY);
         if (picturePref != null) {
@@ -328,16 +494,16 @@ public class SettingsManager implements ListMenu.SettingsListener {
                     R.array.pref_camera2_picturesize_entries));
             picturePref.setEntryValues(mContext.getResources().getStringArray(
                     R.array.pref_camera2_picturesize_entryvalues));
-            filterUnsupportedOptions(picturePref, getSupportedPictureSize(
-                    getCurrentCameraId()));
+            filterUnsupportedOptions(picturePref, getCapabilityList(
+                    getCurrentCameraId(), CAP_PICTURE_SIZE));
         }
         if (videoQualityPref != null) {
             videoQualityPref.setEntries(mContext.getResources().getStringArray(
                     R.array.pref_camera2_video_quality_entries));
             videoQualityPref.setEntryValues(mContext.getResources().getStringArray(
                     R.array.pref_camera2_video_quality_entryvalues));
-            filterUnsupportedOptions(videoQualityPref,getSupportedVideoSize(
-                    getCurrentCameraId()));
+            filterUnsupportedOptions(videoQualityPref,getCapabilityList(
+                    getCurrentCameraId(), CAP_VIDEO_SIZE));
         }
     }
 
@@ -358,7 +524,9 @@ public class SettingsManager implements ListMenu.SettingsListener {
         try {
             CameraCharacteristics characteristics
                     = manager.getCameraCharacteristics(String.valueOf(cameraId));
-            mCharacteristics.set(cameraId, characteristics);
+            synchronized (this) {
+                mCharacteristics.set(cameraId, characteristics);
+            }
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -369,25 +537,79 @@ public class SettingsManager implements ListMenu.SettingsListener {
         mCameraId = cameraId;
         CameraSettings.upgradeLocalPreferences(mPreferences.getLocal());
 
-        PreferenceInflater inflater = new PreferenceInflater(mContext);
-        mPreferenceGroup =
-                (PreferenceGroup) inflater.inflate(R.xml.capture_preferences);
         mValuesMap = new HashMap<>();
-        mDependendsOnMap = new HashMap<>();
-        mFilteredKeys = new HashSet<>();
-        try {
-            if (mCharacteristics.size() > 0) {
-                mExtendedHFRSize = mCharacteristics.get(cameraId).get(CaptureModule.hfrSizeList);
-            }
-        }catch(IllegalArgumentException exception) {
-            exception.printStackTrace();
+        for (BitSet dependsOn : mDependsOn) {
+            dependsOn.clear();
+        }
+        if (mCharacteristics.size() > 0) {
+            mExtendedHFRSize = getExtendedHFRSize(cameraId);
         }
 
-        filterPreferences(cameraId);
+        PreferenceGroup cached = mPreferenceGroupCache.get(cameraId);
+        if (cached != null) {
+            mPreferenceGroup = cached;
+            mFilteredKeys = mFilteredKeysCache.get(cameraId);
+            reloadPreferenceValues(mPreferenceGroup);
+        } else {
+            PreferenceInflater inflater = new PreferenceInflater(mContext);
+            mPreferenceGroup =
+                    (PreferenceGroup) inflater.inflate(R.xml.capture_preferences);
+            mFilteredKeys = new HashSet<>();
+            filterPreferences(cameraId);
+        }
         initDependencyTable();
         initializeValueMap();
         filterChromaflashPictureSizeOptions();
         filterHeifSizeOptions();
+        mPreferenceGroupCache.put(cameraId, mPreferenceGroup);
+        mFilteredKeysCache.put(cameraId, mFilteredKeys);
+        // Only after the value map is complete, so no snapshot of a partial map is kept.
+        invalidateSnapshot();
+        mCapabilityCache.saveAsync();
+        EncoderCapabilityIndex.get(mContext).saveAsync();
+    }
+
+    private void reloadPreferenceValues(PreferenceGroup group) {
+        for (int i = 0; i < group.size(); i++) {
+            CameraPreference pref = group.get(i);
+            if (pref instanceof ListPreference) {
+                ((ListPreference) pref).reloadValue();
+            } else if (pref instanceof PreferenceGroup) {
+                reloadPreferenceValues((PreferenceGroup) pref);
+            }
+        }
+    }
+
+    private void invalidatePreferenceGroupCache() {
+        mPreferenceGroupCache.clear();
+        mFilteredKeysCache.clear();
+    }
+
+    private int[] getExtendedHFRSize(int cameraId) {
+        if (mCapabilityCache.contains(cameraId, CAP_EXTENDED_HFR_SIZE)) {
+            List<String> cached = mCapabilityCache.getList(cameraId, CAP_EXTENDED_HFR_SIZE);
+            if (cached == null) return null;
+            int[] sizes = new int[cached.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = Integer.parseInt(cached.get(i));
+            }
+            return sizes;
+        }
+        int[] sizes = null;
+        try {
+            sizes = getCharacteristics(cameraId).get(CaptureModule.hfrSizeList);
+        }catch(IllegalArgumentException exception) {
+            exception.printStackTrace();
+        }
+        List<String> values = null;
+        if (sizes != null) {
+            values = new ArrayList<>(sizes.length);
+            for (int size : sizes) {
+                values.add(String.valueOf(size));
+            }
+        }
+        mCapabilityCache.putList(cameraId, CAP_EXTENDED_HFR_SIZE, values);
+        return sizes;
     }
 
     private Size parseSize(String value) {
@@ -400,23 +622,15 @@ public class SettingsManager implements ListMenu.SettingsListener {
     private void initDependencyTable() {
         for (int i = 0; i < mPreferenceGroup.size(); i++) {
             ListPreference pref = (ListPreference) mPreferenceGroup.get(i);
-            String baseKey = pref.getKey();
-            String value = pref.getValue();
-
-            JSONObject dependency = getDependencyList(baseKey, value);
-            if (dependency != null) {
-                Iterator<String> keys = dependency.keys();
-                while (keys.hasNext()) {
-                    String key = keys.next();
-                    pref = mPreferenceGroup.findPreference(key);
-                    if (pref == null) continue; //filtered?
-                    Set set = mDependendsOnMap.get(key);
-                    if (set == null) {
-                        set = new HashSet<>();
-                    }
-                    set.add(baseKey);
-                    mDependendsOnMap.put(key, set);
+            int base = mDependency.indexOf(pref.getKey());
+            int rule = mDependency.getRule(base, pref.getValue());
+            int count = mDependency.getTargetCount(base, rule);
+            for (int j = 0; j < count; j++) {
+                int target = mDependency.getTarget(base, rule, j);
+                if (mPreferenceGroup.findPreference(mDependency.getKey(target)) == null) {
+                    continue; //filtered?
                 }
+                mDependsOn[target].set(base);
             }
         }
     }
@@ -426,24 +640,22 @@ public class SettingsManager implements ListMenu.SettingsListener {
         for (int i = 0; i < mPreferenceGroup.size(); i++) {
             ListPreference pref = (ListPreference) mPreferenceGroup.get(i);
             String key = pref.getKey();
-            Set<String> set = mDependendsOnMap.get(key);
-            if (set != null && set.size() != 0) {
+            int index = mDependency.indexOf(key);
+            if (index >= 0 && !mDependsOn[index].isEmpty()) {
                 processLater.add(key);
             }
             Values values = new Values(pref.getValue(), null);
             mValuesMap.put(pref.getKey(), values);
         }
         for (String keyToProcess : processLater) {
-            Set<String> dependsOnSet = mDependendsOnMap.get(keyToProcess);
-            String dependentKey = dependsOnSet.iterator().next();
-            String value = getValue(dependentKey);
-            JSONObject dependencyList = getDependencyList(dependentKey, value);
-
-            String newValue = null;
-            try {
-                newValue = dependencyList.getString(keyToProcess);
-            } catch (JSONException e) {
-                Log.w(TAG, "initializeValueMap JSONException No value for:" + keyToProcess);
+            int target = mDependency.indexOf(keyToProcess);
+            int base = mDependsOn[target].nextSetBit(0);
+            int rule = mDependency.getRule(base, getValue(mDependency.getKey(base)));
+            int position = mDependency.findTarget(base, rule, target);
+            String newValue = position < 0 ? null
+                    : mDependency.getOverride(base, rule, position);
+            if (newValue == null) {
+                Log.w(TAG, "initializeValueMap No value for:" + keyToProcess);
                 continue;
             }
             Values values = new Values(getValue(keyToProcess), newValue);
@@ -463,83 +675,61 @@ public class SettingsManager implements ListMenu.SettingsListener {
         Values values = new Values(value, null);
         mValuesMap.put(changedPrefKey, values);
         changed.add(new SettingState(changedPrefKey, values));
-
-        JSONObject map = getDependencyMapForKey(changedPrefKey);
-        if (map == null || getDependencyKey(map, value).equals(getDependencyKey(map,prevValue)))
-            return changed;
-
-        Set<String> turnOn = new HashSet<>();
-        Set<String> turnOff = new HashSet<>();
-
-        JSONObject dependencyList = getDependencyList(changedPrefKey, value);
-        JSONObject originalDependencyList = getDependencyList(changedPrefKey, prevValue);
-
-        Iterator<String> it = originalDependencyList.keys();
-        while (it.hasNext()) {
-            turnOn.add(it.next());
-        }
-        it = dependencyList.keys();
-        while (it.hasNext()) {
-            turnOff.add(it.next());
-        }
-        it = originalDependencyList.keys();
-        while (it.hasNext()) {
-            turnOff.remove(it.next());
-        }
-        it = dependencyList.keys();
-        while (it.hasNext()) {
-            turnOn.remove(it.next());
+        try {
+            updateDependents(changedPrefKey, value, prevValue, changed);
+        } finally {
+            // Dependent overrides change values too, so drop the snapshot after the last write.
+            invalidateSnapshot();
         }
+        return changed;
+    }
 
-        for (String keyToTurnOn: turnOn) {
-            Set<String> dependsOnSet = mDependendsOnMap.get(keyToTurnOn);
-            if (dependsOnSet == null || dependsOnSet.size() == 0) continue;
+    private void updateDependents(String changedPrefKey, String value, String prevValue,
+                                  List<SettingState> changed) {
+        Values values;
 
-                values = mValuesMap.get(keyToTurnOn);
-                if (values == null) continue;
-                values.overriddenValue = null;
-                mValuesMap.put(keyToTurnOn, values);
-                changed.add(new SettingState(keyToTurnOn, values));
+        int base = mDependency.indexOf(changedPrefKey);
+        if (!mDependency.hasRules(base)) return;
+        int rule = mDependency.getRule(base, value);
+        int prevRule = mDependency.getRule(base, prevValue);
+        if (rule == prevRule) return;
+
+        // Keys only the previous rule overrode are turned back on.
+        int count = mDependency.getTargetCount(base, prevRule);
+        for (int i = 0; i < count; i++) {
+            int target = mDependency.getTarget(base, prevRule, i);
+            if (mDependency.findTarget(base, rule, target) >= 0) continue;
+            boolean dependent = !mDependsOn[target].isEmpty();
+            mDependsOn[target].clear(base);
+            if (!dependent) continue;
+
+            String keyToTurnOn = mDependency.getKey(target);
+            values = mValuesMap.get(keyToTurnOn);
+            if (values == null) continue;
+            values.overriddenValue = null;
+            changed.add(new SettingState(keyToTurnOn, values));
         }
 
-        for (String keyToTurnOff: turnOff) {
+        // Keys only the new rule overrides are turned off.
+        count = mDependency.getTargetCount(base, rule);
+        for (int i = 0; i < count; i++) {
+            int target = mDependency.getTarget(base, rule, i);
+            if (mDependency.findTarget(base, prevRule, target) >= 0) continue;
+            mDependsOn[target].set(base);
+
+            String keyToTurnOff = mDependency.getKey(target);
             ListPreference pref = mPreferenceGroup.findPreference(keyToTurnOff);
             if (pref == null) continue;
             values = mValuesMap.get(keyToTurnOff);
             if (values == null) continue;
-            if (values != null && values.overriddenValue != null) continue;
-            String newValue = null;
-            try {
-                newValue = dependencyList.getString(keyToTurnOff);
-            } catch (JSONException e) {
-                Log.w(TAG, "checkDependencyAndUpdate JSONException No value for:" + keyToTurnOff);
-                continue;
-            }
+            if (values.overriddenValue != null) continue;
+            String newValue = mDependency.getOverride(base, rule, i);
             if (newValue == null) continue;
 
             Values newValues = new Values(pref.getValue(), newValue);
             mValuesMap.put(keyToTurnOff, newValues);
             changed.add(new SettingState(keyToTurnOff, newValues));
         }
-            updateBackDependency(changedPrefKey, turnOn, turnOff);
-        return changed;
-    }
-
-    private void updateBackDependency(String key, Set<String> remove, Set<String> add) {
-        for (CharSequence c : remove) {
-            String currentKey = c.toString();
-            Set<String> dependsOnSet = mDependendsOnMap.get(currentKey);
-            if (dependsOnSet != null) dependsOnSet.remove(key);
-        }
-        for (CharSequence c : add) {
-            String currentKey = c.toString();
-            Set<String> dependsOnSet = mDependendsOnMap.get(currentKey);
-            if (dependsOnSet == null) {
-                dependsOnSet = new HashSet<>();
-                mDependendsOnMap.put(currentKey, dependsOnSet);
-            }
-            dependsOnSet.add(key);
-        }
     }
 
     public void registerListener(Listener listener) {
@@ -567,6 +757,40 @@ public class SettingsManager implements ListMenu.SettingsListener {
         else return values.overriddenValue;
     }
 
+    /**
+     * Returns the typed settings snapshot of the current values. The same
+     * instance is returned until a value changes.
+     */
+    public SettingsSnapshot getSettingsSnapshot() {
+        int generation;
+        synchronized (mSnapshotLock) {
+            if (mSnapshot != null) return mSnapshot;
+            generation = mSnapshotGeneration;
+        }
+        SettingsSnapshot snapshot = new SettingsSnapshot(this);
+        synchronized (mSnapshotLock) {
+            // Don't publish a snapshot that raced with a value change.
+            if (generation == mSnapshotGeneration) {
+                mSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    /* Increases every time a value changes */
+    public int getSettingsGeneration() {
+        synchronized (mSnapshotLock) {
+            return mSnapshotGeneration;
+        }
+    }
+
+    private void invalidateSnapshot() {
+        synchronized (mSnapshotLock) {
+            mSnapshot = null;
+            mSnapshotGeneration++;
+        }
+    }
+
     public int getValueIndex(String key) {
         ListPreference pref = mPreferenceGroup.findPreference(key);
         String value = getValue(key);
@@ -639,6 +863,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
     }
 
     private void updateMapAndNotify(ListPreference pref) {
+        invalidatePreferenceGroupCache();
         String key = pref.getKey();
         List changed = checkDependencyAndUpdate(key);
         if (changed == null) return;
@@ -714,13 +939,13 @@ public class SettingsManager implements ListMenu.SettingsListener {
         ListPreference hdr_mode = mPreferenceGroup.findPreference(KEY_HDR_MODE);
 
         if (whiteBalance != null) {
-            if (filterUnsupportedOptions(whiteBalance, getSupportedWhiteBalanceModes(cameraId))) {
+            if (filterUnsupportedOptions(whiteBalance, getCapabilityList(cameraId, CAP_WHITE_BALANCE))) {
                 mFilteredKeys.add(whiteBalance.getKey());
             }
         }
 
         if (flashMode != null) {
-            if (!isFlashAvailable(mCameraId)) {
+            if (!getCapabilityFlag(mCameraId, CAP_FLASH)) {
                 removePreference(mPreferenceGroup, KEY_FLASH_MODE);
                 mFilteredKeys.add(flashMode.getKey());
             }
@@ -731,55 +956,55 @@ public class SettingsManager implements ListMenu.SettingsListener {
         }
 
         if (bsgc != null) {
-            if (!isBsgcAvailable(mCameraId)) {
+            if (!getCapabilityFlag(mCameraId, CAP_BSGC)) {
                 removePreference(mPreferenceGroup, KEY_BSGC_DETECTION);
                 mFilteredKeys.add(bsgc.getKey());
             }
         }
 
         if (colorEffect != null) {
-            if (filterUnsupportedOptions(colorEffect, getSupportedColorEffects(cameraId))) {
+            if (filterUnsupportedOptions(colorEffect, getCapabilityList(cameraId, CAP_COLOR_EFFECT))) {
                 mFilteredKeys.add(colorEffect.getKey());
             }
         }
 
         if (instantAec != null) {
             if (filterUnsupportedOptions(instantAec,
-                    getSupportedInstantAecAvailableModes(cameraId))) {
+                    getCapabilityList(cameraId, CAP_INSTANT_AEC))) {
                 mFilteredKeys.add(instantAec.getKey());
             }
         }
 
         if (saturationLevel != null) {
             if (filterUnsupportedOptions(saturationLevel,
-                    getSupportedSaturationLevelAvailableModes(cameraId))) {
+                    getCapabilityList(cameraId, CAP_SATURATION_LEVEL))) {
                 mFilteredKeys.add(saturationLevel.getKey());
             }
         }
 
         if (antiBandingLevel != null) {
             if (filterUnsupportedOptions(antiBandingLevel,
-                    getSupportedAntiBandingLevelAvailableModes(cameraId))) {
+                    getCapabilityList(cameraId, CAP_ANTI_BANDING_LEVEL))) {
                 mFilteredKeys.add(antiBandingLevel.getKey());
             }
         }
 
         if (histogram != null) {
             if (filterUnsupportedOptions(histogram,
-                    getSupportedHistogramAvailableModes(cameraId))) {
+                    getCapabilityList(cameraId, CAP_HISTOGRAM))) {
                 mFilteredKeys.add(histogram.getKey());
             }
         }
 
         if (hdr != null){
             if (filterUnsupportedOptions(hdr,
-                    getSupportedHdrAvailableModes(cameraId))) {
+                    getCapabilityList(cameraId, CAP_HDR))) {
                 mFilteredKeys.add(hdr.getKey());
             }
         }
 
         if (pictureSize != null) {
-            if (filterUnsupportedOptions(pictureSize, getSupportedPictureSize(cameraId))) {
+            if (filterUnsupportedOptions(pictureSize, getCapabilityList(cameraId, CAP_PICTURE_SIZE))) {
                 mFilteredKeys.add(pictureSize.getKey());
             } else {
                 if (filterSimilarPictureSize(mPreferenceGroup, pictureSize)) {
@@ -789,14 +1014,14 @@ public class SettingsManager implements ListMenu.SettingsListener {
         }
 
         if (sceneMode != null) {
-            if (filterUnsupportedOptions(sceneMode, getSupportedSceneModes(cameraId))) {
+            if (filterUnsupportedOptions(sceneMode, getCapabilityList(cameraId, CAP_SCENE_MODE))) {
                 mFilteredKeys.add(sceneMode.getKey());
             }
         }
 
         if ( sceneModeInstructional != null ) {
             if (filterUnsupportedOptions(sceneModeInstructional,
-                    getSupportedSceneModes(cameraId)) ){
+                    getCapabilityList(cameraId, CAP_SCENE_MODE)) ){
                 mFilteredKeys.add(sceneModeInstructional.getKey());
             }
         }
@@ -806,14 +1031,14 @@ public class SettingsManager implements ListMenu.SettingsListener {
         if (exposure != null) buildExposureCompensation(cameraId);
 
         if (iso != null) {
-            if (filterUnsupportedOptions(iso, getSupportedIso(cameraId))) {
+            if (filterUnsupportedOptions(iso, getCapabilityList(cameraId, CAP_ISO))) {
                 mFilteredKeys.add(iso.getKey());
             }
         }
 
         if (videoQuality != null) {
             if (filterUnsupportedOptions(videoQuality,
-                    getSupportedVideoSize(cameraId))) {
+                    getCapabilityList(cameraId, CAP_VIDEO_SIZE))) {
                 mFilteredKeys.add(videoQuality.getKey());
             }
         }
@@ -826,7 +1051,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
         }
 
         if (redeyeReduction != null) {
-            if (filterUnsupportedOptions(redeyeReduction, getSupportedRedeyeReduction(cameraId))) {
+            if (filterUnsupportedOptions(redeyeReduction, getCapabilityList(cameraId, CAP_REDEYE_REDUCTION))) {
                 mFilteredKeys.add(redeyeReduction.getKey());
             }
         }
@@ -840,13 +1065,13 @@ public class SettingsManager implements ListMenu.SettingsListener {
 
         if (noiseReduction != null) {
             if (filterUnsupportedOptions(noiseReduction,
-                    getSupportedNoiseReductionModes(cameraId))) {
+                    getCapabilityList(cameraId, CAP_NOISE_REDUCTION))) {
                 mFilteredKeys.add(noiseReduction.getKey());
             }
         }
 
         if (faceDetection != null) {
-            if (!isFaceDetectionSupported(cameraId)) {
+            if (!getCapabilityFlag(cameraId, CAP_FACE_DETECTION)) {
                 removePreference(mPreferenceGroup, KEY_FACE_DETECTION);
             }
         }
@@ -856,14 +1081,14 @@ public class SettingsManager implements ListMenu.SettingsListener {
         filterHFROptions();
         filterVideoEncoderOptions();
 
-        if (!mIsFrontCameraPresent || !isFacingFront(mCameraId)) {
+        if (!mIsFrontCameraPresent || getFacing(mCameraId) != CameraCharacteristics.LENS_FACING_FRONT) {
             removePreference(mPreferenceGroup, KEY_SELFIE_FLASH);
             removePreference(mPreferenceGroup, KEY_SELFIEMIRROR);
         }
 
         if ( zoom != null ) {
             if (filterUnsupportedOptions(zoom,
-                    getSupportedZoomLevel(cameraId))) {
+                    getCapabilityList(cameraId, CAP_ZOOM))) {
                 mFilteredKeys.add(zoom.getKey());
             }
         }
@@ -888,18 +1113,29 @@ public class SettingsManager implements ListMenu.SettingsListener {
     }
 
     private void buildExposureCompensation(int cameraId) {
-        Range<Integer> range = mCharacteristics.get(cameraId).get(CameraCharacteristics
-                .CONTROL_AE_COMPENSATION_RANGE);
-        int max = range.getUpper();
-        int min = range.getLower();
+        // Cached as (min, max, step).
+        List<String> compensation = mCapabilityCache.getList(cameraId,
+                CAP_EXPOSURE_COMPENSATION);
+        if (compensation == null || compensation.size() != 3) {
+            CameraCharacteristics characteristics = getCharacteristics(cameraId);
+            Range<Integer> range = characteristics.get(CameraCharacteristics
+                    .CONTROL_AE_COMPENSATION_RANGE);
+            Rational rational = characteristics.get(CameraCharacteristics
+                    .CONTROL_AE_COMPENSATION_STEP);
+            compensation = new ArrayList<>(3);
+            compensation.add(String.valueOf(range.getLower()));
+            compensation.add(String.valueOf(range.getUpper()));
+            compensation.add(String.valueOf(rational.doubleValue()));
+            mCapabilityCache.putList(cameraId, CAP_EXPOSURE_COMPENSATION, compensation);
+        }
+        int min = Integer.parseInt(compensation.get(0));
+        int max = Integer.parseInt(compensation.get(1));
         if (min == 0 && max == 0) {
             removePreference(mPreferenceGroup, KEY_EXPOSURE);
             return;
         }
         ListPreference pref = mPreferenceGroup.findPreference(KEY_EXPOSURE);
-        Rational rational = mCharacteristics.get(cameraId).get(CameraCharacteristics
-                .CONTROL_AE_COMPENSATION_STEP);
-        double step = rational.doubleValue();
+        double step = Double.parseDouble(compensation.get(2));
         int increment = 1;
         while ((max - min) / increment > 10) {
             increment++;
@@ -941,7 +1177,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
     public long[] getExposureRangeValues(int cameraId) {
         long[] exposureRange = null;
         try {
-            exposureRange =  mCharacteristics.get(cameraId).get(
+            exposureRange =  getCharacteristics(cameraId).get(
                     CaptureModule.EXPOSURE_RANGE);
             if (exposureRange == null) {
                 Log.w(TAG, "get exposure range modes is null.");
@@ -959,7 +1195,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
         Range<Integer> range = null;
         int[] result = new int[2];
         try {
-            range = mCharacteristics.get(cameraId).get(CameraCharacteristics
+            range = getCharacteristics(cameraId).get(CameraCharacteristics
                     .SENSOR_INFO_SENSITIVITY_RANGE);
             if (range == null) {
                 return null;
@@ -979,7 +1215,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
         CharSequence[] fullEntryValues = new CharSequence[numOfCameras + 1];
         CharSequence[] fullEntries = new CharSequence[numOfCameras + 1];
         for(int i = 0; i < numOfCameras ; i++) {
-            int facing = mCharacteristics.get(i).get(CameraCharacteristics.LENS_FACING);
+            int facing = getFacing(i);
             String facingString =
                     facing == CameraCharacteristics.LENS_FACING_FRONT? "front" : "back";
             fullEntries[i] = "camera " + i +" facing:"+facingString;
@@ -1040,8 +1276,8 @@ public class SettingsManager implements ListMenu.SettingsListener {
                 setValue(KEY_PICTURE_SIZE, smallerSize.toString());
             }
         } else {
-            if (filterUnsupportedOptions(picturePref, getSupportedPictureSize(
-                    getCurrentCameraId()))) {
+            if (filterUnsupportedOptions(picturePref, getCapabilityList(
+                    getCurrentCameraId(), CAP_PICTURE_SIZE))) {
                 mFilteredKeys.add(picturePref.getKey());
             }
         }
@@ -1050,12 +1286,12 @@ public class SettingsManager implements ListMenu.SettingsListener {
     private void filterHeifSizeOptions() {
         ListPreference picturePref = mPreferenceGroup.findPreference(KEY_PICTURE_SIZE);
         ListPreference videoQualityPref = mPreferenceGroup.findPreference(KEY_VIDEO_QUALITY);
-        if (filterUnsupportedOptions(picturePref, getSupportedPictureSize(
-                getCurrentCameraId()))) {
+        if (filterUnsupportedOptions(picturePref, getCapabilityList(
+                getCurrentCameraId(), CAP_PICTURE_SIZE))) {
             mFilteredKeys.add(picturePref.getKey());
         }
-        if (filterUnsupportedOptions(videoQualityPref, getSupportedVideoSize(
-                getCurrentCameraId()))) {
+        if (filterUnsupportedOptions(videoQualityPref, getCapabilityList(
+                getCurrentCameraId(), CAP_VIDEO_SIZE))) {
             mFilteredKeys.add(videoQualityPref.getKey());
         }
     }
@@ -1076,7 +1312,7 @@ private void filterHFROptions() {
     public int[] getWBColorTemperatureRangeValues(int cameraId) {
         int[] wbRange = null;
         try {
-            wbRange =  mCharacteristics.get(cameraId).get(CaptureModule.WB_COLOR_TEMPERATURE_RANGE);
+            wbRange =  getCharacteristics(cameraId).get(CaptureModule.WB_COLOR_TEMPERATURE_RANGE);
             if (wbRange == null) {
                 Log.w(TAG, "Supported exposure range get null.");
                 return null;
@@ -1093,7 +1329,7 @@ private void filterHFROptions() {
     public float[] getWBGainsRangeValues(int cameraId) {
         float[] rgbRange = null;
         try {
-            rgbRange =  mCharacteristics.get(cameraId).get(CaptureModule.WB_RGB_GAINS_RANGE);
+            rgbRange =  getCharacteristics(cameraId).get(CaptureModule.WB_RGB_GAINS_RANGE);
             if (rgbRange == null) {
                 Log.w(TAG, "Supported gains range get null.");
                 return null;
@@ -1108,7 +1344,7 @@ private void filterHFROptions() {
     }
 
     private List<String> getSupportedChromaFlashPictureSize() {
-        StreamConfigurationMap map = mCharacteristics.get(getCurrentCameraId()).get(
+        StreamConfigurationMap map = getCharacteristics(getCurrentCameraId()).get(
                 CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         Size[] sizes = map.getOutputSizes(ImageFormat.JPEG);
         List<String> res = new ArrayList<>();
@@ -1133,6 +1369,23 @@ private void filterHFROptions() {
     }
 
     private List<String> getSupportedHighFrameRate() {
+        ListPreference videoQualityPref = mPreferenceGroup.findPreference(KEY_VIDEO_QUALITY);
+        ListPreference videoEncoderPref = mPreferenceGroup.findPreference(KEY_VIDEO_ENCODER);
+        if (videoQualityPref == null || videoEncoderPref == null
+                || videoQualityPref.getValue() == null) {
+            return deriveSupportedHighFrameRate();
+        }
+        String cacheKey = CAP_HFR + ":" + videoQualityPref.getValue()
+                + ":" + videoEncoderPref.getValue();
+        if (mCapabilityCache.contains(mCameraId, cacheKey)) {
+            return mCapabilityCache.getList(mCameraId, cacheKey);
+        }
+        List<String> supported = deriveSupportedHighFrameRate();
+        mCapabilityCache.putList(mCameraId, cacheKey, supported);
+        return supported;
+    }
+
+    private List<String> deriveSupportedHighFrameRate() {
         ArrayList<String> supported = new ArrayList<String>();
         supported.add("off");
         ListPreference videoQuality = mPreferenceGroup.findPreference(KEY_VIDEO_QUALITY);
@@ -1140,25 +1393,13 @@ private void filterHFROptions() {
         if (videoQuality == null || videoEncoder == null) return supported;
         String videoSizeStr = videoQuality.getValue();
         int videoEncoderNum = SettingTranslation.getVideoEncoder(videoEncoder.getValue());
-        VideoCapabilities videoCapabilities = null;
-        boolean findVideoEncoder = false;
+        EncoderCapabilityIndex.VideoCaps videoCapabilities = null;
         if (videoSizeStr != null) {
             Size videoSize = parseSize(videoSizeStr);
-            MediaCodecList allCodecs = new MediaCodecList(MediaCodecList.ALL_CODECS);
-            for (MediaCodecInfo info : allCodecs.getCodecInfos()) {
-                if (!info.isEncoder() || info.getName().contains("google")) continue;
-                for (String type : info.getSupportedTypes()) {
-                    if ((videoEncoderNum == MediaRecorder.VideoEncoder.MPEG_4_SP && type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_MPEG4))
-                            || (videoEncoderNum == MediaRecorder.VideoEncoder.H263 && type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_H263))
-                            || (videoEncoderNum == MediaRecorder.VideoEncoder.H264 && type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_AVC))
-                            || (videoEncoderNum == MediaRecorder.VideoEncoder.HEVC && type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_HEVC))) {
-                        CodecCapabilities codecCapabilities = info.getCapabilitiesForType(type);
-                        videoCapabilities = codecCapabilities.getVideoCapabilities();
-                        findVideoEncoder = true;
-                        break;
-                    }
-                }
-                if (findVideoEncoder) break;
+            String mime = SettingTranslation.getVideoEncoderType(videoEncoderNum);
+            if (mime != null) {
+                videoCapabilities = EncoderCapabilityIndex.get(mContext)
+                        .getHardwareCapabilities(mime);
             }
 
             try {
@@ -1218,12 +1459,12 @@ private void filterHFROptions() {
     }
 
     public float getMaxZoom(int id) {
-        return mCharacteristics.get(id).get(CameraCharacteristics
+        return getCharacteristics(id).get(CameraCharacteristics
                 .SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
     }
 
     public Rect getSensorActiveArraySize(int id) {
-        return mCharacteristics.get(id).get(CameraCharacteristics
+        return getCharacteristics(id).get(CameraCharacteristics
                 .SENSOR_INFO_ACTIVE_ARRAY_SIZE);
     }
 
@@ -1236,7 +1477,7 @@ private void filterHFROptions() {
     }
 
     public boolean isZoomSupported(int id) {
-        return mCharacteristics.get(id).get(CameraCharacteristics
+        return getCharacteristics(id).get(CameraCharacteristics
                 .SCALER_AVAILABLE_MAX_DIGITAL_ZOOM) > 1f;
     }
 
@@ -1267,7 +1508,7 @@ private void filterHFROptions() {
     public boolean isZZHDRSupported() {
         int[] modes = null;
         try {
-            modes = mCharacteristics.get(getCurrentCameraId())
+            modes = getCharacteristics(getCurrentCameraId())
                     .get(CaptureModule.support_video_hdr_modes);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, "cannot find vendor tag: " +
@@ -1277,25 +1518,37 @@ private void filterHFROptions() {
     }
 
     public boolean isAutoExposureRegionSupported(int id) {
-        Integer maxAERegions = mCharacteristics.get(id).get(
+        Integer maxAERegions = getCharacteristics(id).get(
                 CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
         return maxAERegions != null && maxAERegions > 0;
     }
 
     public boolean isAutoFocusRegionSupported(int id) {
-        Integer maxAfRegions = mCharacteristics.get(id).get(
+        Integer maxAfRegions = getCharacteristics(id).get(
                 CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
         return maxAfRegions != null && maxAfRegions > 0;
     }
 
+    public int getMaxAutoFocusRegions(int id) {
+        Integer maxAfRegions = getCharacteristics(id).get(
+                CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+        return maxAfRegions == null ? 0 : maxAfRegions;
+    }
+
+    public int getMaxAutoExposureRegions(int id) {
+        Integer maxAeRegions = getCharacteristics(id).get(
+                CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+        return maxAeRegions == null ? 0 : maxAeRegions;
+    }
+
     public boolean isHdrScene(int id) {
-        Integer hdrScene = mCharacteristics.get(id).get(
+        Integer hdrScene = getCharacteristics(id).get(
                 CaptureModule.isHdrScene);
         return hdrScene != null && hdrScene == 1;
     }
 
     public boolean isFixedFocus(int id) {
-        Float focusDistance = mCharacteristics.get(id).get(CameraCharacteristics
+        Float focusDistance = getCharacteristics(id).get(CameraCharacteristics
                 .LENS_INFO_MINIMUM_FOCUS_DISTANCE);
         if (focusDistance == null || focusDistance == 0) {
             return true;
@@ -1305,7 +1558,7 @@ private void filterHFROptions() {
     }
 
     public boolean isFaceDetectionSupported(int id) {
-        int[] faceDetection = mCharacteristics.get(id).get
+        int[] faceDetection = getCharacteristics(id).get
                 (CameraCharacteristics.STATISTICS_INFO_AVAILABLE_FACE_DETECT_MODES);
         if (faceDetection != null) {
             for (int value: faceDetection) {
@@ -1319,7 +1572,7 @@ private void filterHFROptions() {
     public boolean isBsgcAvailable(int id) {
         boolean ret = false;
         try {
-            byte bsgc_available = mCharacteristics.get(id).get(CaptureModule.bsgcAvailable);
+            byte bsgc_available = getCharacteristics(id).get(CaptureModule.bsgcAvailable);
             ret = bsgc_available == 1;
         } catch (IllegalArgumentException | NullPointerException e) {
             e.printStackTrace();
@@ -1330,7 +1583,7 @@ private void filterHFROptions() {
     public boolean isLogicalCamera(int id) {
         boolean isLogicalCamera = false;
         try {
-            Byte logicalMode = mCharacteristics.get(id).get(CaptureModule.logicalMode);
+            Byte logicalMode = getCharacteristics(id).get(CaptureModule.logicalMode);
             isLogicalCamera = logicalMode != null && logicalMode == (byte) 1;
         } catch (IllegalArgumentException | NullPointerException e) {
             e.printStackTrace();
@@ -1339,8 +1592,7 @@ private void filterHFROptions() {
     }
 
     public boolean isFacingFront(int id) {
-        int facing = mCharacteristics.get(id).get(CameraCharacteristics.LENS_FACING);
-        return facing == CameraCharacteristics.LENS_FACING_FRONT;
+        return getFacing(id) == CameraCharacteristics.LENS_FACING_FRONT;
     }
 
     public boolean isFlashSupported(int id) {
@@ -1350,12 +1602,12 @@ private void filterHFROptions() {
             hdrOn = true;
         }
         return !hdrOn &&
-                mCharacteristics.get(id).get(CameraCharacteristics.FLASH_INFO_AVAILABLE) &&
+                getCharacteristics(id).get(CameraCharacteristics.FLASH_INFO_AVAILABLE) &&
                 mValuesMap.get(KEY_FLASH_MODE) != null;
     }
 
     private List<String> getSupportedPictureSize(int cameraId) {
-        StreamConfigurationMap map = mCharacteristics.get(cameraId).get(
+        StreamConfigurationMap map = getCharacteristics(cameraId).get(
                 CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         Size[] sizes = map.getOutputSizes(ImageFormat.JPEG);
         List<String> res = new ArrayList<>();
@@ -1385,18 +1637,18 @@ private void filterHFROptions() {
     }
 
     public Size[] getSupportedThumbnailSizes(int cameraId) {
-        return mCharacteristics.get(cameraId).get(
+        return getCharacteristics(cameraId).get(
                 CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES);
     }
 
     public Size[] getSupportedOutputSize(int cameraId, int format) {
-        StreamConfigurationMap map = mCharacteristics.get(cameraId).get(
+        StreamConfigurationMap map = getCharacteristics(cameraId).get(
                 CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         return map.getOutputSizes(format);
     }
 
     public Size[] getSupportedOutputSize(int cameraId, Class cl) {
-        StreamConfigurationMap map = mCharacteristics.get(cameraId).get(
+        StreamConfigurationMap map = getCharacteristics(cameraId).get(
                 CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         return map.getOutputSizes(cl);
     }
@@ -1406,7 +1658,7 @@ private void filterHFROptions() {
         if (cameraId == 0 || cameraId == 1) {
             id = cameraId;
         }
-        StreamConfigurationMap map = mCharacteristics.get(cameraId).get(
+        StreamConfigurationMap map = getCharacteristics(cameraId).get(
                 CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         Size[] sizes = map.getOutputSizes(MediaRecorder.class);
         boolean isHeifEnabled = getSavePictureFormat() == HEIF_FORMAT;
@@ -1431,13 +1683,13 @@ private void filterHFROptions() {
     }
 
     public Size[] getSupportedHighSpeedVideoSize(int cameraId) {
-        StreamConfigurationMap map = mCharacteristics.get(cameraId).get(
+        StreamConfigurationMap map = getCharacteristics(cameraId).get(
                 CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         return map.getHighSpeedVideoSizes();
     }
 
     public Range[] getSupportedHighSpeedVideoFPSRange(int cameraId, Size videoSize) {
-        StreamConfigurationMap map = mCharacteristics.get(cameraId).get(
+        StreamConfigurationMap map = getCharacteristics(cameraId).get(
                 CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         return map.getHighSpeedVideoFpsRangesFor(videoSize);
     }
@@ -1463,7 +1715,7 @@ private void filterHFROptions() {
     }
 
     private List<String> getSupportedRedeyeReduction(int cameraId) {
-        int[] flashModes = mCharacteristics.get(cameraId).get(CameraCharacteristics
+        int[] flashModes = getCharacteristics(cameraId).get(CameraCharacteristics
                 .CONTROL_AE_AVAILABLE_MODES);
         List<String> modes = new ArrayList<>();
         for (int i = 0; i < flashModes.length; i++) {
@@ -1477,12 +1729,12 @@ private void filterHFROptions() {
     }
 
     public float getMinimumFocusDistance(int cameraId) {
-        return mCharacteristics.get(cameraId)
+        return getCharacteristics(cameraId)
                 .get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
     }
 
     private List<String> getSupportedWhiteBalanceModes(int cameraId) {
-        int[] whiteBalanceModes = mCharacteristics.get(cameraId).get(CameraCharacteristics
+        int[] whiteBalanceModes = getCharacteristics(cameraId).get(CameraCharacteristics
                 .CONTROL_AWB_AVAILABLE_MODES);
         List<String> modes = new ArrayList<>();
         for (int mode : whiteBalanceModes) {
@@ -1492,7 +1744,7 @@ private void filterHFROptions() {
     }
 
     private List<String> getSupportedSceneModes(int cameraId) {
-        int[] sceneModes = mCharacteristics.get(cameraId).get(CameraCharacteristics
+        int[] sceneModes = getCharacteristics(cameraId).get(CameraCharacteristics
                 .CONTROL_AVAILABLE_SCENE_MODES);
         List<String> modes = new ArrayList<>();
         modes.add("0"); // need special case handle for auto scene mode
@@ -1519,7 +1771,7 @@ private void filterHFROptions() {
     }
 
     private List<String> getSupportedFlashModes(int cameraId) {
-        int[] flashModes = mCharacteristics.get(cameraId).get(CameraCharacteristics
+        int[] flashModes = getCharacteristics(cameraId).get(CameraCharacteristics
                 .CONTROL_AE_AVAILABLE_MODES);
         List<String> modes = new ArrayList<>();
         for (int mode : flashModes) {
@@ -1529,11 +1781,11 @@ private void filterHFROptions() {
     }
 
     private boolean isFlashAvailable(int cameraId) {
-        return mCharacteristics.get(cameraId).get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        return getCharacteristics(cameraId).get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
     }
 
     public List<String> getSupportedColorEffects(int cameraId) {
-        int[] flashModes = mCharacteristics.get(cameraId).get(CameraCharacteristics
+        int[] flashModes = getCharacteristics(cameraId).get(CameraCharacteristics
                 .CONTROL_AVAILABLE_EFFECTS);
         List<String> modes = new ArrayList<>();
         for (int mode : flashModes) {
@@ -1544,12 +1796,12 @@ private void filterHFROptions() {
 
     private List<String> getSupportedIso(int cameraId) {
         int maxIso = 0;
-        Range<Integer> range = mCharacteristics.get(cameraId).get(CameraCharacteristics
+        Range<Integer> range = getCharacteristics(cameraId).get(CameraCharacteristics
                 .SENSOR_INFO_SENSITIVITY_RANGE);
         if (range != null) {
             maxIso = range.getUpper();
         }
-        int[] isoAvailable = mCharacteristics.get(cameraId).get(
+        int[] isoAvailable = getCharacteristics(cameraId).get(
                 CaptureModule.ISO_AVAILABLE_MODES);
         List<String> supportedIso = new ArrayList<>();
         supportedIso.add("auto");
@@ -1575,7 +1827,8 @@ private void filterHFROptions() {
         return supportedIso;
     }
 
-    private boolean isCurrentVideoResolutionSupportedByEncoder(MediaCodecInfo info) {
+    private boolean isCurrentVideoResolutionSupportedByEncoder(
+            EncoderCapabilityIndex.Encoder info) {
         boolean supported = false;
         ListPreference videoQuality = mPreferenceGroup.findPreference(KEY_VIDEO_QUALITY);
         if (videoQuality == null) return supported;
@@ -1583,16 +1836,16 @@ private void filterHFROptions() {
         if (videoSizeStr != null) {
             Size videoSize = parseSize(videoSizeStr);
             String[] supportedTypes = info.getSupportedTypes();
-            MediaCodecInfo.VideoCapabilities capabilities = null;
+            EncoderCapabilityIndex.VideoCaps capabilities = null;
             for (String type : supportedTypes) {
                 if (type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_MPEG4)
                         || type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_H263)
                         || type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_AVC)
                         || type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
-                    capabilities = info.getCapabilitiesForType(type).getVideoCapabilities();
+                    capabilities = info.getCapabilities(type);
                     if (capabilities == null ||
-                            !capabilities.getSupportedWidths().contains(videoSize.getWidth()) ||
-                            !capabilities.getSupportedWidths().contains(videoSize.getHeight())) {
+                            !capabilities.isWidthSupported(videoSize.getWidth()) ||
+                            !capabilities.isWidthSupported(videoSize.getHeight())) {
                         return false;
                     } else {
                         supported = true;
@@ -1607,10 +1860,9 @@ private void filterHFROptions() {
         ArrayList<String> supported = new ArrayList<String>();
         supported.add(SettingTranslation.getVideoEncoder(MediaRecorder.VideoEncoder.DEFAULT));
         String str = null;
-        MediaCodecList list = new MediaCodecList(MediaCodecList.ALL_CODECS);
-        MediaCodecInfo[] codecInfos = list.getCodecInfos();
-        for (MediaCodecInfo info: codecInfos) {
-            if (!info.isEncoder() || info.getName().contains("google")) continue;
+        for (EncoderCapabilityIndex.Encoder info
+                : EncoderCapabilityIndex.get(mContext).getEncoders()) {
+            if (info.software) continue;
             if (info.getSupportedTypes().length > 0 && info.getSupportedTypes()[0] != null){
                 for (String t : info.getSupportedTypes()){
                     Log.d(TAG,"type="+t);
@@ -1635,16 +1887,13 @@ private void filterHFROptions() {
 
         if (videoEncoder != null) {
             String str = null;
-            MediaCodecList list = new MediaCodecList(MediaCodecList.ALL_CODECS);
-            MediaCodecInfo[] codecInfos = list.getCodecInfos();
-            for (MediaCodecInfo info: codecInfos) {
-                if ( info.isEncoder() ) {
-                    int type = SettingTranslation.getVideoEncoderType(info.getSupportedTypes()[0]);
-                    if (type != -1){
-                        str = SettingTranslation.getVideoEncoder(type);
-                        if (isCurrentVideoResolutionSupportedByEncoder(info)) {
-                            supported.add(str);
-                        }
+            for (EncoderCapabilityIndex.Encoder info
+                    : EncoderCapabilityIndex.get(mContext).getEncoders()) {
+                int type = SettingTranslation.getVideoEncoderType(info.getSupportedTypes()[0]);
+                if (type != -1){
+                    str = SettingTranslation.getVideoEncoder(type);
+                    if (isCurrentVideoResolutionSupportedByEncoder(info)) {
+                        supported.add(str);
                     }
                 }
             }
@@ -1663,7 +1912,7 @@ private void filterHFROptions() {
     }
 
     public List<String> getSupportedNoiseReductionModes(int cameraId) {
-        int[] noiseReduction = mCharacteristics.get(cameraId).get(CameraCharacteristics
+        int[] noiseReduction = getCharacteristics(cameraId).get(CameraCharacteristics
                 .NOISE_REDUCTION_AVAILABLE_NOISE_REDUCTION_MODES);
         List<String> modes = new ArrayList<>();
         if (noiseReduction != null) {
@@ -1676,7 +1925,7 @@ private void filterHFROptions() {
     }
 
     private  List<String> getSupportedZoomLevel(int cameraId) {
-        float maxZoom = mCharacteristics.get(cameraId).get(CameraCharacteristics
+        float maxZoom = getCharacteristics(cameraId).get(CameraCharacteristics
                 .SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
         ArrayList<String> supported = new ArrayList<String>();
         for (int zoomLevel = 0; zoomLevel <= maxZoom; zoomLevel++) {
@@ -1708,7 +1957,7 @@ private void filterHFROptions() {
         List<String> modes = new ArrayList<>();
 
         try {
-            int[] instantAecAvailableModes = mCharacteristics.get(cameraId).get(
+            int[] instantAecAvailableModes = getCharacteristics(cameraId).get(
                     CaptureModule.InstantAecAvailableModes);
             if (instantAecAvailableModes == null) {
                 return null;
@@ -1737,7 +1986,7 @@ private void filterHFROptions() {
     public boolean getIsSupportedQcfa (int cameraId) {
         byte isSupportQcfa = 0;
         try {
-            isSupportQcfa = mCharacteristics.get(cameraId).get(
+            isSupportQcfa = getCharacteristics(cameraId).get(
                     CaptureModule.IS_SUPPORT_QCFA_SENSOR);
         }catch(Exception e) {
         }
@@ -1745,7 +1994,7 @@ private void filterHFROptions() {
     }
 
     public String getSupportedQcfaDimension(int cameraId) {
-        int[] qcfaDimension = mCharacteristics.get(cameraId).get(
+        int[] qcfaDimension = getCharacteristics(cameraId).get(
                 CaptureModule.QCFA_SUPPORT_DIMENSION);
         if (qcfaDimension == null) {
             return null;
@@ -1771,7 +2020,7 @@ private void filterHFROptions() {
     }
 
     public List<String> getSupportedAntiBandingLevelAvailableModes(int cameraId) {
-        int[] antiBandingLevelAvailableModes = mCharacteristics.get(cameraId).get(
+        int[] antiBandingLevelAvailableModes = getCharacteristics(cameraId).get(
                 CameraCharacteristics.CONTROL_AE_AVAILABLE_ANTIBANDING_MODES);
         List<String> modes = new ArrayList<>();
         for (int i : antiBandingLevelAvailableModes) {
@@ -1881,13 +2130,13 @@ private void filterHFROptions() {
             list.add(KEY_VIDEO_HIGH_FRAME_RATE);
             list.add(KEY_VIDEO_ENCODER);
         } else {
-            String value = getValue(key);
-            JSONObject dependencies = getDependencyList(key, value);
-            if (dependencies != null) {
-                list = new ArrayList<>();
-                Iterator<String> it = dependencies.keys();
-                while (it.hasNext()) {
-                    list.add(it.next());
+            int base = mDependency.indexOf(key);
+            int rule = mDependency.getRule(base, getValue(key));
+            if (rule >= 0) {
+                int count = mDependency.getTargetCount(base, rule);
+                list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(mDependency.getKey(mDependency.getTarget(base, rule, i)));
                 }
             }
         }
@@ -1913,36 +2162,8 @@ private void filterHFROptions() {
         }
     }
 
-    private JSONObject getDependencyMapForKey(String key) {
-        if (mDependency == null) return null;
-        try {
-            return mDependency.getJSONObject(key);
-        } catch (JSONException e) {
-            Log.w(TAG, "getDependencyMapForKey JSONException No value for:" + key);
-            return null;
-        }
-    }
-
-    private JSONObject getDependencyList(String key, String value) {
-        JSONObject dependencyMap = getDependencyMapForKey(key);
-        if (dependencyMap == null) return null;
-        if (!dependencyMap.has(value)) value = "default";
-        if (!dependencyMap.has(value)) return null;
-        value = getDependencyKey(dependencyMap, value);
-        try {
-            return dependencyMap.getJSONObject(value);
-        } catch (JSONException e) {
-            Log.w(TAG, "getDependencyList JSONException No value for:" + key);
-            return null;
-        }
-    }
-
-    private String getDependencyKey(JSONObject dependencyMap, String value) {
-        if (!dependencyMap.has(value)) value = "default";
-        return value;
-    }
-
     public void restoreSettings() {
+        invalidatePreferenceGroupCache();
         clearPerCameraPreferences();
         init();
     }
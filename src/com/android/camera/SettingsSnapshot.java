@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+/**
+ * Immutable, pre-parsed view of the settings CaptureModule applies to every
+ * request builder. SettingsManager builds a new snapshot after values change,
+ * so building a request doesn't repeat string lookups and parsing, and two
+ * snapshots can be compared field by field to find what changed.
+ *
+ * Manual ISO, exposure time and white balance are not part of the snapshot.
+ * The manual controls write them straight to SharedPreferences without going
+ * through SettingsManager, so nothing would invalidate a cached copy.
+ */
+public class SettingsSnapshot {
+    /* Value of an int setting that is absent or not a number */
+    public static final int UNSET = Integer.MIN_VALUE;
+
+    final int whiteBalance;
+    final int exposure;
+    final int colorEffect;
+    final int sceneMode;
+    final int instantAec;
+    final int saturationLevel;
+    final int antiBandingLevel;
+    final int sharpnessControl;
+    final int exposureMetering;
+    final int afMode;
+    final boolean faceDetection;
+    final boolean denoiseOff;
+    final boolean histogram;
+    final boolean autoHdr;
+    final String iso;
+    // Priority index of the ISO value, or UNSET.
+    final int isoIndex;
+
+    SettingsSnapshot(SettingsManager settings) {
+        whiteBalance = parse(settings.getValue(SettingsManager.KEY_WHITE_BALANCE));
+        exposure = parse(settings.getValue(SettingsManager.KEY_EXPOSURE));
+        colorEffect = parse(settings.getValue(SettingsManager.KEY_COLOR_EFFECT));
+        sceneMode = parse(settings.getValue(SettingsManager.KEY_SCENE_MODE));
+        instantAec = parse(settings.getValue(SettingsManager.KEY_INSTANT_AEC));
+        saturationLevel = parse(settings.getValue(SettingsManager.KEY_SATURATION_LEVEL));
+        antiBandingLevel = parse(settings.getValue(SettingsManager.KEY_ANTI_BANDING_LEVEL));
+        sharpnessControl = parse(settings.getValue(
+                SettingsManager.KEY_SHARPNESS_CONTROL_MODE));
+        exposureMetering = parse(settings.getValue(
+                SettingsManager.KEY_EXPOSURE_METERING_MODE));
+        afMode = parse(settings.getValue(SettingsManager.KEY_AF_MODE));
+        faceDetection = "on".equals(settings.getValue(SettingsManager.KEY_FACE_DETECTION));
+        denoiseOff = "denoise-off".equals(settings.getValue(SettingsManager.KEY_DENOISE));
+        histogram = "enable".equals(settings.getValue(SettingsManager.KEY_HISTOGRAM));
+        autoHdr = "enable".equals(settings.getValue(SettingsManager.KEY_AUTO_HDR));
+        iso = settings.getValue(SettingsManager.KEY_ISO);
+        Integer index = iso == null ? null : SettingsManager.KEY_ISO_INDEX.get(iso);
+        isoIndex = index == null ? UNSET : index;
+    }
+
+    public boolean isPromode() {
+        return sceneMode == SettingsManager.SCENE_MODE_PROMODE_INT;
+    }
+
+    public boolean isTrackingFocus() {
+        return sceneMode == SettingsManager.SCENE_MODE_TRACKINGFOCUS_INT;
+    }
+
+    private static int parse(String value) {
+        if (value == null) return UNSET;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return UNSET;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Orders the work done while the camera starts up. Work on the critical path
+ * (opening the camera and getting the first preview frame) runs inline, while
+ * deferrable work is queued and only released once the first preview frame is
+ * shown, or after a timeout if no frame ever arrives. The time each startup
+ * phase was reached is recorded relative to the start of onCreate.
+ */
+public class StartupScheduler {
+    private static final String TAG = "CAM_StartupScheduler";
+    // Release deferred work even if the first frame never shows up.
+    private static final long MAX_DEFER_MS = 2000;
+
+    public static final String PHASE_CREATE = "create";
+    public static final String PHASE_LAYOUT_INFLATED = "layoutInflated";
+    public static final String PHASE_MODULE_SET = "moduleSet";
+    public static final String PHASE_CREATE_DONE = "createDone";
+    public static final String PHASE_FIRST_PREVIEW_FRAME = "firstPreviewFrame";
+    public static final String PHASE_DEFERRED_DONE = "deferredDone";
+
+    private final long mStartTime;
+    private final LinkedHashMap<String, Long> mTimeline = new LinkedHashMap<String, Long>();
+    private final ArrayList<Runnable> mDeferredMain = new ArrayList<Runnable>();
+    private final ArrayList<Runnable> mDeferredBackground = new ArrayList<Runnable>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mBackgroundThread;
+    private Handler mBackgroundHandler;
+    private boolean mReleased;
+    private volatile boolean mDestroyed;
+    private int mPendingTasks;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "No preview frame after " + MAX_DEFER_MS + "ms, releasing deferred work");
+            releaseDeferred();
+        }
+    };
+
+    public StartupScheduler() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mark(PHASE_CREATE);
+    }
+
+    public synchronized void mark(String phase) {
+        if (!mTimeline.containsKey(phase)) {
+            mTimeline.put(phase, SystemClock.elapsedRealtime() - mStartTime);
+        }
+    }
+
+    /* Per-phase offsets in ms from the start of onCreate, in the order reached */
+    public synchronized Map<String, Long> getTimeline() {
+        return new LinkedHashMap<String, Long>(mTimeline);
+    }
+
+    /**
+     * Queues work that is not needed for the first preview frame.
+     *
+     * @param task the work to run.
+     * @param background true if the task doesn't touch views and may run off the
+     *                   main thread.
+     */
+    public void defer(Runnable task, boolean background) {
+        if (mDestroyed) return;
+        if (mReleased) {
+            run(task, background);
+            return;
+        }
+        if (background) {
+            mDeferredBackground.add(task);
+        } else {
+            mDeferredMain.add(task);
+        }
+        if (mDeferredMain.size() + mDeferredBackground.size() == 1) {
+            mMainHandler.postDelayed(mTimeoutRunnable, MAX_DEFER_MS);
+        }
+    }
+
+    /* Called on the main thread by the module once preview is on screen */
+    public void onFirstPreviewFrame() {
+        if (mReleased) return;
+        mark(PHASE_FIRST_PREVIEW_FRAME);
+        releaseDeferred();
+    }
+
+    private void releaseDeferred() {
+        if (mReleased) return;
+        mReleased = true;
+        mMainHandler.removeCallbacks(mTimeoutRunnable);
+        mPendingTasks = mDeferredMain.size() + mDeferredBackground.size();
+        if (mPendingTasks == 0) {
+            onDeferredTaskDone();
+        }
+        for (Runnable task : mDeferredBackground) {
+            run(task, true);
+        }
+        for (Runnable task : mDeferredMain) {
+            run(task, false);
+        }
+        mDeferredBackground.clear();
+        mDeferredMain.clear();
+    }
+
+    private void run(final Runnable task, boolean background) {
+        if (background) {
+            if (mBackgroundThread == null) {
+                mBackgroundThread = new HandlerThread("CameraStartupWorker");
+                mBackgroundThread.start();
+                mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+            }
+            mBackgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mDestroyed) return;
+                    task.run();
+                    onDeferredTaskDone();
+                }
+            });
+        } else {
+            // Let the main thread draw the first frames before doing UI work.
+            Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                @Override
+                public boolean queueIdle() {
+                    if (mDestroyed) return false;
+                    task.run();
+                    onDeferredTaskDone();
+                    return false;
+                }
+            });
+        }
+    }
+
+    private synchronized void onDeferredTaskDone() {
+        if (--mPendingTasks > 0) return;
+        mark(PHASE_DEFERRED_DONE);
+        Log.v(TAG, "startup timeline " + mTimeline);
+    }
+
+    /* Drops work that has not started yet, e.g. when the activity is destroyed */
+    public void release() {
+        mMainHandler.removeCallbacks(mTimeoutRunnable);
+        mDestroyed = true;
+        mReleased = true;
+        mDeferredMain.clear();
+        mDeferredBackground.clear();
+        if (mBackgroundThread != null) {
+            mBackgroundThread.quitSafely();
+            mBackgroundThread = null;
+            mBackgroundHandler = null;
+        }
+    }
+}
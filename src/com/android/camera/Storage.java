@@ -18,21 +18,30 @@ package com.android.camera;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.location.Location;
+import android.media.Image;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
 import android.util.Log;
 
 import com.android.camera.data.LocalData;
+import com.android.camera.exif.DngWriter;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.util.ApiHelper;
 import androidx.heifwriter.HeifWriter;
@@ -119,7 +128,15 @@ public class Storage {
     public static Uri addImage(ContentResolver resolver, String title, long date,
             Location location, int orientation, ExifInterface exif, byte[] jpeg, int width,
             int height, String mimeType) {
+        return insertImage(resolver, writeImage(title, date, location, orientation, exif,
+                jpeg, width, height, mimeType));
+    }
 
+    // Save the image with a given mimeType and return its MediaStore row without
+    // inserting it, so that several rows can go to insertImages() together.
+    public static ContentValues writeImage(String title, long date, Location location,
+            int orientation, ExifInterface exif, byte[] jpeg, int width, int height,
+            String mimeType) {
         String path = generateFilepath(title, mimeType);
         int size = writeFile(path, jpeg, exif, mimeType);
         // Try to get the real image size after add exif.
@@ -127,8 +144,9 @@ public class Storage {
         if (f.exists() && f.isFile()) {
             size = (int) f.length();
         }
-        return addImage(resolver, title, date, location, orientation, exif,
-                size, path, width, height, mimeType);
+        StorageSpaceTracker.onImageWritten(size);
+        return getContentValuesForData(title, date, location, orientation, exif, size, path,
+                width, height, mimeType);
     }
 
     // Get a ContentValues object for the given photo data
@@ -212,6 +230,38 @@ public class Storage {
         if (f.exists() && f.isFile()) {
             size = (int) f.length();
         }
+        StorageSpaceTracker.onFileWritten(size);
+        return size;
+    }
+
+    // Streams a RAW10 or RAW_SENSOR image to a DNG file, returns the file size.
+    public static long addDngImage(String title, Image image, DngWriter writer) {
+        Image.Plane plane;
+        try {
+            plane = image.getPlanes()[0];
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Failed to write dng, image already closed", e);
+            return 0;
+        }
+        return addDngImage(title, plane.getBuffer(), image.getWidth(), image.getHeight(),
+                plane.getRowStride(), image.getFormat(), writer);
+    }
+
+    // Same as above, for a RAW plane copied out of its Image.
+    public static long addDngImage(String title, ByteBuffer data, int width, int height,
+                                   int rowStride, int format, DngWriter writer) {
+        String path = generateFilepath(title, "dng");
+        new File(RAW_DIRECTORY).mkdirs();
+        long size = 0;
+        try {
+            size = writer.write(data, width, height, rowStride, format, path);
+        } catch (IOException | RuntimeException e) {
+            // A closed image or a short buffer must not take down the save thread.
+            Log.e(TAG, "Failed to write dng", e);
+            new File(path).delete();
+            size = 0;
+        }
+        StorageSpaceTracker.onFileWritten(size);
         return size;
     }
 
@@ -223,6 +273,7 @@ public class Storage {
         if (f.exists() && f.isFile()) {
             size = (int) f.length();
         }
+        StorageSpaceTracker.onImageWritten(size);
         return addImage(resolver, title, date, location, orientation,
                 size, path, width, height, mimeType);
     }
@@ -285,6 +336,8 @@ public class Storage {
             } else {
                 return DIRECTORY + '/' + title + suffix;
             }
+        } else if (pictureFormat.equalsIgnoreCase("dng")) {
+            return RAW_DIRECTORY + '/' + title + ".dng";
         } else {
             return RAW_DIRECTORY + '/' + title + ".raw";
         }
@@ -365,6 +418,35 @@ public class Storage {
         }
     }
 
+    // Insert several images into the MediaStore in one provider transaction.
+    // The returned uris are in the order of values; failed rows are null.
+    public static Uri[] insertImages(ContentResolver resolver, List<ContentValues> values) {
+        Uri[] uris = new Uri[values.size()];
+        if (values.size() == 1) {
+            uris[0] = insertImage(resolver, values.get(0));
+            return uris;
+        }
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(values.size());
+        for (ContentValues v : values) {
+            ops.add(ContentProviderOperation.newInsert(Images.Media.EXTERNAL_CONTENT_URI)
+                    .withValues(v).build());
+        }
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(MediaStore.AUTHORITY, ops);
+            for (int i = 0; i < uris.length && i < results.length; i++) {
+                uris[i] = results[i].uri;
+            }
+        } catch (Throwable th) {
+            // One bad row fails the whole batch, retry the rows one by one.
+            Log.e(TAG, "Failed to write MediaStore batch" + th);
+            for (int i = 0; i < uris.length; i++) {
+                uris[i] = insertImage(resolver, values.get(i));
+            }
+        }
+        return uris;
+    }
+
     private static Uri insertImage(ContentResolver resolver, ContentValues values) {
         Uri uri = null;
         try {
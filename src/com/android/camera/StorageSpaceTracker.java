@@ -0,0 +1,144 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps an estimate of the free space on the current save volume. StatFs is
+ * read once and the size of every file the app saves is subtracted from it,
+ * so checking the space after each shot costs no filesystem calls. The
+ * volume is probed again on volume events, when the save path changes,
+ * when the estimate gets near the low storage threshold, and every
+ * RESYNC_INTERVAL_MS to catch writes by other apps.
+ */
+public class StorageSpaceTracker {
+    private static final long RESYNC_MARGIN_BYTES = 100 * 1024 * 1024;
+    private static final long RESYNC_INTERVAL_MS = 30 * 1000;
+    // Weight of the newest file in the running average sizes, out of 8.
+    private static final int AVERAGE_WEIGHT = 2;
+
+    private static final Object sLock = new Object();
+    private static boolean sValid;
+    private static boolean sSaveSDCard;
+    private static long sBaseline;
+    private static long sWrittenBytes;
+    private static long sSyncTime;
+    private static long sAverageImageBytes;
+    private static long sAverageVideoBytesPerSecond;
+
+    private StorageSpaceTracker() {
+    }
+
+    /* Same values as Storage.getAvailableSpace(), estimated between probes */
+    public static long getAvailableSpace() {
+        synchronized (sLock) {
+            if (needsSync()) {
+                sBaseline = Storage.getAvailableSpace();
+                sSaveSDCard = Storage.isSaveSDCard();
+                sWrittenBytes = 0;
+                sSyncTime = SystemClock.elapsedRealtime();
+                sValid = true;
+            }
+            if (sBaseline < 0) {
+                return sBaseline;
+            }
+            return Math.max(0, sBaseline - sWrittenBytes);
+        }
+    }
+
+    /* Forces the next query to probe the volume, e.g. after a mount event */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sValid = false;
+        }
+    }
+
+    /* For files that shouldn't count towards the average photo size, e.g. raw */
+    public static void onFileWritten(long bytes) {
+        if (bytes <= 0) return;
+        synchronized (sLock) {
+            sWrittenBytes += bytes;
+        }
+    }
+
+    public static void onImageWritten(long bytes) {
+        if (bytes <= 0) return;
+        synchronized (sLock) {
+            sWrittenBytes += bytes;
+            sAverageImageBytes = average(sAverageImageBytes, bytes);
+        }
+    }
+
+    public static void onVideoWritten(long bytes, long durationMs) {
+        if (bytes <= 0) return;
+        synchronized (sLock) {
+            // The recorder wrote the file behind our back, probe next time.
+            sValid = false;
+            if (durationMs > 0) {
+                sAverageVideoBytesPerSecond = average(sAverageVideoBytesPerSecond,
+                        bytes * 1000 / durationMs);
+            }
+        }
+    }
+
+    /* Photos that still fit above the low storage threshold, or -1 if unknown */
+    public static int getRemainingShots() {
+        long space = getAvailableSpace();
+        synchronized (sLock) {
+            if (space < 0 || sAverageImageBytes == 0) return -1;
+            return (int) (Math.max(0, space - Storage.LOW_STORAGE_THRESHOLD_BYTES)
+                    / sAverageImageBytes);
+        }
+    }
+
+    /* Seconds of video that still fit above the low storage threshold, or -1 */
+    public static long getRemainingVideoSeconds() {
+        long space = getAvailableSpace();
+        synchronized (sLock) {
+            if (space < 0 || sAverageVideoBytesPerSecond == 0) return -1;
+            return Math.max(0, space - Storage.LOW_STORAGE_THRESHOLD_BYTES)
+                    / sAverageVideoBytesPerSecond;
+        }
+    }
+
+    private static boolean needsSync() {
+        return !sValid || sBaseline < 0
+                || sSaveSDCard != Storage.isSaveSDCard()
+                || sBaseline - sWrittenBytes
+                        <= Storage.LOW_STORAGE_THRESHOLD_BYTES + RESYNC_MARGIN_BYTES
+                || SystemClock.elapsedRealtime() - sSyncTime > RESYNC_INTERVAL_MS;
+    }
+
+    private static long average(long average, long sample) {
+        if (average == 0) return sample;
+        return (average * (8 - AVERAGE_WEIGHT) + sample * AVERAGE_WEIGHT) / 8;
+    }
+}
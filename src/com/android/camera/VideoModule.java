@@ -37,13 +37,8 @@ import android.location.Location;
 import android.media.AudioManager;
 import android.media.CamcorderProfile;
 import android.media.CameraProfile;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecInfo.CodecCapabilities;
-import android.media.MediaCodecInfo.VideoCapabilities;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
-import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -152,6 +147,7 @@ public class VideoModule implements CameraModule,
     private boolean mMediaRecorderPausing = false;
     private long mRecordingStartTime;
     private long mRecordingTotalTime;
+    private long mRecordedDuration;
     private boolean mRecordingTimeCountsDown = false;
     private long mOnResumeTime;
     // The video file that the hardware camera is about to record into
@@ -170,6 +166,8 @@ public class VideoModule implements CameraModule,
 
     // The video duration limit. 0 menas no limit.
     private int mMaxVideoDurationInMs;
+    // Recorded time predicted to fill the storage, 0 if unknown.
+    private long mStorageLimitMs;
 
     // Time Lapse parameters.
     private boolean mCaptureTimeLapse = false;
@@ -996,17 +994,17 @@ public class VideoModule implements CameraModule,
 
     private boolean isSessionSupportedByEncoder(int w, int h, int fps) {
         int expectedMBsPerSec = w * h * fps;
-        VideoCapabilities videoCap = null;
+        EncoderCapabilityIndex.VideoCaps videoCap = null;
         String videoEncoder = mPreferences.getString(
                 CameraSettings.KEY_VIDEO_ENCODER,
                 mActivity.getString(R.string.pref_camera_videoencoder_default));
         String format = null;
         if (videoEncoder.contains("m4v")) videoEncoder = "mpeg4";
-        MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
-        for (MediaCodecInfo info :list.getCodecInfos()) {
-            if (!info.isEncoder() || info.getName().contains("google")) continue;
-            Log.d(TAG, "info getName is " + info.getName() + ", select is " + videoEncoder);
-            if (info.isEncoder() && info.getName().contains(videoEncoder)) {
+        for (EncoderCapabilityIndex.Encoder info
+                : EncoderCapabilityIndex.get(mActivity).getEncoders()) {
+            if (info.software) continue;
+            Log.d(TAG, "info getName is " + info.name + ", select is " + videoEncoder);
+            if (info.name.contains(videoEncoder)) {
                 if (MediaRecorder.VideoEncoder.H263 == mVideoEncoder) {
                     format = MediaFormat.MIMETYPE_VIDEO_H263;
                 } else if (MediaRecorder.VideoEncoder.H264 == mVideoEncoder) {
@@ -1018,19 +1016,18 @@ public class VideoModule implements CameraModule,
                 } else {
                     format = MediaFormat.MIMETYPE_VIDEO_AVC;
                 }
-                videoCap = info.getCapabilitiesForType(format).getVideoCapabilities();
-                int maxMBsPerSec = (videoCap.getSupportedWidths().getUpper() *
-                        videoCap.getSupportedHeights().getUpper() *
-                        videoCap.getSupportedFrameRates().getUpper());
+                videoCap = info.getCapabilities(format);
+                if (videoCap == null) return false;
+                int maxMBsPerSec = videoCap.maxWidth * videoCap.maxHeight * videoCap.maxFrameRate;
                 if (expectedMBsPerSec > maxMBsPerSec) {
                     Log.e(TAG, "Selected codec " + mVideoEncoder
                             + " does not support width(" + w
                             + ") X height (" + h
                             + "@ " + fps + " fps");
                     Log.e(TAG, "Max capabilities: " +
-                            "MaxFrameWidth = " + videoCap.getSupportedWidths().getUpper() + " , " +
-                            "MaxFrameHeight = " + videoCap.getSupportedHeights().getUpper() + " , " +
-                            "MaxFrameRate = " + videoCap.getSupportedFrameRates().getUpper());
+                            "MaxFrameWidth = " + videoCap.maxWidth + " , " +
+                            "MaxFrameHeight = " + videoCap.maxHeight + " , " +
+                            "MaxFrameRate = " + videoCap.maxFrameRate);
                     return false;
                 } else {
                     return true;
@@ -1296,6 +1293,7 @@ public class VideoModule implements CameraModule,
     private void onPreviewStarted() {
         mUI.enableShutter(true);
         startFaceDetection();
+        mActivity.onFirstPreviewFrame();
     }
 
     @Override
@@ -1535,19 +1533,11 @@ public class VideoModule implements CameraModule,
 
         //check if codec supports the resolution, otherwise throw toast
         String type = SettingTranslation.getVideoEncoderType(mProfile.videoCodec);
-        MediaCodecList allCodecs = new MediaCodecList(MediaCodecList.ALL_CODECS);
-        MediaFormat format = MediaFormat.createVideoFormat(type,videoWidth,videoHeight);
-        try{
-            String encodeName = allCodecs.findEncoderForFormat(format);
-        } catch (IllegalArgumentException| NullPointerException e){
-            e.printStackTrace();
-            Log.d(TAG,"error="+e.getLocalizedMessage());
+        if (type == null || !EncoderCapabilityIndex.get(mActivity)
+                .hasEncoderForSize(type, videoWidth, videoHeight)) {
             mUnsupportedResolution = true;
-        } finally {
-            if (mUnsupportedResolution) {
-                Log.d(TAG,"not support:" + type);
-                return;
-            }
+            Log.d(TAG,"not support:" + type);
+            return;
         }
 
         long requestedSizeLimit = 0;
@@ -1770,20 +1760,8 @@ public class VideoModule implements CameraModule,
                 return;
             }
 
-            long duration = 0L;
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-
-            try {
-                retriever.setDataSource(mCurrentVideoFilename);
-                duration = Long.valueOf(retriever.extractMetadata(
-                            MediaMetadataRetriever.METADATA_KEY_DURATION));
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "cannot access the file");
-            }
-            retriever.release();
-
             mActivity.getMediaSaveService().addVideo(mCurrentVideoFilename,
-                    duration, mCurrentVideoValues,
+                    mRecordedDuration, mCurrentVideoValues,
                     mOnVideoSavedListener, mContentResolver);
         }
         mCurrentVideoValues = null;
@@ -1887,6 +1865,11 @@ public class VideoModule implements CameraModule,
             mStartRecPending = false;
             return false;
         }
+        if (!updateStorageLimit()) {
+            Log.v(TAG, "Storage issue, less than a second of video fits");
+            mStartRecPending = false;
+            return false;
+        }
 
         if( mUnsupportedHFRVideoSize == true) {
             Log.e(TAG, "Unsupported HFR and video size combinations");
@@ -2051,6 +2034,20 @@ public class VideoModule implements CameraModule,
         boolean fail = false;
         if (mMediaRecorderRecording) {
             boolean shouldAddToMediaStoreNow = false;
+            mRecordedDuration = getRecordedDuration();
+            // Shown only once stop() succeeded, the file is deleted otherwise.
+            PreviewSnapshot.Deferred thumbnail = null;
+            if (!mIsVideoCaptureIntent) {
+                thumbnail = new PreviewSnapshot.Deferred() {
+                    @Override
+                    protected void onReady(Bitmap bitmap) {
+                        mActivity.updateVideoThumbnail(bitmap);
+                    }
+                };
+                PreviewSnapshot.request(mUI.getSurfaceView(),
+                        mActivity.getResources().getDimensionPixelSize(R.dimen.capture_size),
+                        thumbnail);
+            }
 
             try {
                 mMediaRecorder.setOnErrorListener(null);
@@ -2067,6 +2064,14 @@ public class VideoModule implements CameraModule,
                 if (mVideoFilename != null) deleteVideoFile(mVideoFilename);
                 fail = true;
             }
+            if (thumbnail != null) {
+                if (fail) {
+                    thumbnail.onRecordingFailed();
+                    mActivity.cancelVideoThumbnailFromPreview();
+                } else {
+                    thumbnail.onRecordingSaved();
+                }
+            }
             mMediaRecorderRecording = false;
 
             //If recording stops while snapshot is in progress, we might not get jpeg callback
@@ -2191,6 +2196,37 @@ public class VideoModule implements CameraModule,
         return (long) (numberOfFrames / mProfile.videoFrameRate * 1000);
     }
 
+    /* Length of the recording from the recorder start, pause and resume times */
+    private long getRecordedDuration() {
+        long delta = mRecordingTotalTime;
+        if (!mMediaRecorderPausing) {
+            delta += SystemClock.uptimeMillis() - mRecordingStartTime;
+        }
+        return mCaptureTimeLapse ? getTimeLapseVideoLength(delta) : delta;
+    }
+
+    /* Predicts the recording time left on the volume, false if not even a second fits */
+    private boolean updateStorageLimit() {
+        long seconds = StorageSpaceTracker.getRemainingVideoSeconds();
+        if (seconds == 0) {
+            return false;
+        }
+        // Time lapse files grow slower than the clock, only the size limit applies there.
+        mStorageLimitMs = (seconds < 0 || mCaptureTimeLapse) ? 0 : seconds * 1000;
+        return true;
+    }
+
+    /* The max duration, or the storage limit when that is reached first; 0 if neither */
+    private long getRecordingLimitMs() {
+        if (mStorageLimitMs == 0) {
+            return mMaxVideoDurationInMs;
+        }
+        if (mMaxVideoDurationInMs == 0) {
+            return mStorageLimitMs;
+        }
+        return Math.min(mMaxVideoDurationInMs, mStorageLimitMs);
+    }
+
     private void updateRecordingTime() {
         if (!mMediaRecorderRecording) {
             return;
@@ -2202,14 +2238,14 @@ public class VideoModule implements CameraModule,
         long now = SystemClock.uptimeMillis();
         long delta = now - mRecordingStartTime + mRecordingTotalTime;
 
-        // Starting a minute before reaching the max duration
-        // limit, we'll countdown the remaining time instead.
-        boolean countdownRemainingTime = (mMaxVideoDurationInMs != 0
-                && delta >= mMaxVideoDurationInMs - 60000);
+        // Starting a minute before reaching the max duration or the
+        // storage limit, we'll countdown the remaining time instead.
+        long limit = getRecordingLimitMs();
+        boolean countdownRemainingTime = (limit != 0 && delta >= limit - 60000);
 
         long deltaAdjusted = delta;
         if (countdownRemainingTime) {
-            deltaAdjusted = Math.max(0, mMaxVideoDurationInMs - deltaAdjusted) + 999;
+            deltaAdjusted = Math.max(0, limit - deltaAdjusted) + 999;
         }
         String text;
 
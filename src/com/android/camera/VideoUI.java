@@ -646,6 +646,10 @@ public class VideoUI implements PieRenderer.PieListener,
         return mSurfaceHolder;
     }
 
+    public SurfaceView getSurfaceView() {
+        return mSurfaceView;
+    }
+
     public void hideSurfaceView() {
         mSurfaceView.setVisibility(View.INVISIBLE);
     }
@@ -0,0 +1,355 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.exif;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.BlackLevelPattern;
+import android.hardware.camera2.params.ColorSpaceTransform;
+import android.media.Image;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Writes RAW10 or RAW_SENSOR captures as DNG. The IFD is laid out with the
+ * same tag classes as the EXIF writer and the pixels are streamed from the
+ * image plane to the file a few rows at a time, unpacked to 16 bit, so a
+ * frame is never copied whole into the Java heap.
+ */
+public class DngWriter {
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final short TIFF_MAGIC = 42;
+    private static final int TIFF_HEADER_SIZE = 8;
+    private static final int TAG_SIZE = 12;
+    private static final int ROWS_PER_CHUNK = 16;
+
+    private static final short TAG_NEW_SUBFILE_TYPE = 254;
+    private static final short TAG_IMAGE_WIDTH = 256;
+    private static final short TAG_IMAGE_LENGTH = 257;
+    private static final short TAG_BITS_PER_SAMPLE = 258;
+    private static final short TAG_COMPRESSION = 259;
+    private static final short TAG_PHOTOMETRIC_INTERPRETATION = 262;
+    private static final short TAG_MAKE = 271;
+    private static final short TAG_MODEL = 272;
+    private static final short TAG_STRIP_OFFSETS = 273;
+    private static final short TAG_ORIENTATION = 274;
+    private static final short TAG_SAMPLES_PER_PIXEL = 277;
+    private static final short TAG_ROWS_PER_STRIP = 278;
+    private static final short TAG_STRIP_BYTE_COUNTS = 279;
+    private static final short TAG_PLANAR_CONFIGURATION = 284;
+    private static final short TAG_SOFTWARE = 305;
+    private static final short TAG_DATE_TIME = 306;
+    private static final short TAG_CFA_REPEAT_PATTERN_DIM = (short) 33421;
+    private static final short TAG_CFA_PATTERN = (short) 33422;
+    private static final short TAG_EXPOSURE_TIME = (short) 33434;
+    private static final short TAG_F_NUMBER = (short) 33437;
+    private static final short TAG_ISO_SPEED_RATINGS = (short) 34855;
+    private static final short TAG_FOCAL_LENGTH = (short) 37386;
+    private static final short TAG_DNG_VERSION = (short) 50706;
+    private static final short TAG_DNG_BACKWARD_VERSION = (short) 50707;
+    private static final short TAG_UNIQUE_CAMERA_MODEL = (short) 50708;
+    private static final short TAG_BLACK_LEVEL_REPEAT_DIM = (short) 50713;
+    private static final short TAG_BLACK_LEVEL = (short) 50714;
+    private static final short TAG_WHITE_LEVEL = (short) 50717;
+    private static final short TAG_COLOR_MATRIX_1 = (short) 50721;
+    private static final short TAG_CAMERA_CALIBRATION_1 = (short) 50723;
+    private static final short TAG_AS_SHOT_NEUTRAL = (short) 50728;
+    private static final short TAG_CALIBRATION_ILLUMINANT_1 = (short) 50778;
+    private static final short TAG_FORWARD_MATRIX_1 = (short) 50964;
+
+    private static final short PHOTOMETRIC_CFA = (short) 32803;
+
+    private final IfdData mIfd = new IfdData(IfdId.TYPE_IFD_0);
+
+    /**
+     * @param characteristics of the camera that produced the frame
+     * @param result capture result with the same sensor timestamp as the frame
+     * @param rotation clockwise rotation of the frame in degrees
+     * @param dateTaken capture time in milliseconds since the epoch
+     */
+    public DngWriter(CameraCharacteristics characteristics, CaptureResult result,
+            int width, int height, int rotation, long dateTaken) {
+        setInts(TAG_NEW_SUBFILE_TYPE, ExifTag.TYPE_UNSIGNED_LONG, 0);
+        setInts(TAG_IMAGE_WIDTH, ExifTag.TYPE_UNSIGNED_LONG, width);
+        setInts(TAG_IMAGE_LENGTH, ExifTag.TYPE_UNSIGNED_LONG, height);
+        setInts(TAG_BITS_PER_SAMPLE, ExifTag.TYPE_UNSIGNED_SHORT, 16);
+        setInts(TAG_COMPRESSION, ExifTag.TYPE_UNSIGNED_SHORT, 1);
+        setInts(TAG_PHOTOMETRIC_INTERPRETATION, ExifTag.TYPE_UNSIGNED_SHORT,
+                PHOTOMETRIC_CFA & 0xffff);
+        setString(TAG_MAKE, Build.MANUFACTURER);
+        setString(TAG_MODEL, Build.MODEL);
+        setString(TAG_UNIQUE_CAMERA_MODEL, Build.MANUFACTURER + " " + Build.MODEL);
+        setString(TAG_SOFTWARE, "Snapdragon Camera");
+        ExifTag dateTime = new ExifTag(TAG_DATE_TIME, ExifTag.TYPE_ASCII, 0,
+                IfdId.TYPE_IFD_0, false);
+        dateTime.setTimeValue(dateTaken);
+        mIfd.setTag(dateTime);
+        setInts(TAG_ORIENTATION, ExifTag.TYPE_UNSIGNED_SHORT,
+                ExifInterface.getOrientationValueForRotation(rotation));
+        setInts(TAG_SAMPLES_PER_PIXEL, ExifTag.TYPE_UNSIGNED_SHORT, 1);
+        setInts(TAG_ROWS_PER_STRIP, ExifTag.TYPE_UNSIGNED_LONG, height);
+        setInts(TAG_STRIP_BYTE_COUNTS, ExifTag.TYPE_UNSIGNED_LONG, width * height * 2);
+        // Filled in once the IFD size is known.
+        setInts(TAG_STRIP_OFFSETS, ExifTag.TYPE_UNSIGNED_LONG, 0);
+        setInts(TAG_PLANAR_CONFIGURATION, ExifTag.TYPE_UNSIGNED_SHORT, 1);
+        setBytes(TAG_DNG_VERSION, new byte[] {1, 4, 0, 0});
+        setBytes(TAG_DNG_BACKWARD_VERSION, new byte[] {1, 1, 0, 0});
+
+        setInts(TAG_CFA_REPEAT_PATTERN_DIM, ExifTag.TYPE_UNSIGNED_SHORT, 2, 2);
+        Integer cfa = characteristics.get(
+                CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+        setBytes(TAG_CFA_PATTERN, getCfaPattern(cfa == null ? 0 : cfa));
+
+        BlackLevelPattern black = characteristics.get(
+                CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+        if (black != null) {
+            setInts(TAG_BLACK_LEVEL_REPEAT_DIM, ExifTag.TYPE_UNSIGNED_SHORT, 2, 2);
+            setInts(TAG_BLACK_LEVEL, ExifTag.TYPE_UNSIGNED_LONG,
+                    black.getOffsetForIndex(0, 0), black.getOffsetForIndex(1, 0),
+                    black.getOffsetForIndex(0, 1), black.getOffsetForIndex(1, 1));
+        }
+        Integer white = characteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        if (white != null) {
+            setInts(TAG_WHITE_LEVEL, ExifTag.TYPE_UNSIGNED_LONG, white);
+        }
+        setMatrix(TAG_COLOR_MATRIX_1,
+                characteristics.get(CameraCharacteristics.SENSOR_COLOR_TRANSFORM1));
+        setMatrix(TAG_CAMERA_CALIBRATION_1,
+                characteristics.get(CameraCharacteristics.SENSOR_CALIBRATION_TRANSFORM1));
+        setMatrix(TAG_FORWARD_MATRIX_1,
+                characteristics.get(CameraCharacteristics.SENSOR_FORWARD_MATRIX1));
+        Integer illuminant = characteristics.get(
+                CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT1);
+        if (illuminant != null) {
+            setInts(TAG_CALIBRATION_ILLUMINANT_1, ExifTag.TYPE_UNSIGNED_SHORT, illuminant);
+        }
+
+        android.util.Rational[] neutral = result.get(CaptureResult.SENSOR_NEUTRAL_COLOR_POINT);
+        if (neutral != null) {
+            Rational[] values = new Rational[neutral.length];
+            for (int i = 0; i < neutral.length; i++) {
+                values[i] = new Rational(neutral[i].getNumerator(), neutral[i].getDenominator());
+            }
+            setRationals(TAG_AS_SHOT_NEUTRAL, ExifTag.TYPE_UNSIGNED_RATIONAL, values);
+        }
+        Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if (exposure != null) {
+            setRationals(TAG_EXPOSURE_TIME, ExifTag.TYPE_UNSIGNED_RATIONAL,
+                    new Rational(exposure / 1000, 1000000));
+        }
+        Float aperture = result.get(CaptureResult.LENS_APERTURE);
+        if (aperture != null) {
+            setRationals(TAG_F_NUMBER, ExifTag.TYPE_UNSIGNED_RATIONAL,
+                    new Rational(Math.round(aperture * 100), 100));
+        }
+        Float focalLength = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+        if (focalLength != null) {
+            setRationals(TAG_FOCAL_LENGTH, ExifTag.TYPE_UNSIGNED_RATIONAL,
+                    new Rational(Math.round(focalLength * 100), 100));
+        }
+        Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        if (iso != null) {
+            setInts(TAG_ISO_SPEED_RATINGS, ExifTag.TYPE_UNSIGNED_SHORT, Math.min(iso, 65535));
+        }
+    }
+
+    /**
+     * Writes image to path and returns the file size. The image is left open,
+     * the caller closes it.
+     */
+    public long write(Image image, String path) throws IOException {
+        Image.Plane plane = image.getPlanes()[0];
+        return write(plane.getBuffer(), image.getWidth(), image.getHeight(),
+                plane.getRowStride(), image.getFormat(), path);
+    }
+
+    /* Same as write(Image, String) for a RAW plane already copied out of its Image */
+    public long write(ByteBuffer data, int width, int height, int rowStride, int format,
+                      String path) throws IOException {
+        if (format != ImageFormat.RAW10 && format != ImageFormat.RAW_SENSOR) {
+            throw new IOException("Unsupported raw format " + format);
+        }
+        ByteBuffer header = buildHeader();
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            FileChannel channel = out.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            writeStrip(data, width, height, rowStride, format == ImageFormat.RAW10, channel);
+            return channel.position();
+        } finally {
+            out.close();
+        }
+    }
+
+    private ByteBuffer buildHeader() throws IOException {
+        ExifTag[] tags = mIfd.getAllTags();
+        // TIFF readers expect the entries sorted by tag number.
+        Arrays.sort(tags, new Comparator<ExifTag>() {
+            @Override
+            public int compare(ExifTag a, ExifTag b) {
+                return (a.getTagId() & 0xffff) - (b.getTagId() & 0xffff);
+            }
+        });
+        int offset = TIFF_HEADER_SIZE + 2 + tags.length * TAG_SIZE + 4;
+        for (ExifTag tag : tags) {
+            if (tag.getDataSize() > 4) {
+                tag.setOffset(offset);
+                offset += tag.getDataSize() + (tag.getDataSize() & 1);
+            }
+        }
+        mIfd.getTag(TAG_STRIP_OFFSETS).setValue(offset);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(offset);
+        OrderedDataOutputStream stream = new OrderedDataOutputStream(bytes);
+        stream.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        stream.writeShort(TIFF_LITTLE_ENDIAN);
+        stream.writeShort(TIFF_MAGIC);
+        stream.writeInt(TIFF_HEADER_SIZE);
+        stream.writeShort((short) tags.length);
+        for (ExifTag tag : tags) {
+            stream.writeShort(tag.getTagId());
+            stream.writeShort(tag.getDataType());
+            stream.writeInt(tag.getComponentCount());
+            if (tag.getDataSize() > 4) {
+                stream.writeInt(tag.getOffset());
+            } else {
+                ExifOutputStream.writeTagValue(tag, stream);
+                for (int i = 0, n = 4 - tag.getDataSize(); i < n; i++) {
+                    stream.write(0);
+                }
+            }
+        }
+        stream.writeInt(0);
+        for (ExifTag tag : tags) {
+            if (tag.getDataSize() > 4) {
+                ExifOutputStream.writeTagValue(tag, stream);
+                if ((tag.getDataSize() & 1) != 0) {
+                    stream.write(0);
+                }
+            }
+        }
+        stream.flush();
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private void writeStrip(ByteBuffer data, int width, int height, int rowStride,
+                            boolean packed, FileChannel channel) throws IOException {
+        final int rowBytes = packed ? width * 10 / 8 : width * 2;
+        final ByteBuffer src = data.duplicate();
+        final byte[] row = new byte[rowBytes];
+        final ByteBuffer chunk = ByteBuffer.allocateDirect(ROWS_PER_CHUNK * width * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < height; y++) {
+            src.position(y * rowStride);
+            src.get(row, 0, rowBytes);
+            if (packed) {
+                // RAW10: four 8-bit MSBs, then one byte holding the four 2-bit LSBs.
+                for (int i = 0; i + 4 < rowBytes; i += 5) {
+                    int lsbs = row[i + 4] & 0xff;
+                    for (int k = 0; k < 4; k++) {
+                        chunk.putShort((short) (((row[i + k] & 0xff) << 2)
+                                | ((lsbs >> (k * 2)) & 0x3)));
+                    }
+                }
+            } else {
+                chunk.put(row, 0, rowBytes);
+            }
+            if (!chunk.hasRemaining() || y == height - 1) {
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                chunk.clear();
+            }
+        }
+    }
+
+    private static byte[] getCfaPattern(int arrangement) {
+        // 0 = red, 1 = green, 2 = blue, row by row.
+        switch (arrangement) {
+            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GRBG:
+                return new byte[] {1, 0, 2, 1};
+            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_GBRG:
+                return new byte[] {1, 2, 0, 1};
+            case CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT_BGGR:
+                return new byte[] {2, 1, 1, 0};
+            default:
+                return new byte[] {0, 1, 1, 2};
+        }
+    }
+
+    private void setInts(short tagId, short type, int... values) {
+        ExifTag tag = new ExifTag(tagId, type, values.length, IfdId.TYPE_IFD_0, false);
+        tag.setValue(values);
+        mIfd.setTag(tag);
+    }
+
+    private void setString(short tagId, String value) {
+        ExifTag tag = new ExifTag(tagId, ExifTag.TYPE_ASCII, 0, IfdId.TYPE_IFD_0, false);
+        if (tag.setValue(value)) {
+            mIfd.setTag(tag);
+        }
+    }
+
+    private void setBytes(short tagId, byte[] value) {
+        ExifTag tag = new ExifTag(tagId, ExifTag.TYPE_UNSIGNED_BYTE, value.length,
+                IfdId.TYPE_IFD_0, false);
+        tag.setValue(value);
+        mIfd.setTag(tag);
+    }
+
+    private void setRationals(short tagId, short type, Rational... values) {
+        ExifTag tag = new ExifTag(tagId, type, values.length, IfdId.TYPE_IFD_0, false);
+        tag.setValue(values);
+        mIfd.setTag(tag);
+    }
+
+    private void setMatrix(short tagId, ColorSpaceTransform transform) {
+        if (transform == null) return;
+        int[] elements = new int[18];
+        transform.copyElements(elements, 0);
+        Rational[] values = new Rational[9];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new Rational(elements[i * 2], elements[i * 2 + 1]);
+        }
+        setRationals(tagId, ExifTag.TYPE_RATIONAL, values);
+    }
+}
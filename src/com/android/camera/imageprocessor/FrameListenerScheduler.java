@@ -0,0 +1,155 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.filter.ImageFilter;
+
+import java.util.HashMap;
+
+/**
+ * Decides which preview frames each frame listener gets to see. Every listener
+ * runs at most at its target fps, and its frame interval is stretched when its
+ * measured processing time exceeds its cost budget, so one expensive listener
+ * can't starve the others on the shared listening thread.
+ */
+public class FrameListenerScheduler {
+    private static final String TAG = "FrameListenerScheduler";
+    private static final int DEFAULT_TARGET_FPS = 30;
+    private static final int DEFAULT_COST_BUDGET_MS = 1000;
+    private static final long FPS_WINDOW_MS = 1000;
+    // Weight of the newest sample in the moving average of processing time.
+    private static final float COST_SMOOTHING = 0.2f;
+
+    private final HashMap<ImageFilter, Stats> mStats = new HashMap<ImageFilter, Stats>();
+
+    private static class Stats {
+        final String name;
+        final long minIntervalMs;
+        final int budgetMs;
+        float avgCostMs;
+        long lastDispatchMs = -1;
+        long windowStartMs;
+        int windowFrames;
+        float actualFps;
+        int skippedFrames;
+
+        Stats(String name, int targetFps, int budgetMs) {
+            this.name = name;
+            this.minIntervalMs = 1000 / Math.max(1, targetFps);
+            this.budgetMs = Math.max(1, budgetMs);
+        }
+
+        long intervalMs() {
+            // Spend at most budgetMs of processing per second of preview.
+            long costInterval = (long) (avgCostMs * 1000 / budgetMs);
+            return Math.max(minIntervalMs, costInterval);
+        }
+    }
+
+    public synchronized void register(ImageFilter filter) {
+        int fps = DEFAULT_TARGET_FPS;
+        int budget = DEFAULT_COST_BUDGET_MS;
+        if (filter instanceof ImageFilter.FrameBudget) {
+            ImageFilter.FrameBudget frameBudget = (ImageFilter.FrameBudget) filter;
+            fps = frameBudget.getTargetFps();
+            budget = frameBudget.getCostBudgetMs();
+        }
+        mStats.put(filter, new Stats(filter.getStringName(), fps, budget));
+    }
+
+    public synchronized void clear() {
+        mStats.clear();
+    }
+
+    /* Called for every preview frame. Returns true if the listener should get it. */
+    public synchronized boolean shouldDispatch(ImageFilter filter) {
+        Stats stats = mStats.get(filter);
+        if (stats == null) {
+            return true;
+        }
+        long now = SystemClock.uptimeMillis();
+        // Allow a couple of ms of jitter so 30fps listeners don't drop to 15fps.
+        if (stats.lastDispatchMs >= 0 && now - stats.lastDispatchMs + 2 < stats.intervalMs()) {
+            stats.skippedFrames++;
+            return false;
+        }
+        stats.lastDispatchMs = now;
+        return true;
+    }
+
+    /* Called when a dispatched frame was replaced by a newer one before it ran */
+    public synchronized void onFrameSkipped(ImageFilter filter) {
+        Stats stats = mStats.get(filter);
+        if (stats != null) {
+            stats.skippedFrames++;
+        }
+    }
+
+    public synchronized void onFrameProcessed(ImageFilter filter, long startMs, long endMs) {
+        Stats stats = mStats.get(filter);
+        if (stats == null) {
+            return;
+        }
+        long cost = endMs - startMs;
+        if (stats.windowFrames == 0 && stats.windowStartMs == 0) {
+            stats.avgCostMs = cost;
+            stats.windowStartMs = endMs;
+        } else {
+            stats.avgCostMs += COST_SMOOTHING * (cost - stats.avgCostMs);
+        }
+        stats.windowFrames++;
+        long elapsed = endMs - stats.windowStartMs;
+        if (elapsed >= FPS_WINDOW_MS) {
+            stats.actualFps = stats.windowFrames * 1000f / elapsed;
+            if (ImageFilter.DEBUG) {
+                Log.d(TAG, stats.name + " fps=" + stats.actualFps
+                        + " avgCostMs=" + stats.avgCostMs
+                        + " intervalMs=" + stats.intervalMs()
+                        + " skipped=" + stats.skippedFrames);
+            }
+            stats.windowFrames = 0;
+            stats.windowStartMs = endMs;
+        }
+    }
+
+    /* Returns the frame rate the listener achieved over the last second */
+    public synchronized float getActualFps(ImageFilter filter) {
+        Stats stats = mStats.get(filter);
+        return stats == null ? 0f : stats.actualFps;
+    }
+
+    public synchronized int getSkippedFrames(ImageFilter filter) {
+        Stats stats = mStats.get(filter);
+        return stats == null ? 0 : stats.skippedFrames;
+    }
+}
@@ -36,6 +36,7 @@ import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RenderScript;
@@ -54,8 +55,8 @@ import com.android.camera.ui.RotateTextToast;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Semaphore;
 import org.codeaurora.snapcam.R;
 
 public class FrameProcessor {
@@ -74,7 +75,9 @@ public class FrameProcessor {
     private Handler mListeningHandler;
 
     private ProcessingTask mTask;
-    private ListeningTask mListeningTask;
+    private HashMap<ImageFilter, ListeningTask> mListeningTasks =
+            new HashMap<ImageFilter, ListeningTask>();
+    private FrameListenerScheduler mListenerScheduler = new FrameListenerScheduler();
     private RenderScript mRs;
     private Activity mActivity;
     private Size mSize;
@@ -131,7 +134,9 @@ public class FrameProcessor {
                 mListeningHandler = new Handler(mListeningThread.getLooper());
             }
 
-            mListeningTask = new ListeningTask();
+            synchronized (mListeningTasks) {
+                mListeningTasks.clear();
+            }
             mTask = new ProcessingTask();
             mInputImageReader.setOnImageAvailableListener(mTask, mProcessingHandler);
             mIsAllocationEverUsed = false;
@@ -174,6 +179,7 @@ public class FrameProcessor {
         }
         mPreviewFilters = new ArrayList<ImageFilter>();
         mFinalFilters = new ArrayList<ImageFilter>();
+        mListenerScheduler.clear();
     }
 
     public void onOpen(ArrayList<Integer> filterIds, final Size size) {
@@ -200,6 +206,8 @@ public class FrameProcessor {
             mPreviewFilters.add(filter);
             if (!filter.isFrameListener()) {
                 mFinalFilters.add(filter);
+            } else {
+                mListenerScheduler.register(filter);
             }
         }
 
@@ -297,6 +305,11 @@ public class FrameProcessor {
         return surfaces;
     }
 
+    /* Frame rate a frame listener actually achieved over the last second */
+    public float getFrameListenerFps(ImageFilter filter) {
+        return mListenerScheduler.getActualFps(filter);
+    }
+
     public boolean isFrameFilterEnabled() {
         if (mFinalFilters.size() == 0) {
             return false;
@@ -352,17 +365,20 @@ public class FrameProcessor {
         int stride;
         int height;
         int width;
+        private SharedFrame mPendingFrame;
+        private final Object mPendingLock = new Object();
 
         public ProcessingTask() {
         }
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            synchronized (mAllocationLock) {
-                if (mOutputAllocation == null) {
-                    return;
-                }
-                try {
+            SharedFrame frame = null;
+            try {
+                synchronized (mAllocationLock) {
+                    if (mOutputAllocation == null) {
+                        return;
+                    }
                     Image image = reader.acquireLatestImage();
                     if (image == null) {
                         return;
@@ -372,123 +388,197 @@ public class FrameProcessor {
                         return;
                     }
                     mIsAllocationEverUsed = true;
-                    ByteBuffer bY = image.getPlanes()[0].getBuffer();
-                    ByteBuffer bVU = image.getPlanes()[2].getBuffer();
-                    if (yvuBytes == null || width != mSize.getWidth() || height != mSize.getHeight()) {
-                        stride = image.getPlanes()[0].getRowStride();
-                        width = mSize.getWidth();
-                        height = mSize.getHeight();
-                        ySize = stride * mSize.getHeight();
-                        yvuBytes = new byte[ySize * 3 / 2];
+                    frame = new SharedFrame(image, mSize.getWidth(), mSize.getHeight());
+                }
+                boolean needToFeedSurface = false;
+                int lastInPlaceFilter = -1;
+                for (int i = 0; i < mPreviewFilters.size(); i++) {
+                    if (!mPreviewFilters.get(i).isFrameListener()) {
+                        lastInPlaceFilter = i;
                     }
-                    boolean needToFeedSurface = false;
-                    //Start processing yvu buf
-                    for (ImageFilter filter : mPreviewFilters) {
-                        if (filter.isFrameListener()) {
-                            if (mListeningTask.setParam(filter, bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
-                                mListeningHandler.post(mListeningTask);
-                            }
+                }
+                //Start processing yvu buf
+                for (int i = 0; i < mPreviewFilters.size(); i++) {
+                    ImageFilter filter = mPreviewFilters.get(i);
+                    if (filter.isFrameListener()) {
+                        if (!mListenerScheduler.shouldDispatch(filter)) {
+                            continue;
+                        }
+                        ListeningTask task = getListeningTask(filter);
+                        // A filter later in the chain rewrites the frame in place,
+                        // so this listener has to read from its own copy.
+                        if (task.setFrame(frame, i < lastInPlaceFilter)) {
+                            mListeningHandler.post(task);
+                        }
+                    } else {
+                        filter.init(frame.getWidth(), frame.getHeight(),
+                                frame.getStride(), frame.getStride());
+                        if (filter instanceof BeautificationFilter) {
+                            filter.addImage(frame.getY(), frame.getVU(), 0, new Boolean(false));
                         } else {
-                            filter.init(mSize.getWidth(), mSize.getHeight(), stride, stride);
-                            if (filter instanceof BeautificationFilter) {
-                                filter.addImage(bY, bVU, 0, new Boolean(false));
-                            } else {
-                                filter.addImage(bY, bVU, 0, new Boolean(true));
-                            }
-                            needToFeedSurface = true;
+                            filter.addImage(frame.getY(), frame.getVU(), 0, new Boolean(true));
                         }
-                        bY.rewind();
-                        bVU.rewind();
+                        needToFeedSurface = true;
                     }
-                    if (mIsFirstIn && mIsVideoOn && isFrameListnerEnabled()) {
-                        mIsFirstIn = false;
-                        mModule.startMediaRecording();
-                    }
-                    //End processing yvu buf
-                    if (needToFeedSurface) {
-                        bY.get(yvuBytes, 0, bY.remaining());
-                        bVU.get(yvuBytes, ySize, bVU.remaining());
-                        mOutingHandler.post(this);
+                }
+                if (mIsFirstIn && mIsVideoOn && isFrameListnerEnabled()) {
+                    mIsFirstIn = false;
+                    mModule.startMediaRecording();
+                }
+                //End processing yvu buf
+                if (needToFeedSurface && frame.acquire()) {
+                    synchronized (mPendingLock) {
+                        // The output stage only needs the newest frame.
+                        if (mPendingFrame != null) {
+                            mPendingFrame.release();
+                        } else {
+                            mOutingHandler.post(this);
+                        }
+                        mPendingFrame = frame;
                     }
-                    image.close();
-                } catch (IllegalStateException e) {
+                }
+            } catch (IllegalStateException e) {
+            } finally {
+                if (frame != null) {
+                    frame.release();
                 }
             }
         }
 
         @Override
         public void run() {
-            synchronized (mAllocationLock) {
-                if (!mIsActive) {
-                    return;
-                }
-                if (mInputAllocation == null) {
-                    createAllocation(stride, height, stride - width);
-                }
-                mInputAllocation.copyFrom(yvuBytes);
-                mOutputAllocation.ioSend();
-                if (mVideoOutputAllocation != null) {
-                    mVideoOutputAllocation.copyFrom(mOutputAllocation);
-                    mVideoOutputAllocation.ioSend();
+            SharedFrame frame;
+            synchronized (mPendingLock) {
+                frame = mPendingFrame;
+                mPendingFrame = null;
+            }
+            if (frame == null) {
+                return;
+            }
+            try {
+                synchronized (mAllocationLock) {
+                    if (!mIsActive || mOutputAllocation == null) {
+                        return;
+                    }
+                    if (yvuBytes == null || width != frame.getWidth()
+                            || height != frame.getHeight()) {
+                        stride = frame.getStride();
+                        width = frame.getWidth();
+                        height = frame.getHeight();
+                        ySize = stride * height;
+                        yvuBytes = new byte[ySize * 3 / 2];
+                    }
+                    if (mInputAllocation == null) {
+                        createAllocation(stride, height, stride - width);
+                    }
+                    // Single copy straight from the camera planes into the
+                    // staging array RenderScript needs.
+                    ByteBuffer bY = frame.getY();
+                    ByteBuffer bVU = frame.getVU();
+                    bY.get(yvuBytes, 0, bY.remaining());
+                    bVU.get(yvuBytes, ySize, bVU.remaining());
+                    mInputAllocation.copyFrom(yvuBytes);
+                    mOutputAllocation.ioSend();
+                    if (mVideoOutputAllocation != null) {
+                        mVideoOutputAllocation.copyFrom(mOutputAllocation);
+                        mVideoOutputAllocation.ioSend();
+                    }
                 }
+            } finally {
+                frame.release();
             }
         }
     }
 
+    private ListeningTask getListeningTask(ImageFilter filter) {
+        synchronized (mListeningTasks) {
+            ListeningTask task = mListeningTasks.get(filter);
+            if (task == null) {
+                task = new ListeningTask(filter);
+                mListeningTasks.put(filter, task);
+            }
+            return task;
+        }
+    }
+
+    /* Feeds one frame listener. A listener that is still busy skips frames
+     * rather than queueing them, and only ever holds a reference to the
+     * newest frame. */
     class ListeningTask implements Runnable {
 
-        ImageFilter mFilter;
-        ByteBuffer mBY = null, mBVU = null;
-        int mWidth, mHeight, mStride;
-        int bYSize, bVUSize;
-        Semaphore mMutureLock = new Semaphore(1);
+        final ImageFilter mFilter;
+        private SharedFrame mFrame;
+        private final Object mFrameLock = new Object();
+        private ByteBuffer mCopyY;
+        private ByteBuffer mCopyVU;
+        /* Set while a copied frame is pending or being processed */
+        private boolean mCopyBusy;
+
+        public ListeningTask(ImageFilter filter) {
+            mFilter = filter;
+        }
 
-        public boolean setParam(ImageFilter filter, ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
+        /* Returns true if the task needs to be posted */
+        public boolean setFrame(SharedFrame frame, boolean copy) {
             if (!mIsActive) {
                 return false;
             }
-            if (!mMutureLock.tryAcquire()) {
-                return false;
-            }
-            mFilter = filter;
-            if (mBY == null || bYSize != bY.remaining()) {
-                bYSize = bY.remaining();
-                mBY = ByteBuffer.allocateDirect(bYSize);
-            }
-            if (mBVU == null || bVUSize != bVU.remaining()) {
-                bVUSize = bVU.remaining();
-                mBVU = ByteBuffer.allocateDirect(bVUSize);
+            synchronized (mFrameLock) {
+                boolean idle = mFrame == null;
+                if (copy) {
+                    // The copy buffers are reused, so wait for the listener
+                    // to finish with them instead of replacing its frame.
+                    if (mCopyBusy || !idle) {
+                        mListenerScheduler.onFrameSkipped(mFilter);
+                        return false;
+                    }
+                    mFrame = frame.copyTo(mCopyY, mCopyVU);
+                    mCopyY = mFrame.getY();
+                    mCopyVU = mFrame.getVU();
+                    mCopyBusy = true;
+                    return true;
+                }
+                if (!frame.acquire()) {
+                    return false;
+                }
+                if (!idle) {
+                    mFrame.release();
+                    mListenerScheduler.onFrameSkipped(mFilter);
+                }
+                mFrame = frame;
+                return idle;
             }
-            mBY.rewind();
-            mBVU.rewind();
-            mBY.put(bY);
-            mBVU.put(bVU);
-            mWidth = width;
-            mHeight = height;
-            mStride = stride;
-            mMutureLock.release();
-            return true;
         }
 
         @Override
         public void run() {
+            SharedFrame frame;
+            synchronized (mFrameLock) {
+                frame = mFrame;
+                mFrame = null;
+            }
+            if (frame == null) {
+                return;
+            }
             try {
                 if (!mIsActive) {
                     return;
                 }
-                mMutureLock.acquire();
-                mBY.rewind();
-                mBVU.rewind();
-                mFilter.init(mWidth, mHeight, mStride, mStride);
+                long start = SystemClock.uptimeMillis();
+                mFilter.init(frame.getWidth(), frame.getHeight(),
+                        frame.getStride(), frame.getStride());
                 if (mFilter instanceof BeautificationFilter) {
-                    mFilter.addImage(mBY, mBVU, 0, new Boolean(false));
+                    mFilter.addImage(frame.getY(), frame.getVU(), 0, new Boolean(false));
                 } else {
-                    mFilter.addImage(mBY, mBVU, 0, new Boolean(true));
+                    mFilter.addImage(frame.getY(), frame.getVU(), 0, new Boolean(true));
+                }
+                mListenerScheduler.onFrameProcessed(mFilter, start, SystemClock.uptimeMillis());
+            } finally {
+                frame.release();
+                synchronized (mFrameLock) {
+                    mCopyBusy = false;
                 }
-                mMutureLock.release();
-            } catch (InterruptedException e) {
             }
         }
     }
 }
-
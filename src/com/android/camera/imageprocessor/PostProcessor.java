@@ -55,10 +55,11 @@ import android.widget.Toast;
 
 import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
+import com.android.camera.CaptureNames;
 import com.android.camera.Exif;
 import com.android.camera.MediaSaveService;
-import com.android.camera.PhotoModule;
 import com.android.camera.SettingsManager;
+import com.android.camera.exif.DngWriter;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.exif.Rational;
 import com.android.camera.imageprocessor.filter.BestpictureFilter;
@@ -83,6 +84,7 @@ import java.util.concurrent.Semaphore;
 
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.MemoryGovernor;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.VendorTagUtil;
 
@@ -115,8 +117,18 @@ public class PostProcessor{
     private int mStride;
     private Object lock = new Object();
     private ImageFilter.ResultImage mDefaultResultImage;  //This is used only no filter is chosen.
+    private final MemoryGovernor.Trimmable mTrimmable = new MemoryGovernor.Trimmable() {
+        @Override
+        public void onTrim(int pressure) {
+            synchronized (lock) {
+                if (mStatus != STATUS.BUSY) {
+                    releaseDefaultResultImage();
+                }
+            }
+        }
+    };
     private Image[] mImages;
-    private PhotoModule.NamedImages mNamedImages;
+    private CaptureNames mNamedImages;
     private WatchdogThread mWatchdog;
     private int mOrientation = 0;
     private ImageWriter mImageWriter;
@@ -251,7 +263,7 @@ public class PostProcessor{
                             reprocessImage(foundImage.getImage(),foundImage.getMetadata());
                             Image raw =  foundImage.getRawImage();
                             if (raw != null) {
-                                onRawImageToProcess(raw);
+                                onRawImageToProcess(raw, foundImage.getMetadata());
                             }
                             mIsZSLFallOff = false;
                             mZSLFallOffResult = null;
@@ -301,7 +313,7 @@ public class PostProcessor{
                             rawImage = mRawImageReader.acquireNextImage();
                         }
                         if (rawImage != null) {
-                            onRawImageToProcess(rawImage);
+                            onRawImageToProcess(rawImage, waitForMetaData(0));
                         }
                     }
                 }
@@ -401,6 +413,7 @@ public class PostProcessor{
         mImageReader = imageReader;
         if(mUseZSL) {
             mZSLReprocessImageReader = ImageReader.newInstance(pictureSize.getWidth(), pictureSize.getHeight(), ImageFormat.JPEG, mMaxRequiredImageNum);
+            MemoryGovernor.get().trackImageReader(mZSLReprocessImageReader);
             mZSLReprocessImageReader.setOnImageAvailableListener(processedImageAvailableListener, mHandler);
         }
     }
@@ -431,7 +444,7 @@ public class PostProcessor{
             if(DEBUG_ZSL) Log.d(TAG,"Got the item from the queue");
             reprocessImage(imageItem.getImage(), imageItem.getMetadata());
             if (mSaveRaw && imageItem.getRawImage() != null) {
-                onRawImageToProcess(imageItem.getRawImage());
+                onRawImageToProcess(imageItem.getRawImage(), imageItem.getMetadata());
             }
             return true;
         } else {
@@ -452,7 +465,7 @@ public class PostProcessor{
             if(mLatestResultForLongShot != null) {
                 reprocessImage(imageItem.getImage(), mLatestResultForLongShot);
                 if (imageItem.getRawImage() != null) {
-                    onRawImageToProcess(imageItem.getRawImage());
+                    onRawImageToProcess(imageItem.getRawImage(), mLatestResultForLongShot);
                 }
                 mPendingContinuousRequestCount--;
                 return true;
@@ -460,7 +473,7 @@ public class PostProcessor{
         } else {
             reprocessImage(imageItem.getImage(), imageItem.getMetadata());
             if (imageItem.getRawImage() != null) {
-                onRawImageToProcess(imageItem.getRawImage());
+                onRawImageToProcess(imageItem.getRawImage(), imageItem.getMetadata());
             }
             return true;
         }
@@ -580,23 +593,41 @@ public class PostProcessor{
         if (isReadyToProcess()) {
             mController.unlockFocus(mController.getMainCameraId());
             long captureStartTime = System.currentTimeMillis();
-            mNamedImages.nameNewImage(captureStartTime);
-            PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
+            CaptureNames.NamedEntity name = mNamedImages.allocate(captureStartTime);
             String title = (name == null) ? null : name.title;
             long date = (name == null) ? -1 : name.date;
             processImage(title, date, mController.getMediaSavedListener(), mActivity.getContentResolver());
         }
     }
 
-    private void onRawImageToProcess(Image image) {
-        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-        byte[] data = new byte[buffer.remaining()];
-        buffer.get(data);
+    /* Saves the RAW frame as DNG when its capture result is known, as a plain dump otherwise */
+    private void onRawImageToProcess(Image image, TotalCaptureResult metadata) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
         long captureStartTime = System.currentTimeMillis();
-        mNamedImages.nameNewImage(captureStartTime);
-        PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
+        CaptureNames.NamedEntity name = mNamedImages.allocate(captureStartTime);
         String title = (name == null) ? null : name.title;
-        mActivity.getMediaSaveService().addRawImage(data, title, "raw");
+        long date = (name == null) ? captureStartTime : name.date;
+        int format = image.getFormat();
+        if (metadata != null && title != null
+                && (format == ImageFormat.RAW10 || format == ImageFormat.RAW_SENSOR)) {
+            // The ZSL queue closes its images once we return, so save from a copy.
+            ByteBuffer data = ByteBuffer.allocate(buffer.remaining());
+            data.put(buffer);
+            data.flip();
+            int cameraId = mController.getMainCameraId();
+            DngWriter writer = new DngWriter(
+                    SettingsManager.getInstance().getCharacteristics(cameraId), metadata,
+                    image.getWidth(), image.getHeight(),
+                    CameraUtil.getJpegRotation(cameraId, mController.getDisplayOrientation()),
+                    date);
+            mActivity.getMediaSaveService().addDngImage(data, image.getWidth(),
+                    image.getHeight(), plane.getRowStride(), format, writer, title);
+        } else {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            mActivity.getMediaSaveService().addRawImage(data, title, "raw");
+        }
         image.close();
     }
 
@@ -610,7 +641,7 @@ public class PostProcessor{
     public PostProcessor(CameraActivity activity, CaptureModule module) {
         mController = module;
         mActivity = activity;
-        mNamedImages = new PhotoModule.NamedImages();
+        mNamedImages = new CaptureNames();
     }
 
     public boolean isItBusy() {
@@ -698,6 +729,7 @@ public class PostProcessor{
             mMaxRequiredImageNum = Math.max(MAX_REQUIRED_IMAGE_NUM, PersistUtil.getLongshotShotLimit()+2);
         }
         mPendingContinuousRequestCount = 0;
+        MemoryGovernor.get().addTrimmable(mTrimmable);
     }
 
     public int getFilterIndex() {
@@ -721,7 +753,12 @@ public class PostProcessor{
             mImageWriter.close();
             mImageWriter = null;
         }
+        MemoryGovernor.get().removeTrimmable(mTrimmable);
+        synchronized (lock) {
+            releaseDefaultResultImage();
+        }
         if(mZSLReprocessImageReader != null) {
+            MemoryGovernor.get().untrack(mZSLReprocessImageReader);
             mZSLReprocessImageReader.close();
             mZSLReprocessImageReader = null;
         }
@@ -857,6 +894,7 @@ public class PostProcessor{
         synchronized (lock) {
             if (mFilter != null) {
                 mFilter.deinit();
+                MemoryGovernor.get().untrack(mFilter);
             }
             mStatus = STATUS.DEINIT;
             switch (index) {
@@ -938,6 +976,8 @@ public class PostProcessor{
                                 //Nothing here we have to do if filter is not chosen.
                             } else {
                                 mFilter.init(mWidth, mHeight, mStride, mStride);
+                                MemoryGovernor.get().track(mFilter, MemoryGovernor.KIND_HEAP,
+                                        (long) mStride * mHeight * 3 / 2);
                             }
                         }
                     }
@@ -968,8 +1008,18 @@ public class PostProcessor{
                         ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
 
                         if(mFilter == null) {
-                            mDefaultResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
+                            /* Reuse the buffer of the last shot while the size does not change */
+                            if (mDefaultResultImage == null || mDefaultResultImage.width != mWidth
+                                    || mDefaultResultImage.height != mHeight
+                                    || mDefaultResultImage.stride != mStride) {
+                                releaseDefaultResultImage();
+                                mDefaultResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(mStride * mHeight*3/2),
+                                        new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
+                                MemoryGovernor.get().track(mDefaultResultImage,
+                                        MemoryGovernor.KIND_DIRECT, (long) mStride * mHeight * 3 / 2);
+                            }
+                            mDefaultResultImage.outBuffer.clear();
+                            mDefaultResultImage.outRoi = new Rect(0, 0, mWidth, mHeight);
                             yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
                             vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
                             image.close();
@@ -1043,6 +1093,13 @@ public class PostProcessor{
         mCurrentNumImage = 0;
     }
 
+    private void releaseDefaultResultImage() {
+        if (mDefaultResultImage != null) {
+            MemoryGovernor.get().untrack(mDefaultResultImage);
+            mDefaultResultImage = null;
+        }
+    }
+
     private void processImage(final String title, final long date,
                              final MediaSaveService.OnMediaSavedListener mediaSavedListener,
                              final ContentResolver contentResolver) {
@@ -1113,7 +1170,7 @@ public class PostProcessor{
                         mActivity.getMediaSaveService().addImage(
                                     bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
                                     mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
-                            mController.updateThumbnailJpegData(bytes);
+                            mController.updateThumbnailJpegData(bytes, null);
                     }
                 }
             }
@@ -1154,8 +1211,7 @@ public class PostProcessor{
             mSavingHander.post(new Runnable() {
                 public void run() {
                     long captureStartTime = System.currentTimeMillis();
-                    mNamedImages.nameNewImage(captureStartTime);
-                    PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
+                    CaptureNames.NamedEntity name = mNamedImages.allocate(captureStartTime);
                     String title = (name == null) ? null : name.title;
                     long date = (name == null) ? -1 : name.date;
                     image.getPlanes()[0].getBuffer().rewind();
@@ -1175,7 +1231,7 @@ public class PostProcessor{
                         mActivity.getMediaSaveService().addImage(
                                 bytes, title, date, null, image.getCropRect().width(), image.getCropRect().height(),
                                 orientation, exif, mController.getMediaSavedListener(), mActivity.getContentResolver(), "jpeg");
-                        mController.updateThumbnailJpegData(bytes);
+                        mController.updateThumbnailJpegData(bytes, exif);
                     }
                     image.close();
                 }
@@ -0,0 +1,148 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted preview frame that can be handed to several consumers
+ * without copying its planes. The frame starts with one reference owned by
+ * the producer; every consumer that keeps it beyond the producer's callback
+ * must {@link #acquire()} it and {@link #release()} it when done. The
+ * underlying {@link Image} is closed when the last reference is released.
+ */
+public class SharedFrame {
+    private final Image mImage;
+    private final ByteBuffer mY;
+    private final ByteBuffer mVU;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+    private final long mTimestamp;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    public SharedFrame(Image image, int width, int height) {
+        mImage = image;
+        mY = image.getPlanes()[0].getBuffer();
+        mVU = image.getPlanes()[2].getBuffer();
+        mStride = image.getPlanes()[0].getRowStride();
+        mWidth = width;
+        mHeight = height;
+        mTimestamp = image.getTimestamp();
+    }
+
+    private SharedFrame(ByteBuffer y, ByteBuffer vu, int width, int height, int stride,
+            long timestamp) {
+        mImage = null;
+        mY = y;
+        mVU = vu;
+        mStride = stride;
+        mWidth = width;
+        mHeight = height;
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * Copies the planes into y and vu, which are reallocated if too small, and
+     * returns a frame over the copy. Releasing it does not free the buffers.
+     */
+    public SharedFrame copyTo(ByteBuffer y, ByteBuffer vu) {
+        ByteBuffer srcY = getY();
+        ByteBuffer srcVU = getVU();
+        if (y == null || y.capacity() < srcY.remaining()) {
+            y = ByteBuffer.allocateDirect(srcY.remaining());
+        }
+        if (vu == null || vu.capacity() < srcVU.remaining()) {
+            vu = ByteBuffer.allocateDirect(srcVU.remaining());
+        }
+        y.clear();
+        y.put(srcY);
+        y.flip();
+        vu.clear();
+        vu.put(srcVU);
+        vu.flip();
+        return new SharedFrame(y, vu, mWidth, mHeight, mStride, mTimestamp);
+    }
+
+    /* Returns false if the frame has already been closed */
+    public boolean acquire() {
+        while (true) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if (mRefCount.decrementAndGet() == 0 && mImage != null) {
+            mImage.close();
+        }
+    }
+
+    /* Each call returns an independent view so consumers don't share positions */
+    public ByteBuffer getY() {
+        return mY.duplicate();
+    }
+
+    public ByteBuffer getVU() {
+        return mVU.duplicate();
+    }
+
+    public int getYSize() {
+        return mY.remaining();
+    }
+
+    public int getVUSize() {
+        return mVU.remaining();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getStride() {
+        return mStride;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+}
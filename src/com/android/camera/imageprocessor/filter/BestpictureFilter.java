@@ -47,8 +47,8 @@ import android.util.Log;
 import com.android.camera.BestpictureActivity;
 import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
+import com.android.camera.CaptureNames;
 import com.android.camera.MediaSaveService;
-import com.android.camera.PhotoModule;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
@@ -77,7 +77,7 @@ public class BestpictureFilter implements ImageFilter {
             "android.media.action.STILL_IMAGE_CAMERA_SECURE";
     private final static int TIME_DELAY = 50;
     private int mSavedCount = 0;
-    private PhotoModule.NamedImages mNamedImages;
+    private CaptureNames mNamedImages;
     private ByteBuffer mBY;
     private ByteBuffer mBVU;
     private Object mClosingLock = new Object();
@@ -96,7 +96,7 @@ public class BestpictureFilter implements ImageFilter {
         mModule = module;
         mActivity = activity;
         mProcessor = processor;
-        mNamedImages = new PhotoModule.NamedImages();
+        mNamedImages = new CaptureNames();
     }
 
     @Override
@@ -150,8 +150,7 @@ public class BestpictureFilter implements ImageFilter {
 
             byte[] bytes = getYUVBytes(bY, bVU, imageNum);
             long captureStartTime = System.currentTimeMillis();
-            mNamedImages.nameNewImage(captureStartTime);
-            PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
+            CaptureNames.NamedEntity name = mNamedImages.allocate(captureStartTime);
             String title = (name == null) ? null : name.title;
             long date = (name == null) ? -1 : name.date;
             mActivity.getMediaSaveService().addImage(
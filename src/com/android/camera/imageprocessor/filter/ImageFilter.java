@@ -81,6 +81,15 @@ public interface ImageFilter {
         }
     }
 
+    /* Optional for frame listeners: limits used by FrameProcessor to pace the frames */
+    interface FrameBudget {
+        /* Highest frame rate the listener wants to see */
+        int getTargetFps();
+
+        /* Processing time in ms the listener may use per second of preview */
+        int getCostBudgetMs();
+    }
+
     /* Whether it is post proc filter or frame proc filter */
     boolean isFrameListener();
 
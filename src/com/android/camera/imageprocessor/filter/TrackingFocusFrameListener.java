@@ -42,12 +42,17 @@ import android.util.Size;
 import com.android.camera.CaptureModule;
 import com.android.camera.ui.FilmstripBottomControls;
 import com.android.camera.ui.TrackingFocusRenderer;
+import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 
-public class TrackingFocusFrameListener implements ImageFilter {
+public class TrackingFocusFrameListener implements ImageFilter, ImageFilter.FrameBudget {
 
     int mWidth;
     int mHeight;
@@ -59,12 +64,39 @@ public class TrackingFocusFrameListener implements ImageFilter {
     private Rect imageRect;
     public static final long PENDING_REGISTRATION = -1;
     public static final int MAX_NUM_TRACKED_OBJECTS = 3;
+    private static final int TARGET_FPS = 15;
+    private static final int COST_BUDGET_MS = 400;
+    // The copied window extends this many times the tracked size on each side.
+    private static final float ROI_PADDING_RATIO = 1.0f;
+    // Padding ratio added for every frame an object stays lost.
+    private static final float ROI_GROWTH_ON_LOSS = 1.0f;
+    // Copying only the tracked window, the property turns it off to copy full frames.
+    private static final boolean ROI_COPY_ENABLED = PersistUtil.isTrackingFocusRoiEnabled();
+    // Number of ints nTrackObjects returns per tracked object.
+    private static final int RESULT_SIZE = 6;
+    // Frames a face may stay lost before its slot is freed.
+    private static final int MAX_FACE_LOST_FRAMES = 15;
+    // Frames to wait before retrying face registration that left no face tracked.
+    private static final int FACE_REGISTER_INTERVAL = 15;
+    // Object picked by touch, shown by TrackingFocusRenderer.
     private long mTrackedId = PENDING_REGISTRATION;
+    // Remaining slots are filled with detected faces.
+    private final long[] mFaceIds = new long[MAX_NUM_TRACKED_OBJECTS - 1];
+    private final int[] mFaceLostFrames = new int[MAX_NUM_TRACKED_OBJECTS - 1];
+    private int mFaceRegisterDelay = 0;
     private boolean mIsInitialzed = false;
     private TrackingFocusRenderer mTrackingFocusRender;
     byte[] yvuBytes = null;
     private int[] mInputCords = null;
     private boolean mIsFirstTime = true;
+    // Window of the frame copied into yvuBytes for tracking, null for full frame.
+    private Rect mRoi = null;
+    private final Rect mRoiRect = new Rect();
+    // Area covering all tracked objects the last time none of them was lost.
+    private final Rect mLastTracked = new Rect();
+    private final Rect mUnion = new Rect();
+    private final Rect mFaceRect = new Rect();
+    private float mRoiPadding = ROI_PADDING_RATIO;
 
     public enum OperationMode {
         DEFAULT,
@@ -80,6 +112,7 @@ public class TrackingFocusFrameListener implements ImageFilter {
 
     public TrackingFocusFrameListener(CaptureModule module) {
         mModule = module;
+        Arrays.fill(mFaceIds, PENDING_REGISTRATION);
     }
 
     @Override
@@ -110,6 +143,8 @@ public class TrackingFocusFrameListener implements ImageFilter {
             imageRect = new Rect(0, 0, width, height);
             mTrackingFocusRender = mModule.getTrackingForcusRenderer();
             yvuBytes = new byte[mStrideY*mHeight*3/2];
+            mRoi = null;
+            mLastTracked.setEmpty();
             mIsInitialzed = true;
         }
     }
@@ -120,12 +155,14 @@ public class TrackingFocusFrameListener implements ImageFilter {
             nRelease();
             mIsInitialzed = false;
         }
+        mTrackedId = PENDING_REGISTRATION;
+        Arrays.fill(mFaceIds, PENDING_REGISTRATION);
+        mFaceRegisterDelay = 0;
+        mModule.onTrackedObjects(null, 0, 0);
     }
 
     @Override
     public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object isPreview) {
-        bY.get(yvuBytes, 0, bY.remaining());
-        bVU.get(yvuBytes, mStrideY * mHeight, bVU.remaining());
         int[] cords = mTrackingFocusRender.getInputCords(mWidth, mHeight);
         if(cords != null) {
             if(mTrackedId != PENDING_REGISTRATION) {
@@ -135,28 +172,223 @@ public class TrackingFocusFrameListener implements ImageFilter {
             mIsFirstTime = true;
             mInputCords = cords;
         }
-        if(mInputCords != null) {
-            if (mTrackedId == PENDING_REGISTRATION) {
-                try {
-                    mTrackedId = registerObject(yvuBytes, new Point(mInputCords[0], mInputCords[1]), mIsFirstTime);
-                    mIsFirstTime = false;
-                }catch(IllegalArgumentException e) {
-                    mTrackedId = PENDING_REGISTRATION;
-                    Log.e(TAG, e.toString());
-                }
+        boolean registerTouch = mInputCords != null && mTrackedId == PENDING_REGISTRATION;
+        // Registration copies the full frame, so don't retry it on every frame.
+        Rect[] faces = null;
+        if (!hasTrackedFaces()) {
+            if (mFaceRegisterDelay > 0) {
+                mFaceRegisterDelay--;
+            } else {
+                faces = getFaceRects();
             }
-            if(mTrackedId != PENDING_REGISTRATION) {
-                mTrackingFocusRender.putRegisteredCords(trackObjects(yvuBytes), mWidth, mHeight);
+        }
+        if (!registerTouch && faces == null && !isTracking()) {
+            return;
+        }
+        if (registerTouch || faces != null || mRoi == null) {
+            // Registration needs the whole frame, and so does tracking without a window.
+            copyFrame(bY, bVU);
+            mRoi = null;
+            mRoiPadding = ROI_PADDING_RATIO;
+        } else {
+            copyRoi(bY, bVU, mRoi);
+        }
+        if (registerTouch) {
+            try {
+                mTrackedId = registerObject(yvuBytes, new Point(mInputCords[0], mInputCords[1]), mIsFirstTime);
+                mIsFirstTime = false;
+            }catch(IllegalArgumentException e) {
+                mTrackedId = PENDING_REGISTRATION;
+                Log.e(TAG, e.toString());
+            }
+        }
+        if (faces != null) {
+            registerFaces(faces);
+            if (!hasTrackedFaces()) {
+                mFaceRegisterDelay = FACE_REGISTER_INTERVAL;
+            }
+        }
+        if (isTracking()) {
+            // One native pass updates every registered object.
+            onTrackingResults(trackObjects(yvuBytes));
+        }
+    }
+
+    private boolean isTracking() {
+        return mTrackedId != PENDING_REGISTRATION || hasTrackedFaces();
+    }
+
+    private boolean hasTrackedFaces() {
+        for (long id : mFaceIds) {
+            if (id != PENDING_REGISTRATION) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Detected faces mapped from sensor to preview frame coordinates */
+    private Rect[] getFaceRects() {
+        Face[] faces = mModule.getPreviewFaces();
+        Rect region = mModule.getCameraRegion();
+        if (faces == null || faces.length == 0 || region == null || region.isEmpty()) {
+            return null;
+        }
+        float widthRatio = (float) mWidth / region.width();
+        float heightRatio = (float) mHeight / region.height();
+        int count = Math.min(faces.length, mFaceIds.length);
+        Rect[] rects = new Rect[count];
+        for (int i = 0; i < count; i++) {
+            Rect bounds = faces[i].getBounds();
+            rects[i] = new Rect((int) (bounds.left * widthRatio), (int) (bounds.top * heightRatio),
+                    (int) (bounds.right * widthRatio), (int) (bounds.bottom * heightRatio));
+        }
+        return rects;
+    }
+
+    private void registerFaces(Rect[] faces) {
+        for (int i = 0; i < faces.length; i++) {
+            // Clip a copy, the caller's rects stay as they were.
+            Rect face = mFaceRect;
+            if (!face.setIntersect(faces[i], imageRect)) {
+                mFaceIds[i] = PENDING_REGISTRATION;
+                continue;
+            }
+            try {
+                mFaceIds[i] = registerObject(yvuBytes, face);
+                mFaceLostFrames[i] = 0;
+            } catch (IllegalArgumentException e) {
+                mFaceIds[i] = PENDING_REGISTRATION;
+                Log.e(TAG, e.toString());
             }
         }
     }
 
+    private void onTrackingResults(Result[] results) {
+        Result touchResult = null;
+        Rect union = null;
+        mUnion.setEmpty();
+        ArrayList<Result> ranked = new ArrayList<Result>(results.length);
+        for (Result result : results) {
+            boolean found = result.pos != null && !result.pos.isEmpty();
+            if (mTrackedId != PENDING_REGISTRATION && result.id == mTrackedId) {
+                touchResult = result;
+            }
+            if (!found) {
+                continue;
+            }
+            ranked.add(result);
+            mUnion.union(result.pos);
+            union = mUnion;
+        }
+        boolean lost = mTrackedId != PENDING_REGISTRATION
+                && findResult(ranked, mTrackedId) == null;
+        for (int i = 0; i < mFaceIds.length; i++) {
+            if (mFaceIds[i] == PENDING_REGISTRATION) {
+                continue;
+            }
+            if (findResult(ranked, mFaceIds[i]) != null) {
+                mFaceLostFrames[i] = 0;
+                continue;
+            }
+            lost = true;
+            if (++mFaceLostFrames[i] > MAX_FACE_LOST_FRAMES) {
+                unregisterObject(mFaceIds[i]);
+                mFaceIds[i] = PENDING_REGISTRATION;
+            }
+        }
+        // Grow the window while any object is lost so it can be found again.
+        updateRoi(union, lost);
+        Collections.sort(ranked, new Comparator<Result>() {
+            @Override
+            public int compare(Result a, Result b) {
+                return b.confidence - a.confidence;
+            }
+        });
+        mModule.onTrackedObjects(ranked.toArray(new Result[ranked.size()]), mWidth, mHeight);
+        if (mTrackedId != PENDING_REGISTRATION) {
+            // The renderer converts the position in place, so give it its own copy.
+            mTrackingFocusRender.putRegisteredCords(
+                    touchResult == null ? null : Result.Copy(touchResult), mWidth, mHeight);
+        }
+    }
+
+    private static Result findResult(ArrayList<Result> results, long id) {
+        for (Result result : results) {
+            if (result.id == id) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private void copyFrame(ByteBuffer bY, ByteBuffer bVU) {
+        bY.get(yvuBytes, 0, bY.remaining());
+        bVU.get(yvuBytes, mStrideY * mHeight, bVU.remaining());
+    }
+
+    /* Copies only the rows and columns of roi. The rest of yvuBytes keeps older
+     * frame content, which the tracker doesn't look at. */
+    private void copyRoi(ByteBuffer bY, ByteBuffer bVU, Rect roi) {
+        int width = roi.width();
+        for (int row = roi.top; row < roi.bottom; row++) {
+            int offset = row * mStrideY + roi.left;
+            bY.position(offset);
+            bY.get(yvuBytes, offset, Math.min(width, bY.limit() - offset));
+        }
+        int vuBase = mStrideY * mHeight;
+        for (int row = roi.top / 2; row < roi.bottom / 2; row++) {
+            int offset = row * mStrideVU + roi.left;
+            if (offset >= bVU.limit()) {
+                break;
+            }
+            bVU.position(offset);
+            bVU.get(yvuBytes, vuBase + offset, Math.min(width, bVU.limit() - offset));
+        }
+    }
+
+    /* Pads the area covering all tracked objects into the next copy window. While
+     * an object is lost the padding around the last tracked area grows linearly
+     * until the window covers the frame, after which full frames are copied. */
+    private void updateRoi(Rect pos, boolean lost) {
+        if (!ROI_COPY_ENABLED) {
+            return;
+        }
+        if (lost || pos == null) {
+            if (mRoi == null || mLastTracked.isEmpty()) {
+                mRoi = null;
+                return;
+            }
+            mRoiPadding += ROI_GROWTH_ON_LOSS;
+        } else {
+            mLastTracked.set(pos);
+            mRoiPadding = ROI_PADDING_RATIO;
+        }
+        Rect center = mLastTracked;
+        int padX = (int) (center.width() * mRoiPadding);
+        int padY = (int) (center.height() * mRoiPadding);
+        Rect roi = mRoiRect;
+        roi.set(center.left - padX, center.top - padY,
+                center.right + padX, center.bottom + padY);
+        if (!roi.intersect(imageRect) || roi.equals(imageRect)) {
+            mRoi = null;
+            return;
+        }
+        // Keep the window aligned to the 2x2 chroma subsampling.
+        roi.left &= ~1;
+        roi.top &= ~1;
+        roi.right = Math.min(imageRect.right, (roi.right + 1) & ~1);
+        roi.bottom = Math.min(imageRect.bottom, (roi.bottom + 1) & ~1);
+        mRoi = roi;
+    }
+
     public static class Result {
-        public final int id;
+        /* Same type as the ids returned when registering an object */
+        public final long id;
         public final int confidence;
         public Rect pos;
 
-        private Result(int id, int confidence, int left, int top, int right, int bottom) {
+        private Result(long id, int confidence, int left, int top, int right, int bottom) {
             this.id = id;
             this.confidence = confidence;
             this.pos = new Rect(left, top, right, bottom);
@@ -198,8 +430,7 @@ public class TrackingFocusFrameListener implements ImageFilter {
         if(id == 0) {
             id = PENDING_REGISTRATION;
         }
-        mTrackedId = id;
-        return mTrackedId;
+        return id;
     }
 
     public long registerObject(byte[] imageDataNV21, Point point, boolean firstTime)
@@ -216,8 +447,7 @@ public class TrackingFocusFrameListener implements ImageFilter {
         if(id == 0) {
             id = PENDING_REGISTRATION;
         }
-        mTrackedId = id;
-        return mTrackedId;
+        return id;
     }
 
     public void unregisterObject(long id)
@@ -230,7 +460,8 @@ public class TrackingFocusFrameListener implements ImageFilter {
         nUnregisterObject(id);
     }
 
-    public Result trackObjects(byte[] imageDataNV21)
+    /* Tracks every registered object in one pass */
+    public Result[] trackObjects(byte[] imageDataNV21)
     {
         if (imageDataNV21 == null || imageDataNV21.length < getMinFrameSize()) {
             Log.e(TAG, "imageDataNV21 null or too small to encode frame "
@@ -240,7 +471,40 @@ public class TrackingFocusFrameListener implements ImageFilter {
         }
 
         int[] nResults = nTrackObjects(imageDataNV21);
-        return new Result(nResults[0], nResults[1], nResults[2], nResults[3], nResults[4], nResults[5]);
+        if (nResults == null) {
+            return new Result[0];
+        }
+        if (nResults.length % RESULT_SIZE != 0) {
+            Log.e(TAG, "Unexpected tracking result length " + nResults.length);
+            return new Result[0];
+        }
+        int count = nResults.length / RESULT_SIZE;
+        ArrayList<Result> results = new ArrayList<Result>(count);
+        for (int i = 0; i < count; i++) {
+            int base = i * RESULT_SIZE;
+            if (!isRegistered(nResults[base])) {
+                Log.w(TAG, "Dropping result for unknown object " + nResults[base]);
+                continue;
+            }
+            results.add(new Result(nResults[base], nResults[base + 1], nResults[base + 2],
+                    nResults[base + 3], nResults[base + 4], nResults[base + 5]));
+        }
+        return results.toArray(new Result[results.size()]);
+    }
+
+    private boolean isRegistered(long id) {
+        if (id == PENDING_REGISTRATION) {
+            return false;
+        }
+        if (id == mTrackedId) {
+            return true;
+        }
+        for (long faceId : mFaceIds) {
+            if (faceId == id) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private int getMinFrameSize() {
@@ -266,6 +530,16 @@ public class TrackingFocusFrameListener implements ImageFilter {
         return true;
     }
 
+    @Override
+    public int getTargetFps() {
+        return TARGET_FPS;
+    }
+
+    @Override
+    public int getCostBudgetMs() {
+        return COST_BUDGET_MS;
+    }
+
     @Override
     public boolean isManualMode() {
         return false;
@@ -31,6 +31,7 @@ package com.android.camera.ui;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.hardware.camera2.params.Face;
 import android.os.Handler;
@@ -47,27 +48,68 @@ public class Camera2FaceView extends FaceView {
     private final int smile_threashold_small_smile = 60;
     private final int blink_threshold = 60;
 
-    private Face[] mFaces;
-    private ExtendedFace[] mExFaces;
+    // Faces onDraw() reads, swapped with the back buffer under mFaceLock.
+    private FaceSnapshot[] mFrontFaces = new FaceSnapshot[0];
+    private int mFrontCount;
+    private boolean mHasFaces;
+    // Filled by the writer outside the lock, never read by onDraw().
+    private FaceSnapshot[] mBackFaces = new FaceSnapshot[0];
+    private final Object mFaceLock = new Object();
     private Face[] mPendingFaces;
     private ExtendedFace[] mPendingExFaces;
     private Rect mCameraBound;
     private Rect mOriginalCameraBound;
     private float mZoom = 1.0f;
+    // Camera to [-1000, 1000] transforms, rebuilt when bounds or zoom change.
+    private final Matrix mTranslateMatrix = new Matrix();
+    private final Matrix mBsgcTranslateMatrix = new Matrix();
+    private int mTranslateWidth;
+    private int mTranslateHeight;
+    private float mTranslateZoom;
+    private final Rect mFaceBound = new Rect();
     private Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_SWITCH_FACES:
                     mStateSwitchPending = false;
-                    mFaces = mPendingFaces;
-                    mExFaces = mPendingExFaces;
+                    publishFaces(mPendingFaces, mPendingExFaces);
+                    mPendingFaces = null;
+                    mPendingExFaces = null;
                     invalidate();
                     break;
             }
         }
     };
 
+    /* The face fields onDraw() needs, copied out of the shared capture result */
+    private static class FaceSnapshot {
+        final Rect bounds = new Rect();
+        final Point leftEye = new Point();
+        final Point rightEye = new Point();
+        final Point mouth = new Point();
+        boolean hasLeftEye;
+        boolean hasRightEye;
+        boolean hasMouth;
+        int score;
+        ExtendedFace exFace;
+
+        void set(Face face, ExtendedFace extendedFace) {
+            bounds.set(face.getBounds());
+            score = face.getScore();
+            hasLeftEye = copy(face.leftEye, leftEye);
+            hasRightEye = copy(face.rightEye, rightEye);
+            hasMouth = copy(face.mouth, mouth);
+            exFace = extendedFace;
+        }
+
+        private static boolean copy(Point from, Point to) {
+            if (from == null) return false;
+            to.set(from.x, from.y);
+            return true;
+        }
+    }
+
     public Camera2FaceView(Context context, AttributeSet attrs) {
         super(context, attrs);
     }
@@ -87,9 +129,9 @@ public class Camera2FaceView extends FaceView {
     public void setFaces(Face[] faces, ExtendedFace[] extendedFaces) {
         if (LOGV) Log.v(TAG, "Num of faces=" + faces.length);
         if (mPause) return;
-        if (mFaces != null) {
-            if ((faces.length > 0 && mFaces.length == 0)
-                    || (faces.length == 0 && mFaces.length > 0)) {
+        if (mHasFaces) {
+            if ((faces.length > 0 && mFrontCount == 0)
+                    || (faces.length == 0 && mFrontCount > 0)) {
                 mPendingFaces = faces;
                 mPendingExFaces = extendedFaces;
                 if (!mStateSwitchPending) {
@@ -103,13 +145,37 @@ public class Camera2FaceView extends FaceView {
             mStateSwitchPending = false;
             mHandler.removeMessages(MSG_SWITCH_FACES);
         }
-        mFaces = faces;
-        mExFaces = extendedFaces;
-        if (!mBlocked && (mFaces != null) && (mFaces.length > 0) && mCameraBound != null) {
+        publishFaces(faces, extendedFaces);
+        if (!mBlocked && faces.length > 0 && mCameraBound != null) {
             invalidate();
         }
     }
 
+    /* Copies the faces into the back buffer and makes it the one onDraw() reads */
+    private void publishFaces(Face[] faces, ExtendedFace[] extendedFaces) {
+        int count = faces == null ? 0 : faces.length;
+        FaceSnapshot[] back = mBackFaces;
+        if (back.length < count) {
+            FaceSnapshot[] grown = new FaceSnapshot[count];
+            System.arraycopy(back, 0, grown, 0, back.length);
+            for (int i = back.length; i < count; i++) {
+                grown[i] = new FaceSnapshot();
+            }
+            back = grown;
+        }
+        for (int i = 0; i < count; i++) {
+            ExtendedFace exFace = extendedFaces != null && i < extendedFaces.length
+                    ? extendedFaces[i] : null;
+            back[i].set(faces[i], exFace);
+        }
+        synchronized (mFaceLock) {
+            mBackFaces = mFrontFaces;
+            mFrontFaces = back;
+            mFrontCount = count;
+            mHasFaces = faces != null;
+        }
+    }
+
     private boolean isFDRectOutOfBound(Rect faceRect) {
         return mCameraBound.left > faceRect.left || mCameraBound.top > faceRect.top ||
                 faceRect.right > mCameraBound.right || faceRect.bottom > mCameraBound.bottom;
@@ -117,12 +183,21 @@ public class Camera2FaceView extends FaceView {
 
     @Override
     public boolean faceExists() {
-        return (mFaces != null && mFaces.length > 0);
+        synchronized (mFaceLock) {
+            return mFrontCount > 0;
+        }
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        if (!mBlocked && (mFaces != null) && (mFaces.length > 0) && mCameraBound != null) {
+        synchronized (mFaceLock) {
+            drawFaces(canvas, mFrontFaces, mFrontCount);
+        }
+        super.onDraw(canvas);
+    }
+
+    private void drawFaces(Canvas canvas, FaceSnapshot[] faces, int count) {
+        if (!mBlocked && count > 0 && mCameraBound != null) {
             int rw, rh;
             rw = mUncroppedWidth;
             rh = mUncroppedHeight;
@@ -139,36 +214,26 @@ public class Camera2FaceView extends FaceView {
                     rw = rh * mCameraBound.height() / mCameraBound.width();
                 }
             }
-            CameraUtil.prepareMatrix(mMatrix, mMirror, mDisplayOrientation, rw, rh);
-
-            // mMatrix assumes that the face coordinates are from -1000 to 1000.
-            // so translate the face coordination to match the assumption.
-            Matrix translateMatrix = new Matrix();
-            translateMatrix.preTranslate(-mCameraBound.width() / 2f, -mCameraBound.height() / 2f);
-            translateMatrix.postScale(2000f / mCameraBound.width(), 2000f / mCameraBound.height());
-
-            Matrix bsgcTranslateMatrix = new Matrix();
-            bsgcTranslateMatrix.preTranslate(-mCameraBound.width() / 2f * mZoom,
-                    -mCameraBound.height() / 2f * mZoom);
-            bsgcTranslateMatrix.postScale(2000f / mCameraBound.width(),
-                    2000f / mCameraBound.height());
+            updateMatrix(rw, rh);
+            updateTranslateMatrix();
+            Matrix translateMatrix = mTranslateMatrix;
+            Matrix bsgcTranslateMatrix = mBsgcTranslateMatrix;
 
             int dx = (getWidth() - mUncroppedWidth) / 2;
             dx -= (rw - mUncroppedWidth) / 2;
             int dy = (getHeight() - mUncroppedHeight) / 2;
             dy -= (rh - mUncroppedHeight) / 2;
 
-            // Focus indicator is directional. Rotate the matrix and the canvas
-            // so it looks correctly in all orientations.
+            // Focus indicator is directional. The matrix is rotated, rotate the
+            // canvas as well so it looks correctly in all orientations.
             canvas.save();
-            mMatrix.postRotate(mOrientation); // postRotate is clockwise
             canvas.rotate(-mOrientation); // rotate is counter-clockwise (for canvas)
 
-            int extendFaceSize = 0;
-            extendFaceSize = mExFaces == null? 0 : mExFaces.length;
-            for (int i = 0; i < mFaces.length; i++) {
-                if (mFaces[i].getScore() < 50) continue;
-                Rect faceBound = mFaces[i].getBounds();
+            for (int i = 0; i < count; i++) {
+                if (faces[i].score < 50) continue;
+                // Offset a copy, the snapshot bounds must stay as reported.
+                Rect faceBound = mFaceBound;
+                faceBound.set(faces[i].bounds);
                 faceBound.offset(-mOriginalCameraBound.left, -mOriginalCameraBound.top);
                 if (isFDRectOutOfBound(faceBound)) continue;
                 mRect.set(faceBound);
@@ -186,30 +251,30 @@ public class Camera2FaceView extends FaceView {
                 mRect.offset(dx, dy);
                 canvas.drawRect(mRect, mPaint);
 
-                if (i < extendFaceSize && mExFaces[i] != null) {
-                    ExtendedFace exFace = mExFaces[i];
-                    Face face = mFaces[i];
-                    float[] point = new float[4];
+                if (faces[i].exFace != null) {
+                    ExtendedFace exFace = faces[i].exFace;
+                    FaceSnapshot face = faces[i];
+                    float[] point = mPoint;
                     int delta_x = faceBound.width() / 12;
                     int delta_y = faceBound.height() / 12;
 
                     delta_x = (int)(delta_x * mZoom);
                     delta_y = (int)(delta_y * mZoom);
 
-                    Log.e(TAG, "blink: (" + exFace.getLeyeBlink()+ ", " +
+                    if (LOGV) Log.v(TAG, "blink: (" + exFace.getLeyeBlink()+ ", " +
                             exFace.getReyeBlink() + ")");
-                    if (face.getLeftEyePosition() != null) {
+                    if (face.hasLeftEye) {
                         if ((mDisplayRotation == 0) ||
                                 (mDisplayRotation == 180)) {
-                            point[0] = face.getLeftEyePosition().x;
-                            point[1] = face.getLeftEyePosition().y - delta_y / 2;
-                            point[2] = face.getLeftEyePosition().x;
-                            point[3] = face.getLeftEyePosition().y + delta_y / 2;
+                            point[0] = face.leftEye.x;
+                            point[1] = face.leftEye.y - delta_y / 2;
+                            point[2] = face.leftEye.x;
+                            point[3] = face.leftEye.y + delta_y / 2;
                         } else {
-                            point[0] = face.getLeftEyePosition().x - delta_x / 2;
-                            point[1] = face.getLeftEyePosition().y;
-                            point[2] = face.getLeftEyePosition().x + delta_x / 2;
-                            point[3] = face.getLeftEyePosition().y;
+                            point[0] = face.leftEye.x - delta_x / 2;
+                            point[1] = face.leftEye.y;
+                            point[2] = face.leftEye.x + delta_x / 2;
+                            point[3] = face.leftEye.y;
                         }
                         bsgcTranslateMatrix.mapPoints(point);
                         mMatrix.mapPoints (point);
@@ -218,18 +283,18 @@ public class Camera2FaceView extends FaceView {
                                     point[2]+ dx, point[3]+ dy, mPaint);
                         }
                     }
-                    if (face.getRightEyePosition() != null) {
+                    if (face.hasRightEye) {
                         if ((mDisplayRotation == 0) ||
                                 (mDisplayRotation == 180)) {
-                            point[0] = face.getRightEyePosition().x;
-                            point[1] = face.getRightEyePosition().y - delta_y / 2;
-                            point[2] = face.getRightEyePosition().x;
-                            point[3] = face.getRightEyePosition().y + delta_y / 2;
+                            point[0] = face.rightEye.x;
+                            point[1] = face.rightEye.y - delta_y / 2;
+                            point[2] = face.rightEye.x;
+                            point[3] = face.rightEye.y + delta_y / 2;
                         } else {
-                            point[0] = face.getRightEyePosition().x - delta_x / 2;
-                            point[1] = face.getRightEyePosition().y;
-                            point[2] = face.getRightEyePosition().x + delta_x / 2;
-                            point[3] = face.getRightEyePosition().y;
+                            point[0] = face.rightEye.x - delta_x / 2;
+                            point[1] = face.rightEye.y;
+                            point[2] = face.rightEye.x + delta_x / 2;
+                            point[3] = face.rightEye.y;
                         }
                         bsgcTranslateMatrix.mapPoints(point);
                         mMatrix.mapPoints (point);
@@ -240,14 +305,14 @@ public class Camera2FaceView extends FaceView {
                         }
                     }
 
-                    if (exFace.getLeftrightGaze() != 0
-                            || exFace.getTopbottomGaze() != 0 ) {
+                    if (face.hasLeftEye && face.hasRightEye && (exFace.getLeftrightGaze() != 0
+                            || exFace.getTopbottomGaze() != 0)) {
 
                         double length =
-                                Math.sqrt((face.getLeftEyePosition().x - face.getRightEyePosition().x) *
-                                        (face.getLeftEyePosition().x - face.getRightEyePosition().x) +
-                                        (face.getLeftEyePosition().y - face.getRightEyePosition().y) *
-                                                (face.getLeftEyePosition().y - face.getRightEyePosition().y)) / 2.0;
+                                Math.sqrt((face.leftEye.x - face.rightEye.x) *
+                                        (face.leftEye.x - face.rightEye.x) +
+                                        (face.leftEye.y - face.rightEye.y) *
+                                                (face.leftEye.y - face.rightEye.y)) / 2.0;
                         double nGazeYaw = -exFace.getLeftrightGaze();
                         double nGazePitch = -exFace.getTopbottomGaze();
                         float gazeRollX =
@@ -272,15 +337,15 @@ public class Camera2FaceView extends FaceView {
                         if (exFace.getLeyeBlink() < blink_threshold) {
                             if ((mDisplayRotation == 90) ||
                                     (mDisplayRotation == 270)) {
-                                point[0] = face.getLeftEyePosition().x;
-                                point[1] = face.getLeftEyePosition().y;
-                                point[2] = face.getLeftEyePosition().x + gazeRollX;
-                                point[3] = face.getLeftEyePosition().y + gazeRollY;
+                                point[0] = face.leftEye.x;
+                                point[1] = face.leftEye.y;
+                                point[2] = face.leftEye.x + gazeRollX;
+                                point[3] = face.leftEye.y + gazeRollY;
                             } else {
-                                point[0] = face.getLeftEyePosition().x;
-                                point[1] = face.getLeftEyePosition().y;
-                                point[2] = face.getLeftEyePosition().x + gazeRollY;
-                                point[3] = face.getLeftEyePosition().y + gazeRollX;
+                                point[0] = face.leftEye.x;
+                                point[1] = face.leftEye.y;
+                                point[2] = face.leftEye.x + gazeRollY;
+                                point[3] = face.leftEye.y + gazeRollX;
                             }
                             bsgcTranslateMatrix.mapPoints(point);
                             mMatrix.mapPoints (point);
@@ -291,15 +356,15 @@ public class Camera2FaceView extends FaceView {
                         if (exFace.getReyeBlink() < blink_threshold) {
                             if ((mDisplayRotation == 90) ||
                                     (mDisplayRotation == 270)) {
-                                point[0] = face.getRightEyePosition().x;
-                                point[1] = face.getRightEyePosition().y;
-                                point[2] = face.getRightEyePosition().x + gazeRollX;
-                                point[3] = face.getRightEyePosition().y + gazeRollY;
+                                point[0] = face.rightEye.x;
+                                point[1] = face.rightEye.y;
+                                point[2] = face.rightEye.x + gazeRollX;
+                                point[3] = face.rightEye.y + gazeRollY;
                             } else {
-                                point[0] = face.getRightEyePosition().x;
-                                point[1] = face.getRightEyePosition().y;
-                                point[2] = face.getRightEyePosition().x + gazeRollY;
-                                point[3] = face.getRightEyePosition().y + gazeRollX;
+                                point[0] = face.rightEye.x;
+                                point[1] = face.rightEye.y;
+                                point[2] = face.rightEye.x + gazeRollY;
+                                point[3] = face.rightEye.y + gazeRollX;
                             }
                             bsgcTranslateMatrix.mapPoints(point);
                             mMatrix.mapPoints (point);
@@ -308,17 +373,18 @@ public class Camera2FaceView extends FaceView {
                         }
                     }
 
-                    if (face.getMouthPosition() != null) {
-                        Log.e(TAG, "smile: " + exFace.getSmileDegree() + "," +
+                    if (face.hasMouth) {
+                        if (LOGV) Log.v(TAG, "smile: " + exFace.getSmileDegree() + "," +
                                 exFace.getSmileConfidence());
                         if (exFace.getSmileDegree() < smile_threashold_no_smile) {
-                            point[0] = face.getMouthPosition().x + dx - delta_x;
-                            point[1] = face.getMouthPosition().y;
-                            point[2] = face.getMouthPosition().x + dx + delta_x;
-                            point[3] = face.getMouthPosition().y;
-                            Matrix faceMatrix = new Matrix();
+                            point[0] = face.mouth.x + dx - delta_x;
+                            point[1] = face.mouth.y;
+                            point[2] = face.mouth.x + dx + delta_x;
+                            point[3] = face.mouth.y;
+                            Matrix faceMatrix = mFaceMatrix;
+                            faceMatrix.reset();
                             faceMatrix.preRotate(exFace.getRollDirection(),
-                                    face.getMouthPosition().x, face.getMouthPosition().y);
+                                    face.mouth.x, face.mouth.y);
                             faceMatrix.mapPoints(point);
                             bsgcTranslateMatrix.mapPoints(point);
                             mMatrix.mapPoints(point);
@@ -327,18 +393,18 @@ public class Camera2FaceView extends FaceView {
                         } else if (exFace.getSmileDegree() <
                                 smile_threashold_small_smile) {
                             int rotation_mouth = 360 - mDisplayRotation;
-                            mRect.set(face.getMouthPosition().x-delta_x,
-                                    face.getMouthPosition().y-delta_y, face.getMouthPosition().x+delta_x,
-                                    face.getMouthPosition().y+delta_y);
+                            mRect.set(face.mouth.x-delta_x,
+                                    face.mouth.y-delta_y, face.mouth.x+delta_x,
+                                    face.mouth.y+delta_y);
                             bsgcTranslateMatrix.mapRect(mRect);
                             mMatrix.mapRect(mRect);
                             mRect.offset(dx, dy);
                             canvas.drawArc(mRect, rotation_mouth,
                                     180, true, mPaint);
                         } else {
-                            mRect.set(face.getMouthPosition().x-delta_x,
-                                    face.getMouthPosition().y-delta_y, face.getMouthPosition().x+delta_x,
-                                    face.getMouthPosition().y+delta_y);
+                            mRect.set(face.mouth.x-delta_x,
+                                    face.mouth.y-delta_y, face.mouth.x+delta_x,
+                                    face.mouth.y+delta_y);
                             bsgcTranslateMatrix.mapRect(mRect);
                             mMatrix.mapRect(mRect);
                             mRect.offset(dx, dy);
@@ -349,7 +415,27 @@ public class Camera2FaceView extends FaceView {
             }
             canvas.restore();
         }
-        super.onDraw(canvas);
+    }
+
+    private void updateTranslateMatrix() {
+        int width = mCameraBound.width();
+        int height = mCameraBound.height();
+        if (width == mTranslateWidth && height == mTranslateHeight
+                && mZoom == mTranslateZoom) {
+            return;
+        }
+        // mMatrix assumes that the face coordinates are from -1000 to 1000.
+        // so translate the face coordination to match the assumption.
+        mTranslateMatrix.reset();
+        mTranslateMatrix.preTranslate(-width / 2f, -height / 2f);
+        mTranslateMatrix.postScale(2000f / width, 2000f / height);
+
+        mBsgcTranslateMatrix.reset();
+        mBsgcTranslateMatrix.preTranslate(-width / 2f * mZoom, -height / 2f * mZoom);
+        mBsgcTranslateMatrix.postScale(2000f / width, 2000f / height);
+        mTranslateWidth = width;
+        mTranslateHeight = height;
+        mTranslateZoom = mZoom;
     }
 
     @Override
@@ -357,8 +443,7 @@ public class Camera2FaceView extends FaceView {
         // Face indicator is displayed during preview. Do not clear the
         // drawable.
         mColor = mFocusingColor;
-        mFaces = null;
-        mExFaces = null;
+        publishFaces(null, null);
         invalidate();
     }
 }
@@ -42,6 +42,7 @@ import com.android.camera.ui.ModuleSwitcher;
 import com.android.camera.ui.RotateImageView;
 import com.android.camera.ShutterButton;
 import com.android.camera.Storage;
+import com.android.camera.StorageSpaceTracker;
 import com.android.camera.util.CameraUtil;
 import com.android.camera.TsMakeupManager;
 
@@ -1050,7 +1051,8 @@ public class CameraControls extends RotatableLayout {
     }
 
     public void updateRemainingPhotos(int remaining) {
-        long remainingStorage = Storage.getAvailableSpace() - Storage.LOW_STORAGE_THRESHOLD_BYTES;
+        long remainingStorage = StorageSpaceTracker.getAvailableSpace()
+                - Storage.LOW_STORAGE_THRESHOLD_BYTES;
         if ((remaining < 0 && remainingStorage <= 0) || mHideRemainingPhoto) {
             mRemainingPhotos.setVisibility(View.GONE);
         } else {
@@ -54,6 +54,13 @@ public class FaceView extends View
     protected boolean mPause;
     protected Matrix mMatrix = new Matrix();
     protected RectF mRect = new RectF();
+    // Scratch state reused by every draw.
+    protected final float[] mPoint = new float[4];
+    protected final Matrix mFaceMatrix = new Matrix();
+    // mMatrix is rebuilt only when one of its inputs changed.
+    protected boolean mMatrixDirty = true;
+    private int mMatrixWidth;
+    private int mMatrixHeight;
     // As face detection can be flaky, we add a layer of filtering on top of it
     // to avoid rapid changes in state (eg, flickering between has faces and
     // not having faces)
@@ -110,6 +117,7 @@ public class FaceView extends View
     public void onSurfaceTextureSizeChanged(int uncroppedWidth, int uncroppedHeight) {
         mUncroppedWidth = uncroppedWidth;
         mUncroppedHeight = uncroppedHeight;
+        mMatrixDirty = true;
     }
 
     public void setFaces(Face[] faces) {
@@ -139,17 +147,20 @@ public class FaceView extends View
 
     public void setDisplayOrientation(int orientation) {
         mDisplayOrientation = orientation;
+        mMatrixDirty = true;
         if (LOGV) Log.v(TAG, "mDisplayOrientation=" + orientation);
     }
 
     @Override
     public void setOrientation(int orientation, boolean animation) {
         mOrientation = orientation;
+        mMatrixDirty = true;
         invalidate();
     }
 
     public void setMirror(boolean mirror) {
         mMirror = mirror;
+        mMatrixDirty = true;
         if (LOGV) Log.v(TAG, "mMirror=" + mirror);
     }
 
@@ -201,6 +212,19 @@ public class FaceView extends View
     public void setDisplayRotation(int orientation) {
         mDisplayRotation = orientation;
     }
+
+    /**
+     * Rebuilds mMatrix for a rw x rh preview, including the indicator
+     * rotation, if it or the display state changed since the last draw.
+     */
+    protected void updateMatrix(int rw, int rh) {
+        if (!mMatrixDirty && rw == mMatrixWidth && rh == mMatrixHeight) return;
+        CameraUtil.prepareMatrix(mMatrix, mMirror, mDisplayOrientation, rw, rh);
+        mMatrix.postRotate(mOrientation); // postRotate is clockwise
+        mMatrixWidth = rw;
+        mMatrixHeight = rh;
+        mMatrixDirty = false;
+    }
     @Override
     protected void onDraw(Canvas canvas) {
         if (!mBlocked && (mFaces != null) && (mFaces.length > 0)) {
@@ -214,14 +238,13 @@ public class FaceView extends View
                 rw = rh;
                 rh = temp;
             }
-            CameraUtil.prepareMatrix(mMatrix, mMirror, mDisplayOrientation, rw, rh);
+            updateMatrix(rw, rh);
             int dx = (getWidth() - rw) / 2;;
             int dy = (getHeight() - rh) / 2;
 
-            // Focus indicator is directional. Rotate the matrix and the canvas
-            // so it looks correctly in all orientations.
+            // Focus indicator is directional. The matrix is rotated, rotate the
+            // canvas as well so it looks correctly in all orientations.
             canvas.save();
-            mMatrix.postRotate(mOrientation); // postRotate is clockwise
             canvas.rotate(-mOrientation); // rotate is counter-clockwise (for canvas)
             for (int i = 0; i < mFaces.length; i++) {
                 // Filter out false positives.
@@ -237,10 +260,10 @@ public class FaceView extends View
                 canvas.drawOval(mRect, mPaint);
 
                 if (ExtendedFaceWrapper.isExtendedFaceInstance(mFaces[i])) {
-                    float[] point = new float[4];
+                    float[] point = mPoint;
                     int delta_x = mFaces[i].rect.width() / 12;
                     int delta_y = mFaces[i].rect.height() / 12;
-                    Log.e(TAG, "blink: (" + ExtendedFaceWrapper.getLeftEyeBlinkDegree(mFaces[i])+ ", " +
+                    if (LOGV) Log.v(TAG, "blink: (" + ExtendedFaceWrapper.getLeftEyeBlinkDegree(mFaces[i])+ ", " +
                             ExtendedFaceWrapper.getRightEyeBlinkDegree(mFaces[i]) + ")");
                     if (mFaces[i].leftEye != null) {
                         if ((mDisplayRotation == 0) ||
@@ -351,7 +374,7 @@ public class FaceView extends View
                     }
 
                     if (mFaces[i].mouth != null) {
-                        Log.e(TAG, "smile: " + ExtendedFaceWrapper.getSmileDegree(mFaces[i]) + "," +
+                        if (LOGV) Log.v(TAG, "smile: " + ExtendedFaceWrapper.getSmileDegree(mFaces[i]) + "," +
                                 ExtendedFaceWrapper.getSmileScore(mFaces[i]));
                         if (ExtendedFaceWrapper.getSmileDegree(mFaces[i]) < smile_threashold_no_smile) {
                             point[0] = mFaces[i].mouth.x + dx - delta_x;
@@ -359,7 +382,8 @@ public class FaceView extends View
                             point[2] = mFaces[i].mouth.x + dx + delta_x;
                             point[3] = mFaces[i].mouth.y;
 
-                            Matrix faceMatrix = new Matrix(mMatrix);
+                            Matrix faceMatrix = mFaceMatrix;
+                            faceMatrix.set(mMatrix);
                             faceMatrix.preRotate(ExtendedFaceWrapper.getRollDirection(mFaces[i]),
                                     mFaces[i].mouth.x, mFaces[i].mouth.y);
                             faceMatrix.mapPoints(point);
@@ -40,6 +40,7 @@ import android.widget.TextView;
 import com.android.camera.CaptureModule;
 import com.android.camera.SettingsManager;
 import com.android.camera.Storage;
+import com.android.camera.StorageSpaceTracker;
 import com.android.camera.imageprocessor.filter.BeautificationFilter;
 
 import org.codeaurora.snapcam.R;
@@ -462,7 +463,8 @@ public class OneUICameraControls extends RotatableLayout {
     }
 
     public void updateRemainingPhotos(int remaining) {
-        long remainingStorage = Storage.getAvailableSpace() - Storage.LOW_STORAGE_THRESHOLD_BYTES;
+        long remainingStorage = StorageSpaceTracker.getAvailableSpace()
+                - Storage.LOW_STORAGE_THRESHOLD_BYTES;
         if ((remaining < 0 && remainingStorage <= 0) || mHideRemainingPhoto) {
             mRemainingPhotos.setVisibility(View.GONE);
         } else {
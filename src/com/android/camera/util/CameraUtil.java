@@ -75,6 +75,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.content.Context.MODE_PRIVATE;
 
@@ -871,15 +872,11 @@ public class CameraUtil {
     }
 
     public static String createJpegName(long dateTaken, boolean refocus) {
-        synchronized (sImageFileNamer) {
-            return sImageFileNamer.generateName(dateTaken, refocus);
-        }
+        return sImageFileNamer.generateName(dateTaken, refocus);
     }
 
     public static String createJpegName(long dateTaken) {
-        synchronized (sImageFileNamer) {
-            return sImageFileNamer.generateName(dateTaken, false);
-        }
+        return sImageFileNamer.generateName(dateTaken, false);
     }
 
     public static void broadcastNewPicture(Context context, Uri uri) {
@@ -1102,7 +1099,9 @@ public class CameraUtil {
     }
 
     private static class ImageFileNamer {
-        private final SimpleDateFormat mFormat;
+        private static final int SAME_SECOND_BITS = 16;
+
+        private final ThreadLocal<SimpleDateFormat> mFormat;
 
         private final int REFOCUS_DEPTHMAP_IDX = 5;
         private final String REFOCUS_DEPTHMAP_SUFFIX = "DepthMap";
@@ -1110,45 +1109,59 @@ public class CameraUtil {
         private final String REFOCUS_ALLFOCUS_SUFFIX = "Allfocus";
         private int mRefocusIdx = 0;
 
-        // The date (in milliseconds) used to generate the last name.
-        private long mLastDate;
+        // The second used to generate the last name in the high bits and the
+        // number of names generated for that second in the low bits, so
+        // burst shots from several threads can be numbered without a lock.
+        private final AtomicLong mLastSecond = new AtomicLong();
 
-        // Number of names generated for the same second.
-        private int mSameSecondCount;
-
-        public ImageFileNamer(String format) {
-            mFormat = new SimpleDateFormat(format);
+        public ImageFileNamer(final String format) {
+            mFormat = new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat(format);
+                }
+            };
         }
 
         public String generateName(long dateTaken, boolean refocus) {
             Date date = new Date(dateTaken);
-            String result = mFormat.format(date);
+            String result = mFormat.get().format(date);
 
             if (refocus) {
-                if (mRefocusIdx == REFOCUS_DEPTHMAP_IDX) {
-                    result += "_" + REFOCUS_DEPTHMAP_SUFFIX;
-                    mRefocusIdx++;
-                } else if (mRefocusIdx == REFOCUS_ALLFOCUS_IDX) {
-                    result += "_" + REFOCUS_ALLFOCUS_SUFFIX;
-                    mRefocusIdx = 0;
-                } else {
-                    result += "_" + mRefocusIdx;
-                    mRefocusIdx++;
+                synchronized (this) {
+                    if (mRefocusIdx == REFOCUS_DEPTHMAP_IDX) {
+                        result += "_" + REFOCUS_DEPTHMAP_SUFFIX;
+                        mRefocusIdx++;
+                    } else if (mRefocusIdx == REFOCUS_ALLFOCUS_IDX) {
+                        result += "_" + REFOCUS_ALLFOCUS_SUFFIX;
+                        mRefocusIdx = 0;
+                    } else {
+                        result += "_" + mRefocusIdx;
+                        mRefocusIdx++;
+                    }
                 }
             } else {
                 // If the last name was generated for the same second,
                 // we append _1, _2, etc to the name.
-                if (dateTaken / 1000 == mLastDate / 1000) {
-                    mSameSecondCount++;
-                    result += "_" + mSameSecondCount;
-                } else {
-                    mLastDate = dateTaken;
-                    mSameSecondCount = 0;
+                int count = nextSameSecondCount(dateTaken / 1000);
+                if (count > 0) {
+                    result += "_" + count;
                 }
             }
 
             return result;
         }
+
+        private int nextSameSecondCount(long second) {
+            while (true) {
+                long last = mLastSecond.get();
+                long next = (last >> SAME_SECOND_BITS) == second
+                        ? last + 1 : second << SAME_SECOND_BITS;
+                if (mLastSecond.compareAndSet(last, next)) {
+                    return (int) (next & ((1 << SAME_SECOND_BITS) - 1));
+                }
+            }
+        }
     }
 
     public static void playVideo(Activity activity, Uri uri, String title) {
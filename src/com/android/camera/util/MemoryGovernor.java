@@ -0,0 +1,245 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.util;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.media.ImageReader;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps count of the memory held by capture buffers (image readers, pooled
+ * NV21 buffers and the save queue) and turns it, together with the free heap
+ * and the system's trim signals, into a pressure level and a headroom figure
+ * the capture code checks before allocating or queueing more frames.
+ */
+public class MemoryGovernor {
+    private static final String TAG = "SnapCam_MemoryGovernor";
+
+    public static final int PRESSURE_NONE = 0;
+    public static final int PRESSURE_MODERATE = 1;
+    public static final int PRESSURE_CRITICAL = 2;
+
+    /* Buffers allocated by the camera HAL or the graphics stack, outside the heap */
+    public static final int KIND_DIRECT = 0;
+    /* Java arrays and heap buffers */
+    public static final int KIND_HEAP = 1;
+
+    /* Trim signals are not cancelled by the system, so they expire after this */
+    private static final long TRIM_HOLD_MS = 5000;
+    /* ActivityManager.getMemoryInfo() is a binder call, do not sample more often */
+    private static final long SYSTEM_SAMPLE_MS = 500;
+    private static final int MIN_READER_IMAGES = 2;
+
+    public interface Trimmable {
+        /* Called when the pressure rises, drop anything that can be reallocated later */
+        void onTrim(int pressure);
+    }
+
+    private static MemoryGovernor sInstance;
+
+    private final Map<Object, long[]> mTracked = new IdentityHashMap<>();
+    private final List<Trimmable> mTrimmables = new ArrayList<>();
+    private final long mMinHeadroom;
+    private final boolean mSkipCheck;
+    private ActivityManager mActivityManager;
+    private final ActivityManager.MemoryInfo mMemoryInfo = new ActivityManager.MemoryInfo();
+
+    private long mDirectBytes;
+    private long mHeapBytes;
+    private int mTrimPressure = PRESSURE_NONE;
+    private long mTrimTime;
+    private long mSystemHeadroom = Long.MAX_VALUE;
+    private long mSystemSampleTime;
+
+    private MemoryGovernor() {
+        mMinHeadroom = PersistUtil.getMemoryLimit() * 1024L * 1024L;
+        mSkipCheck = PersistUtil.getSkipMemoryCheck();
+    }
+
+    public static synchronized MemoryGovernor get() {
+        if (sInstance == null) {
+            sInstance = new MemoryGovernor();
+        }
+        return sInstance;
+    }
+
+    public synchronized void init(Context context) {
+        if (mActivityManager == null) {
+            mActivityManager = (ActivityManager) context.getApplicationContext()
+                    .getSystemService(Context.ACTIVITY_SERVICE);
+        }
+    }
+
+    public synchronized void addTrimmable(Trimmable trimmable) {
+        if (!mTrimmables.contains(trimmable)) {
+            mTrimmables.add(trimmable);
+        }
+    }
+
+    public synchronized void removeTrimmable(Trimmable trimmable) {
+        mTrimmables.remove(trimmable);
+    }
+
+    /** Records bytes held by owner, replacing what it held before. */
+    public synchronized void track(Object owner, int kind, long bytes) {
+        untrack(owner);
+        mTracked.put(owner, new long[] {kind, bytes});
+        adjust(kind, bytes);
+    }
+
+    public synchronized void untrack(Object owner) {
+        long[] entry = mTracked.remove(owner);
+        if (entry != null) {
+            adjust((int) entry[0], -entry[1]);
+        }
+    }
+
+    /** Adds to or removes from a running total that has no single owner, like the save queue. */
+    public synchronized void adjust(int kind, long delta) {
+        if (kind == KIND_DIRECT) {
+            mDirectBytes += delta;
+        } else {
+            mHeapBytes += delta;
+        }
+    }
+
+    public void trackImageReader(ImageReader reader) {
+        track(reader, KIND_DIRECT, getImageBytes(reader.getWidth(), reader.getHeight(),
+                reader.getImageFormat()) * reader.getMaxImages());
+    }
+
+    public static long getImageBytes(int width, int height, int format) {
+        int bits = ImageFormat.getBitsPerPixel(format);
+        if (bits <= 0) {
+            /* JPEG and PRIVATE do not report a depth, size them as YUV */
+            bits = 12;
+        }
+        return (long) width * height * bits / 8;
+    }
+
+    /**
+     * Returns how many images a reader of this size may hold, at least two,
+     * fewer than asked for while the system is short of memory.
+     */
+    public int getMaxImages(int requested, int width, int height, int format) {
+        if (requested <= MIN_READER_IMAGES || getPressure() == PRESSURE_NONE) {
+            return requested;
+        }
+        long headroom = Math.max(getHeadroom(), 0);
+        long images = headroom / Math.max(getImageBytes(width, height, format), 1);
+        return (int) Math.max(MIN_READER_IMAGES, Math.min(requested, images));
+    }
+
+    public synchronized long getTrackedBytes(int kind) {
+        return kind == KIND_DIRECT ? mDirectBytes : mHeapBytes;
+    }
+
+    /**
+     * Bytes that can still be allocated before reaching the configured
+     * memory limit, the smaller of the heap and the system figure.
+     */
+    public synchronized long getHeadroom() {
+        Runtime runtime = Runtime.getRuntime();
+        long heap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return Math.min(heap, sampleSystemHeadroom()) - mMinHeadroom;
+    }
+
+    public synchronized int getPressure() {
+        if (mSkipCheck) {
+            return PRESSURE_NONE;
+        }
+        int pressure = PRESSURE_NONE;
+        if (SystemClock.uptimeMillis() - mTrimTime < TRIM_HOLD_MS) {
+            pressure = mTrimPressure;
+        }
+        long headroom = getHeadroom();
+        if (headroom < 0) {
+            pressure = PRESSURE_CRITICAL;
+        } else if (headroom < mMinHeadroom) {
+            pressure = Math.max(pressure, PRESSURE_MODERATE);
+        }
+        return pressure;
+    }
+
+    public void onTrimMemory(int level) {
+        int pressure;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            pressure = PRESSURE_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            pressure = PRESSURE_MODERATE;
+        } else {
+            return;
+        }
+        raise(pressure);
+    }
+
+    public void onLowMemory() {
+        raise(PRESSURE_CRITICAL);
+    }
+
+    private void raise(int pressure) {
+        Trimmable[] trimmables;
+        synchronized (this) {
+            mTrimPressure = pressure;
+            mTrimTime = SystemClock.uptimeMillis();
+            mSystemSampleTime = 0;
+            trimmables = mTrimmables.toArray(new Trimmable[mTrimmables.size()]);
+            Log.w(TAG, "memory pressure " + pressure + ", tracked direct " + mDirectBytes
+                    + " heap " + mHeapBytes);
+        }
+        for (Trimmable trimmable : trimmables) {
+            trimmable.onTrim(pressure);
+        }
+    }
+
+    private long sampleSystemHeadroom() {
+        if (mActivityManager == null) {
+            return Long.MAX_VALUE;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (now - mSystemSampleTime >= SYSTEM_SAMPLE_MS) {
+            mActivityManager.getMemoryInfo(mMemoryInfo);
+            mSystemHeadroom = mMemoryInfo.availMem - mMemoryInfo.threshold;
+            mSystemSampleTime = now;
+        }
+        return mSystemHeadroom;
+    }
+}
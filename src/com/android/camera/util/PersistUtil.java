@@ -126,6 +126,8 @@ public class PersistUtil {
             get("persist.sys.camera.display.lmax", "");
     private static final int PERSIST_BURST_PREVIEW_REQUEST_NUMS =
             getInt("persist.sys.camera.burst.preview.nums", 0);
+    private static final boolean PERSIST_TRACKING_FOCUS_ROI_ENABLED =
+            getBoolean("persist.sys.camera.trackingfocus.roi", true);
 
     public static int getMemoryLimit() {
         return PERSIST_MEMORY_LIMIT;
@@ -356,4 +358,8 @@ public class PersistUtil {
         return PERSIST_DISPLAY_LMAX;
     }
 
+    public static boolean isTrackingFocusRoiEnabled() {
+        return PERSIST_TRACKING_FOCUS_ROI_ENABLED;
+    }
+
 }
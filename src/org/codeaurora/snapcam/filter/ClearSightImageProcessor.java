@@ -81,8 +81,8 @@ import com.android.camera.Exif;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.MediaSaveService;
 import com.android.camera.MediaSaveService.OnMediaSavedListener;
-import com.android.camera.PhotoModule.NamedImages;
-import com.android.camera.PhotoModule.NamedImages.NamedEntity;
+import com.android.camera.CaptureNames;
+import com.android.camera.CaptureNames.NamedEntity;
 import com.android.camera.SettingsManager;
 import com.android.camera.Storage;
 import com.android.camera.util.CameraUtil;
@@ -127,7 +127,7 @@ public class ClearSightImageProcessor {
                     "org.codeaurora.qcamera3.hal_private_data.reprocess_data_blob",
                     byte[].class);
 
-    private NamedImages mNamedImages;
+    private CaptureNames mNamedImages;
     private ImageReader[] mImageReader = new ImageReader[NUM_CAM];
     private ImageReader[] mEncodeImageReader = new ImageReader[NUM_CAM];
     private ImageWriter[] mImageWriter = new ImageWriter[NUM_CAM];
@@ -165,7 +165,7 @@ public class ClearSightImageProcessor {
     private static ClearSightImageProcessor mInstance;
 
     private ClearSightImageProcessor() {
-        mNamedImages = new NamedImages();
+        mNamedImages = new CaptureNames();
         long threshMs = PersistUtil.getTimestampLimit();
         mTimestampThresholdNs = threshMs * 1000000;
         Log.d(TAG, "mTimestampThresholdNs: " + mTimestampThresholdNs);
@@ -542,8 +542,7 @@ public class ClearSightImageProcessor {
                 mReprocessedBayerCount = 0;
                 mReprocessedMonoCount = 0;
                 mNumImagesToProcess[msg.arg1] = msg.arg2;
-                mNamedImages.nameNewImage(System.currentTimeMillis());
-                mNamedEntity = mNamedImages.getNextNameEntity();
+                mNamedEntity = mNamedImages.allocate(System.currentTimeMillis());
                 mClearsightRegisterHandler.obtainMessage(MSG_START_CAPTURE,
                         0, 0, mNamedEntity).sendToTarget();
                 mDepthProcessHandler.obtainMessage(MSG_START_CAPTURE).sendToTarget();
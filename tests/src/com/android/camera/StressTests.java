@@ -18,6 +18,7 @@ package com.android.camera;
 
 import com.android.camera.stress.CameraLatency;
 import com.android.camera.stress.CameraStartUp;
+import com.android.camera.stress.FaceOverlayRendering;
 import com.android.camera.stress.ImageCapture;
 import com.android.camera.stress.SwitchPreview;
 
@@ -39,6 +40,7 @@ public class StressTests extends TestSuite {
         TestSuite result = new TestSuite();
         result.addTestSuite(CameraLatency.class);
         result.addTestSuite(CameraStartUp.class);
+        result.addTestSuite(FaceOverlayRendering.class);
         result.addTestSuite(ImageCapture.class);
         result.addTestSuite(SwitchPreview.class);
         return result;
@@ -29,6 +29,7 @@ import android.util.Log;
 
 import java.io.FileWriter;
 import java.io.BufferedWriter;
+import java.util.Map;
 
 /**
  * Test cases to measure the camera and video recorder startup time.
@@ -53,6 +54,7 @@ public class CameraStartUp extends InstrumentationTestCase {
             Activity cameraActivity = inst.startActivitySync(intent);
             long cameraStarted = System.currentTimeMillis();
             Thread.sleep(WAIT_TIME_FOR_PREVIEW);
+            writePhaseTimeline("Camera", ((CameraActivity) cameraActivity).getStartupTimeline());
             cameraActivity.finish();
             startupTime = cameraStarted - beforeStart;
             Thread.sleep(2 * 1000); //sleep for 2 seconds.
@@ -76,6 +78,7 @@ public class CameraStartUp extends InstrumentationTestCase {
             Activity recorderActivity = inst.startActivitySync(intent);
             long cameraStarted = System.currentTimeMillis();
             Thread.sleep(WAIT_TIME_FOR_PREVIEW);
+            writePhaseTimeline("Video", ((CameraActivity) recorderActivity).getStartupTimeline());
             recorderActivity.finish();
             startupTime = cameraStarted - beforeStart;
             Log.v(TAG, "Video Startup Time = " + startupTime);
@@ -89,6 +92,20 @@ public class CameraStartUp extends InstrumentationTestCase {
         return startupTime;
     }
 
+    // Per-phase startup timestamps reported by CameraActivity, in ms from onCreate.
+    private void writePhaseTimeline(String type, Map<String, Long> timeline) {
+        Log.v(TAG, type + " startup phases: " + timeline);
+        try {
+            FileWriter fstream = new FileWriter(CAMERA_TEST_OUTPUT_FILE, true);
+            BufferedWriter out = new BufferedWriter(fstream);
+            out.write(type + " startup phases: " + timeline + "\n");
+            out.close();
+            fstream.close();
+        } catch (Exception e) {
+            Log.v(TAG, "Fails to write startup phases", e);
+        }
+    }
+
     private void writeToOutputFile(long totalStartupTime,
             String individualStartupTime, boolean firstStartUp, String Type) throws Exception {
         // TODO (yslau) : Need to integrate the output data with central
@@ -0,0 +1,198 @@
+/*
+Copyright (c) 2017, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.ExtendedFace;
+import com.android.camera.ui.Camera2FaceView;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.os.Environment;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.View;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Measures the time and allocations of drawing the camera2 face detection
+ * overlay, as done for every preview frame with faces. The view is driven
+ * on the UI thread, the same way the capture result dispatcher drives it.
+ */
+public class FaceOverlayRendering extends InstrumentationTestCase {
+    private static final String TAG = "FaceOverlayRendering";
+    private static final int NUMBER_OF_FACES = 5;
+    private static final int WARM_UP_DRAWS = 60;
+    private static final int TOTAL_NUMBER_OF_DRAWS = 600;
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+    private static final String FACE_CLASS = "android.hardware.camera2.params.Face";
+    private static final Rect CAMERA_BOUND = new Rect(0, 0, 4000, 3000);
+    private static final String CAMERA_TEST_OUTPUT_FILE =
+            Environment.getExternalStorageDirectory().toString() + "/mediaStressOut.txt";
+
+    private Camera2FaceView mFaceView;
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    private long mElapsed;
+    private int mAllocations;
+    private Exception mError;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mFaceView = new Camera2FaceView(getInstrumentation().getTargetContext(), null);
+                mFaceView.onSurfaceTextureSizeChanged(VIEW_WIDTH, VIEW_HEIGHT);
+                mFaceView.setDisplayOrientation(90);
+                mFaceView.setOrientation(0, false);
+                mFaceView.setCameraBound(CAMERA_BOUND);
+                mFaceView.setOriginalCameraBound(CAMERA_BOUND);
+                mFaceView.setZoom(1.0f);
+                mFaceView.measure(
+                        View.MeasureSpec.makeMeasureSpec(VIEW_WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, View.MeasureSpec.EXACTLY));
+                mFaceView.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+            }
+        });
+        mBitmap = Bitmap.createBitmap(VIEW_WIDTH, VIEW_HEIGHT, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mBitmap);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBitmap.recycle();
+        super.tearDown();
+    }
+
+    // camera2 faces are not in the SDK the tests build against, and their
+    // constructor is hidden, so they are created and handed over by reflection.
+    @LargeTest
+    public void testFaceOverlayDraw() throws Exception {
+        measureDraws("Face overlay rendering", createFaces(), null);
+    }
+
+    @LargeTest
+    public void testFaceOverlayDrawWithExtendedFaces() throws Exception {
+        Object faces = createFaces();
+        ExtendedFace[] extendedFaces = new ExtendedFace[NUMBER_OF_FACES];
+        for (int i = 0; i < extendedFaces.length; i++) {
+            // Half the faces smile and look aside, so every overlay branch is drawn.
+            ExtendedFace exFace = new ExtendedFace(i);
+            exFace.setBlinkDetected(1);
+            exFace.setBlinkDegree((byte) (i % 2 == 0 ? 80 : 10), (byte) 10);
+            exFace.setSmileDegree((byte) (i % 2 == 0 ? 90 : 10));
+            exFace.setSmileConfidence(90);
+            exFace.setGazeDirection(i % 2 == 0 ? 10 : 0, i % 2 == 0 ? -15 : 0, 5);
+            extendedFaces[i] = exFace;
+        }
+        measureDraws("Face overlay rendering with extended faces", faces, extendedFaces);
+    }
+
+    /* Returns a camera2 Face[] holding NUMBER_OF_FACES faces side by side */
+    private static Object createFaces() throws Exception {
+        Class<?> faceClass = Class.forName(FACE_CLASS);
+        Constructor<?> constructor = faceClass.getConstructor(Rect.class, int.class,
+                int.class, Point.class, Point.class, Point.class);
+        Object faces = Array.newInstance(faceClass, NUMBER_OF_FACES);
+        for (int i = 0; i < NUMBER_OF_FACES; i++) {
+            int left = 400 + i * 600;
+            Array.set(faces, i, constructor.newInstance(new Rect(left, 1200, left + 400, 1600),
+                    100, i, new Point(left + 120, 1320), new Point(left + 280, 1320),
+                    new Point(left + 200, 1500)));
+        }
+        return faces;
+    }
+
+    private void measureDraws(final String name, Object faces,
+            ExtendedFace[] extendedFaces) throws Exception {
+        final Method setFaces = Camera2FaceView.class.getMethod("setFaces",
+                faces.getClass(), ExtendedFace[].class);
+        // Allocated once, so invoking setFaces adds nothing to the counts.
+        final Object[] args = new Object[] {faces, extendedFaces};
+        // Every draw sees a new result, so the snapshot copy is measured as well.
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < WARM_UP_DRAWS; i++) {
+                        setFaces.invoke(mFaceView, args);
+                        mFaceView.draw(mCanvas);
+                    }
+
+                    Debug.resetThreadAllocCount();
+                    Debug.startAllocCounting();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < TOTAL_NUMBER_OF_DRAWS; i++) {
+                        setFaces.invoke(mFaceView, args);
+                        mFaceView.draw(mCanvas);
+                    }
+                    mElapsed = System.nanoTime() - start;
+                    Debug.stopAllocCounting();
+                    mAllocations = Debug.getThreadAllocCount();
+                } catch (Exception e) {
+                    Debug.stopAllocCounting();
+                    mError = e;
+                }
+            }
+        });
+        if (mError != null) {
+            fail(name + " setFaces failed: " + mError);
+        }
+
+        long avgDrawTimeUs = mElapsed / TOTAL_NUMBER_OF_DRAWS / 1000;
+        float avgAllocations = (float) mAllocations / TOTAL_NUMBER_OF_DRAWS;
+        try {
+            FileWriter fstream = new FileWriter(CAMERA_TEST_OUTPUT_FILE, true);
+            BufferedWriter out = new BufferedWriter(fstream);
+            out.write(name + " : \n");
+            out.write("Number of faces: " + NUMBER_OF_FACES + "\n");
+            out.write("Number of draws: " + TOTAL_NUMBER_OF_DRAWS + "\n");
+            out.write("Avg draw time (us) = " + avgDrawTimeUs + "\n");
+            out.write("Avg allocations per draw = " + avgAllocations + "\n");
+            out.close();
+            fstream.close();
+        } catch (Exception e) {
+            fail(name + " write output to file");
+        }
+        Log.v(TAG, name + ": avg draw time (us) = " + avgDrawTimeUs);
+        Log.v(TAG, name + ": avg allocations per draw = " + avgAllocations);
+    }
+}